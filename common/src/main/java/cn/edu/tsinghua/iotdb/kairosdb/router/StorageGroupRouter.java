@@ -0,0 +1,151 @@
+package cn.edu.tsinghua.iotdb.kairosdb.router;
+
+import java.util.List;
+
+/**
+ * Routes a device path to its storage group. The devices listed in the protocols are kept in an
+ * open-addressing table built once, the other devices are routed by the hash code of their name.
+ * The device name is never extracted from the path: it is hashed and compared in place, and the
+ * group names are built once, so routing a path does not allocate.
+ */
+public class StorageGroupRouter {
+
+  private static final String STORAGE_GROUP_PREFIX = "group_";
+
+  private final List<List<String>> protocolMachines;
+  private final int storageGroupSize;
+  private final String[] groupNames;
+  // Open-addressing table from device name to the index of its protocol
+  private final String[] devices;
+  private final int[] deviceGroups;
+  private final int mask;
+
+  /**
+   * @param protocolMachines The devices of each protocol, the devices of protocol i are stored in
+   * storage group i
+   * @param protocolNum The number of protocols used in protocolMachines
+   * @param storageGroupSize The number of storage groups the other devices are hashed to
+   */
+  public StorageGroupRouter(List<List<String>> protocolMachines, int protocolNum,
+      int storageGroupSize) {
+    this.protocolMachines = protocolMachines;
+    this.storageGroupSize = storageGroupSize;
+    int deviceNum = 0;
+    for (int i = 0; i < protocolNum; i++) {
+      deviceNum += protocolMachines.get(i).size();
+    }
+    int capacity = Integer.highestOneBit(Math.max(deviceNum, 1) * 2 + 1) << 1;
+    devices = new String[capacity];
+    deviceGroups = new int[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < protocolNum; i++) {
+      for (String device : protocolMachines.get(i)) {
+        // The first protocol containing the device wins
+        int slot = find(device, 0, device.length(), device.hashCode());
+        if (devices[slot] == null) {
+          devices[slot] = device;
+          deviceGroups[slot] = i;
+        }
+      }
+    }
+    groupNames = new String[Math.max(protocolNum, storageGroupSize)];
+    for (int i = 0; i < groupNames.length; i++) {
+      groupNames[i] = (STORAGE_GROUP_PREFIX + i).intern();
+    }
+  }
+
+  /**
+   * @return true if this router has been built from the given config
+   */
+  public boolean isBuiltFrom(List<List<String>> protocolMachines, int storageGroupSize) {
+    return this.protocolMachines == protocolMachines && this.storageGroupSize == storageGroupSize;
+  }
+
+  /**
+   * Get the storage group of a device path. The device is the second part of the path split by
+   * '.', e.g. d1 for .d1.s1
+   *
+   * @param path The device path
+   * @return The storage group name, e.g. group_3
+   */
+  public String getStorageGroupName(String path) {
+    int index = getStorageGroupIndex(path);
+    if (index >= 0 && index < groupNames.length) {
+      return groupNames[index];
+    }
+    return STORAGE_GROUP_PREFIX + index;
+  }
+
+  /**
+   * @return The number of storage groups a path may be routed to, the groups of the protocols
+   * included
+   */
+  public int getStorageGroupNum() {
+    return groupNames.length;
+  }
+
+  /**
+   * @return true if the device of the path is listed in a protocol
+   */
+  public boolean isProtocolDevice(String path) {
+    int start = deviceStart(path);
+    int end = deviceEnd(path, start);
+    return devices[find(path, start, end, hash(path, start, end))] != null;
+  }
+
+  /**
+   * Same as Math.abs(device.hashCode()) % storageGroupSize for the devices not in a protocol,
+   * which may be negative when the hash code is Integer.MIN_VALUE.
+   */
+  private int getStorageGroupIndex(String path) {
+    int start = deviceStart(path);
+    int end = deviceEnd(path, start);
+    int hash = hash(path, start, end);
+    int slot = find(path, start, end, hash);
+    if (devices[slot] != null) {
+      return deviceGroups[slot];
+    }
+    return Math.abs(hash) % storageGroupSize;
+  }
+
+  private static int deviceStart(String path) {
+    int start = path.indexOf('.') + 1;
+    if (start == 0) {
+      throw new IllegalArgumentException(String.format("Invalid device path %s", path));
+    }
+    return start;
+  }
+
+  private static int deviceEnd(String path, int start) {
+    int end = path.indexOf('.', start);
+    return end < 0 ? path.length() : end;
+  }
+
+  /**
+   * The hash code of path.substring(start, end), as String#hashCode()
+   */
+  private static int hash(String path, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + path.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * @return The slot holding the device, or the empty slot where it would be stored
+   */
+  private int find(String path, int start, int end, int hash) {
+    int length = end - start;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    while (devices[slot] != null) {
+      String device = devices[slot];
+      if (device.length() == length && device.regionMatches(0, path, start, length)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+}
@@ -0,0 +1,63 @@
+package cn.edu.tsinghua.iotdb.kairosdb.router;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Pins the routing shared by IKR and the export tools: a change breaks the reads of the data
+ * already written.
+ */
+public class StorageGroupRouterTest {
+
+  private static final int STORAGE_GROUP_SIZE = 30;
+
+  private static StorageGroupRouter createRouter() {
+    List<List<String>> protocolMachines = new ArrayList<>();
+    protocolMachines.add(Arrays.asList("329", "331"));
+    protocolMachines.add(Arrays.asList("401", "331"));
+    return new StorageGroupRouter(protocolMachines, protocolMachines.size(), STORAGE_GROUP_SIZE);
+  }
+
+  @Test
+  public void routeProtocolDevices() {
+    StorageGroupRouter router = createRouter();
+    assertEquals("group_0", router.getStorageGroupName(".329.s1"));
+    assertEquals("group_1", router.getStorageGroupName(".401"));
+    // The first protocol containing the device wins
+    assertEquals("group_0", router.getStorageGroupName(".331.s1.s2"));
+    assertTrue(router.isProtocolDevice(".401.s1"));
+    assertFalse(router.isProtocolDevice(".4010.s1"));
+  }
+
+  @Test
+  public void routeOtherDevicesByHashCode() {
+    StorageGroupRouter router = createRouter();
+    for (String device : Arrays.asList("d1", "server1", "machine-42", "", "40")) {
+      String expected = "group_" + Math.abs(device.hashCode()) % STORAGE_GROUP_SIZE;
+      assertEquals(expected, router.getStorageGroupName("." + device + ".s1"));
+      assertEquals(expected, router.getStorageGroupName("." + device));
+    }
+    assertEquals("group_29", router.getStorageGroupName(".d1.s1"));
+  }
+
+  @Test
+  public void countProtocolGroupsBeyondStorageGroupSize() {
+    assertEquals(STORAGE_GROUP_SIZE, createRouter().getStorageGroupNum());
+    List<List<String>> protocolMachines = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      protocolMachines.add(Arrays.asList("m" + i));
+    }
+    StorageGroupRouter router = new StorageGroupRouter(protocolMachines, 40, STORAGE_GROUP_SIZE);
+    assertEquals(40, router.getStorageGroupNum());
+    assertEquals("group_39", router.getStorageGroupName(".m39.s1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectPathWithoutDevice() {
+    createRouter().getStorageGroupName("d1");
+  }
+}
@@ -4,6 +4,8 @@ import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBUtil;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.MetricsManager;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.TagOrderStore;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.WriteSpool;
 import cn.edu.tsinghua.iotdb.kairosdb.util.AddressUtil;
 import java.net.URI;
 import java.sql.Connection;
@@ -43,6 +45,13 @@ public class IKR {
       LOGGER.info("Connected {} successfully.", url);
       MetricsManager.loadMetadata(connection);
     }
+    // Recover the tag positions which had not been persisted before the last shutdown, if no
+    // metadata was loaded
+    TagOrderStore.getInstance().recover();
+    if (WriteSpool.isEnabled()) {
+      // Start replaying the writes spooled before the last shutdown
+      WriteSpool.getInstance();
+    }
   }
 
   private static HttpServer startServer(String[] argv) throws SQLException, ClassNotFoundException {
@@ -15,13 +15,54 @@ public class Config {
   public int MAX_ROLLUP = 100;
   public int DEBUG = 0;
   public int CONNECTION_NUM = 20;
+  public int INSERT_BATCH_SIZE = 1000;
+  public int KNOWN_SERIES_CAPACITY = 20000000;
+  public int SERIES_PATH_CACHE_SIZE = 1000000;
+  public String TAG_ORDER_LOG_DIR = "data";
+  public int TAG_ORDER_PERSIST_RETRY_INTERVAL = 1000;
+  public int INGESTION_THREAD_NUM = 20;
+  public long INGESTION_QUEUE_BYTES = 268435456;
+  public long INGESTION_REQUEST_BYTES = 1048576;
+  public int INGESTION_RETRY_AFTER = 1;
+  public boolean ENABLE_WRITE_BUFFER = false;
+  public int WRITE_BUFFER_MAX_ROWS = 10000;
+  public int WRITE_BUFFER_FLUSH_INTERVAL = 100;
+  public String WRITE_ACK_POLICY = "all";
+  public int REPLICA_WRITE_THREAD_NUM = 60;
+  public int REPLICA_WRITE_QUEUE_SIZE = 1000;
+  public boolean ENABLE_SPOOL = false;
+  public String SPOOL_DIR = "data/spool";
+  public int SPOOL_SEGMENT_SIZE = 67108864;
+  public int SPOOL_MAX_SEGMENTS = 64;
+  public int SPOOL_REPLAY_BATCH = 10000;
+  public int SPOOL_REPLAY_INTERVAL = 1000;
 
   public int GROUP_BY_UNIT = 20;
   public long MAX_RANGE = 20;
+  public boolean ENABLE_AGGREGATION_PUSHDOWN = false;
   public int PROFILE_INTERVAL = 10;
   public int CORE_POOL_SIZE = 0;
   public int MAX_POOL_SIZE = 30;
   public boolean ENABLE_PROFILER = false;
+  public boolean ENABLE_QUERY_STREAMING = false;
+  public boolean ENABLE_QUERY_SINGLE_FLIGHT = true;
+  public int QUERY_STREAM_BUFFER_SIZE = 65536;
+  public int QUERY_PARALLELISM = 8;
+  public int MAX_TIME_CHUNKS = 64;
+  public long QUERY_TIMEOUT = 120000;
+  public boolean RETURN_PARTIAL_RESULTS = false;
+  public int QUERY_QUEUE_SIZE = 256;
+  public long QUERY_QUEUE_POINTS = 500000000;
+  public int QUERY_MAX_CONCURRENCY = 8;
+  public long SMALL_QUERY_POINTS = 100000;
+  public long QUERY_POINT_INTERVAL = 1000;
+  public int QUERY_RETRY_AFTER = 1;
+  public int PERCENTILE_EXACT_SIZE = 10000;
+  public double PERCENTILE_COMPRESSION = 100;
+  public String DOWNSAMPLE_METHOD = "lttb";
+  public long QUERY_CACHE_MAX_BYTES = 0;
+  public long QUERY_CACHE_TTL = 300000;
+  public long QUERY_CACHE_SETTLE = 60000;
 
   public int PROTOCAL_NUM = 12;
   public List<List<String>> PROTOCAL_MACHINE = new ArrayList<>();
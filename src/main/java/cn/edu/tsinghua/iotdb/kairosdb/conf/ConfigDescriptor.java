@@ -59,14 +59,61 @@ public class ConfigDescriptor {
         config.MAX_ROLLUP = Integer.parseInt(properties.getProperty("MAX_ROLLUP", config.MAX_ROLLUP + ""));
         config.DEBUG = Integer.parseInt(properties.getProperty("DEBUG", config.DEBUG + ""));
         config.CONNECTION_NUM = Integer.parseInt(properties.getProperty("CONNECTION_NUM", config.CONNECTION_NUM + ""));
+        config.INSERT_BATCH_SIZE = Integer.parseInt(properties.getProperty("INSERT_BATCH_SIZE", config.INSERT_BATCH_SIZE + ""));
+        config.KNOWN_SERIES_CAPACITY = Integer.parseInt(properties.getProperty("KNOWN_SERIES_CAPACITY", config.KNOWN_SERIES_CAPACITY + ""));
+        config.SERIES_PATH_CACHE_SIZE = Integer.parseInt(properties.getProperty("SERIES_PATH_CACHE_SIZE", config.SERIES_PATH_CACHE_SIZE + ""));
+        config.TAG_ORDER_LOG_DIR = properties.getProperty("TAG_ORDER_LOG_DIR", config.TAG_ORDER_LOG_DIR);
+        config.TAG_ORDER_PERSIST_RETRY_INTERVAL = Integer.parseInt(properties.getProperty("TAG_ORDER_PERSIST_RETRY_INTERVAL", config.TAG_ORDER_PERSIST_RETRY_INTERVAL + ""));
+        config.INGESTION_THREAD_NUM = Integer.parseInt(properties.getProperty("INGESTION_THREAD_NUM", config.INGESTION_THREAD_NUM + ""));
+        config.INGESTION_QUEUE_BYTES = Long.parseLong(properties.getProperty("INGESTION_QUEUE_BYTES", config.INGESTION_QUEUE_BYTES + ""));
+        config.INGESTION_REQUEST_BYTES = Long.parseLong(properties.getProperty("INGESTION_REQUEST_BYTES", config.INGESTION_REQUEST_BYTES + ""));
+        config.INGESTION_RETRY_AFTER = Integer.parseInt(properties.getProperty("INGESTION_RETRY_AFTER", config.INGESTION_RETRY_AFTER + ""));
+        config.ENABLE_WRITE_BUFFER = Boolean.parseBoolean(properties.getProperty("ENABLE_WRITE_BUFFER", config.ENABLE_WRITE_BUFFER + ""));
+        config.WRITE_BUFFER_MAX_ROWS = Integer.parseInt(properties.getProperty("WRITE_BUFFER_MAX_ROWS", config.WRITE_BUFFER_MAX_ROWS + ""));
+        config.WRITE_BUFFER_FLUSH_INTERVAL = Integer.parseInt(properties.getProperty("WRITE_BUFFER_FLUSH_INTERVAL", config.WRITE_BUFFER_FLUSH_INTERVAL + ""));
+        config.WRITE_ACK_POLICY = properties.getProperty("WRITE_ACK_POLICY", config.WRITE_ACK_POLICY);
+        config.REPLICA_WRITE_THREAD_NUM = Integer.parseInt(properties.getProperty("REPLICA_WRITE_THREAD_NUM", config.REPLICA_WRITE_THREAD_NUM + ""));
+        config.REPLICA_WRITE_QUEUE_SIZE = Integer.parseInt(properties.getProperty("REPLICA_WRITE_QUEUE_SIZE", config.REPLICA_WRITE_QUEUE_SIZE + ""));
+        config.ENABLE_SPOOL = Boolean.parseBoolean(properties.getProperty("ENABLE_SPOOL", config.ENABLE_SPOOL + ""));
+        config.SPOOL_DIR = properties.getProperty("SPOOL_DIR", config.SPOOL_DIR);
+        config.SPOOL_SEGMENT_SIZE = Integer.parseInt(properties.getProperty("SPOOL_SEGMENT_SIZE", config.SPOOL_SEGMENT_SIZE + ""));
+        config.SPOOL_MAX_SEGMENTS = Integer.parseInt(properties.getProperty("SPOOL_MAX_SEGMENTS", config.SPOOL_MAX_SEGMENTS + ""));
+        config.SPOOL_REPLAY_BATCH = Integer.parseInt(properties.getProperty("SPOOL_REPLAY_BATCH", config.SPOOL_REPLAY_BATCH + ""));
+        config.SPOOL_REPLAY_INTERVAL = Integer.parseInt(properties.getProperty("SPOOL_REPLAY_INTERVAL", config.SPOOL_REPLAY_INTERVAL + ""));
+        if (!config.ENABLE_SPOOL && !"all".equalsIgnoreCase(config.WRITE_ACK_POLICY.trim())) {
+          // the writes failed by the replicas not waited for could only be logged, and be lost
+          LOGGER.error("WRITE_ACK_POLICY {} requires ENABLE_SPOOL, use all instead.",
+              config.WRITE_ACK_POLICY);
+          config.WRITE_ACK_POLICY = "all";
+        }
         config.GROUP_BY_UNIT = Integer.parseInt(properties.getProperty("GROUP_BY_UNIT", config.GROUP_BY_UNIT + ""));
         config.MAX_RANGE = Long.parseLong(properties.getProperty("MAX_RANGE", config.MAX_RANGE +
             ""));
+        config.ENABLE_AGGREGATION_PUSHDOWN = Boolean.parseBoolean(properties.getProperty("ENABLE_AGGREGATION_PUSHDOWN", config.ENABLE_AGGREGATION_PUSHDOWN + ""));
         config.PROFILE_INTERVAL = Integer.parseInt(properties.getProperty("PROFILE_INTERVAL", config.PROFILE_INTERVAL + ""));
         config.CORE_POOL_SIZE = Integer.parseInt(properties.getProperty("CORE_POOL_SIZE", config.CORE_POOL_SIZE + ""));
         config.MAX_POOL_SIZE = Integer.parseInt(properties.getProperty("MAX_POOL_SIZE", config.MAX_POOL_SIZE + ""));
         config.ENABLE_PROFILER = Boolean.parseBoolean(properties.getProperty("ENABLE_PROFILER",
             config.ENABLE_PROFILER + ""));
+        config.ENABLE_QUERY_STREAMING = Boolean.parseBoolean(properties.getProperty("ENABLE_QUERY_STREAMING", config.ENABLE_QUERY_STREAMING + ""));
+        config.ENABLE_QUERY_SINGLE_FLIGHT = Boolean.parseBoolean(properties.getProperty("ENABLE_QUERY_SINGLE_FLIGHT", config.ENABLE_QUERY_SINGLE_FLIGHT + ""));
+        config.QUERY_STREAM_BUFFER_SIZE = Integer.parseInt(properties.getProperty("QUERY_STREAM_BUFFER_SIZE", config.QUERY_STREAM_BUFFER_SIZE + ""));
+        config.QUERY_PARALLELISM = Integer.parseInt(properties.getProperty("QUERY_PARALLELISM", config.QUERY_PARALLELISM + ""));
+        config.MAX_TIME_CHUNKS = Integer.parseInt(properties.getProperty("MAX_TIME_CHUNKS", config.MAX_TIME_CHUNKS + ""));
+        config.QUERY_TIMEOUT = Long.parseLong(properties.getProperty("QUERY_TIMEOUT", config.QUERY_TIMEOUT + ""));
+        config.RETURN_PARTIAL_RESULTS = Boolean.parseBoolean(properties.getProperty("RETURN_PARTIAL_RESULTS", config.RETURN_PARTIAL_RESULTS + ""));
+        config.QUERY_QUEUE_SIZE = Integer.parseInt(properties.getProperty("QUERY_QUEUE_SIZE", config.QUERY_QUEUE_SIZE + ""));
+        config.QUERY_QUEUE_POINTS = Long.parseLong(properties.getProperty("QUERY_QUEUE_POINTS", config.QUERY_QUEUE_POINTS + ""));
+        config.QUERY_MAX_CONCURRENCY = Integer.parseInt(properties.getProperty("QUERY_MAX_CONCURRENCY", config.QUERY_MAX_CONCURRENCY + ""));
+        config.SMALL_QUERY_POINTS = Long.parseLong(properties.getProperty("SMALL_QUERY_POINTS", config.SMALL_QUERY_POINTS + ""));
+        config.QUERY_POINT_INTERVAL = Long.parseLong(properties.getProperty("QUERY_POINT_INTERVAL", config.QUERY_POINT_INTERVAL + ""));
+        config.QUERY_RETRY_AFTER = Integer.parseInt(properties.getProperty("QUERY_RETRY_AFTER", config.QUERY_RETRY_AFTER + ""));
+        config.PERCENTILE_EXACT_SIZE = Integer.parseInt(properties.getProperty("PERCENTILE_EXACT_SIZE", config.PERCENTILE_EXACT_SIZE + ""));
+        config.PERCENTILE_COMPRESSION = Double.parseDouble(properties.getProperty("PERCENTILE_COMPRESSION", config.PERCENTILE_COMPRESSION + ""));
+        config.DOWNSAMPLE_METHOD = properties.getProperty("DOWNSAMPLE_METHOD", config.DOWNSAMPLE_METHOD);
+        config.QUERY_CACHE_MAX_BYTES = Long.parseLong(properties.getProperty("QUERY_CACHE_MAX_BYTES", config.QUERY_CACHE_MAX_BYTES + ""));
+        config.QUERY_CACHE_TTL = Long.parseLong(properties.getProperty("QUERY_CACHE_TTL", config.QUERY_CACHE_TTL + ""));
+        config.QUERY_CACHE_SETTLE = Long.parseLong(properties.getProperty("QUERY_CACHE_SETTLE", config.QUERY_CACHE_SETTLE + ""));
 
         config.PROTOCAL_NUM = Integer.parseInt(properties.getProperty("PROTOCAL_NUM", "12"));
         List<List<String>> protocal_machine = new ArrayList<>();
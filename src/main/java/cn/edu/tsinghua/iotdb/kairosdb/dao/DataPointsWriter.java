@@ -0,0 +1,123 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds and sends the insert SQL of ingested rows. The rows are given grouped by device, as
+ * &lt;root.storage_group.device, &lt;timestamp, &lt;measurement, value&gt;&gt;&gt;, the timestamps
+ * of a device being sorted, so that one JDBC batch mostly hits the same storage group.
+ */
+public class DataPointsWriter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataPointsWriter.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private DataPointsWriter() {
+  }
+
+  /**
+   * @param deviceRows The rows grouped by device
+   * @param rowCount The number of rows, used to size the list
+   * @return The insert SQL list, shared by all the connections
+   */
+  public static List<String> buildInsertSqlList(
+      Map<String, ? extends Map<Long, Map<String, String>>> deviceRows, int rowCount) {
+    List<String> sqlList = new ArrayList<>(rowCount);
+    for (Map.Entry<String, ? extends Map<Long, Map<String, String>>> device :
+        deviceRows.entrySet()) {
+      for (Map.Entry<Long, Map<String, String>> row : device.getValue().entrySet()) {
+        StringBuilder sqlBuilder = new StringBuilder("insert into ");
+        StringBuilder valuePartBuilder = new StringBuilder(" values(");
+        sqlBuilder.append(device.getKey()).append("(timestamp");
+        valuePartBuilder.append(row.getKey());
+        for (Map.Entry<String, String> subEntry : row.getValue().entrySet()) {
+          sqlBuilder.append(",").append(subEntry.getKey());
+          valuePartBuilder.append(",").append(subEntry.getValue());
+        }
+        sqlBuilder.append(")").append(valuePartBuilder).append(")");
+        String sql = sqlBuilder.toString();
+        if (config.DEBUG == 3) {
+          LOGGER.info("{} execute ingestion SQL: {}", Thread.currentThread().getName(), sql);
+        }
+        sqlList.add(sql);
+      }
+    }
+    return sqlList;
+  }
+
+  /**
+   * Execute the SQL list on every connection concurrently, in JDBC batches of INSERT_BATCH_SIZE
+   * statements, and wait as WRITE_ACK_POLICY requires. With ENABLE_SPOOL, the SQL list of a replica
+   * which can't be reached, or still has spooled writes to replay, is spooled and counts as
+   * acknowledged, as is the SQL list of a replica whose write queue is full. A statement rejected
+   * by IoTDB fails the write, as it would fail on replay too.
+   */
+  public static void execute(List<Connection> connections, List<String> sqlList)
+      throws SQLException {
+    ReplicaWriter.getInstance().write(connections, (conn, replica) -> {
+      if (!WriteSpool.isEnabled()) {
+        execute(conn, sqlList);
+        return;
+      }
+      WriteSpool spool = WriteSpool.getInstance();
+      if (spool.hasPending(replica)) {
+        // Keep the order of the writes behind the spooled ones
+        spoolOrThrow(spool, replica, sqlList, null);
+        return;
+      }
+      try {
+        execute(conn, sqlList);
+      } catch (SQLException e) {
+        if (!IoTDBUtil.isConnectionFailure(conn, e)) {
+          throw e;
+        }
+        spoolOrThrow(spool, replica, sqlList, e);
+        LOGGER.warn("Write on replica {} failed because {}, spooled {} statements.", replica,
+            e.getMessage(), sqlList.size());
+      }
+    }, replica -> WriteSpool.isEnabled() && WriteSpool.getInstance().append(replica, sqlList));
+  }
+
+  private static void spoolOrThrow(WriteSpool spool, int replica, List<String> sqlList,
+      SQLException cause) throws SQLException {
+    if (!spool.append(replica, sqlList)) {
+      if (cause != null) {
+        throw cause;
+      }
+      throw new SQLException(String.format("Spool of replica %d is full", replica));
+    }
+  }
+
+  static void execute(Connection conn, List<String> sqlList) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      if (config.INSERT_BATCH_SIZE <= 1) {
+        for (String sql : sqlList) {
+          statement.execute(sql);
+        }
+      } else {
+        int batchCount = 0;
+        for (String sql : sqlList) {
+          statement.addBatch(sql);
+          batchCount++;
+          if (batchCount == config.INSERT_BATCH_SIZE) {
+            statement.executeBatch();
+            batchCount = 0;
+          }
+        }
+        if (batchCount > 0) {
+          statement.executeBatch();
+        }
+      }
+    }
+  }
+
+}
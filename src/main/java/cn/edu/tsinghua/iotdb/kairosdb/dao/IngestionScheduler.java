@@ -0,0 +1,147 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the ingestion requests on a fixed number of workers. The requests waiting or running are
+ * bounded by their total size in bytes (INGESTION_QUEUE_BYTES), the size of a request is its
+ * Content-Length or INGESTION_REQUEST_BYTES when unknown. A request which does not fit is rejected
+ * so that the caller can answer 503 instead of growing the heap without limit.
+ */
+public class IngestionScheduler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IngestionScheduler.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private final ThreadPoolExecutor workerPool;
+  private final AtomicLong pendingBytes = new AtomicLong(0);
+  private final AtomicInteger pendingRequests = new AtomicInteger(0);
+  private final AtomicLong acceptedCount = new AtomicLong(0);
+  private final AtomicLong rejectedCount = new AtomicLong(0);
+
+  private IngestionScheduler() {
+    this(config.INGESTION_THREAD_NUM);
+  }
+
+  IngestionScheduler(int threadNum) {
+    AtomicInteger threadId = new AtomicInteger(0);
+    workerPool = new ThreadPoolExecutor(threadNum, threadNum,
+        0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "ingestion-worker-" + threadId.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static IngestionScheduler getInstance() {
+    return IngestionSchedulerHolder.INSTANCE;
+  }
+
+  /**
+   * Submit an ingestion request.
+   *
+   * @param worker The worker parsing and writing the request
+   * @param httpheaders The headers of the request, may be null
+   * @return false if the scheduler is saturated and the request has not been accepted
+   */
+  public boolean submit(IngestionWorker worker, HttpHeaders httpheaders) {
+    long bytes = estimateBytes(httpheaders);
+    if (!reserve(bytes)) {
+      rejectedCount.incrementAndGet();
+      return false;
+    }
+    pendingRequests.incrementAndGet();
+    try {
+      workerPool.execute(() -> {
+        try {
+          worker.run();
+        } finally {
+          pendingRequests.decrementAndGet();
+          pendingBytes.addAndGet(-bytes);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pendingRequests.decrementAndGet();
+      pendingBytes.addAndGet(-bytes);
+      rejectedCount.incrementAndGet();
+      LOGGER.warn("Ingestion request rejected because {}", e.getMessage());
+      return false;
+    }
+    acceptedCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * A request is always accepted when nothing is pending, so that a request larger than the whole
+   * budget is not rejected forever.
+   */
+  private boolean reserve(long bytes) {
+    while (true) {
+      long current = pendingBytes.get();
+      if (current > 0 && current + bytes > config.INGESTION_QUEUE_BYTES) {
+        return false;
+      }
+      if (pendingBytes.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  private long estimateBytes(HttpHeaders httpheaders) {
+    if (httpheaders != null) {
+      List<String> contentLength = httpheaders.getRequestHeader("Content-Length");
+      if (contentLength != null && !contentLength.isEmpty()) {
+        try {
+          long length = Long.parseLong(contentLength.get(0).trim());
+          if (length >= 0) {
+            return length;
+          }
+        } catch (NumberFormatException ignored) {
+          // fall back to the default estimation
+        }
+      }
+    }
+    return config.INGESTION_REQUEST_BYTES;
+  }
+
+  public int getQueueDepth() {
+    return workerPool.getQueue().size();
+  }
+
+  public int getActiveCount() {
+    return workerPool.getActiveCount();
+  }
+
+  public int getPendingRequests() {
+    return pendingRequests.get();
+  }
+
+  public long getPendingBytes() {
+    return pendingBytes.get();
+  }
+
+  public long getAcceptedCount() {
+    return acceptedCount.get();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  private static class IngestionSchedulerHolder {
+
+    private static final IngestionScheduler INSTANCE = new IngestionScheduler();
+  }
+
+}
@@ -4,7 +4,6 @@ import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.DataPointsParser;
 import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.ErrorResponse;
 import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.JsonResponseBuilder;
 import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.ValidationErrors;
-import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.MalformedJsonException;
@@ -19,21 +18,19 @@ import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class IngestionWorker extends Thread {
+public class IngestionWorker implements Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(IngestionWorker.class);
   private static final String NO_CACHE = "no-cache";
   private HttpHeaders httpheaders;
   private InputStream stream;
-  private Gson gson;
   private AsyncResponse asyncResponse;
 
   public IngestionWorker(final AsyncResponse asyncResponse, HttpHeaders httpheaders,
-      InputStream stream, Gson gson) {
+      InputStream stream) {
     this.asyncResponse = asyncResponse;
     this.httpheaders = httpheaders;
     this.stream = stream;
-    this.gson = gson;
   }
 
 
@@ -48,7 +45,7 @@ public class IngestionWorker extends Thread {
         }
       }
       DataPointsParser parser = new DataPointsParser(
-          new InputStreamReader(stream, StandardCharsets.UTF_8), gson);
+          new InputStreamReader(stream, StandardCharsets.UTF_8));
       ValidationErrors validationErrors = parser.parse();
       if (!validationErrors.hasErrors()) {
         response = setHeaders(Response.status(Response.Status.NO_CONTENT)).build();
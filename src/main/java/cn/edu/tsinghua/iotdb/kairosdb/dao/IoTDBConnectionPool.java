@@ -60,6 +60,36 @@ public class IoTDBConnectionPool {
     }
   }
 
+  /**
+   * Replace a broken connection to a replica by a new one, leaving the other connections as they
+   * are.
+   *
+   * @param replica The index in IoTDB_LIST of the replica
+   * @param broken The connection which failed
+   * @return The new connection, or the connection which already replaced the broken one
+   */
+  public synchronized Connection renewConnection(int replica, Connection broken)
+      throws SQLException {
+    List<Connection> connections = connections_list.get(replica);
+    int index = connections.indexOf(broken);
+    if (index < 0 && !connections.isEmpty()) {
+      return connections.get(loop.getAndIncrement() % connections.size());
+    }
+    Connection connection = DriverManager
+        .getConnection(String.format(CONNECT_STRING, config.URL_LIST.get(replica)), "root", "root");
+    if (index < 0) {
+      connections.add(connection);
+    } else {
+      connections.set(index, connection);
+      try {
+        broken.close();
+      } catch (SQLException e) {
+        LOGGER.warn("[Not Important] old connection close failed", e);
+      }
+    }
+    return connection;
+  }
+
   public List<Connection> getConnections() {
     if (loop.incrementAndGet() > config.CONNECTION_NUM * 10000) {
       loop.set(0);
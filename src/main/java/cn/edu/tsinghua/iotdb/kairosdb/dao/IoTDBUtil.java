@@ -1,6 +1,7 @@
 package cn.edu.tsinghua.iotdb.kairosdb.dao;
 
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -38,6 +39,45 @@ public class IoTDBUtil {
     return DriverManager.getConnection(String.format(CONNECT_String, url), user, password);
   }
 
+  /**
+   * Tell a failure to reach an IoTDB instance from a statement rejected by IoTDB, e.g. a type
+   * mismatch or an existing or missing series, which fails again whenever it is retried.
+   *
+   * @param connection The connection the statement was executed on
+   * @param e The failure of the statement
+   * @return true if the connection is closed or broken
+   */
+  public static boolean isConnectionFailure(Connection connection, SQLException e) {
+    // the SQLSTATE class of the connection exceptions
+    if (e.getSQLState() != null && e.getSQLState().startsWith("08")) {
+      return true;
+    }
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException
+          || cause.getClass().getName().startsWith("org.apache.thrift.transport.")) {
+        return true;
+      }
+      // the messages of IoTDB JDBC when the server can't be reached, without cause
+      String message = cause.getMessage() == null ? "" : cause.getMessage().toLowerCase();
+      if (message.contains("reconnect") || message.contains("connection has been closed")) {
+        return true;
+      }
+    }
+    try {
+      return connection == null || connection.isClosed();
+    } catch (SQLException ex) {
+      return true;
+    }
+  }
+
+  /**
+   * @return true if the statement failed because the series it creates already exists
+   */
+  public static boolean isSeriesExistence(SQLException e) {
+    // e.g. "Timeseries root.group_0.d1.s1 already exist" of IoTDB
+    return e.getMessage() != null && e.getMessage().contains("already exist");
+  }
+
   public static void closeConnection() {
     try {
       for (Connection conn : connections) {
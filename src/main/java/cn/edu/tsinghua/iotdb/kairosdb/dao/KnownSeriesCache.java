@@ -0,0 +1,263 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The set of TIMESERIES which are known to exist in IoTDB. Only the 64-bit hash of each path is
+ * kept, in striped open-addressing tables, so that tens of millions of series fit in a few hundred
+ * MB. The set is bounded by KNOWN_SERIES_CAPACITY, series beyond the capacity are simply not
+ * remembered and will be created again (which IoTDB rejects harmlessly).
+ */
+public class KnownSeriesCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KnownSeriesCache.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private static final int STRIPE_NUM = 64;
+  private static final int INITIAL_STRIPE_CAPACITY = 1024;
+  private static final long EMPTY = 0L;
+
+  private final Stripe[] stripes = new Stripe[STRIPE_NUM];
+  private final AtomicLong size = new AtomicLong(0);
+
+  private KnownSeriesCache() {
+    this(config.KNOWN_SERIES_CAPACITY);
+  }
+
+  KnownSeriesCache(long capacity) {
+    long maxPerStripe = Math.max(INITIAL_STRIPE_CAPACITY, capacity / STRIPE_NUM);
+    for (int i = 0; i < STRIPE_NUM; i++) {
+      stripes[i] = new Stripe(maxPerStripe);
+    }
+  }
+
+  public static KnownSeriesCache getInstance() {
+    return KnownSeriesCacheHolder.INSTANCE;
+  }
+
+  public boolean contains(String path) {
+    long hash = hash(path);
+    return stripeOf(hash).contains(hash);
+  }
+
+  /**
+   * Remember the given series.
+   *
+   * @param path The full path of the series, e.g. root.group_0.d1.s1
+   * @return false if the cache is full and the series has not been remembered
+   */
+  public boolean add(String path) {
+    long hash = hash(path);
+    int result = stripeOf(hash).add(hash);
+    if (result > 0) {
+      size.incrementAndGet();
+    }
+    return result >= 0;
+  }
+
+  /**
+   * Forget the given series, e.g. because it is deleted.
+   *
+   * @return true if the series was known
+   */
+  public boolean remove(String path) {
+    long hash = hash(path);
+    if (stripeOf(hash).remove(hash)) {
+      size.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+    size.set(0);
+  }
+
+  public long size() {
+    return size.get();
+  }
+
+  /**
+   * Warm up the cache with the TIMESERIES already created in the storage groups of IoTDB.
+   *
+   * @param connection The connection to IoTDB
+   * @param storageGroupNum The number of data storage groups, including the groups of the protocols
+   */
+  public void load(Connection connection, int storageGroupNum) {
+    long start = System.currentTimeMillis();
+    try (Statement statement = connection.createStatement()) {
+      for (int i = 0; i < storageGroupNum; i++) {
+        statement.execute(String
+            .format("SHOW TIMESERIES root.%s%s", MetricsManager.STORAGE_GROUP_PREFIX, i));
+        try (ResultSet rs = statement.getResultSet()) {
+          while (rs.next()) {
+            if (!add(rs.getString(1))) {
+              LOGGER.warn("Known series cache is full ({} series), stop loading.", size());
+              return;
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      LOGGER.warn("Load known series failed because {}: {}", e.getClass().getName(),
+          e.getMessage());
+    }
+    LOGGER.info("Loaded {} known series in {} ms.", size(), System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Forget the TIMESERIES of IoTDB matching the given path, before they are deleted.
+   *
+   * @param statement The statement of a connection to IoTDB
+   * @param pathPattern The path of the series, which may contain *, e.g. root.*.*.metric
+   * @return The number of series forgotten
+   */
+  public int remove(Statement statement, String pathPattern) throws SQLException {
+    int removed = 0;
+    statement.execute(String.format("SHOW TIMESERIES %s", pathPattern));
+    try (ResultSet rs = statement.getResultSet()) {
+      while (rs.next()) {
+        if (remove(rs.getString(1))) {
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  private Stripe stripeOf(long hash) {
+    return stripes[(int) (hash >>> 58) & (STRIPE_NUM - 1)];
+  }
+
+  /**
+   * 64-bit FNV-1a of the path followed by the murmur3 finalizer, 0 is reserved for empty slots.
+   */
+  private static long hash(String path) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < path.length(); i++) {
+      h ^= path.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == EMPTY ? 1L : h;
+  }
+
+  private static class Stripe {
+
+    private final long maxSize;
+    private long[] table = new long[INITIAL_STRIPE_CAPACITY];
+    private int count = 0;
+
+    Stripe(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized boolean contains(long hash) {
+      int mask = table.length - 1;
+      int i = (int) hash & mask;
+      while (table[i] != EMPTY) {
+        if (table[i] == hash) {
+          return true;
+        }
+        i = (i + 1) & mask;
+      }
+      return false;
+    }
+
+    /**
+     * @return 1 if added, 0 if already present, -1 if the stripe is full
+     */
+    synchronized int add(long hash) {
+      if (contains(hash)) {
+        return 0;
+      }
+      if (count >= maxSize) {
+        return -1;
+      }
+      // keep the load factor under 0.75
+      if ((count + 1) * 4L > table.length * 3L) {
+        resize();
+      }
+      insert(table, hash);
+      count++;
+      return 1;
+    }
+
+    /**
+     * Remove the hash and shift back the following hashes of its cluster, so that no hash is
+     * separated from its home slot by an empty slot.
+     */
+    synchronized boolean remove(long hash) {
+      int mask = table.length - 1;
+      int i = (int) hash & mask;
+      while (table[i] != hash) {
+        if (table[i] == EMPTY) {
+          return false;
+        }
+        i = (i + 1) & mask;
+      }
+      int j = i;
+      while (true) {
+        j = (j + 1) & mask;
+        if (table[j] == EMPTY) {
+          break;
+        }
+        int home = (int) table[j] & mask;
+        // the hash at j may move to i unless its home slot lies cyclically in (i, j]
+        boolean homeInRange = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+        if (!homeInRange) {
+          table[i] = table[j];
+          i = j;
+        }
+      }
+      table[i] = EMPTY;
+      count--;
+      return true;
+    }
+
+    synchronized void clear() {
+      table = new long[INITIAL_STRIPE_CAPACITY];
+      count = 0;
+    }
+
+    private void resize() {
+      long[] newTable = new long[table.length * 2];
+      for (long hash : table) {
+        if (hash != EMPTY) {
+          insert(newTable, hash);
+        }
+      }
+      table = newTable;
+    }
+
+    private static void insert(long[] table, long hash) {
+      int mask = table.length - 1;
+      int i = (int) hash & mask;
+      while (table[i] != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      table[i] = hash;
+    }
+  }
+
+  private static class KnownSeriesCacheHolder {
+
+    private static final KnownSeriesCache INSTANCE = new KnownSeriesCache();
+  }
+
+}
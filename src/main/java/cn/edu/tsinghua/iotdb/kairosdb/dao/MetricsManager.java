@@ -2,13 +2,17 @@ package cn.edu.tsinghua.iotdb.kairosdb.dao;
 
 import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.ReplicaWriter.AckPolicy;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryResultCache;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
 import cn.edu.tsinghua.iotdb.kairosdb.rollup.RollUp;
 import cn.edu.tsinghua.iotdb.kairosdb.rollup.RollUpException;
 import cn.edu.tsinghua.iotdb.kairosdb.rollup.RollUpRecovery;
 import cn.edu.tsinghua.iotdb.kairosdb.rollup.RollUpStoreImpl;
+import cn.edu.tsinghua.iotdb.kairosdb.router.StorageGroupRouter;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -19,8 +23,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +35,7 @@ public class MetricsManager {
   private static final String ERROR_OUTPUT_FORMATTER = "%s: %s";
 
   // The metadata maintained in the memory
-  private static final Map<String, Map<String, Integer>> tagOrder = new ConcurrentHashMap<>();
+  private static final TagOrderStore tagOrderStore = TagOrderStore.getInstance();
 
   // The SQL will be used to create metadata
   private static final String SYSTEM_CREATE_SQL = "CREATE TIMESERIES root.SYSTEM.TAG_NAME_INFO.%s WITH DATATYPE=%s, ENCODING=%s";
@@ -50,11 +52,9 @@ public class MetricsManager {
   private static final String DOUBLE_ENCODING = "GORILLA";
 
   // Storage group relevant config
-  private static int storageGroupSize = config.STORAGE_GROUP_SIZE;
-  private static final String STORAGE_GROUP_PREFIX = "group_";
-
-  //index for persistence tag info in IoTDB
-  private static AtomicLong index = new AtomicLong(1);
+  private static volatile int storageGroupSize = config.STORAGE_GROUP_SIZE;
+  static final String STORAGE_GROUP_PREFIX = "group_";
+  private static volatile StorageGroupRouter storageGroupRouter;
 
   private MetricsManager() {
   }
@@ -83,17 +83,11 @@ public class MetricsManager {
         while (rs.next()) {
           String name = rs.getString(2);
           String tagName = rs.getString(3);
-          Integer pos = rs.getInt(4);
-          if (tagOrder.containsKey(name)) {
-            tagOrder.get(name).put(tagName, pos);
-          } else {
-            Map<String, Integer> map = new HashMap<>();
-            map.put(tagName, pos);
-            tagOrder.put(name, map);
-          }
+          int pos = rs.getInt(4);
+          tagOrderStore.load(name, tagName, pos);
           maxIndex = rs.getLong(1);
         }
-        index.set(maxIndex + 1);
+        tagOrderStore.setNextIndex(maxIndex + 1);
 
         // Read the size of storage group
         statement.execute(String.format("SELECT storage_group_size FROM %s",
@@ -107,6 +101,13 @@ public class MetricsManager {
           storageGroupSize = 30;
         }
 
+        // Remember the TIMESERIES which have been created
+        KnownSeriesCache.getInstance()
+            .load(connection, getStorageGroupRouter().getStorageGroupNum());
+
+        // The recovered roll-ups write datapoints, which may need the tag positions of the log
+        tagOrderStore.recover();
+
         // Read the rollup tasks
         RollUpStoreImpl rollUpStore = new RollUpStoreImpl();
 
@@ -182,14 +183,15 @@ public class MetricsManager {
         datatype = "TEXT";
         encoding = TEXT_ENCODING;
     }
-    for (Connection conn : IoTDBConnectionPool.getInstance().getConnections()) {
-      try (Statement statement = conn.createStatement()) {
-        statement.execute(String
-            .format(
-                "CREATE TIMESERIES root.%s%s.%s WITH DATATYPE=%s, ENCODING=%s, COMPRESSOR=SNAPPY",
-                getStorageGroupName(path), path, metricName, datatype, encoding));
-      }
-    }
+    String sql = String
+        .format("CREATE TIMESERIES root.%s%s.%s WITH DATATYPE=%s, ENCODING=%s, COMPRESSOR=SNAPPY",
+            getStorageGroupName(path), path, metricName, datatype, encoding);
+    ReplicaWriter.getInstance()
+        .write(IoTDBConnectionPool.getInstance().getConnections(), (conn, replica) -> {
+          try (Statement statement = conn.createStatement()) {
+            statement.execute(sql);
+          }
+        }, AckPolicy.ALL);
   }
 
   private static void createNewMetricAndIgnoreErrors(String metricName, String path, String type) {
@@ -201,87 +203,112 @@ public class MetricsManager {
   }
 
   public static void addDataPoints(MetricResult metric, String metricName) {
-    try {
-      List<Connection> connections = IoTDBConnectionPool.getInstance().getConnections();
-      for (Connection conn : connections) {
-        for (MetricValueResult valueResult : metric.getResults()) {
-          if ((valueResult.isTextType() && metric.getResults().size() > 1)
-              || valueResult.getDatapoints() == null
-              || valueResult.getDatapoints().get(0) == null) {
-            continue;
-          }
-          Map<String, String> tag = new HashMap<>();
-          tag.put("saved_from", valueResult.getName());
-
-          HashMap<Integer, String> orderTagKeyMap = getMapping(metricName, tag);
-
-          String path = generatePath(tag, orderTagKeyMap);
-
-          Statement statement = conn.createStatement();
-
-          for (QueryDataPoint point : valueResult.getDatapoints()) {
-            String insertingSql = String
-                .format("insert into root.%s%s(timestamp,%s) values(%s,%s);",
-                    getStorageGroupName(path),
-                    path, metricName, point.getTimestamp(), point.getAsString());
-            statement.addBatch(insertingSql);
-          }
-
-          String type;
-          switch (valueResult.getDatapoints().get(0).getType()) {
-            case Types.INTEGER:
-              type = "long";
-              break;
-            case Types.DOUBLE:
-              type = "double";
-              break;
-            default:
-              type = "text";
-              break;
-          }
-
-          createNewMetricAndIgnoreErrors(metricName, path, type);
+    List<String> sqlList = new ArrayList<>();
+    // <tags, timestamp of the oldest datapoint> of the written series
+    Map<Map<String, String>, Long> writtenSeries = new HashMap<>();
+    for (MetricValueResult valueResult : metric.getResults()) {
+      DataPointBuffer points = valueResult.getDatapoints();
+      if ((valueResult.isTextType() && metric.getResults().size() > 1)
+          || points == null || points.isEmpty()) {
+        continue;
+      }
+      Map<String, String> tag = new HashMap<>();
+      tag.put("saved_from", valueResult.getName());
 
-          statement.executeBatch();
+      HashMap<Integer, String> orderTagKeyMap;
+      try {
+        orderTagKeyMap = getMapping(metricName, tag);
+      } catch (UncheckedIOException e) {
+        LOGGER.error(String.format(ERROR_OUTPUT_FORMATTER, e.getClass().getName(), e.getMessage()));
+        continue;
+      }
 
-          statement.close();
+      String path = generatePath(tag, orderTagKeyMap);
 
-        }
+      String storageGroup = getStorageGroupName(path);
+      long oldestTimestamp = Long.MAX_VALUE;
+      for (int i = 0; i < points.size(); i++) {
+        sqlList.add(String.format("insert into root.%s%s(timestamp,%s) values(%s,%s);",
+            storageGroup, path, metricName, points.getTimestamp(i), points.getAsString(i)));
+        oldestTimestamp = Math.min(oldestTimestamp, points.getTimestamp(i));
       }
+      writtenSeries.merge(tag, oldestTimestamp, Math::min);
+
+      String type;
+      switch (points.getType(0)) {
+        case Types.INTEGER:
+          type = "long";
+          break;
+        case Types.DOUBLE:
+          type = "double";
+          break;
+        default:
+          type = "text";
+          break;
+      }
+
+      createNewMetricAndIgnoreErrors(metricName, path, type);
+    }
+    if (sqlList.isEmpty()) {
+      return;
+    }
 
+    try {
+      ReplicaWriter.getInstance()
+          .write(IoTDBConnectionPool.getInstance().getConnections(), (conn, replica) -> {
+            try (Statement statement = conn.createStatement()) {
+              for (String sql : sqlList) {
+                statement.addBatch(sql);
+              }
+              statement.executeBatch();
+            }
+          });
     } catch (SQLException e) {
       LOGGER.error(String.format(ERROR_OUTPUT_FORMATTER, e.getClass().getName(), e.getMessage()));
     }
+    // The datapoints of roll-ups and save_as are older than the settled end of the cached results,
+    // and some of them may have been written even if the write failed
+    for (Map.Entry<Map<String, String>, Long> series : writtenSeries.entrySet()) {
+      QueryResultCache.getInstance().invalidate(metricName, series.getKey(), series.getValue());
+    }
   }
 
   public static void deleteMetric(String metricName) {
     try {
+      // the mapping is removed once the series are deleted on all the IoTDB instances
+      Map<String, Integer> mapping = tagOrderStore.getTagOrder(metricName);
+      if (mapping == null) {
+        return;
+      }
+      int size = mapping.size();
       List<Connection> connections = IoTDBConnectionPool.getInstance().getConnections();
       for (Connection conn : connections) {
-        Statement statement = conn.createStatement();
-
-        Map<String, Integer> mapping = tagOrder.getOrDefault(metricName, null);
-
-        if (mapping == null) {
-          return;
-        }
-
-        int size = mapping.size();
-
-        for (int i = 0; i <= size; i++) {
-          StringBuilder builder = new StringBuilder("DELETE TIMESERIES root.*");
-          builder.append(".");
-          for (int j = 0; j < i; j++) {
-            builder.append("*.");
+        try (Statement statement = conn.createStatement()) {
+          for (int i = 0; i <= size; i++) {
+            StringBuilder builder = new StringBuilder("root.*");
+            builder.append(".");
+            for (int j = 0; j < i; j++) {
+              builder.append("*.");
+            }
+            builder.append(metricName);
+            String pathPattern = builder.toString();
+            // the deleted series must be created again before their datapoints are inserted
+            try {
+              KnownSeriesCache.getInstance().remove(statement, pathPattern);
+            } catch (SQLException e) {
+              LOGGER.warn("Forget the known series of {} failed because {}", pathPattern,
+                  e.getMessage());
+            }
+            executeAndIgnoreException(statement, "DELETE TIMESERIES " + pathPattern);
           }
-          builder.append(metricName);
-          executeAndIgnoreException(statement, builder.toString());
+        } catch (SQLException e) {
+          LOGGER.error(String.format(ERROR_OUTPUT_FORMATTER, e.getClass().getName(), e.getMessage()));
         }
-
-        tagOrder.remove(metricName);
       }
-    } catch (SQLException e) {
-      LOGGER.error(String.format(ERROR_OUTPUT_FORMATTER, e.getClass().getName(), e.getMessage()));
+      tagOrderStore.remove(metricName);
+    } finally {
+      // the paths of the series would be resolved with the mapping of the deleted metric
+      SeriesPathCache.getInstance().invalidate(metricName);
     }
   }
 
@@ -293,58 +320,7 @@ public class MetricsManager {
    * @return The mapping rule from position to tag_key
    */
   public static HashMap<Integer, String> getMapping(String name, Map<String, String> tags) {
-    Map<String, Integer> tagKeyOrderMap = tagOrder.get(name);
-    HashMap<Integer, String> mapping = new HashMap<>();
-    HashMap<String, Integer> cache = new HashMap<>();
-    if (null == tagKeyOrderMap) {
-      // The metric name appears for the first time
-      tagKeyOrderMap = new HashMap<>();
-      Integer order = 0;
-      for (String tagKey : tags.keySet()) {
-        tagKeyOrderMap.put(tagKey, order);
-        mapping.put(order, tagKey);
-        cache.put(tagKey, order);
-        order++;
-      }
-      tagOrder.put(name, tagKeyOrderMap);
-      persistMappingCache(name, cache);
-    } else {
-      // The metric name exists
-      for (Map.Entry<String, String> tag : tags.entrySet()) {
-        Integer pos = tagKeyOrderMap.get(tag.getKey());
-        if (null == pos) {
-          pos = tagKeyOrderMap.size();
-          tagKeyOrderMap.put(tag.getKey(), pos);
-          cache.put(tag.getKey(), pos);
-          persistMappingCache(name, cache);
-        }
-        mapping.put(pos, tag.getKey());
-      }
-    }
-    return mapping;
-  }
-
-  /**
-   * Persist the new mapping rule into database.
-   *
-   * @param metricName The name of the specific metric
-   * @param cache The mapping cache will be persisted into database
-   */
-  private static void persistMappingCache(String metricName, Map<String, Integer> cache) {
-    for (Map.Entry<String, Integer> entry : cache.entrySet()) {
-      String sql = String.format(
-          "insert into root.SYSTEM.TAG_NAME_INFO(timestamp, metric_name, tag_name, tag_order) values(%s, \"%s\", \"%s\", %s);",
-          index.getAndIncrement(), metricName, entry.getKey(), entry.getValue());
-      List<Connection> connections = IoTDBConnectionPool.getInstance().getConnections();
-      for (Connection conn : connections) {
-        try (Statement statement = conn.createStatement()) {
-          statement.execute(sql);
-        } catch (SQLException e) {
-          LOGGER
-              .error(String.format(ERROR_OUTPUT_FORMATTER, e.getClass().getName(), e.getMessage()));
-        }
-      }
-    }
+    return tagOrderStore.getMapping(name, tags);
   }
 
   public static String generatePath(Map<String, String> tags,
@@ -379,22 +355,28 @@ public class MetricsManager {
           "MetricsManager.getStorageGroupName(String metricName): metricName could not be null.");
       return "null";
     }
-    String device = path.split("\\.")[1];
-//    int hashCode = 0;
-//    if (device.length() == 4) {
-//      hashCode = device.substring(0, 2).hashCode();
-//    }else {
-//      hashCode = device.substring(0, 1).hashCode();
-//    }
-//    int hashCode = path.split("\\.")[1].hashCode();
-    for (int i = 0; i < config.PROTOCAL_NUM; i++) {
-      if (config.PROTOCAL_MACHINE.get(i).contains(device)) {
-        return String.format("%s%s", STORAGE_GROUP_PREFIX, i);
+    return getStorageGroupRouter().getStorageGroupName(path);
+  }
+
+  /**
+   * Get the router of the current config, the router is rebuilt when the protocols are reloaded
+   * or the number of storage groups is loaded from IoTDB.
+   */
+  private static StorageGroupRouter getStorageGroupRouter() {
+    StorageGroupRouter router = storageGroupRouter;
+    List<List<String>> protocolMachines = config.PROTOCAL_MACHINE;
+    if (router == null || !router.isBuiltFrom(protocolMachines, storageGroupSize)) {
+      synchronized (MetricsManager.class) {
+        router = storageGroupRouter;
+        if (router == null || !router.isBuiltFrom(protocolMachines, storageGroupSize)) {
+          router = new StorageGroupRouter(protocolMachines, config.PROTOCAL_NUM, storageGroupSize);
+          storageGroupRouter = router;
+          // The cached series paths embed the storage group
+          SeriesPathCache.getInstance().clear();
+        }
       }
     }
-    int hashCode = device.hashCode();
-//    LOGGER.error("协议中不存在车辆{}", device);
-    return String.format("%s%s", STORAGE_GROUP_PREFIX, Math.abs(hashCode) % storageGroupSize);
+    return router;
   }
 
   private static void executeAndIgnoreException(Statement statement, String sql) {
@@ -421,15 +403,15 @@ public class MetricsManager {
   }
 
   public static Map<String, Integer> getTagOrder(String metricName) {
-    return tagOrder.getOrDefault(metricName, null);
+    return tagOrderStore.getTagOrder(metricName);
   }
 
   public static List<String> getMetricNamesList(String prefix) {
     if (prefix == null) {
-      return new ArrayList<>(tagOrder.keySet());
+      return tagOrderStore.getMetricNames();
     } else {
       List<String> list = new ArrayList<>();
-      for (String name : tagOrder.keySet()) {
+      for (String name : tagOrderStore.getMetricNames()) {
         if (name.startsWith(prefix)) {
           list.add(name);
         }
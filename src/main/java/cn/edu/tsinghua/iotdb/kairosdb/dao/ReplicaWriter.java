@@ -0,0 +1,292 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a write on every IoTDB replica of URL_LIST concurrently, and returns as soon as the write is
+ * acknowledged according to the ack policy. The connections given are in the order of URL_LIST, as
+ * returned by IoTDBConnectionPool#getConnections().
+ *
+ * <p>Every replica has its own executor with a queue of REPLICA_WRITE_QUEUE_SIZE writes, so that a
+ * slow replica neither delays the writes of the others nor piles up writes without bound. Once the
+ * queue of a lagging replica is full, its writes are handed to the overflow of the write, e.g. the
+ * WriteSpool, or fail.
+ */
+public class ReplicaWriter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaWriter.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private final ThreadPoolExecutor[] writerPools;
+  private final ReplicaStat[] stats;
+
+  public enum AckPolicy {
+    ALL,
+    QUORUM,
+    ONE;
+
+    public static AckPolicy of(String name) {
+      try {
+        return valueOf(name.trim().toUpperCase());
+      } catch (IllegalArgumentException | NullPointerException e) {
+        LOGGER.warn("Unknown WRITE_ACK_POLICY {}, use all instead.", name);
+        return ALL;
+      }
+    }
+
+    int required(int replicaNum) {
+      switch (this) {
+        case ONE:
+          return Math.min(1, replicaNum);
+        case QUORUM:
+          return replicaNum / 2 + 1;
+        default:
+          return replicaNum;
+      }
+    }
+  }
+
+  public interface ReplicaTask {
+
+    /**
+     * @param connection The connection to the replica
+     * @param replica The index of the replica in URL_LIST
+     */
+    void run(Connection connection, int replica) throws SQLException;
+  }
+
+  public interface ReplicaOverflow {
+
+    /**
+     * Keep the write of a replica whose write queue is full, e.g. in the WriteSpool.
+     *
+     * @param replica The index of the replica in URL_LIST
+     * @return true if the write has been kept and counts as acknowledged
+     */
+    boolean offload(int replica);
+  }
+
+  private ReplicaWriter() {
+    this(config.URL_LIST.size(), config.REPLICA_WRITE_THREAD_NUM,
+        config.REPLICA_WRITE_QUEUE_SIZE);
+  }
+
+  /**
+   * @param replicaNum The number of replicas
+   * @param totalThreadNum The number of writer threads, shared equally between the replicas
+   * @param queueSize The number of writes queued for a replica
+   */
+  ReplicaWriter(int replicaNum, int totalThreadNum, int queueSize) {
+    int threadNum = Math.max(1, totalThreadNum / Math.max(1, replicaNum));
+    writerPools = new ThreadPoolExecutor[replicaNum];
+    stats = new ReplicaStat[replicaNum];
+    for (int i = 0; i < replicaNum; i++) {
+      int replica = i;
+      AtomicInteger threadId = new AtomicInteger(0);
+      writerPools[i] = new ThreadPoolExecutor(threadNum, threadNum, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+        Thread thread = new Thread(r,
+            "replica-writer-" + replica + "-" + threadId.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+      stats[i] = new ReplicaStat();
+    }
+  }
+
+  public static ReplicaWriter getInstance() {
+    return ReplicaWriterHolder.INSTANCE;
+  }
+
+  /**
+   * Run the task on every replica with the WRITE_ACK_POLICY.
+   */
+  public void write(List<Connection> connections, ReplicaTask task) throws SQLException {
+    write(connections, task, AckPolicy.of(config.WRITE_ACK_POLICY));
+  }
+
+  /**
+   * Run the task on every replica with the WRITE_ACK_POLICY, and hand the write of a replica whose
+   * queue is full to the overflow.
+   */
+  public void write(List<Connection> connections, ReplicaTask task, ReplicaOverflow overflow)
+      throws SQLException {
+    write(connections, task, AckPolicy.of(config.WRITE_ACK_POLICY), overflow);
+  }
+
+  /**
+   * Run the task on every replica and wait until enough replicas have acknowledged. A write to a
+   * replica whose queue is full fails.
+   */
+  public void write(List<Connection> connections, ReplicaTask task, AckPolicy policy)
+      throws SQLException {
+    write(connections, task, policy, null);
+  }
+
+  /**
+   * Run the task on every replica and wait until enough replicas have acknowledged. The replicas
+   * not waited for keep on writing in the background, their errors are only logged and counted.
+   *
+   * @param connections One connection per replica
+   * @param task The write to run on each replica
+   * @param policy The number of replicas to wait for
+   * @param overflow Keeps the write of a replica whose queue is full, null to fail it
+   * @throws SQLException The first error when too many replicas failed for the policy
+   */
+  public void write(List<Connection> connections, ReplicaTask task, AckPolicy policy,
+      ReplicaOverflow overflow) throws SQLException {
+    int replicaNum = connections.size();
+    if (replicaNum == 1) {
+      runAndRecord(connections.get(0), 0, task);
+      return;
+    }
+    int required = policy.required(replicaNum);
+    AtomicInteger successCount = new AtomicInteger(0);
+    AtomicInteger failureCount = new AtomicInteger(0);
+    CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+    if (required == 0) {
+      acknowledged.complete(null);
+    }
+    for (int i = 0; i < replicaNum; i++) {
+      Connection connection = connections.get(i);
+      int replica = i;
+      Runnable write = () -> {
+        try {
+          runAndRecord(connection, replica, task);
+          onSuccess(successCount, required, acknowledged);
+        } catch (SQLException | RuntimeException e) {
+          onFailure(failureCount, replicaNum - required + 1, acknowledged, replica, e);
+        }
+      };
+      try {
+        writerPools[replica].execute(write);
+      } catch (RejectedExecutionException e) {
+        stats[replica].overflows.incrementAndGet();
+        boolean offloaded = false;
+        try {
+          offloaded = overflow != null && overflow.offload(replica);
+        } catch (RuntimeException oe) {
+          LOGGER.error("Offload the write of replica {} failed.", replica, oe);
+        }
+        if (offloaded) {
+          onSuccess(successCount, required, acknowledged);
+        } else {
+          onFailure(failureCount, replicaNum - required + 1, acknowledged, replica,
+              new SQLException(String.format("Write queue of replica %d is full", replica)));
+        }
+      }
+    }
+    try {
+      acknowledged.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the replicas", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  private static void onSuccess(AtomicInteger successCount, int required,
+      CompletableFuture<Void> acknowledged) {
+    if (successCount.incrementAndGet() == required) {
+      acknowledged.complete(null);
+    }
+  }
+
+  private static void onFailure(AtomicInteger failureCount, int tolerated,
+      CompletableFuture<Void> acknowledged, int replica, Exception e) {
+    if (failureCount.incrementAndGet() == tolerated) {
+      acknowledged.completeExceptionally(e);
+    } else {
+      LOGGER.warn("Write on replica {} failed because {}: {}", replica,
+          e.getClass().getName(), e.getMessage());
+    }
+  }
+
+  private void runAndRecord(Connection connection, int replica, ReplicaTask task)
+      throws SQLException {
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      task.run(connection, replica);
+      success = true;
+    } finally {
+      if (replica < stats.length) {
+        stats[replica].record(System.nanoTime() - start, success);
+      }
+    }
+  }
+
+  /**
+   * @return The write count, error count and latency of each replica, in the order of URL_LIST
+   */
+  public List<Map<String, Object>> getReplicaMetrics() {
+    List<Map<String, Object>> metrics = new ArrayList<>();
+    for (int i = 0; i < stats.length; i++) {
+      Map<String, Object> replica = new LinkedHashMap<>();
+      replica.put("url", config.URL_LIST.get(i));
+      long writes = stats[i].writes.get();
+      replica.put("writes", writes);
+      replica.put("errors", stats[i].errors.get());
+      replica.put("avg_latency_ms",
+          writes == 0 ? 0 : stats[i].totalNanos.get() / writes / 1000000.0);
+      replica.put("max_latency_ms", stats[i].maxNanos.get() / 1000000.0);
+      replica.put("queue_depth", writerPools[i].getQueue().size());
+      replica.put("overflows", stats[i].overflows.get());
+      metrics.add(replica);
+    }
+    return metrics;
+  }
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (ThreadPoolExecutor writerPool : writerPools) {
+      depth += writerPool.getQueue().size();
+    }
+    return depth;
+  }
+
+  private static class ReplicaStat {
+
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong totalNanos = new AtomicLong(0);
+    private final AtomicLong maxNanos = new AtomicLong(0);
+    private final AtomicLong overflows = new AtomicLong(0);
+
+    private void record(long nanos, boolean success) {
+      writes.incrementAndGet();
+      if (!success) {
+        errors.incrementAndGet();
+      }
+      totalNanos.addAndGet(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+  }
+
+  private static class ReplicaWriterHolder {
+
+    private static final ReplicaWriter INSTANCE = new ReplicaWriter();
+  }
+
+}
@@ -0,0 +1,240 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Caches the paths a metric and a tag set are stored at, so that the tag order mapping, the path
+ * and the storage group are resolved once per distinct series instead of once per datapoint. The
+ * cache is split into stripes, each one a LRU map bounded by SERIES_PATH_CACHE_SIZE / STRIPE_NUM.
+ */
+public class SeriesPathCache {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  private static final int STRIPE_NUM = 16;
+
+  private final Stripe[] stripes = new Stripe[STRIPE_NUM];
+
+  private SeriesPathCache() {
+    this(config.SERIES_PATH_CACHE_SIZE);
+  }
+
+  SeriesPathCache(int maxSize) {
+    int maxPerStripe = Math.max(1, maxSize / STRIPE_NUM);
+    for (int i = 0; i < STRIPE_NUM; i++) {
+      stripes[i] = new Stripe(maxPerStripe);
+    }
+  }
+
+  public static SeriesPathCache getInstance() {
+    return SeriesPathCacheHolder.INSTANCE;
+  }
+
+  /**
+   * Get the paths of a series, resolve and remember them if absent. Resolving a new series may
+   * assign positions to new tag keys of the metric.
+   *
+   * @param name The name of the metric
+   * @param tags The tags of the series, at least one
+   * @return The paths of the series
+   */
+  public SeriesPath get(String name, SortedMap<String, String> tags) {
+    SeriesKey key = new SeriesKey(name, tags);
+    Stripe stripe = stripes[(key.hash ^ (key.hash >>> 16)) & (STRIPE_NUM - 1)];
+    SeriesPath seriesPath = stripe.get(key);
+    if (seriesPath == null) {
+      seriesPath = resolve(name, tags);
+      stripe.put(key.copy(), seriesPath);
+    }
+    return seriesPath;
+  }
+
+  SeriesPath resolve(String name, SortedMap<String, String> tags) {
+    HashMap<Integer, String> orderTagKeyMap = MetricsManager.getMapping(name, tags);
+    String devicePath = MetricsManager.generatePath(tags, orderTagKeyMap);
+    String storageGroup = MetricsManager.getStorageGroupName(devicePath);
+    return new SeriesPath(devicePath, storageGroup, name);
+  }
+
+  /**
+   * Forget the series of a metric, e.g. after its tag order mapping has been deleted.
+   */
+  public void invalidate(String name) {
+    for (Stripe stripe : stripes) {
+      stripe.removeMetric(name);
+    }
+  }
+
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  public long size() {
+    long size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * The paths of a series, e.g. for metric m with device path .d1.s1 in storage group group_3,
+   * the device is root.group_3.d1.s1 and the series is root.group_3.d1.s1.m
+   */
+  public static class SeriesPath {
+
+    private final String devicePath;
+    private final String storageGroup;
+    private final String device;
+    private final String series;
+
+    public SeriesPath(String devicePath, String storageGroup, String name) {
+      this.devicePath = devicePath;
+      this.storageGroup = storageGroup;
+      this.device = String.format("root.%s%s", storageGroup, devicePath);
+      this.series = String.format("%s.%s", device, name);
+    }
+
+    public String getDevicePath() {
+      return devicePath;
+    }
+
+    public String getStorageGroup() {
+      return storageGroup;
+    }
+
+    public String getDevice() {
+      return device;
+    }
+
+    public String getSeries() {
+      return series;
+    }
+  }
+
+  private static class SeriesKey {
+
+    private final String name;
+    // tag keys and values, interleaved and sorted by tag key
+    private final String[] tags;
+    // only set on lookup, so that no array is built unless the series is new
+    private final SortedMap<String, String> tagMap;
+    private final int hash;
+
+    SeriesKey(String name, SortedMap<String, String> tagMap) {
+      this.name = name;
+      this.tags = null;
+      this.tagMap = tagMap;
+      this.hash = 31 * name.hashCode() + tagMap.hashCode();
+    }
+
+    private SeriesKey(String name, String[] tags, int hash) {
+      this.name = name;
+      this.tags = tags;
+      this.tagMap = null;
+      this.hash = hash;
+    }
+
+    SeriesKey copy() {
+      String[] tagArray = new String[tagMap.size() * 2];
+      int i = 0;
+      for (Map.Entry<String, String> tag : tagMap.entrySet()) {
+        tagArray[i++] = tag.getKey();
+        tagArray[i++] = tag.getValue();
+      }
+      return new SeriesKey(name, tagArray, hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof SeriesKey)) {
+        return false;
+      }
+      SeriesKey other = (SeriesKey) o;
+      if (hash != other.hash || !name.equals(other.name)) {
+        return false;
+      }
+      if (tags != null && other.tags != null) {
+        return Arrays.equals(tags, other.tags);
+      }
+      if (tags == null && other.tags == null) {
+        return tagMap.equals(other.tagMap);
+      }
+      return tags == null ? matches(tagMap, other.tags) : matches(other.tagMap, tags);
+    }
+
+    private static boolean matches(SortedMap<String, String> tagMap, String[] tags) {
+      if (tagMap.size() * 2 != tags.length) {
+        return false;
+      }
+      int i = 0;
+      for (Map.Entry<String, String> tag : tagMap.entrySet()) {
+        if (!tag.getKey().equals(tags[i++]) || !tag.getValue().equals(tags[i++])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class Stripe {
+
+    private final LinkedHashMap<SeriesKey, SeriesPath> paths;
+
+    Stripe(int maxSize) {
+      paths = new LinkedHashMap<SeriesKey, SeriesPath>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SeriesKey, SeriesPath> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    synchronized SeriesPath get(SeriesKey key) {
+      return paths.get(key);
+    }
+
+    synchronized void put(SeriesKey key, SeriesPath seriesPath) {
+      paths.put(key, seriesPath);
+    }
+
+    synchronized void removeMetric(String name) {
+      Iterator<SeriesKey> iterator = paths.keySet().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().name.equals(name)) {
+          iterator.remove();
+        }
+      }
+    }
+
+    synchronized void clear() {
+      paths.clear();
+    }
+
+    synchronized int size() {
+      return paths.size();
+    }
+  }
+
+  private static class SeriesPathCacheHolder {
+
+    private static final SeriesPathCache INSTANCE = new SeriesPathCache();
+  }
+
+}
@@ -0,0 +1,457 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.ReplicaWriter.AckPolicy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The tag_key-position mapping of every metric.
+ *
+ * <p>The mapping of a metric is an immutable snapshot replaced as a whole, so readers never lock.
+ * New positions are assigned under a per-metric lock, together with the timestamp of their row in
+ * root.SYSTEM.TAG_NAME_INFO, appended to a local log and fsynced before the new snapshot is
+ * published. They are then written to IoTDB in batches by a background thread, and the log is
+ * truncated once every logged position is in IoTDB. Writing a position again, after a failed batch
+ * or a replay of the log, overwrites the same row. On startup, the positions left in the log are
+ * replayed on top of the ones loaded from IoTDB.
+ */
+public class TagOrderStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TagOrderStore.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  private static final String LOG_FILE_NAME = "tag_order.log";
+  private static final String INSERT_SQL = "insert into root.SYSTEM.TAG_NAME_INFO(timestamp, metric_name, tag_name, tag_order) values(%s, \"%s\", \"%s\", %s);";
+
+  // <metric, immutable <tag_key, position>>
+  private final Map<String, Map<String, Integer>> tagOrder = new ConcurrentHashMap<>();
+  private final Map<String, Object> metricLocks = new ConcurrentHashMap<>();
+
+  // The timestamp of the next row in root.SYSTEM.TAG_NAME_INFO
+  private final AtomicLong index = new AtomicLong(1);
+
+  private final Object logLock = new Object();
+  private FileChannel logChannel;
+  // The positions in the log which are not in IoTDB yet, guarded by the log lock
+  private final Set<TagPosition> unpersisted = new LinkedHashSet<>();
+  private boolean recovered = false;
+
+  private final LinkedBlockingQueue<TagPosition> persistQueue = new LinkedBlockingQueue<>();
+  // The positions being written by the persister, kept until they are written
+  private final List<TagPosition> batch = new ArrayList<>();
+
+  private TagOrderStore() {
+    this(new File(config.TAG_ORDER_LOG_DIR));
+    Thread persister = new Thread(this::persistLoop, "tag-order-persister");
+    persister.setDaemon(true);
+    persister.start();
+  }
+
+  /**
+   * Open the store with its log in the given dir, without the background persister.
+   */
+  TagOrderStore(File dir) {
+    if (!dir.exists() && !dir.mkdirs()) {
+      LOGGER.error("Create tag order log dir {} failed.", dir.getAbsolutePath());
+    }
+    try {
+      logChannel = new RandomAccessFile(new File(dir, LOG_FILE_NAME), "rw").getChannel();
+    } catch (IOException e) {
+      LOGGER.error("Open tag order log failed, new tag positions will not be logged.", e);
+    }
+  }
+
+  public static TagOrderStore getInstance() {
+    return TagOrderStoreHolder.INSTANCE;
+  }
+
+  /**
+   * Put a position loaded from IoTDB, only used while loading the metadata.
+   */
+  public void load(String metricName, String tagName, int position) {
+    Map<String, Integer> mapping = new HashMap<>(
+        tagOrder.getOrDefault(metricName, Collections.emptyMap()));
+    mapping.put(tagName, position);
+    tagOrder.put(metricName, Collections.unmodifiableMap(mapping));
+  }
+
+  /**
+   * Set the timestamp of the next row in root.SYSTEM.TAG_NAME_INFO, it never goes back as the
+   * metadata of each IoTDB instance is loaded.
+   */
+  public void setNextIndex(long nextIndex) {
+    index.accumulateAndGet(nextIndex, Math::max);
+  }
+
+  /**
+   * Replay the positions logged but not yet written to IoTDB before the last shutdown, and queue
+   * them to be written again with their logged timestamps. Only the first call replays the log, it
+   * has to be called once the positions have been loaded from IoTDB and before any new position is
+   * assigned.
+   */
+  public void recover() {
+    if (logChannel == null) {
+      return;
+    }
+    List<TagPosition> positions = new ArrayList<>();
+    synchronized (logLock) {
+      if (recovered) {
+        return;
+      }
+      recovered = true;
+      long validLength = 0;
+      try {
+        logChannel.position(0);
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(logChannel)));
+        while (true) {
+          TagPosition position = new TagPosition(input.readUTF(), input.readUTF(),
+              input.readInt(), input.readLong());
+          positions.add(position);
+          validLength += position.encodedLength();
+        }
+      } catch (EOFException | UTFDataFormatException e) {
+        // The end of the log, or a record torn by a crash
+      } catch (IOException e) {
+        LOGGER.error("Read tag order log failed.", e);
+      }
+      try {
+        logChannel.truncate(validLength);
+        logChannel.position(validLength);
+      } catch (IOException e) {
+        LOGGER.error("Truncate tag order log failed.", e);
+      }
+      unpersisted.addAll(positions);
+    }
+    for (TagPosition position : positions) {
+      setNextIndex(position.index + 1);
+      Map<String, Integer> mapping = tagOrder.get(position.metricName);
+      if (mapping == null || !mapping.containsKey(position.tagName)) {
+        load(position.metricName, position.tagName, position.position);
+      }
+    }
+    persistQueue.addAll(positions);
+    if (!positions.isEmpty()) {
+      LOGGER.info("Replayed {} tag positions from the tag order log.", positions.size());
+    }
+  }
+
+  /**
+   * Get or generate the mapping rule from position to tag_key of the given metric name and tags.
+   * Only the first time tag keys of a metric take the metric lock and wait for the log.
+   *
+   * @param name The metric name will be mapping
+   * @param tags The tags will be computed
+   * @return The mapping rule from position to tag_key
+   * @throws UncheckedIOException If the new positions could not be forced to the log, they are
+   * then not assigned
+   */
+  public HashMap<Integer, String> getMapping(String name, Map<String, String> tags) {
+    HashMap<Integer, String> mapping = toMapping(tagOrder.get(name), tags);
+    if (mapping != null) {
+      return mapping;
+    }
+    synchronized (metricLocks.computeIfAbsent(name, k -> new Object())) {
+      Map<String, Integer> current = tagOrder.getOrDefault(name, Collections.emptyMap());
+      Map<String, Integer> next = new HashMap<>(current);
+      List<TagPosition> newPositions = new ArrayList<>();
+      for (String tagKey : tags.keySet()) {
+        if (!next.containsKey(tagKey)) {
+          int position = next.size();
+          next.put(tagKey, position);
+          newPositions.add(new TagPosition(name, tagKey, position, index.getAndIncrement()));
+        }
+      }
+      if (!newPositions.isEmpty()) {
+        try {
+          appendToLog(newPositions);
+        } catch (IOException e) {
+          throw new UncheckedIOException(
+              String.format("Log new tag positions of metric %s failed", name), e);
+        }
+        tagOrder.put(name, Collections.unmodifiableMap(next));
+        persistQueue.addAll(newPositions);
+      }
+      return toMapping(next, tags);
+    }
+  }
+
+  /**
+   * @return The mapping of the tags, or null if some tag has no position yet
+   */
+  private static HashMap<Integer, String> toMapping(Map<String, Integer> tagKeyOrderMap,
+      Map<String, String> tags) {
+    if (tagKeyOrderMap == null) {
+      return null;
+    }
+    HashMap<Integer, String> mapping = new HashMap<>();
+    for (String tagKey : tags.keySet()) {
+      Integer position = tagKeyOrderMap.get(tagKey);
+      if (position == null) {
+        return null;
+      }
+      mapping.put(position, tagKey);
+    }
+    return mapping;
+  }
+
+  /**
+   * @return The immutable tag_key-position mapping of the metric, or null if it is unknown
+   */
+  public Map<String, Integer> getTagOrder(String metricName) {
+    return tagOrder.get(metricName);
+  }
+
+  public List<String> getMetricNames() {
+    return new ArrayList<>(tagOrder.keySet());
+  }
+
+  /**
+   * Remove the mapping of the metric, with its positions waiting to be written to IoTDB, so that
+   * they are neither written later nor replayed after a restart.
+   */
+  public void remove(String metricName) {
+    synchronized (metricLocks.computeIfAbsent(metricName, k -> new Object())) {
+      tagOrder.remove(metricName);
+      persistQueue.removeIf(position -> position.metricName.equals(metricName));
+      synchronized (logLock) {
+        boolean logged = false;
+        for (TagPosition position : unpersisted) {
+          if (position.metricName.equals(metricName)) {
+            position.removed = true;
+            logged = true;
+          }
+        }
+        if (logged) {
+          unpersisted.removeIf(position -> position.removed);
+          rewriteLog();
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the log again with the positions which are not in IoTDB yet.
+   */
+  private void rewriteLog() {
+    if (logChannel == null) {
+      return;
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(encode(unpersisted));
+      logChannel.truncate(0);
+      logChannel.position(0);
+      while (buffer.hasRemaining()) {
+        logChannel.write(buffer);
+      }
+      logChannel.force(false);
+    } catch (IOException e) {
+      LOGGER.error("Rewrite tag order log failed.", e);
+    }
+  }
+
+  private static byte[] encode(Iterable<TagPosition> positions) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      for (TagPosition position : positions) {
+        position.writeTo(output);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Append the positions to the log and force them to disk. The appenders waiting for the log
+   * lock are served one after another, each one with a single write and fsync. On failure, the
+   * log is cut back to its previous end, so that the positions are not replayed.
+   */
+  private void appendToLog(List<TagPosition> positions) throws IOException {
+    if (logChannel == null) {
+      return;
+    }
+    byte[] bytes = encode(positions);
+    synchronized (logLock) {
+      long end = logChannel.position();
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          logChannel.write(buffer);
+        }
+        logChannel.force(false);
+      } catch (IOException e) {
+        LOGGER.error("Append tag positions to the log failed.", e);
+        try {
+          logChannel.truncate(end);
+          logChannel.position(end);
+        } catch (IOException te) {
+          LOGGER.error("Cut back tag order log failed.", te);
+        }
+        throw e;
+      }
+      unpersisted.addAll(positions);
+    }
+  }
+
+  private void persistLoop() {
+    while (true) {
+      try {
+        if (batch.isEmpty()) {
+          batch.add(persistQueue.take());
+        }
+        persistBatch();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (SQLException | RuntimeException e) {
+        LOGGER.error("Persist {} tag positions failed because {}: {}, retry later.", batch.size(),
+            e.getClass().getName(), e.getMessage());
+        try {
+          TimeUnit.MILLISECONDS.sleep(config.TAG_ORDER_PERSIST_RETRY_INTERVAL);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the positions of the current batch and the ones queued since to IoTDB. A failed batch is
+   * kept to be written again, to the same rows.
+   */
+  void persistBatch() throws SQLException {
+    persistQueue.drainTo(batch);
+    List<String> sqlList = new ArrayList<>(batch.size());
+    for (TagPosition position : batch) {
+      // the metric may have been deleted since the position was queued
+      if (!position.removed) {
+        sqlList.add(String.format(INSERT_SQL, position.index, position.metricName,
+            position.tagName, position.position));
+      }
+    }
+    if (!sqlList.isEmpty()) {
+      write(sqlList);
+    }
+    onPersisted(batch);
+    batch.clear();
+  }
+
+  void write(List<String> sqlList) throws SQLException {
+    ReplicaWriter.getInstance()
+        .write(IoTDBConnectionPool.getInstance().getConnections(), (conn, replica) -> {
+          try (Statement statement = conn.createStatement()) {
+            for (String sql : sqlList) {
+              statement.addBatch(sql);
+            }
+            statement.executeBatch();
+          }
+        }, AckPolicy.ALL);
+  }
+
+  /**
+   * Truncate the log once every position in it has been written to IoTDB.
+   */
+  private void onPersisted(List<TagPosition> batch) {
+    synchronized (logLock) {
+      if (unpersisted.isEmpty()) {
+        return;
+      }
+      for (TagPosition position : batch) {
+        unpersisted.remove(position);
+      }
+      if (logChannel != null && unpersisted.isEmpty()) {
+        try {
+          logChannel.truncate(0);
+          logChannel.position(0);
+          logChannel.force(false);
+        } catch (IOException e) {
+          LOGGER.error("Truncate tag order log failed.", e);
+        }
+      }
+    }
+  }
+
+  public int getPendingPersistCount() {
+    return persistQueue.size();
+  }
+
+  private static class TagPosition {
+
+    private final String metricName;
+    private final String tagName;
+    private final int position;
+    // The timestamp of the row of the position in root.SYSTEM.TAG_NAME_INFO
+    private final long index;
+    // Whether the metric has been deleted before the position was written to IoTDB
+    private volatile boolean removed = false;
+
+    TagPosition(String metricName, String tagName, int position, long index) {
+      this.metricName = metricName;
+      this.tagName = tagName;
+      this.position = position;
+      this.index = index;
+    }
+
+    void writeTo(DataOutputStream output) throws IOException {
+      output.writeUTF(metricName);
+      output.writeUTF(tagName);
+      output.writeInt(position);
+      output.writeLong(index);
+    }
+
+    long encodedLength() {
+      return 2 + utfLength(metricName) + 2 + utfLength(tagName) + 4 + 8;
+    }
+
+    /**
+     * The length of the string in modified UTF-8, as written by DataOutputStream#writeUTF
+     */
+    private static int utfLength(String s) {
+      int length = 0;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c >= 0x0001 && c <= 0x007F) {
+          length++;
+        } else if (c > 0x07FF) {
+          length += 3;
+        } else {
+          length += 2;
+        }
+      }
+      return length;
+    }
+  }
+
+  private static class TagOrderStoreHolder {
+
+    private static final TagOrderStore INSTANCE = new TagOrderStore();
+  }
+
+}
@@ -0,0 +1,173 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the rows of concurrent ingestion requests by storage group and device, and writes
+ * them in one go when WRITE_BUFFER_MAX_ROWS rows are buffered or every WRITE_BUFFER_FLUSH_INTERVAL
+ * ms. Rows of the same device and timestamp are merged into one insert.
+ */
+public class WriteBuffer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteBuffer.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private final Object lock = new Object();
+  private final ScheduledExecutorService flusher;
+
+  // <root.storage_group.device, <timestamp, <measurement, value>>>
+  private Map<String, TreeMap<Long, Map<String, String>>> rows = new TreeMap<>();
+  private int rowCount = 0;
+  private boolean flushRequested = false;
+  // Completed when the rows currently buffered have been written
+  private CompletableFuture<Void> flushFuture = new CompletableFuture<>();
+
+  private final AtomicLong flushCount = new AtomicLong(0);
+  private final AtomicLong flushedRows = new AtomicLong(0);
+  private final AtomicLong failedFlushCount = new AtomicLong(0);
+
+  private WriteBuffer() {
+    this(config.WRITE_BUFFER_FLUSH_INTERVAL);
+  }
+
+  /**
+   * @param flushInterval The interval of the periodic flush in ms, 0 to flush only when
+   * WRITE_BUFFER_MAX_ROWS rows are buffered
+   */
+  WriteBuffer(int flushInterval) {
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "write-buffer-flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (flushInterval > 0) {
+      flusher.scheduleWithFixedDelay(this::scheduledFlush, flushInterval, flushInterval,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public static WriteBuffer getInstance() {
+    return WriteBufferHolder.INSTANCE;
+  }
+
+  /**
+   * Add the rows of a request to the buffer. The caller is blocked while the buffer holds twice
+   * WRITE_BUFFER_MAX_ROWS rows, so that the requests arriving during a slow flush can not fill the
+   * heap. The rows are copied, the caller keeps its maps.
+   *
+   * @param deviceRows The rows grouped by device
+   * @return A future completed when the rows have been written to every IoTDB, or completed
+   * exceptionally with the error of the flush, in which case the caller still owns the rows
+   */
+  public CompletableFuture<Void> append(Map<String, TreeMap<Long, Map<String, String>>> deviceRows)
+      throws InterruptedException {
+    synchronized (lock) {
+      while (rowCount >= config.WRITE_BUFFER_MAX_ROWS * 2) {
+        lock.wait();
+      }
+      for (Map.Entry<String, TreeMap<Long, Map<String, String>>> device : deviceRows.entrySet()) {
+        TreeMap<Long, Map<String, String>> bufferedRows = rows
+            .computeIfAbsent(device.getKey(), k -> new TreeMap<>());
+        for (Map.Entry<Long, Map<String, String>> row : device.getValue().entrySet()) {
+          Map<String, String> bufferedRow = bufferedRows.get(row.getKey());
+          if (bufferedRow == null) {
+            bufferedRows.put(row.getKey(), new HashMap<>(row.getValue()));
+            rowCount++;
+          } else {
+            bufferedRow.putAll(row.getValue());
+          }
+        }
+      }
+      CompletableFuture<Void> future = flushFuture;
+      if (rowCount >= config.WRITE_BUFFER_MAX_ROWS && !flushRequested) {
+        flushRequested = true;
+        flusher.execute(this::scheduledFlush);
+      }
+      return future;
+    }
+  }
+
+  /**
+   * Flush from the flusher thread. An error is only logged, so that the flusher is not stopped.
+   */
+  private void scheduledFlush() {
+    try {
+      flush();
+    } catch (Throwable t) {
+      LOGGER.error("Flush of the write buffer failed.", t);
+    }
+  }
+
+  void flush() {
+    Map<String, TreeMap<Long, Map<String, String>>> flushRows;
+    int flushRowCount;
+    CompletableFuture<Void> future;
+    synchronized (lock) {
+      flushRequested = false;
+      if (rowCount == 0) {
+        return;
+      }
+      flushRows = rows;
+      flushRowCount = rowCount;
+      future = flushFuture;
+      rows = new TreeMap<>();
+      rowCount = 0;
+      flushFuture = new CompletableFuture<>();
+      lock.notifyAll();
+    }
+    try {
+      write(flushRows, flushRowCount);
+      flushCount.incrementAndGet();
+      flushedRows.addAndGet(flushRowCount);
+      future.complete(null);
+    } catch (Throwable e) {
+      failedFlushCount.incrementAndGet();
+      LOGGER.error("Flush {} buffered rows failed because {}: {}", flushRowCount,
+          e.getClass().getName(), e.getMessage());
+      future.completeExceptionally(e);
+    }
+  }
+
+  void write(Map<String, TreeMap<Long, Map<String, String>>> flushRows, int flushRowCount)
+      throws SQLException {
+    List<String> sqlList = DataPointsWriter.buildInsertSqlList(flushRows, flushRowCount);
+    DataPointsWriter.execute(IoTDBConnectionPool.getInstance().getConnections(), sqlList);
+  }
+
+  public int getBufferedRows() {
+    synchronized (lock) {
+      return rowCount;
+    }
+  }
+
+  public long getFlushCount() {
+    return flushCount.get();
+  }
+
+  public long getFlushedRows() {
+    return flushedRows.get();
+  }
+
+  public long getFailedFlushCount() {
+    return failedFlushCount.get();
+  }
+
+  private static class WriteBufferHolder {
+
+    private static final WriteBuffer INSTANCE = new WriteBuffer();
+  }
+
+}
@@ -0,0 +1,557 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryResultCache;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local append-only spool of the SQL which could not be written to a replica of IoTDB_LIST.
+ *
+ * <p>The spool is a sequence of memory-mapped segment files of SPOOL_SEGMENT_SIZE bytes, at most
+ * SPOOL_MAX_SEGMENTS of them. A record holds the statements of one write for one replica:
+ * [int length][int replica][int count]([int length][UTF-8 statement])*, and a zero length marks
+ * the end of the written part of a segment. Every replica has its own cursor, saved in a cursor
+ * file, and a background thread replays the records of each replica in batches once the replica
+ * is reachable again. A segment is deleted when every cursor has passed it.
+ */
+public class WriteSpool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteSpool.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  private static final String SEGMENT_PREFIX = "spool-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String CURSOR_PREFIX = "cursor-";
+  private static final int RECORD_HEADER_SIZE = 12;
+
+  private final File dir;
+  private final int segmentSize;
+  private final int replicaNum;
+
+  // <segment sequence, mapped segment>
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private long writeSegment;
+  private int writeOffset;
+
+  private final long[] cursorSegments;
+  private final int[] cursorOffsets;
+  private final long[] pendingRecords;
+
+  private final AtomicLong spooledStatements = new AtomicLong(0);
+  private final AtomicLong replayedStatements = new AtomicLong(0);
+  private final AtomicLong droppedStatements = new AtomicLong(0);
+  private final AtomicLong rejectedStatements = new AtomicLong(0);
+  private volatile double replayRate = 0;
+
+  private WriteSpool() {
+    this(new File(config.SPOOL_DIR), config.SPOOL_SEGMENT_SIZE, config.URL_LIST.size());
+    Thread replayer = new Thread(this::replayLoop, "spool-replayer");
+    replayer.setDaemon(true);
+    replayer.start();
+  }
+
+  /**
+   * Open the spool in the given dir, without the background replay.
+   */
+  WriteSpool(File dir, int segmentSize, int replicaNum) {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.replicaNum = replicaNum;
+    cursorSegments = new long[replicaNum];
+    cursorOffsets = new int[replicaNum];
+    pendingRecords = new long[replicaNum];
+    if (!dir.exists() && !dir.mkdirs()) {
+      LOGGER.error("Create spool dir {} failed.", dir.getAbsolutePath());
+    }
+    try {
+      open();
+    } catch (IOException e) {
+      LOGGER.error("Open spool failed, failed writes will not be spooled.", e);
+    }
+  }
+
+  public static WriteSpool getInstance() {
+    return WriteSpoolHolder.INSTANCE;
+  }
+
+  public static boolean isEnabled() {
+    return config.ENABLE_SPOOL;
+  }
+
+  /**
+   * Map the existing segments, find the end of the written part and load the cursors.
+   */
+  private synchronized void open() throws IOException {
+    File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX)
+        && name.endsWith(SEGMENT_SUFFIX));
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        long seq = Long.parseLong(
+            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        segments.put(seq, map(file));
+      }
+    }
+    if (segments.isEmpty()) {
+      writeSegment = 0;
+      segments.put(writeSegment, map(segmentFile(writeSegment)));
+      writeOffset = 0;
+    } else {
+      writeSegment = segments.lastKey();
+      writeOffset = endOfRecords(segments.get(writeSegment));
+    }
+    for (int replica = 0; replica < replicaNum; replica++) {
+      loadCursor(replica);
+      pendingRecords[replica] = countRecords(replica);
+    }
+  }
+
+  private MappedByteBuffer map(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      return channel.map(MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  private File segmentFile(long seq) {
+    return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+  }
+
+  private int endOfRecords(MappedByteBuffer segment) {
+    int offset = 0;
+    while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+      int length = segment.getInt(offset);
+      if (length <= 0 || offset + length > segmentSize) {
+        break;
+      }
+      offset += length;
+    }
+    return offset;
+  }
+
+  private void loadCursor(int replica) {
+    File file = new File(dir, CURSOR_PREFIX + replica);
+    long seq = segments.firstKey();
+    int offset = 0;
+    if (file.exists()) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        long savedSeq = raf.readLong();
+        int savedOffset = raf.readInt();
+        if (segments.containsKey(savedSeq)) {
+          seq = savedSeq;
+          offset = savedOffset;
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Read spool cursor of replica {} failed, replay from the first segment.",
+            replica);
+      }
+    }
+    cursorSegments[replica] = seq;
+    cursorOffsets[replica] = offset;
+  }
+
+  private void saveCursor(int replica) {
+    try (RandomAccessFile raf = new RandomAccessFile(new File(dir, CURSOR_PREFIX + replica),
+        "rw")) {
+      raf.writeLong(cursorSegments[replica]);
+      raf.writeInt(cursorOffsets[replica]);
+    } catch (IOException e) {
+      LOGGER.warn("Save spool cursor of replica {} failed: {}", replica, e.getMessage());
+    }
+  }
+
+  private long countRecords(int replica) {
+    long count = 0;
+    long seq = cursorSegments[replica];
+    int offset = cursorOffsets[replica];
+    while (true) {
+      Record record = readRecord(seq, offset);
+      if (record == null) {
+        return count;
+      }
+      if (record.replica == replica) {
+        count++;
+      }
+      seq = record.nextSegment;
+      offset = record.nextOffset;
+    }
+  }
+
+  /**
+   * @return true if the replica still has spooled records, new writes to it must then be spooled
+   * behind them to keep the order
+   */
+  public synchronized boolean hasPending(int replica) {
+    return replica < replicaNum && pendingRecords[replica] > 0;
+  }
+
+  /**
+   * Spool the statements of a replica.
+   *
+   * @return false if the spool is full or not available, the statements have not been spooled
+   */
+  public synchronized boolean append(int replica, List<String> sqlList) {
+    if (replica >= replicaNum || segments.isEmpty()) {
+      rejectedStatements.addAndGet(sqlList.size());
+      return false;
+    }
+    List<byte[]> statements = new ArrayList<>(sqlList.size());
+    for (String sql : sqlList) {
+      statements.add(sql.getBytes(StandardCharsets.UTF_8));
+    }
+    int start = 0;
+    while (start < statements.size()) {
+      // Put as many statements as the rest of the segment can hold in one record
+      int length = RECORD_HEADER_SIZE;
+      int end = start;
+      while (end < statements.size()
+          && writeOffset + length + 4 + statements.get(end).length <= segmentSize) {
+        length += 4 + statements.get(end).length;
+        end++;
+      }
+      if (end == start) {
+        if (writeOffset == 0) {
+          LOGGER.error("A statement of {} bytes does not fit in a spool segment.",
+              statements.get(start).length);
+          rejectedStatements.addAndGet(sqlList.size() - start);
+          return false;
+        }
+        if (!nextSegment()) {
+          rejectedStatements.addAndGet(sqlList.size() - start);
+          return false;
+        }
+        continue;
+      }
+      MappedByteBuffer segment = segments.get(writeSegment);
+      int position = writeOffset + 4;
+      segment.putInt(position, replica);
+      position += 4;
+      segment.putInt(position, end - start);
+      position += 4;
+      for (int i = start; i < end; i++) {
+        byte[] bytes = statements.get(i);
+        segment.putInt(position, bytes.length);
+        position += 4;
+        for (byte b : bytes) {
+          segment.put(position++, b);
+        }
+      }
+      // Mark the end, the segment may hold older records after it once reused
+      if (writeOffset + length + 4 <= segmentSize) {
+        segment.putInt(writeOffset + length, 0);
+      }
+      // The length is written last, so that a torn record is never read
+      segment.putInt(writeOffset, length);
+      segment.force();
+      writeOffset += length;
+      pendingRecords[replica]++;
+      start = end;
+    }
+    spooledStatements.addAndGet(sqlList.size());
+    return true;
+  }
+
+  private boolean nextSegment() {
+    if (segments.size() >= config.SPOOL_MAX_SEGMENTS) {
+      LOGGER.error("Spool is full ({} segments), reject the write.", segments.size());
+      return false;
+    }
+    try {
+      long seq = writeSegment + 1;
+      segments.put(seq, map(segmentFile(seq)));
+      writeSegment = seq;
+      writeOffset = 0;
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("Create spool segment failed.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Read the record at the given position.
+   *
+   * @return null if there is no record written at the position yet
+   */
+  private synchronized Record readRecord(long seq, int offset) {
+    while (true) {
+      if (seq == writeSegment && offset >= writeOffset) {
+        return null;
+      }
+      MappedByteBuffer segment = segments.get(seq);
+      if (segment == null) {
+        if (seq > writeSegment) {
+          return null;
+        }
+        seq = segments.ceilingKey(seq) == null ? writeSegment : segments.ceilingKey(seq);
+        offset = 0;
+        continue;
+      }
+      int length = offset + RECORD_HEADER_SIZE <= segmentSize ? segment.getInt(offset) : 0;
+      if (length <= 0) {
+        // The rest of the segment is unused
+        seq++;
+        offset = 0;
+        continue;
+      }
+      return new Record(segment, seq, offset, length);
+    }
+  }
+
+  private void replayLoop() {
+    while (true) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(config.SPOOL_REPLAY_INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      long start = System.nanoTime();
+      long replayed = 0;
+      for (int replica = 0; replica < replicaNum; replica++) {
+        try {
+          replayed += replay(replica);
+        } catch (RuntimeException e) {
+          LOGGER.error("Replay spool of replica {} failed.", replica, e);
+        }
+      }
+      replayRate = replayed * 1e9 / (System.nanoTime() - start);
+      deleteConsumedSegments();
+    }
+  }
+
+  /**
+   * Replay the spooled records of a replica in batches of about SPOOL_REPLAY_BATCH statements,
+   * until none is left or the replica is still unreachable.
+   *
+   * @return The number of statements replayed
+   */
+  long replay(int replica) {
+    long replayed = 0;
+    while (true) {
+      long seq;
+      int offset;
+      synchronized (this) {
+        if (pendingRecords[replica] == 0) {
+          // Only the records of other replicas are left, skip them
+          cursorSegments[replica] = writeSegment;
+          cursorOffsets[replica] = writeOffset;
+          return replayed;
+        }
+        seq = cursorSegments[replica];
+        offset = cursorOffsets[replica];
+      }
+      List<String> sqlList = new ArrayList<>();
+      int recordCount = 0;
+      Record record;
+      while (sqlList.size() < config.SPOOL_REPLAY_BATCH && (record = readRecord(seq, offset))
+          != null) {
+        if (record.replica == replica) {
+          record.readStatements(sqlList);
+          recordCount++;
+        }
+        seq = record.nextSegment;
+        offset = record.nextOffset;
+      }
+      if (!sqlList.isEmpty() && !execute(replica, sqlList)) {
+        return replayed;
+      }
+      invalidateCachedResults(sqlList);
+      synchronized (this) {
+        cursorSegments[replica] = seq;
+        cursorOffsets[replica] = offset;
+        // Nothing found up to the end, whatever the count says
+        pendingRecords[replica] = recordCount == 0 ? 0 : pendingRecords[replica] - recordCount;
+      }
+      saveCursor(replica);
+      replayed += sqlList.size();
+      replayedStatements.addAndGet(sqlList.size());
+    }
+  }
+
+  /**
+   * Execute the replayed statements in batches. When a batch fails while the replica answers, the
+   * statements are executed one by one and the ones rejected by the replica are dropped.
+   *
+   * @return false if the replica is unreachable, the statements have to be replayed again later
+   */
+  boolean execute(int replica, List<String> sqlList) {
+    Connection connection = connection(replica);
+    try (Statement statement = connection.createStatement()) {
+      try {
+        int batchCount = 0;
+        for (String sql : sqlList) {
+          statement.addBatch(sql);
+          batchCount++;
+          if (batchCount == Math.max(1, config.INSERT_BATCH_SIZE)) {
+            statement.executeBatch();
+            batchCount = 0;
+          }
+        }
+        if (batchCount > 0) {
+          statement.executeBatch();
+        }
+        return true;
+      } catch (SQLException e) {
+        statement.clearBatch();
+        statement.execute("SHOW STORAGE GROUP");
+      }
+      for (String sql : sqlList) {
+        try {
+          statement.execute(sql);
+        } catch (SQLException e) {
+          if (IoTDBUtil.isConnectionFailure(connection, e)) {
+            // Lost the replica in the middle, replay the whole batch again later
+            LOGGER.debug("Replica {} is unreachable again: {}", replica, e.getMessage());
+            return false;
+          }
+          droppedStatements.incrementAndGet();
+          LOGGER.warn("Drop spooled statement of replica {} because {}: {}", replica,
+              e.getClass().getName(), e.getMessage());
+        }
+      }
+      return true;
+    } catch (SQLException e) {
+      LOGGER.debug("Replica {} is still unreachable: {}", replica, e.getMessage());
+      return false;
+    }
+  }
+
+  Connection connection(int replica) {
+    return IoTDBConnectionPool.getInstance().getConnections().get(replica);
+  }
+
+  /**
+   * Invalidate the cached results of the metrics written by replayed statements, as they may be
+   * far older than the settled end of the cached results.
+   */
+  private static void invalidateCachedResults(List<String> sqlList) {
+    if (!QueryResultCache.isEnabled()) {
+      return;
+    }
+    Set<String> metricNames = new HashSet<>();
+    for (String sql : sqlList) {
+      // insert into <device>(timestamp,<measurement>,...) values(...)
+      int start = sql.indexOf("(timestamp");
+      int end = sql.indexOf(") values(", start);
+      if (start < 0 || end < 0) {
+        continue;
+      }
+      String[] measurements = sql.substring(start + 1, end).split(",");
+      for (int i = 1; i < measurements.length; i++) {
+        metricNames.add(measurements[i].trim());
+      }
+    }
+    for (String metricName : metricNames) {
+      QueryResultCache.getInstance().invalidateMetric(metricName);
+    }
+  }
+
+  synchronized void deleteConsumedSegments() {
+    long minCursor = writeSegment;
+    for (long cursor : cursorSegments) {
+      minCursor = Math.min(minCursor, cursor);
+    }
+    while (!segments.isEmpty() && segments.firstKey() < minCursor) {
+      long seq = segments.pollFirstEntry().getKey();
+      if (!segmentFile(seq).delete()) {
+        LOGGER.warn("Delete consumed spool segment {} failed.", seq);
+      }
+    }
+    // Reuse the only segment left once everything has been replayed
+    if (segments.size() == 1 && writeOffset > 0) {
+      boolean consumed = true;
+      for (int replica = 0; replica < replicaNum; replica++) {
+        consumed &= pendingRecords[replica] == 0;
+      }
+      if (consumed) {
+        MappedByteBuffer segment = segments.get(writeSegment);
+        segment.putInt(0, 0);
+        segment.force();
+        writeOffset = 0;
+        for (int replica = 0; replica < replicaNum; replica++) {
+          cursorSegments[replica] = writeSegment;
+          cursorOffsets[replica] = 0;
+          saveCursor(replica);
+        }
+      }
+    }
+  }
+
+  public synchronized Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("enabled", isEnabled());
+    metrics.put("segments", segments.size());
+    metrics.put("size_bytes",
+        segments.isEmpty() ? 0 : (long) (segments.size() - 1) * segmentSize + writeOffset);
+    List<Long> pending = new ArrayList<>();
+    for (long records : pendingRecords) {
+      pending.add(records);
+    }
+    metrics.put("pending_records", pending);
+    metrics.put("spooled_statements", spooledStatements.get());
+    metrics.put("replayed_statements", replayedStatements.get());
+    metrics.put("dropped_statements", droppedStatements.get());
+    metrics.put("rejected_statements", rejectedStatements.get());
+    metrics.put("replay_rate", replayRate);
+    return metrics;
+  }
+
+  private class Record {
+
+    private final MappedByteBuffer segment;
+    private final int offset;
+    private final int replica;
+    private final long nextSegment;
+    private final int nextOffset;
+
+    Record(MappedByteBuffer segment, long seq, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.replica = segment.getInt(offset + 4);
+      this.nextSegment = seq;
+      this.nextOffset = offset + length;
+    }
+
+    void readStatements(List<String> sqlList) {
+      int count = segment.getInt(offset + 8);
+      int position = offset + RECORD_HEADER_SIZE;
+      for (int i = 0; i < count; i++) {
+        int length = segment.getInt(position);
+        position += 4;
+        byte[] bytes = new byte[length];
+        for (int j = 0; j < length; j++) {
+          bytes[j] = segment.get(position + j);
+        }
+        position += length;
+        sqlList.add(new String(bytes, StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  private static class WriteSpoolHolder {
+
+    private static final WriteSpool INSTANCE = new WriteSpool();
+  }
+
+}
@@ -2,8 +2,20 @@ package cn.edu.tsinghua.iotdb.kairosdb.http.rest;
 
 import static cn.edu.tsinghua.iotdb.kairosdb.http.rest.MetricsResource.setHeaders;
 
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.IngestionScheduler;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBUtil;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.ReplicaWriter;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.WriteBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.WriteSpool;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryResultCache;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryScheduler;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QuerySingleFlight;
+import com.alibaba.fastjson.JSON;
 import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -14,6 +26,8 @@ import javax.ws.rs.core.Response.Status;
 @Path("/api/v1/health")
 public class HealthCheckResource {
 
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
   @GET
   @Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
   @Path("check")
@@ -51,4 +65,86 @@ public class HealthCheckResource {
     return setHeaders(responseBuilder).build();
   }
 
+  @GET
+  @Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+  @Path("metrics")
+  public Response metrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("ingestion", ingestionMetrics());
+    metrics.put("query", queryMetrics());
+    metrics.put("write_buffer", writeBufferMetrics());
+    metrics.put("replicas", ReplicaWriter.getInstance().getReplicaMetrics());
+    metrics.put("spool", spoolMetrics());
+    Response.ResponseBuilder responseBuilder = Response.status(Status.OK)
+        .entity(JSON.toJSONString(metrics));
+    return setHeaders(responseBuilder).build();
+  }
+
+  private Map<String, Object> spoolMetrics() {
+    if (WriteSpool.isEnabled()) {
+      return WriteSpool.getInstance().getMetrics();
+    }
+    Map<String, Object> spool = new LinkedHashMap<>();
+    spool.put("enabled", false);
+    return spool;
+  }
+
+  private Map<String, Object> ingestionMetrics() {
+    IngestionScheduler scheduler = IngestionScheduler.getInstance();
+    Map<String, Object> ingestion = new LinkedHashMap<>();
+    ingestion.put("queue_depth", scheduler.getQueueDepth());
+    ingestion.put("active_workers", scheduler.getActiveCount());
+    ingestion.put("pending_requests", scheduler.getPendingRequests());
+    ingestion.put("pending_bytes", scheduler.getPendingBytes());
+    ingestion.put("accepted", scheduler.getAcceptedCount());
+    ingestion.put("rejected", scheduler.getRejectedCount());
+    return ingestion;
+  }
+
+  private Map<String, Object> queryMetrics() {
+    QueryScheduler scheduler = QueryScheduler.getInstance();
+    Map<String, Object> query = new LinkedHashMap<>();
+    query.put("queue_depth", scheduler.getQueueDepth());
+    query.put("active_workers", scheduler.getActiveCount());
+    query.put("pending_queries", scheduler.getPendingQueries());
+    query.put("pending_points", scheduler.getPendingPoints());
+    query.put("accepted", scheduler.getAcceptedCount());
+    query.put("rejected", scheduler.getRejectedCount());
+    query.put("cache", queryCacheMetrics());
+    QuerySingleFlight singleFlight = QuerySingleFlight.getInstance();
+    query.put("in_flight", singleFlight.getInFlightCount());
+    query.put("executed", singleFlight.getExecutedCount());
+    query.put("shared", singleFlight.getSharedCount());
+    return query;
+  }
+
+  private Map<String, Object> queryCacheMetrics() {
+    Map<String, Object> cacheMetrics = new LinkedHashMap<>();
+    cacheMetrics.put("enabled", QueryResultCache.isEnabled());
+    if (QueryResultCache.isEnabled()) {
+      QueryResultCache cache = QueryResultCache.getInstance();
+      cacheMetrics.put("entries", cache.getEntryCount());
+      cacheMetrics.put("bytes", cache.getBytes());
+      cacheMetrics.put("hits", cache.getHitCount());
+      cacheMetrics.put("partial_hits", cache.getPartialHitCount());
+      cacheMetrics.put("misses", cache.getMissCount());
+      cacheMetrics.put("evictions", cache.getEvictionCount());
+      cacheMetrics.put("invalidations", cache.getInvalidationCount());
+    }
+    return cacheMetrics;
+  }
+
+  private Map<String, Object> writeBufferMetrics() {
+    Map<String, Object> writeBuffer = new LinkedHashMap<>();
+    writeBuffer.put("enabled", config.ENABLE_WRITE_BUFFER);
+    if (config.ENABLE_WRITE_BUFFER) {
+      WriteBuffer buffer = WriteBuffer.getInstance();
+      writeBuffer.put("buffered_rows", buffer.getBufferedRows());
+      writeBuffer.put("flushes", buffer.getFlushCount());
+      writeBuffer.put("flushed_rows", buffer.getFlushedRows());
+      writeBuffer.put("failed_flushes", buffer.getFailedFlushCount());
+    }
+    return writeBuffer;
+  }
+
 }
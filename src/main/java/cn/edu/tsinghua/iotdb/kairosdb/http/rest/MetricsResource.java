@@ -2,8 +2,10 @@ package cn.edu.tsinghua.iotdb.kairosdb.http.rest;
 
 import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.IngestionScheduler;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.IngestionWorker;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.MetricsManager;
+import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.ErrorResponse;
 import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.JsonResponseBuilder;
 import cn.edu.tsinghua.iotdb.kairosdb.profile.Measurement;
 import cn.edu.tsinghua.iotdb.kairosdb.profile.Measurement.Profile;
@@ -11,9 +13,10 @@ import cn.edu.tsinghua.iotdb.kairosdb.query.Query;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryExecutor;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryParser;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryRejectedException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryResultCache;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryTimeoutException;
 import com.alibaba.fastjson.JSON;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -41,6 +44,7 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import org.glassfish.jersey.server.CloseableService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,13 +58,8 @@ public class MetricsResource {
   private static final Config config = ConfigDescriptor.getInstance().getConfig();
   public static final Logger LOGGER = LoggerFactory.getLogger(MetricsResource.class);
 
-  //Used for parsing incoming metrics
-  private final Gson gson;
-
   @Inject
   public MetricsResource() {
-    GsonBuilder builder = new GsonBuilder();
-    gson = builder.disableHtmlEscaping().create();
     if (config.ENABLE_PROFILER) {
       profilerPool.scheduleAtFixedRate(() -> Measurement.getInstance().show(),
           config.PROFILE_INTERVAL, config.PROFILE_INTERVAL, TimeUnit.SECONDS);
@@ -79,11 +78,13 @@ public class MetricsResource {
   @Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
   @Consumes("application/gzip")
   @Path("/datapoints")
-  public void addGzip(InputStream gzip, @Suspended final AsyncResponse asyncResponse) {
+  public void addGzip(@Context HttpHeaders httpheaders, InputStream gzip,
+      @Suspended final AsyncResponse asyncResponse) {
     GZIPInputStream gzipInputStream;
     try {
       gzipInputStream = new GZIPInputStream(gzip);
-      add(null, gzipInputStream, asyncResponse);
+      // The headers size the request, the worker must not decompress the stream again
+      submit(createWorker(asyncResponse, null, gzipInputStream), httpheaders, asyncResponse);
     } catch (IOException e) {
       JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
       asyncResponse.resume(builder.addError(e.getMessage()).build());
@@ -95,7 +96,22 @@ public class MetricsResource {
   @Path("/datapoints")
   public void add(@Context HttpHeaders httpheaders, final InputStream stream,
       @Suspended final AsyncResponse asyncResponse) {
-    threadPool.execute(new IngestionWorker(asyncResponse, httpheaders, stream, gson));
+    submit(createWorker(asyncResponse, httpheaders, stream), httpheaders, asyncResponse);
+  }
+
+  IngestionWorker createWorker(AsyncResponse asyncResponse, HttpHeaders httpheaders,
+      InputStream stream) {
+    return new IngestionWorker(asyncResponse, httpheaders, stream);
+  }
+
+  private void submit(IngestionWorker worker, HttpHeaders httpheaders,
+      AsyncResponse asyncResponse) {
+    if (!IngestionScheduler.getInstance().submit(worker, httpheaders)) {
+      asyncResponse.resume(setHeaders(Response.status(Status.SERVICE_UNAVAILABLE)
+          .header("Retry-After", config.INGESTION_RETRY_AFTER)
+          .entity(new ErrorResponse("Too many pending ingestion requests, retry later.")))
+          .build());
+    }
   }
 
   @POST
@@ -119,15 +135,16 @@ public class MetricsResource {
   @GET
   @Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
   @Path(QUERY_URL)
-  public Response getQuery(@QueryParam("query") String json) {
-    return runQuery(json);
+  public Response getQuery(@QueryParam("query") String json,
+      @Context CloseableService closeableService) {
+    return runQuery(json, closeableService);
   }
 
   @POST
   @Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
   @Path(QUERY_URL)
-  public Response postQuery(String json) {
-    return runQuery(json);
+  public Response postQuery(String json, @Context CloseableService closeableService) {
+    return runQuery(json, closeableService);
   }
 
 //  @POST
@@ -138,13 +155,14 @@ public class MetricsResource {
 //    future.thenAccept(resp -> asyncResponse.resume(resp));
 //  }
 
-  private CompletableFuture<Response> veryExpensiveOperation(String json){
+  private CompletableFuture<Response> veryExpensiveOperation(String json,
+      CloseableService closeableService){
     CompletableFuture<Response> completableFuture = new CompletableFuture<>();
     threadPool.execute(new Thread(() -> {
       Response response = null;
       //do expensive stuff here
       try {
-        response = runQuery(json);
+        response = runQuery(json, closeableService);
       } catch (Exception e) {
         LOGGER.error("Query failed because: {}", e.getMessage(), e);
       }
@@ -153,7 +171,11 @@ public class MetricsResource {
     return completableFuture;
   }
 
-  private Response runQuery(String jsonStr) {
+  /**
+   * @param closeableService Closed once the response is completed, it releases the query if its
+   * result is streamed
+   */
+  private Response runQuery(String jsonStr, CloseableService closeableService) {
     long start = 0;
     if (config.ENABLE_PROFILER) {
       start = System.nanoTime();
@@ -168,7 +190,16 @@ public class MetricsResource {
       QueryParser parser = new QueryParser();
       Query query = parser.parseQueryMetric(jsonStr);
       QueryExecutor executor = new QueryExecutor(query);
-      String entity = executor.executeV2();
+      Object entity;
+      if (config.ENABLE_QUERY_STREAMING) {
+        entity = executor.executeStreaming();
+        // the entity is not written if the response fails before, e.g. if the client is gone
+        closeableService.add(executor::release);
+      } else if (config.ENABLE_QUERY_SINGLE_FLIGHT) {
+        entity = executor.executeShared(jsonStr);
+      } else {
+        entity = executor.executeV2();
+      }
       if (config.ENABLE_PROFILER) {
         Measurement.getInstance().add(Profile.IKR_QUERY, System.nanoTime() - start);
       }
@@ -187,6 +218,14 @@ public class MetricsResource {
     } catch (BeanValidationException e) {
       JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
       return builder.addErrors(e.getErrorMessages()).build();
+    } catch (QueryRejectedException e) {
+      return setHeaders(Response.status(Status.SERVICE_UNAVAILABLE)
+          .header("Retry-After", config.QUERY_RETRY_AFTER)
+          .entity(new ErrorResponse(e.getMessage())))
+          .build();
+    } catch (QueryTimeoutException e) {
+      JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.GATEWAY_TIMEOUT);
+      return builder.addError(e.getMessage()).build();
     } catch (QueryException e) {
       JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
       return builder.addError(e.getMessage()).build();
@@ -221,6 +260,7 @@ public class MetricsResource {
   @Path("/metric/{metricName}")
   public Response metricDelete(@PathParam("metricName") String metricName) {
     MetricsManager.deleteMetric(metricName);
+    QueryResultCache.getInstance().invalidateMetric(metricName);
     return setHeaders(Response.status(Response.Status.NO_CONTENT)).build();
   }
 
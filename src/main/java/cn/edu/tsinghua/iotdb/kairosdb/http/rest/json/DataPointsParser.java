@@ -2,28 +2,42 @@ package cn.edu.tsinghua.iotdb.kairosdb.http.rest.json;
 
 import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.DataPointsWriter;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBConnectionPool;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBUtil;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.KnownSeriesCache;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.MetricsManager;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.ReplicaWriter;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.ReplicaWriter.AckPolicy;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.SeriesPathCache;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.SeriesPathCache.SeriesPath;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.WriteBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.WriteSpool;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryResultCache;
 import cn.edu.tsinghua.iotdb.kairosdb.util.Util;
 import cn.edu.tsinghua.iotdb.kairosdb.util.ValidationException;
 import cn.edu.tsinghua.iotdb.kairosdb.util.Validator;
-import com.google.common.collect.ImmutableSortedMap;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,12 +53,13 @@ public class DataPointsParser {
   private static AtomicLong parseTotalAccumulatedTime = new AtomicLong(0);
   private static final int OUTPUT_THRESHOLD = 5000;
   private final Reader inputStream;
-  private final Gson gson;
 
-  // <timestamp-path, <metric, value>>
+  // <timestamp-root.storage_group.device, <metric, value>>
   private Map<TimestampDevicePair, Map<String, String>> tableMap = new HashMap<>();
   // <path, type>
   private Map<String, DataType> seriesPaths = new HashMap<>();
+  // The series written before the settled end of the QueryResultCache, invalidated once sent
+  private final List<LateWrite> lateWrites = new ArrayList<>();
 
   // The constants of encoding methods
   private static final String TEXT_ENCODING = "PLAIN";
@@ -52,10 +67,22 @@ public class DataPointsParser {
   private static final String DOUBLE_ENCODING = "GORILLA";
   private List<Connection> connections = new ArrayList<>();
 
-  public DataPointsParser(Reader stream, Gson gson) {
-    connections = IoTDBConnectionPool.getInstance().getConnections();
+  // The kinds of a decoded datapoint value
+  private static final byte VALUE_ABSENT = 0;
+  private static final byte VALUE_NULL = 1;
+  private static final byte VALUE_NUMBER = 2;
+  private static final byte VALUE_STRING = 3;
+  private static final byte VALUE_BOOLEAN = 4;
+  private static final byte VALUE_EMPTY_ARRAY = 5;
+  private static final byte VALUE_COMPLEX = 6;
+
+  public DataPointsParser(Reader stream) {
+    this(stream, IoTDBConnectionPool.getInstance().getConnections());
+  }
+
+  DataPointsParser(Reader stream, List<Connection> connections) {
+    this.connections = connections;
     this.inputStream = stream;
-    this.gson = gson;
   }
 
   public ValidationErrors parse() throws IOException {
@@ -67,34 +94,7 @@ public class DataPointsParser {
     if (config.DEBUG == 1) {
       start = System.currentTimeMillis();
     }
-    ValidationErrors validationErrors = new ValidationErrors();
-    try (JsonReader reader = new JsonReader(inputStream)) {
-      int metricCount = 0;
-      if (reader.peek().equals(JsonToken.BEGIN_ARRAY)) {
-        try {
-          reader.beginArray();
-
-          while (reader.hasNext()) {
-
-            NewMetric metric = parseMetric(reader);
-            validateAndAddDataPoints(metric, validationErrors, metricCount);
-            metricCount++;
-          }
-        } catch (EOFException e) {
-          validationErrors.addErrorMessage("Invalid json. No content due to end of input.");
-        }
-
-        reader.endArray();
-      } else if (reader.peek().equals(JsonToken.BEGIN_OBJECT)) {
-        NewMetric metric = parseMetric(reader);
-        validateAndAddDataPoints(metric, validationErrors, 0);
-      } else {
-        validationErrors.addErrorMessage("Invalid start of json.");
-      }
-
-    } catch (EOFException e) {
-      validationErrors.addErrorMessage("Invalid json. No content due to end of input.");
-    }
+    ValidationErrors validationErrors = decode();
     if (config.DEBUG == 1) {
       prepareSqlTime = System.currentTimeMillis() - start;
     }
@@ -103,10 +103,16 @@ public class DataPointsParser {
       start = System.currentTimeMillis();
     }
     try {
-      sendMetricsData();
+      createTimeSeries(getUnknownSeriesPaths());
+      if (config.ENABLE_WRITE_BUFFER) {
+        bufferMetricsData();
+      } else {
+        sendMetricsData();
+      }
     } catch (SQLException e) {
+      // Some series are missing although they are known, e.g. deleted by another IKR
       try {
-        createTimeSeries();
+        createTimeSeries(seriesPaths);
         sendMetricsData();
       } catch (Exception ex) {
         try {
@@ -119,6 +125,10 @@ public class DataPointsParser {
         LOGGER.warn("Exception occur for create and send, retried send", ex);
       }
     }
+    for (LateWrite lateWrite : lateWrites) {
+      QueryResultCache.getInstance()
+          .invalidate(lateWrite.name, lateWrite.tags, lateWrite.timestamp);
+    }
 
     if (config.DEBUG == 1) {
       jdbcTime = System.currentTimeMillis() - start;
@@ -138,6 +148,43 @@ public class DataPointsParser {
     return validationErrors;
   }
 
+  /**
+   * Decode the request into the rows to insert and the series they need, without writing them.
+   *
+   * @return The errors of the invalid metrics and datapoints, which are left out
+   */
+  ValidationErrors decode() throws IOException {
+    ValidationErrors validationErrors = new ValidationErrors();
+    try (JsonReader reader = new JsonReader(inputStream)) {
+      int metricCount = 0;
+      if (reader.peek().equals(JsonToken.BEGIN_ARRAY)) {
+        try {
+          reader.beginArray();
+
+          while (reader.hasNext()) {
+
+            NewMetric metric = parseMetric(reader);
+            validateAndAddDataPoints(metric, validationErrors, metricCount);
+            metricCount++;
+          }
+        } catch (EOFException e) {
+          validationErrors.addErrorMessage("Invalid json. No content due to end of input.");
+        }
+
+        reader.endArray();
+      } else if (reader.peek().equals(JsonToken.BEGIN_OBJECT)) {
+        NewMetric metric = parseMetric(reader);
+        validateAndAddDataPoints(metric, validationErrors, 0);
+      } else {
+        validationErrors.addErrorMessage("Invalid start of json.");
+      }
+
+    } catch (EOFException e) {
+      validationErrors.addErrorMessage("Invalid json. No content due to end of input.");
+    }
+    return validationErrors;
+  }
+
   private static String createTimeSeriesSql(String seriesPath, DataType type) {
     String datatype;
     String encoding;
@@ -159,19 +206,87 @@ public class DataPointsParser {
             datatype, encoding);
   }
 
-  private void createTimeSeries() throws SQLException {
-    int count = 0;
-    for (Connection conn : connections) {
+  private Map<String, DataType> getUnknownSeriesPaths() {
+    KnownSeriesCache knownSeries = KnownSeriesCache.getInstance();
+    Map<String, DataType> unknownPaths = new HashMap<>();
+    for (Map.Entry<String, DataType> entry : seriesPaths.entrySet()) {
+      if (!knownSeries.contains(entry.getKey())) {
+        unknownPaths.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return unknownPaths;
+  }
+
+  /**
+   * Create the given TIMESERIES in one batch on every connection. If the batch fails because some
+   * of them already exist, create them one by one and ignore the existing ones. All the replicas
+   * are waited for, whatever WRITE_ACK_POLICY is, as the data write relies on the TIMESERIES. Only
+   * the series created or found existing on every replica, or spooled for it, become known.
+   */
+  private void createTimeSeries(Map<String, DataType> paths) throws SQLException {
+    if (paths.isEmpty()) {
+      return;
+    }
+    List<String> pathList = new ArrayList<>(paths.keySet());
+    List<String> sqlList = new ArrayList<>(paths.size());
+    for (String path : pathList) {
+      sqlList.add(createTimeSeriesSql(path, paths.get(path)));
+    }
+    Set<String> failedPaths = ConcurrentHashMap.newKeySet();
+    ReplicaWriter.getInstance().write(connections, (conn, replica) -> {
+      if (WriteSpool.isEnabled() && WriteSpool.getInstance().hasPending(replica)) {
+        spoolTimeSeries(replica, sqlList);
+        return;
+      }
       try (Statement statement = conn.createStatement()) {
-        for (Map.Entry<String, DataType> entry : seriesPaths.entrySet()) {
-          try {
-            statement.execute(createTimeSeriesSql(entry.getKey(), entry.getValue()));
-          } catch (Exception e) {
-            LOGGER.error("时间序列{}已存在,创建时间序列的连接序号为:{}", entry.getKey(), count, e);
+        for (String sql : sqlList) {
+          statement.addBatch(sql);
+        }
+        try {
+          statement.executeBatch();
+        } catch (SQLException e) {
+          statement.clearBatch();
+          boolean unreachable = false;
+          for (int i = 0; i < sqlList.size(); i++) {
+            try {
+              statement.execute(sqlList.get(i));
+            } catch (SQLException ex) {
+              if (IoTDBUtil.isConnectionFailure(conn, ex)) {
+                unreachable = true;
+                break;
+              }
+              if (IoTDBUtil.isSeriesExistence(ex)) {
+                LOGGER.debug("时间序列{}已存在,创建时间序列的连接序号为:{}, {}", sqlList.get(i), replica,
+                    ex.getMessage());
+              } else {
+                LOGGER.warn("创建时间序列{}失败,连接序号为:{}, {}", sqlList.get(i), replica,
+                    ex.getMessage());
+                failedPaths.add(pathList.get(i));
+              }
+            }
+          }
+          // the series which already exist fail too, only an unreachable replica is spooled
+          if (unreachable) {
+            if (!WriteSpool.isEnabled()) {
+              throw e;
+            }
+            spoolTimeSeries(replica, sqlList);
           }
         }
       }
-      count++;
+    }, AckPolicy.ALL,
+        replica -> WriteSpool.isEnabled() && WriteSpool.getInstance().append(replica, sqlList));
+    KnownSeriesCache knownSeries = KnownSeriesCache.getInstance();
+    for (String path : pathList) {
+      if (!failedPaths.contains(path)) {
+        knownSeries.add(path);
+      }
+    }
+  }
+
+  private static void spoolTimeSeries(int replica, List<String> sqlList) throws SQLException {
+    if (!WriteSpool.getInstance().append(replica, sqlList)) {
+      throw new SQLException(String.format("Spool of replica %d is full", replica));
     }
   }
 
@@ -180,47 +295,257 @@ public class DataPointsParser {
     if (config.DEBUG == 2) {
       start = System.currentTimeMillis();
     }
-    for (Connection conn : connections) {
-      try (Statement statement = conn.createStatement()) {
-        for (Map.Entry<TimestampDevicePair, Map<String, String>> entry : tableMap.entrySet()) {
-          StringBuilder sqlBuilder = new StringBuilder();
-          StringBuilder sensorPartBuilder = new StringBuilder("(timestamp");
-          StringBuilder valuePartBuilder = new StringBuilder(" values(");
-          long timestamp = entry.getKey().getTimestamp();
-          String path = entry.getKey().getDevice();
-          String sqlPrefix = String
-              .format("insert into root.%s%s", MetricsManager.getStorageGroupName(path), path);
-          valuePartBuilder.append(timestamp);
-          for (Map.Entry<String, String> subEntry : entry.getValue().entrySet()) {
-            sensorPartBuilder.append(",").append(subEntry.getKey());
-            valuePartBuilder.append(",").append(subEntry.getValue());
-          }
-          sensorPartBuilder.append(")");
-          valuePartBuilder.append(")");
-          sqlBuilder.append(sqlPrefix).append(sensorPartBuilder).append(valuePartBuilder);
-          String sql = sqlBuilder.toString();
-          if(config.DEBUG == 3) {
-            LOGGER.info("{} execute ingestion SQL: {}", Thread.currentThread().getName(), sql);
-          }
-          statement.execute(sql);
-        }
-      }
-    }
+    List<String> sqlList = DataPointsWriter
+        .buildInsertSqlList(groupRowsByDevice(), tableMap.size());
+    DataPointsWriter.execute(connections, sqlList);
     if (config.DEBUG == 2) {
       long elapse = System.currentTimeMillis() - start;
-      LOGGER.info("sendMetricsData() 执行的时间: ,{}, ms", elapse);
+      LOGGER.info("sendMetricsData() 执行的时间: ,{}, ms, SQL数量: ,{}", elapse, sqlList.size());
+    }
+  }
+
+  /**
+   * Hand the rows to the shared write buffer and wait until they have been flushed, so that a
+   * failed flush is retried by a direct send.
+   */
+  private void bufferMetricsData() throws SQLException {
+    if (tableMap.isEmpty()) {
+      return;
+    }
+    try {
+      WriteBuffer.getInstance().append(groupRowsByDevice()).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the write buffer", e);
+    } catch (ExecutionException e) {
+      throw new SQLException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * @return The rows in tableMap as &lt;root.storage_group.device, &lt;timestamp, &lt;measurement,
+   * value&gt;&gt;&gt;
+   */
+  Map<String, TreeMap<Long, Map<String, String>>> groupRowsByDevice() {
+    Map<String, TreeMap<Long, Map<String, String>>> deviceRows = new TreeMap<>();
+    for (Map.Entry<TimestampDevicePair, Map<String, String>> entry : tableMap.entrySet()) {
+      deviceRows.computeIfAbsent(entry.getKey().getDevice(), k -> new TreeMap<>())
+          .put(entry.getKey().getTimestamp(), entry.getValue());
     }
+    return deviceRows;
   }
 
+  /**
+   * Decode one metric object from the token stream. The datapoints are kept as their literal
+   * timestamps and values, no JsonElement tree is built. Like Gson#fromJson, the metric object is
+   * read leniently and any malformed content is reported as JsonSyntaxException.
+   */
   private NewMetric parseMetric(JsonReader reader) {
-    NewMetric metric;
+    boolean lenient = reader.isLenient();
+    reader.setLenient(true);
     try {
-      metric = gson.fromJson(reader, NewMetric.class);
-    } catch (IllegalArgumentException e) {
-      // Happens when parsing data points where one of the pair is missing (timestamp or value)
-      throw new JsonSyntaxException("Invalid JSON");
+      if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+        throw new JsonSyntaxException("Invalid JSON");
+      }
+      NewMetric metric = new NewMetric();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "name":
+            metric.name = readString(reader);
+            break;
+          case "timestamp":
+            metric.timestamp = readLong(reader);
+            break;
+          case "time":
+            metric.time = readLong(reader);
+            break;
+          case "value":
+            metric.valueKind = peekValueKind(reader);
+            if (metric.valueKind == VALUE_COMPLEX) {
+              metric.valueKind = skipComplexValue(reader);
+            } else {
+              metric.value = readPrimitiveValue(reader, metric.valueKind);
+            }
+            break;
+          case "tags":
+            readTags(reader, metric);
+            break;
+          case "datapoints":
+            readDataPoints(reader, metric);
+            break;
+          case "ttl":
+            Long ttl = readLong(reader);
+            metric.ttl = ttl == null ? 0 : ttl.intValue();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return metric;
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      // Happens on truncated input or when a field has an unexpected JSON type
+      throw new JsonSyntaxException("Invalid JSON", e);
+    } finally {
+      reader.setLenient(lenient);
+    }
+  }
+
+  private static String readString(JsonReader reader) throws IOException {
+    JsonToken token = reader.peek();
+    if (token == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    } else if (token == JsonToken.BOOLEAN) {
+      return Boolean.toString(reader.nextBoolean());
     }
-    return metric;
+    return reader.nextString();
+  }
+
+  private static Long readLong(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextLong();
+  }
+
+  private static void readTags(JsonReader reader, NewMetric metric) throws IOException {
+    metric.tagNames.clear();
+    metric.tagValues.clear();
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      metric.hasTags = false;
+      return;
+    }
+    metric.hasTags = true;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String tagName = reader.nextName();
+      if (metric.tagNames.contains(tagName)) {
+        throw new JsonSyntaxException("duplicate key: " + tagName);
+      }
+      metric.tagNames.add(tagName);
+      metric.tagValues.add(readString(reader));
+    }
+    reader.endObject();
+  }
+
+  /**
+   * Read the datapoints array, each datapoint is [timestamp, value] or [timestamp, value, type].
+   */
+  private static void readDataPoints(JsonReader reader, NewMetric metric) throws IOException {
+    metric.size = 0;
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return;
+    }
+    reader.beginArray();
+    while (reader.hasNext()) {
+      int index = metric.nextDataPoint();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      reader.beginArray();
+      int arity = 0;
+      while (reader.hasNext()) {
+        switch (arity) {
+          case 0:
+            if (reader.peek() == JsonToken.NULL) {
+              reader.nextNull();
+            } else {
+              metric.timestamps[index] = readTimestamp(reader);
+              metric.hasTimestamp[index] = true;
+            }
+            break;
+          case 1:
+            byte kind = peekValueKind(reader);
+            if (kind == VALUE_COMPLEX) {
+              kind = skipComplexValue(reader);
+            } else {
+              metric.values[index] = readPrimitiveValue(reader, kind);
+            }
+            metric.valueKinds[index] = kind;
+            break;
+          case 2:
+            metric.types[index] = readString(reader);
+            break;
+          default:
+            reader.skipValue();
+        }
+        arity++;
+      }
+      reader.endArray();
+      metric.arities[index] = (byte) Math.min(arity, 3);
+    }
+    reader.endArray();
+  }
+
+  private static long readTimestamp(JsonReader reader) throws IOException {
+    JsonToken token = reader.peek();
+    if (token != JsonToken.NUMBER && token != JsonToken.STRING) {
+      throw new JsonSyntaxException("Invalid timestamp");
+    }
+    String literal = reader.nextString();
+    try {
+      return Long.parseLong(literal);
+    } catch (NumberFormatException e) {
+      if (token == JsonToken.STRING) {
+        throw e;
+      }
+      return new BigDecimal(literal).longValue();
+    }
+  }
+
+  private static byte peekValueKind(JsonReader reader) throws IOException {
+    switch (reader.peek()) {
+      case NULL:
+        return VALUE_NULL;
+      case NUMBER:
+        return VALUE_NUMBER;
+      case BOOLEAN:
+        return VALUE_BOOLEAN;
+      case STRING:
+        return VALUE_STRING;
+      default:
+        return VALUE_COMPLEX;
+    }
+  }
+
+  /**
+   * @return The literal of a primitive value, or null for JSON null
+   */
+  private static String readPrimitiveValue(JsonReader reader, byte kind) throws IOException {
+    switch (kind) {
+      case VALUE_NULL:
+        reader.nextNull();
+        return null;
+      case VALUE_BOOLEAN:
+        return Boolean.toString(reader.nextBoolean());
+      default:
+        return reader.nextString();
+    }
+  }
+
+  /**
+   * Skip an object or array value, which is not a valid datapoint value.
+   *
+   * @return VALUE_EMPTY_ARRAY for an empty array, otherwise VALUE_COMPLEX
+   */
+  private static byte skipComplexValue(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+      reader.beginArray();
+      boolean empty = !reader.hasNext();
+      while (reader.hasNext()) {
+        reader.skipValue();
+      }
+      reader.endArray();
+      return empty ? VALUE_EMPTY_ARRAY : VALUE_COMPLEX;
+    }
+    reader.skipValue();
+    return VALUE_COMPLEX;
   }
 
   /**
@@ -235,7 +560,7 @@ public class DataPointsParser {
    * @return Null if the datapoint has been correctly insert, otherwise, the errors in
    * ValidationErrors
    */
-  public ValidationErrors addDataPoint(String name, ImmutableSortedMap<String, String> tags,
+  public ValidationErrors addDataPoint(String name, SortedMap<String, String> tags,
       DataType type, Long timestamp, String value) throws SQLException {
     ValidationErrors validationErrors = new ValidationErrors();
     if (null == tags) {
@@ -244,28 +569,31 @@ public class DataPointsParser {
       return validationErrors;
     }
 
-    HashMap<Integer, String> orderTagKeyMap = MetricsManager.getMapping(name, tags);
+    addDataPoint(SeriesPathCache.getInstance().get(name, tags), name, type, timestamp, value);
+    return validationErrors;
+  }
 
+  /**
+   * Add a new datapoint of a series whose paths have already been resolved.
+   */
+  private void addDataPoint(SeriesPath seriesPath, String name, DataType type, long timestamp,
+      String value) {
     if (type.equals(DataType.STRING)) {
       value = String.format("\"%s\"", value);
     }
 
-    // Generate the path
-    String path = MetricsManager.generatePath(tags, orderTagKeyMap);
-
-    seriesPaths
-        .put(String.format("root.%s%s.%s", MetricsManager.getStorageGroupName(path), path, name),
-            type);
-    TimestampDevicePair tableMapKey = new TimestampDevicePair(timestamp, path);
-    if (tableMap.containsKey(tableMapKey)) {
-      tableMap.get(tableMapKey).put(name, value);
-    } else {
-      Map<String, String> metricValueMap = new HashMap<>();
-      metricValueMap.put(name, value);
+    seriesPaths.put(seriesPath.getSeries(), type);
+    TimestampDevicePair tableMapKey = new TimestampDevicePair(timestamp, seriesPath.getDevice());
+    Map<String, String> metricValueMap = tableMap.get(tableMapKey);
+    if (metricValueMap == null) {
+      metricValueMap = new HashMap<>();
       tableMap.put(tableMapKey, metricValueMap);
     }
+    metricValueMap.put(name, value);
+  }
 
-    return validationErrors;
+  SeriesPath resolveSeriesPath(String name, SortedMap<String, String> tags) {
+    return SeriesPathCache.getInstance().get(name, tags);
   }
 
   private boolean validateAndAddDataPoints(NewMetric metric, ValidationErrors errors, int count) {
@@ -278,119 +606,110 @@ public class DataPointsParser {
     }
 
     if (metric.getTimestamp() != null) {
-      Validator
-          .isNotNullOrEmpty(validationErrors, context.setAttribute("value"), metric.getValue());
-    } else if (metric.getValue() != null && !metric.getValue().isJsonNull()) {
+      isValueNotNullOrEmpty(validationErrors, context.setAttribute("value"), metric.valueKind,
+          metric.value);
+    } else if (metric.valueKind != VALUE_ABSENT && metric.valueKind != VALUE_NULL) {
       Validator
           .isNotNull(validationErrors, context.setAttribute("timestamp"), metric.getTimestamp());
     }
 
-    if (Validator
-        .isNotNull(validationErrors, context.setAttribute("tags count"), metric.getTags())) {
+    if (Validator.isNotNull(validationErrors, context.setAttribute("tags count"),
+        metric.hasTags ? metric.tagNames : null)) {
       if (Validator.isGreaterThanOrEqualTo(validationErrors, context.setAttribute("tags count"),
-          metric.getTags().size(), 1)) {
-        int tagCount = 0;
+          metric.tagNames.size(), 1)) {
         SubContext tagContext = new SubContext(context.setAttribute(null), "tag");
 
-        for (Map.Entry<String, String> entry : metric.getTags().entrySet()) {
+        for (int tagCount = 0; tagCount < metric.tagNames.size(); tagCount++) {
+          String tagName = metric.tagNames.get(tagCount);
+          String tagValue = metric.tagValues.get(tagCount);
           tagContext.setCount(tagCount);
           if (Validator.isNotNullOrEmpty(validationErrors, tagContext.setAttribute("name"),
-              entry.getKey())) {
-            tagContext.setName(entry.getKey());
-            Validator.isNotNullOrEmpty(validationErrors, tagContext, entry.getKey());
+              tagName)) {
+            tagContext.setName(tagName);
+            Validator.isNotNullOrEmpty(validationErrors, tagContext, tagName);
           }
           if (Validator.isNotNullOrEmpty(validationErrors, tagContext.setAttribute("value"),
-              entry.getValue())) {
-            Validator.isNotNullOrEmpty(validationErrors, tagContext, entry.getValue());
+              tagValue)) {
+            Validator.isNotNullOrEmpty(validationErrors, tagContext, tagValue);
           }
-
-          tagCount++;
         }
       }
     }
 
     if (!validationErrors.hasErrors()) {
-      ImmutableSortedMap<String, String> tags = ImmutableSortedMap.copyOf(metric.getTags());
+      // All the datapoints of the metric share the same series
+      SeriesPath seriesPath;
+      try {
+        seriesPath = resolveSeriesPath(metric.getName(), metric.getTags());
+      } catch (UncheckedIOException e) {
+        LOGGER.error("Resolve the series of metric {} failed.", metric.getName(), e);
+        validationErrors.addErrorMessage(context + " " + e.getMessage());
+        errors.add(validationErrors);
+        return false;
+      }
+      long oldestTimestamp = Long.MAX_VALUE;
 
-      if (metric.getTimestamp() != null && metric.getValue() != null) {
-        DataType type = null;
+      if (metric.getTimestamp() != null && metric.valueKind != VALUE_ABSENT) {
         try {
-          type = findType(metric.getValue());
+          DataType type = findType(metric.valueKind, metric.value);
+          addDataPoint(seriesPath, metric.getName(), type, metric.getTimestamp(), metric.value);
+          oldestTimestamp = metric.getTimestamp();
         } catch (ValidationException e) {
           validationErrors.addErrorMessage(context + " " + e.getMessage());
         }
-
-        try {
-          ValidationErrors tErrors = addDataPoint(metric.getName(), tags, type,
-              metric.getTimestamp(),
-              metric.getValue().getAsString());
-          if (null != tErrors) {
-            validationErrors.add(tErrors);
-          }
-        } catch (SQLException e) {
-          validationErrors.addErrorMessage(context + " " + e.getMessage());
-        }
       }
 
-      if (metric.getDatapoints() != null && metric.getDatapoints().length > 0) {
+      if (metric.size > 0) {
         int contextCount = 0;
         SubContext dataPointContext = new SubContext(context, "datapoints");
-        for (JsonElement[] dataPoint : metric.getDatapoints()) {
+        for (int i = 0; i < metric.size; i++) {
           dataPointContext.setCount(contextCount);
-          if (dataPoint.length < 1) {
+          if (metric.arities[i] < 1) {
             validationErrors.addErrorMessage(
                 dataPointContext.setAttribute("timestamp") + " cannot be null or empty.");
             continue;
-          } else if (dataPoint.length < 2) {
+          } else if (metric.arities[i] < 2) {
             validationErrors.addErrorMessage(
                 dataPointContext.setAttribute("value") + " cannot be null or empty.");
             continue;
           } else {
-            Long timestamp = null;
-            if (!dataPoint[0].isJsonNull()) {
-              timestamp = dataPoint[0].getAsLong();
-            }
-
-            if (!Validator
-                .isNotNull(validationErrors, dataPointContext.setAttribute("timestamp"),
-                    timestamp)) {
+            if (!Validator.isNotNull(validationErrors, dataPointContext.setAttribute("timestamp"),
+                metric.hasTimestamp[i] ? metric.timestamps[i] : null)) {
               continue;
             }
 
             DataType type = null;
-            if (dataPoint.length > 2) {
-              type = toEnumType(dataPoint[2].getAsString());
+            if (metric.arities[i] > 2 && metric.types[i] != null) {
+              type = toEnumType(metric.types[i]);
             }
 
-            if (!Validator
-                .isNotNullOrEmpty(validationErrors, dataPointContext.setAttribute("value"),
-                    dataPoint[1])) {
+            if (!isValueNotNullOrEmpty(validationErrors, dataPointContext.setAttribute("value"),
+                metric.valueKinds[i], metric.values[i])) {
               continue;
             }
 
-            if (type == null) {
+            if (type == null || metric.valueKinds[i] >= VALUE_EMPTY_ARRAY) {
               try {
-                type = findType(dataPoint[1]);
+                type = findType(metric.valueKinds[i], metric.values[i]);
               } catch (ValidationException e) {
                 validationErrors.addErrorMessage(context + " " + e.getMessage());
                 continue;
               }
             }
 
-            try {
-              ValidationErrors tErrors = addDataPoint(metric.getName(), tags, type, timestamp,
-                  dataPoint[1].getAsString());
-              if (null != tErrors) {
-                validationErrors.add(tErrors);
-              }
-            } catch (SQLException e) {
-              validationErrors.addErrorMessage(context + " " + e.getMessage());
-            }
+            addDataPoint(seriesPath, metric.getName(), type, metric.timestamps[i],
+                metric.values[i]);
+            oldestTimestamp = Math.min(oldestTimestamp, metric.timestamps[i]);
 
           }
           contextCount++;
         }
       }
+
+      if (QueryResultCache.isEnabled()
+          && oldestTimestamp < System.currentTimeMillis() - config.QUERY_CACHE_SETTLE) {
+        lateWrites.add(new LateWrite(metric.getName(), metric.getTags(), oldestTimestamp));
+      }
     }
 
     errors.add(validationErrors);
@@ -398,6 +717,34 @@ public class DataPointsParser {
     return !validationErrors.hasErrors();
   }
 
+  /**
+   * The same checks as Validator#isNotNullOrEmpty(ValidationErrors, Object, JsonElement), on a
+   * decoded value.
+   */
+  private static boolean isValueNotNullOrEmpty(ValidationErrors validationErrors, Object name,
+      byte kind, String value) {
+    if (kind == VALUE_ABSENT) {
+      validationErrors.addErrorMessage(name + " may not be null.");
+      return false;
+    }
+    if (kind == VALUE_NULL) {
+      validationErrors.addErrorMessage(name + " may not be empty.");
+      return false;
+    }
+    if (kind == VALUE_EMPTY_ARRAY) {
+      validationErrors.addErrorMessage(name + " may not be an empty array.");
+      return false;
+    }
+    if (kind == VALUE_COMPLEX) {
+      return true;
+    }
+    if (value.isEmpty()) {
+      validationErrors.addErrorMessage(name + " may not be empty.");
+      return false;
+    }
+    return true;
+  }
+
   private DataType toEnumType(String s) {
     switch (s) {
       case "string":
@@ -411,17 +758,13 @@ public class DataPointsParser {
     }
   }
 
-  private DataType findType(JsonElement value) throws ValidationException {
-    if (!value.isJsonPrimitive()) {
+  private DataType findType(byte kind, String value) throws ValidationException {
+    if (kind >= VALUE_EMPTY_ARRAY || kind == VALUE_NULL || kind == VALUE_ABSENT) {
       throw new ValidationException("value is an invalid type");
     }
 
-    JsonPrimitive primitiveValue = (JsonPrimitive) value;
-    if (primitiveValue.isNumber() || (primitiveValue.isString() && Util
-        .isNumber(value.getAsString()))) {
-      String v = value.getAsString();
-
-      if (!v.contains(".")) {
+    if (kind == VALUE_NUMBER || (kind == VALUE_STRING && Util.isNumber(value))) {
+      if (!value.contains(".")) {
         return DataType.LONG;
       } else {
         return DataType.DOUBLE;
@@ -522,16 +865,48 @@ public class DataPointsParser {
     }
   }
 
+  /**
+   * The oldest datapoint written to a series.
+   */
+  private static class LateWrite {
+
+    private final String name;
+    private final SortedMap<String, String> tags;
+    private final long timestamp;
+
+    private LateWrite(String name, SortedMap<String, String> tags, long timestamp) {
+      this.name = name;
+      this.tags = tags;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /**
+   * A metric decoded from the request. The datapoints are stored column by column, the value of a
+   * datapoint is kept as its JSON literal together with its kind.
+   */
   private static class NewMetric {
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private String name;
     private Long timestamp = null;
     private Long time = null;
-    private JsonElement value;
-    private Map<String, String> tags;
-    private JsonElement[][] datapoints;
+    private byte valueKind = VALUE_ABSENT;
+    private String value;
+    private boolean hasTags = false;
+    private final List<String> tagNames = new ArrayList<>();
+    private final List<String> tagValues = new ArrayList<>();
     private int ttl = 0;
 
+    private int size = 0;
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private boolean[] hasTimestamp = new boolean[INITIAL_CAPACITY];
+    private byte[] arities = new byte[INITIAL_CAPACITY];
+    private byte[] valueKinds = new byte[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+    private String[] types = new String[INITIAL_CAPACITY];
+
     public String getName() {
       return name;
     }
@@ -544,21 +919,40 @@ public class DataPointsParser {
       }
     }
 
-    public JsonElement getValue() {
-      return value;
-    }
-
-    public Map<String, String> getTags() {
+    SortedMap<String, String> getTags() {
+      SortedMap<String, String> tags = new TreeMap<>();
+      for (int i = 0; i < tagNames.size(); i++) {
+        tags.put(tagNames.get(i), tagValues.get(i));
+      }
       return tags;
     }
 
-    JsonElement[][] getDatapoints() {
-      return datapoints;
-    }
-
     public int getTtl() {
       return ttl;
     }
+
+    /**
+     * Append an empty datapoint.
+     *
+     * @return The index of the datapoint
+     */
+    private int nextDataPoint() {
+      if (size == timestamps.length) {
+        int capacity = size * 2;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        hasTimestamp = Arrays.copyOf(hasTimestamp, capacity);
+        arities = Arrays.copyOf(arities, capacity);
+        valueKinds = Arrays.copyOf(valueKinds, capacity);
+        values = Arrays.copyOf(values, capacity);
+        types = Arrays.copyOf(types, capacity);
+      }
+      hasTimestamp[size] = false;
+      arities[size] = 0;
+      valueKinds[size] = VALUE_ABSENT;
+      values[size] = null;
+      types[size] = null;
+      return size++;
+    }
   }
 
 }
@@ -4,12 +4,10 @@ public class TimestampDevicePair {
 
   private long timestamp;
   private String device;
-  private String key;
 
   public TimestampDevicePair(long timestamp, String device) {
     this.timestamp = timestamp;
     this.device = device;
-    this.key = timestamp + device;
   }
 
   public long getTimestamp() {
@@ -34,7 +32,7 @@ public class TimestampDevicePair {
 
   @Override
   public int hashCode() {
-    return key.hashCode();
+    return 31 * Long.hashCode(timestamp) + device.hashCode();
   }
 
 }
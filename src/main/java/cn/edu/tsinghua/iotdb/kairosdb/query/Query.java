@@ -29,6 +29,11 @@ public class Query {
   @SerializedName("time_zone")
   private String timeZone;
 
+  // The deadline of the query in ms, QUERY_TIMEOUT if it is not set
+  @Min(0)
+  @SerializedName("query_timeout")
+  private Long queryTimeout;
+
   @SerializedName("metrics")
   private List<QueryMetric> queryMetrics;
 
@@ -68,6 +73,10 @@ public class Query {
     return timeZone;
   }
 
+  public Long getQueryTimeout() {
+    return queryTimeout;
+  }
+
   List<QueryMetric> getQueryMetrics() {
     return queryMetrics;
   }
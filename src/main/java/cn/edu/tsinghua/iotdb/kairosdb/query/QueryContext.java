@@ -0,0 +1,122 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The deadline and the cancellation of a query. The IoTDB statements of its workers and its
+ * sub-queries submitted to the worker pool are registered, so that cancelling the query, on its
+ * deadline or when its client is gone, aborts them instead of letting them run to their end.
+ */
+public class QueryContext {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryContext.class);
+
+  // Long.MAX_VALUE if the query has no deadline
+  private final long deadline;
+  private volatile boolean cancelled = false;
+  private final Queue<Statement> statements = new ConcurrentLinkedQueue<>();
+  private final Queue<Future<?>> futures = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param timeout The time the query may run for in ms, 0 for no deadline
+   */
+  public QueryContext(long timeout) {
+    deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return true if the query has been cancelled or has reached its deadline, its workers should
+   * then stop reading datapoints
+   */
+  public boolean isCancelled() {
+    return cancelled || System.currentTimeMillis() >= deadline;
+  }
+
+  /**
+   * @return The deadline in ms since the epoch, Long.MAX_VALUE if the query has no deadline
+   */
+  long getDeadline() {
+    return deadline;
+  }
+
+  public long getRemainingMillis() {
+    if (deadline == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(deadline - System.currentTimeMillis(), 0);
+  }
+
+  void register(Statement statement) {
+    statements.add(statement);
+    if (cancelled) {
+      cancel(statement);
+    }
+  }
+
+  void register(Future<?> future) {
+    futures.add(future);
+    if (cancelled) {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Wait for a sub-query until the deadline of the query.
+   *
+   * @throws QueryTimeoutException if the deadline is reached, the query is then cancelled
+   */
+  <T> T get(Future<T> future)
+      throws InterruptedException, ExecutionException, QueryTimeoutException {
+    try {
+      return future.get(getRemainingMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | CancellationException e) {
+      cancel();
+      throw new QueryTimeoutException("The query exceeded its deadline");
+    }
+  }
+
+  /**
+   * Interrupt the sub-queries and abort the IoTDB statements of the query.
+   */
+  public void cancel() {
+    if (cancelled) {
+      return;
+    }
+    cancelled = true;
+    Future<?> future;
+    while ((future = futures.poll()) != null) {
+      future.cancel(true);
+    }
+    Statement statement;
+    while ((statement = statements.poll()) != null) {
+      cancel(statement);
+    }
+  }
+
+  private static void cancel(Statement statement) {
+    try {
+      if (statement.isClosed()) {
+        return;
+      }
+      statement.cancel();
+    } catch (SQLException e) {
+      LOGGER.debug("Can not cancel the statement, close it instead", e);
+    }
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      LOGGER.warn("Can not close the statement of a cancelled query", e);
+    }
+  }
+
+}
@@ -4,25 +4,23 @@ import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBConnectionPool;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.MetricsManager;
-import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.TimeUnitDeserializer;
 import cn.edu.tsinghua.iotdb.kairosdb.profile.Measurement;
 import cn.edu.tsinghua.iotdb.kairosdb.profile.Measurement.Profile;
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregator;
-import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorAlignable;
-import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorDeserializer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorPipeline;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorRanged;
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorType;
-import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBy;
-import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByDeserializer;
-import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBySerializer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByType;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.DeleteSqlBuilder;
 import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.QuerySqlBuilder;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -35,12 +33,10 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.StreamingOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,12 +44,6 @@ public class QueryExecutor {
 
   public static final Logger LOGGER = LoggerFactory.getLogger(QueryExecutor.class);
   private static final Config config = ConfigDescriptor.getInstance().getConfig();
-  private static final ExecutorService queryWorkerPool = new ThreadPoolExecutor(
-      config.CORE_POOL_SIZE,
-      config.MAX_POOL_SIZE,
-      300L, TimeUnit.SECONDS,
-      new LinkedBlockingQueue<>());
-
   private Query query;
 
   private Long startTime;
@@ -64,131 +54,346 @@ public class QueryExecutor {
 
   private Map<Integer, List<String>> tmpTags;
 
+  private final QueryContext context;
+
+  // The admission of the query by the QueryScheduler, its sub-queries are submitted with it
+  private QueryScheduler.Ticket ticket;
+
   public QueryExecutor(Query query) {
+    this(query, query.getQueryTimeout() == null ? config.QUERY_TIMEOUT : query.getQueryTimeout());
+  }
+
+  /**
+   * @param timeout The time the query may run for in ms, 0 for no deadline, e.g. for a roll-up
+   * query
+   */
+  public QueryExecutor(Query query, long timeout) {
     this.query = query;
     this.startTime = query.getStartTimestamp();
     this.endTime = query.getEndTimestamp();
+    this.context = new QueryContext(timeout);
   }
 
-  public String executeV2() {
+  /**
+   * @throws QueryTimeoutException if the query exceeds its deadline and RETURN_PARTIAL_RESULTS is
+   * false, the query is then cancelled
+   * @throws QueryRejectedException if the query workers are saturated
+   */
+  public String executeV2() throws QueryTimeoutException, QueryRejectedException {
+    ticket = QueryScheduler.getInstance().admit(estimatePoints());
+    try {
+      return queryV2();
+    } finally {
+      ticket.release();
+    }
+  }
+
+  /**
+   * {@link #executeV2()}, whose result is shared with the identical queries running at the same
+   * time, see {@link QuerySingleFlight}.
+   *
+   * @param json The JSON of the query, which identifies it
+   */
+  public String executeShared(String json) throws QueryTimeoutException, QueryRejectedException {
+    String key = QuerySingleFlight.createKey(json);
+    if (key == null) {
+      return executeV2();
+    }
+    return QuerySingleFlight.getInstance().execute(key, context, this::executeV2);
+  }
+
+  private String queryV2() throws QueryTimeoutException {
     StringBuilder queryResultStr = new StringBuilder();
+    List<PlannedMetric> plannedMetrics = new ArrayList<>();
     int queryMetricNum = query.getQueryMetrics().size();
-    CountDownLatch queryLatch = new CountDownLatch(queryMetricNum);
-    ConcurrentHashMap<String, StringBuilder> queryMetricJsons = new ConcurrentHashMap<>();
-    List<QueryMetric> newQueryMetricList = Collections.synchronizedList(new ArrayList<>());
-    List<ConcurrentHashMap<String, StringBuilder>> qmjList = Collections
-        .synchronizedList(new ArrayList<>());
-    List<MetricResult> metricResultList = Collections.synchronizedList(new ArrayList<>());
-    if (query.getQueryMetrics().size() == 1 && query.getQueryMetrics().get(0).getTags().get(
-        config.SPECIAL_TAG) != null && query.getQueryMetrics().get(0).getTags().get(
-        config.SPECIAL_TAG).size() > 1) {
-      QueryMetric queryMetric = query.getQueryMetrics().get(0);
-      List<String> deviceList = queryMetric.getTags().get(config.SPECIAL_TAG);
-      for (String device : deviceList) {
-        ConcurrentHashMap<String, StringBuilder> queryMetricJson1 = new ConcurrentHashMap<>();
-        qmjList.add(queryMetricJson1);
-        QueryMetric queryMetric1 = new QueryMetric();
-        queryMetric1.setName(queryMetric.getName());
-        queryMetric1.setLimit(queryMetric.getLimit());
-        queryMetric1.setAggregators(queryMetric.getAggregators());
-        queryMetric1.setGroupBy(queryMetric.getGroupBy());
-        List<String> queryMetric1List = new ArrayList<>();
-        queryMetric1List.add(device);
-        HashMap<String, List<String>> map = new HashMap<>();
-        map.put(config.SPECIAL_TAG, queryMetric1List);
-        queryMetric1.setTags(map);
-        newQueryMetricList.add(queryMetric1);
+    for (QueryMetric metric : query.getQueryMetrics()) {
+      plannedMetrics.add(submit(metric, queryMetricNum));
+    }
+    Gson gson = QueryWorker.createGson();
+    queryResultStr.append("{\"queries\":[");
+    for (int i = 0; i < queryMetricNum; i++) {
+      if (i > 0) {
+        queryResultStr.append(",");
       }
-      int lsize = newQueryMetricList.size();
-      queryLatch = new CountDownLatch(lsize);
-      for (int i = 0; i < lsize; i++) {
-        metricResultList.add(new MetricResult());
-        queryWorkerPool.submit(new QueryWorker(1, queryLatch, qmjList.get(i),
-            newQueryMetricList.get(i),
-            metricResultList.get(i),
-            startTime,
-            endTime));
+      MetricResult result;
+      try {
+        result = plannedMetrics.get(i).get();
+      } catch (QueryTimeoutException e) {
+        if (!config.RETURN_PARTIAL_RESULTS) {
+          throw e;
+        }
+        LOGGER.warn("Query of {} exceeded its deadline", plannedMetrics.get(i).metric.getName());
+        result = getVoidResult(plannedMetrics.get(i).metric);
       }
-    } else {
-      newQueryMetricList = query.getQueryMetrics();
-      for (QueryMetric metric : newQueryMetricList) {
-        queryWorkerPool
-            .submit(new QueryWorker(queryMetricNum, queryLatch, queryMetricJsons, metric,
-                null,
-                startTime,
-                endTime));
+      try {
+        gson.toJson(result, queryResultStr);
+      } catch (Exception e) {
+        LOGGER.error("Make JSON error", e);
       }
     }
+    queryResultStr.append("]}");
+    LOGGER.info("query string size:{}", queryResultStr.length());
+    return queryResultStr.toString();
+  }
 
+  /**
+   * The streaming counterpart of {@link #executeV2()}: the result is written to the response as
+   * it is produced, in the order of the query metrics, instead of being built as a String.
+   * The metrics without aggregator are written row by row as they are read from IoTDB, the others
+   * are queried concurrently beforehand and each one is written once it is complete.
+   * As the response has already been partly sent, a metric which is not complete on the deadline
+   * is written as an empty result. The query is cancelled when its client is gone.
+   *
+   * <p>The query is admitted before the response starts, so that a saturated scheduler is still
+   * answered with 503. As the entity may never be written, e.g. if the client is gone before,
+   * the caller must call {@link #release()} once the response is completed.
+   *
+   * @return The entity of the response
+   * @throws QueryRejectedException if the query workers are saturated
+   */
+  public StreamingOutput executeStreaming() throws QueryRejectedException {
+    ticket = QueryScheduler.getInstance().admit(estimatePoints());
+    return output -> {
+      try {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+            new OutputStreamWriter(output, StandardCharsets.UTF_8),
+            config.QUERY_STREAM_BUFFER_SIZE));
+        Gson gson = QueryWorker.createGson();
+        writer.beginObject().name("queries").beginArray();
+        int queryMetricNum = query.getQueryMetrics().size();
+        List<QueryWorker> workers = new ArrayList<>(queryMetricNum);
+        List<PlannedMetric> plannedMetrics = new ArrayList<>(queryMetricNum);
+        for (QueryMetric metric : query.getQueryMetrics()) {
+          QueryWorker worker = new QueryWorker(queryMetricNum, metric, startTime, endTime);
+          worker.setContext(context);
+          workers.add(worker);
+          plannedMetrics.add(worker.isStreamable() ? null : submit(metric, queryMetricNum));
+        }
+        for (int i = 0; i < queryMetricNum; i++) {
+          if (plannedMetrics.get(i) == null) {
+            workers.get(i).streamTo(writer, gson);
+          } else {
+            MetricResult result;
+            try {
+              result = plannedMetrics.get(i).get();
+            } catch (QueryTimeoutException e) {
+              LOGGER.warn("Query of {} exceeded its deadline",
+                  plannedMetrics.get(i).metric.getName());
+              result = getVoidResult(plannedMetrics.get(i).metric);
+            }
+            gson.toJson(result, MetricResult.class, writer);
+          }
+          writer.flush();
+        }
+        writer.endArray().endObject();
+        writer.flush();
+      } finally {
+        // e.g. the client is gone, the sub-queries still running are of no use
+        release();
+      }
+    };
+  }
+
+  /**
+   * Cancel the query if it is still running and give its admission back. It may be called more
+   * than once.
+   */
+  public void release() {
+    context.cancel();
+    if (ticket != null) {
+      ticket.release();
+    }
+  }
+
+  /**
+   * Submit the query of a metric to the worker pool. A metric whose raw datapoints are read is
+   * split by QueryPlanner into at most QUERY_PARALLELISM sub-queries on the values of a tag, and
+   * its time range into ranges of TIME_EDGE. The sub-queries are spread over the IoTDB instances
+   * and share the POINT_EDGE limit of the metric. If the QueryResultCache is enabled, only the
+   * datapoints after the cached ones are read.
+   */
+  private PlannedMetric submit(QueryMetric metric, int metricCount) {
+    QueryWorker worker = new QueryWorker(metricCount, metric, startTime, endTime);
+    worker.setContext(context);
+    PlannedMetric plannedMetric = new PlannedMetric(metric, worker);
+    List<QueryMetric> subMetrics = Collections.singletonList(metric);
+    List<long[]> timeRanges = Collections.singletonList(new long[]{startTime, endTime});
+    long cachedPoints = 0;
+    if (worker.readsDatapoints()) {
+      long readStart = startTime;
+      if (QueryResultCache.isEnabled()) {
+        plannedMetric.cacheLookup = QueryResultCache.getInstance()
+            .lookup(metric, startTime, endTime);
+        readStart = plannedMetric.cacheLookup.getResumeTime();
+        if (plannedMetric.cacheLookup.getValues() != null) {
+          cachedPoints = plannedMetric.cacheLookup.getValues().getDatapoints().size();
+        }
+      }
+      subMetrics = QueryPlanner.split(metric, config.QUERY_PARALLELISM);
+      timeRanges = readStart > endTime ? Collections.emptyList()
+          : QueryPlanner.splitTimeRange(readStart, endTime);
+    }
+    // the datapoints of a cached metric are needed before they are aggregated
+    if (subMetrics.size() == 1 && timeRanges.size() == 1 && plannedMetric.cacheLookup == null) {
+      plannedMetric.result = ticket.submit(worker::query);
+      context.register(plannedMetric.result);
+      return plannedMetric;
+    }
+    AtomicLong pointBudget = new AtomicLong(
+        Math.max(config.POINT_EDGE / metricCount - cachedPoints, 0));
+    plannedMetric.parts = new ArrayList<>(timeRanges.size());
+    plannedMetric.workers = new ArrayList<>(timeRanges.size() * subMetrics.size());
+    int replica = 0;
+    double range = Math.max(endTime - startTime, 1);
+    for (long[] timeRange : timeRanges) {
+      List<Future<MetricValueResult>> rangeParts = new ArrayList<>(subMetrics.size());
+      // a sub-query downsamples to the part of the metric its time range and its series make
+      double pointShare = Math.max(timeRange[1] - timeRange[0], 1) / range / subMetrics.size();
+      for (QueryMetric subMetric : subMetrics) {
+        QueryWorker subWorker = new QueryWorker(metricCount, subMetric, timeRange[0],
+            timeRange[1]);
+        subWorker.setReplica(replica++ % config.URL_LIST.size());
+        subWorker.setPointBudget(pointBudget, pointShare);
+        subWorker.setContext(context);
+        plannedMetric.workers.add(subWorker);
+        Future<MetricValueResult> part = ticket.submit(subWorker::queryDatapoints);
+        context.register(part);
+        rangeParts.add(part);
+      }
+      plannedMetric.parts.add(rangeParts);
+    }
+    return plannedMetric;
+  }
+
+  private MetricResult getResult(Future<MetricResult> future, QueryMetric metric)
+      throws QueryTimeoutException {
     try {
-      // wait for all clients finish test
-      queryLatch.await();
-      LOGGER.debug("All Query Worker finished");
+      return context.get(future);
     } catch (InterruptedException e) {
-      LOGGER.error("Exception occurred during waiting for all threads finish.", e);
       Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted while waiting for the query of {}", metric.getName(), e);
+    } catch (ExecutionException e) {
+      LOGGER.error("Query of {} failed because", metric.getName(), e.getCause());
     }
-    if (newQueryMetricList != query.getQueryMetrics()) {
-      MetricResult metricResult = null;
-      for (MetricResult m : metricResultList) {
-        if (metricResult == null) {
-          metricResult = m;
-          if (metricResult.getResults().size() == 0) {
-            metricResult.getResults()
-                .add(new MetricValueResult(query.getQueryMetrics().get(0).getName()));
-            metricResult.getResults().get(0).setGroupBy(null);
-          }
-        } else {
-          if (m.getResults().size() > 0) {
-            int totalSize = metricResult.getResults().get(0).getDatapoints().size();
-            int thisSize = m.getResults().get(0).getDatapoints().size();
-            if ((totalSize + thisSize) < config.POINT_EDGE) {
-              metricResult.getResults().get(0).getDatapoints()
-                  .addAll(m.getResults().get(0).getDatapoints());
-            }
-          }
-        }
+    return getVoidResult(metric);
+  }
+
+  private MetricResult getVoidResult(QueryMetric metric) {
+    MetricResult metricResult = new MetricResult();
+    metricResult.addResult(new MetricValueResult(metric.getName()));
+    metricResult.getResults().get(0).setGroupBy(null);
+    return metricResult;
+  }
+
+  /**
+   * The query of a metric, either run by one worker or split into sub-queries whose datapoints are
+   * merged and aggregated by the worker of the metric.
+   */
+  private class PlannedMetric {
+
+    private final QueryMetric metric;
+    private final QueryWorker worker;
+    private Future<MetricResult> result;
+    // The sub-queries of each time range
+    private List<List<Future<MetricValueResult>>> parts;
+    private List<QueryWorker> workers;
+    // The lookup of the metric in the QueryResultCache, null if it is not cached
+    private QueryResultCache.Lookup cacheLookup;
+
+    private PlannedMetric(QueryMetric metric, QueryWorker worker) {
+      this.metric = metric;
+      this.worker = worker;
+    }
+
+    private MetricResult get() throws QueryTimeoutException {
+      if (result != null) {
+        return getResult(result, metric);
+      }
+      List<MetricValueResult> values = new ArrayList<>(parts.size() + 1);
+      if (cacheLookup != null && cacheLookup.getValues() != null) {
+        values.add(cacheLookup.getValues());
       }
-      long sampleSize = 0;
       try {
-        if (metricResult.getResults() != null && metricResult.getResults().size() > 0) {
-          sampleSize = metricResult.getResults().get(0).getDatapoints().size();
+        for (List<Future<MetricValueResult>> rangeParts : parts) {
+          List<MetricValueResult> rangeValues = new ArrayList<>(rangeParts.size());
+          for (Future<MetricValueResult> part : rangeParts) {
+            rangeValues.add(context.get(part));
+          }
+          values.add(QueryPlanner.merge(metric.getName(), rangeValues));
         }
-        Gson gson = new GsonBuilder()
-            .registerTypeAdapter(QueryMetric.class, new QueryMetric())
-            .registerTypeAdapter(GroupBy.class, new GroupByDeserializer())
-            .registerTypeAdapter(GroupBy.class, new GroupBySerializer())
-            .registerTypeAdapter(QueryAggregator.class, new QueryAggregatorDeserializer())
-            .registerTypeAdapter(
-                cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit.class, new TimeUnitDeserializer())
-            .registerTypeAdapter(QueryDataPoint.class, new QueryDataPoint())
-            .create();
-        metricResult.setSampleSize(sampleSize);
-        LOGGER.info("sampleSize: {}", sampleSize);
-        metricResult.getResults().get(0).setTags(query.getQueryMetrics().get(0).getTags());
-        queryResultStr.append("{\"queries\":[");
-        gson.toJson(metricResult, queryResultStr);
-        queryResultStr.append("]}");
-      } catch (Exception e) {
-        LOGGER.error("Make JSON error", e);
+        // the time ranges are consecutive, so their datapoints are only concatenated
+        MetricValueResult merged = QueryPlanner.merge(metric.getName(), values);
+        if (cacheLookup != null && isComplete()) {
+          QueryResultCache.getInstance().put(cacheLookup, merged);
+        }
+        return worker.aggregate(merged);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.error("Interrupted while waiting for the query of {}", metric.getName(), e);
+      } catch (ExecutionException e) {
+        LOGGER.error("Query of {} failed because", metric.getName(), e.getCause());
+      } catch (QueryTimeoutException e) {
+        throw e;
+      } catch (QueryException e) {
+        LOGGER.error("Aggregation of {} failed because", metric.getName(), e);
       }
-    } else {
-      StringBuilder midMetricBuilder = new StringBuilder();
-      for (StringBuilder metricBuilder : queryMetricJsons.values()) {
-        midMetricBuilder.append(",").append(metricBuilder);
+      return getVoidResult(metric);
+    }
+
+    /**
+     * @return true if the sub-queries read all the datapoints of their time ranges
+     */
+    private boolean isComplete() {
+      if (context.isCancelled()) {
+        return false;
       }
-      midMetricBuilder.delete(0, 1);
-      queryResultStr.append("{\"queries\":[");
-      if (queryMetricNum > 0) {
-        queryResultStr.append(midMetricBuilder);
+      for (QueryWorker subWorker : workers) {
+        if (!subWorker.isComplete()) {
+          return false;
+        }
       }
-      queryResultStr.append("]}");
+      return true;
     }
-    LOGGER.info("query string size:{}", queryResultStr.length());
-    return queryResultStr.toString();
   }
 
+  private long estimatePoints() {
+    long points = 0;
+    int queryMetricNum = query.getQueryMetrics().size();
+    for (QueryMetric metric : query.getQueryMetrics()) {
+      points += QueryPlanner.estimatePoints(metric, startTime, endTime, queryMetricNum);
+    }
+    return points;
+  }
+
+  /**
+   * Query the metrics one after the other, as a roll-up query which the query workers take after
+   * the other queries. It waits to be admitted if the query workers are saturated.
+   *
+   * @throws QueryException if the query fails or is interrupted
+   */
   public QueryResult execute() throws QueryException {
+    try {
+      ticket = QueryScheduler.getInstance().admitRollup(estimatePoints());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueryException(e);
+    }
+    try {
+      return context.get(ticket.submit(this::executeMetrics));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueryException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof QueryException) {
+        throw (QueryException) e.getCause();
+      }
+      throw new QueryException(e.getCause());
+    } finally {
+      ticket.release();
+    }
+  }
+
+  private QueryResult executeMetrics() throws QueryException {
     QueryResult queryResult = new QueryResult();
     for (QueryMetric metric : query.getQueryMetrics()) {
       if (getMetricMapping(metric)) {
@@ -255,6 +460,7 @@ public class QueryExecutor {
             LOGGER.error(String.format("%s: %s", e.getClass().getName(), e.getMessage()));
           }
         }
+        QueryResultCache.getInstance().invalidateMetric(metric.getName());
       }
     }
   }
@@ -340,45 +546,18 @@ public class QueryExecutor {
       statement.execute(sql);
       ResultSet rs = statement.getResultSet();
       ResultSetMetaData metaData = rs.getMetaData();
-      int columnCount = metaData.getColumnCount();
-      boolean[] paths = new boolean[columnCount - 1];
+      ResultSetDecoder decoder = new ResultSetDecoder(rs);
       while (rs.next()) {
         if (config.ENABLE_PROFILER && isFirstNext) {
           Measurement.getInstance().add(Profile.FIRST_NEXT, System.nanoTime() - start);
           isFirstNext = false;
         }
-        long timestamp = rs.getLong(1);
-        for (int i = 2; i <= columnCount; i++) {
-          String value = rs.getString(i);
-          if (value == null || value.equals(DeleteSqlBuilder.NULL_STR) || value
-              .equals("2.147483646E9")) {
-            continue;
-          }
-          sampleSize++;
-          paths[i - 2] = true;
-          QueryDataPoint dataPoint = null;
-          switch (findType(value)) {
-            case Types.INTEGER:
-              int intValue = rs.getInt(i);
-              dataPoint = new QueryDataPoint(timestamp, intValue);
-              break;
-            case Types.DOUBLE:
-              double doubleValue = rs.getDouble(i);
-              dataPoint = new QueryDataPoint(timestamp, doubleValue);
-              break;
-            case Types.VARCHAR:
-              dataPoint = new QueryDataPoint(timestamp, value);
-              break;
-            default:
-              LOGGER.error("QueryExecutor.execute: invalid type");
-          }
-          metricValueResult.addDataPoint(dataPoint);
-        }
+        sampleSize += decoder.decodeRow(metricValueResult.getDatapoints());
       }
       if (config.ENABLE_PROFILER) {
         Measurement.getInstance().add(Profile.IOTDB_QUERY, System.nanoTime() - start);
       }
-      getTagValueFromPaths(metaData, paths);
+      getTagValueFromPaths(metaData, decoder.getColumnsWithValues());
 
       addBasicGroupByToResult(metaData, metricValueResult);
     } catch (SQLException e) {
@@ -436,35 +615,13 @@ public class QueryExecutor {
       throws QueryException {
 
     for (QueryAggregator aggregator : metric.getAggregators()) {
-      if (aggregator instanceof QueryAggregatorAlignable) {
-        ((QueryAggregatorAlignable) aggregator).setStartTimestamp(startTime);
-        ((QueryAggregatorAlignable) aggregator).setEndTimestamp(endTime);
+      if (aggregator instanceof QueryAggregatorRanged) {
+        ((QueryAggregatorRanged) aggregator).setStartTimestamp(startTime);
+        ((QueryAggregatorRanged) aggregator).setEndTimestamp(endTime);
       }
-      result = aggregator.doAggregate(result);
     }
 
-    return result;
-  }
-
-  private int findType(String string) {
-    if (isNumeric(string)) {
-      return Types.INTEGER;
-    } else {
-      if (string.contains(".")) {
-        return Types.DOUBLE;
-      } else {
-        return Types.VARCHAR;
-      }
-    }
-  }
-
-  private boolean isNumeric(String string) {
-    for (int i = 0; i < string.length(); i++) {
-      if (!Character.isDigit(string.charAt(i))) {
-        return false;
-      }
-    }
-    return true;
+    return QueryAggregatorPipeline.run(metric.getAggregators(), result);
   }
 
 }
@@ -0,0 +1,278 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregator;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorPipeline;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBy;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByBin;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByKind;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByTags;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByTime;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByType;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByValue;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes the group_by of a metric. The datapoints of its series are partitioned in a hash table
+ * keyed by the values of the grouped tags of their series, their time group, value group or bin
+ * and their type, each group then being aggregated in parallel as a MetricValueResult of its own,
+ * which lists its groups in group_by as KairosDB does.
+ */
+public class QueryGrouper {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  // The groups are aggregated apart from the query workers, which wait for them
+  private static final ExecutorService groupPool = new ThreadPoolExecutor(
+      config.QUERY_PARALLELISM,
+      config.QUERY_PARALLELISM,
+      300L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>());
+
+  private QueryGrouper() {
+  }
+
+  /**
+   * @return true if the metric is grouped by tags, time, value or bin, the grouping by type being
+   * done for every metric
+   */
+  public static boolean isGrouped(QueryMetric metric) {
+    if (metric.getGroupBy() == null) {
+      return false;
+    }
+    for (GroupBy groupBy : metric.getGroupBy()) {
+      if (groupBy != null && groupBy.getKind() != GroupByKind.TYPE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Group the datapoints of the series of a metric.
+   *
+   * @param series The datapoints of each series, with the values of its tags
+   * @param startTime The start time of the query, the time groups are counted from it
+   * @return The groups, in the order they are met, each one with the merged datapoints and the
+   * tags of its series
+   */
+  public static List<MetricValueResult> group(String name, List<MetricValueResult> series,
+      List<GroupBy> groupBys, long startTime) throws QueryException {
+    List<GroupBy> groupers = new ArrayList<>();
+    for (GroupBy groupBy : groupBys) {
+      if (groupBy != null && groupBy.getKind() != GroupByKind.TYPE) {
+        groupers.add(groupBy);
+      }
+    }
+    int size = groupers.size();
+    long[] ranges = new long[size];
+    double[][] bins = new double[size][];
+    for (int g = 0; g < size; g++) {
+      GroupBy grouper = groupers.get(g);
+      switch (grouper.getKind()) {
+        case TIME:
+          GroupByTime groupByTime = (GroupByTime) grouper;
+          ranges[g] = groupByTime.getRangeSize().toMillisecond();
+          if (ranges[g] <= 0 || groupByTime.getGroupCount() <= 0) {
+            throw new QueryException(
+                "Among grouping by time, range_size and group_count must be positive");
+          }
+          break;
+        case VALUE:
+          ranges[g] = ((GroupByValue) grouper).getRangeSize();
+          if (ranges[g] <= 0) {
+            throw new QueryException("Among grouping by value, range_size must be positive");
+          }
+          break;
+        case BIN:
+          bins[g] = ((GroupByBin) grouper).getBinValues();
+          break;
+        default:
+          break;
+      }
+    }
+
+    Map<List<Object>, Group> groups = new LinkedHashMap<>();
+    // The key of the current datapoint, copied when it starts a new group
+    List<Object> key = new ArrayList<>(size + 1);
+    for (int s = 0; s < series.size(); s++) {
+      MetricValueResult oneSeries = series.get(s);
+      DataPointBuffer points = oneSeries.getDatapoints();
+      // The tags of a series are the same for all of its datapoints
+      Object[] tagGroups = new Object[size];
+      for (int g = 0; g < size; g++) {
+        if (groupers.get(g).getKind() == GroupByKind.TAGS) {
+          tagGroups[g] = getTagGroup((GroupByTags) groupers.get(g), oneSeries);
+        }
+      }
+      for (int i = 0; i < points.size(); i++) {
+        boolean isText = points.getType(i) == Types.VARCHAR;
+        key.clear();
+        for (int g = 0; g < size; g++) {
+          switch (groupers.get(g).getKind()) {
+            case TAGS:
+              key.add(tagGroups[g]);
+              break;
+            case TIME:
+              key.add((int) (((points.getTimestamp(i) - startTime) / ranges[g])
+                  % ((GroupByTime) groupers.get(g)).getGroupCount()));
+              break;
+            case VALUE:
+              checkNumeric(isText, "value");
+              key.add((int) (points.getAsDouble(i) / ranges[g]));
+              break;
+            case BIN:
+              checkNumeric(isText, "bin");
+              key.add(getBinNumber(bins[g], points.getAsDouble(i)));
+              break;
+            default:
+              break;
+          }
+        }
+        key.add(isText);
+        Group group = groups.get(key);
+        if (group == null) {
+          List<Object> groupKey = new ArrayList<>(key);
+          group = new Group(toGroupBy(groupers, groupKey));
+          groups.put(groupKey, group);
+        }
+        group.getPart(s, oneSeries).getDatapoints().add(points, i);
+      }
+    }
+
+    List<MetricValueResult> results = new ArrayList<>(groups.size());
+    for (Group group : groups.values()) {
+      MetricValueResult result = QueryPlanner.merge(name, group.parts);
+      result.setGroupBy(group.groupBy);
+      results.add(result);
+    }
+    return results;
+  }
+
+  /**
+   * Apply the aggregators to each group, the groups being aggregated in parallel.
+   *
+   * @return The aggregated groups, in the order of the groups
+   */
+  public static MetricResult aggregate(List<MetricValueResult> groups,
+      List<QueryAggregator> aggregators) throws QueryException {
+    List<Future<MetricResult>> futures = new ArrayList<>(groups.size());
+    for (MetricValueResult group : groups) {
+      MetricResult groupResult = new MetricResult();
+      groupResult.addResult(group);
+      futures.add(groupPool.submit(() -> QueryAggregatorPipeline.run(aggregators, groupResult)));
+    }
+    MetricResult result = new MetricResult();
+    for (Future<MetricResult> future : futures) {
+      try {
+        result.getResults().addAll(future.get().getResults());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new QueryException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof QueryException) {
+          throw (QueryException) e.getCause();
+        }
+        throw new QueryException(e.getCause());
+      }
+    }
+    return result;
+  }
+
+  private static Map<String, String> getTagGroup(GroupByTags groupByTags,
+      MetricValueResult series) {
+    Map<String, String> group = new LinkedHashMap<>();
+    for (String tag : groupByTags.getTags()) {
+      List<String> values = series.getTags().get(tag);
+      group.put(tag, values == null || values.isEmpty() ? "" : values.get(0));
+    }
+    return group;
+  }
+
+  /**
+   * @return The index of the first bin whose bound is greater than the value, or the number of
+   * bins if there is none
+   */
+  private static int getBinNumber(double[] bins, double value) {
+    for (int i = 0; i < bins.length; i++) {
+      if (value < bins[i]) {
+        return i;
+      }
+    }
+    return bins.length;
+  }
+
+  private static void checkNumeric(boolean isText, String name) throws QueryException {
+    if (isText) {
+      throw new QueryException(
+          "Among grouping by " + name + ", the datapoints must be numbers, not text");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<GroupBy> toGroupBy(List<GroupBy> groupers, List<Object> key) {
+    List<GroupBy> groupBy = new LinkedList<>();
+    for (int g = 0; g < groupers.size(); g++) {
+      GroupBy grouper = groupers.get(g);
+      switch (grouper.getKind()) {
+        case TAGS:
+          groupBy.add(((GroupByTags) grouper).withGroup((Map<String, String>) key.get(g)));
+          break;
+        case TIME:
+          groupBy.add(((GroupByTime) grouper).withGroupNumber((Integer) key.get(g)));
+          break;
+        case VALUE:
+          groupBy.add(((GroupByValue) grouper).withGroupNumber((Integer) key.get(g)));
+          break;
+        case BIN:
+          groupBy.add(((GroupByBin) grouper).withBinNumber((Integer) key.get(g)));
+          break;
+        default:
+          break;
+      }
+    }
+    boolean isText = (Boolean) key.get(groupers.size());
+    groupBy.add(isText ? GroupByType.getTextTypeInstance() : GroupByType.getNumberTypeInstance());
+    return groupBy;
+  }
+
+  /**
+   * The datapoints of a group, kept apart by series so that they can be merged by timestamp.
+   */
+  private static class Group {
+
+    private final List<GroupBy> groupBy;
+    private final List<MetricValueResult> parts = new ArrayList<>();
+    private int lastSeries = -1;
+
+    private Group(List<GroupBy> groupBy) {
+      this.groupBy = groupBy;
+    }
+
+    private MetricValueResult getPart(int seriesIndex, MetricValueResult series) {
+      if (seriesIndex != lastSeries) {
+        MetricValueResult part = new MetricValueResult(series.getName());
+        part.setTags(new HashMap<>(series.getTags()));
+        parts.add(part);
+        lastSeries = seriesIndex;
+      }
+      return parts.get(parts.size() - 1);
+    }
+  }
+
+}
@@ -0,0 +1,192 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the query of a metric into sub-queries which read its datapoints in parallel, each one on
+ * a group of the values of one of its tags and on a part of its time range, and merges their
+ * datapoints back in timestamp order.
+ * The aggregators of the metric are then run once on the merged datapoints.
+ */
+public class QueryPlanner {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private QueryPlanner() {
+  }
+
+  /**
+   * The metric is split on SPECIAL_TAG if it has several values, otherwise on the tag which has
+   * the most values.
+   *
+   * @param maxParts The max number of sub-queries
+   * @return The sub-queries of the metric, or the metric itself if none of its tags has several
+   * values
+   */
+  public static List<QueryMetric> split(QueryMetric metric, int maxParts) {
+    String splitTag = getSplitTag(metric);
+    if (splitTag == null || maxParts <= 1) {
+      return Collections.singletonList(metric);
+    }
+    List<String> values = metric.getTags().get(splitTag);
+    int parts = Math.min(maxParts, values.size());
+    List<QueryMetric> subMetrics = new ArrayList<>(parts);
+    for (int i = 0; i < parts; i++) {
+      QueryMetric subMetric = new QueryMetric();
+      subMetric.setName(metric.getName());
+      subMetric.setLimit(metric.getLimit());
+      subMetric.setAggregators(metric.getAggregators());
+      subMetric.setGroupBy(metric.getGroupBy());
+      Map<String, List<String>> tags = new HashMap<>(metric.getTags());
+      tags.put(splitTag, new ArrayList<>(
+          values.subList(i * values.size() / parts, (i + 1) * values.size() / parts)));
+      subMetric.setTags(tags);
+      subMetrics.add(subMetric);
+    }
+    return subMetrics;
+  }
+
+  /**
+   * Split a time range longer than TIME_EDGE into consecutive ranges of TIME_EDGE, or of a longer
+   * duration if it would make more than MAX_TIME_CHUNKS ranges.
+   *
+   * @return The [start, end] ranges, the bounds included
+   */
+  public static List<long[]> splitTimeRange(long startTime, long endTime) {
+    long range = endTime - startTime;
+    if (range <= config.TIME_EDGE || config.MAX_TIME_CHUNKS <= 1) {
+      return Collections.singletonList(new long[]{startTime, endTime});
+    }
+    long chunk = Math.max(config.TIME_EDGE, range / config.MAX_TIME_CHUNKS + 1);
+    List<long[]> ranges = new ArrayList<>();
+    for (long start = startTime; start <= endTime; start += chunk) {
+      ranges.add(new long[]{start, Math.min(start + chunk - 1, endTime)});
+    }
+    return ranges;
+  }
+
+  /**
+   * Estimate the number of datapoints the query of a metric reads: its series, as many as the
+   * combinations of the values of its tags, have a datapoint every QUERY_POINT_INTERVAL ms, and at
+   * most POINT_EDGE / metricCount datapoints are held, the others being dropped or downsampled.
+   */
+  public static long estimatePoints(QueryMetric metric, long startTime, long endTime,
+      int metricCount) {
+    long maxPoints = Math.max(config.POINT_EDGE / metricCount, 1);
+    long series = 1;
+    if (metric.getTags() != null) {
+      for (List<String> values : metric.getTags().values()) {
+        if (values != null && !values.isEmpty()) {
+          series = Math.min(series * values.size(), maxPoints);
+        }
+      }
+    }
+    long pointsPerSeries = (endTime - startTime) / Math.max(config.QUERY_POINT_INTERVAL, 1) + 1;
+    if (pointsPerSeries >= maxPoints / series) {
+      return maxPoints;
+    }
+    return series * pointsPerSeries;
+  }
+
+  private static String getSplitTag(QueryMetric metric) {
+    Map<String, List<String>> tags = metric.getTags();
+    if (tags == null) {
+      return null;
+    }
+    List<String> specialValues = tags.get(config.SPECIAL_TAG);
+    if (specialValues != null && specialValues.size() > 1) {
+      return config.SPECIAL_TAG;
+    }
+    String splitTag = null;
+    int maxSize = 1;
+    for (Map.Entry<String, List<String>> entry : tags.entrySet()) {
+      if (entry.getValue() != null && entry.getValue().size() > maxSize) {
+        splitTag = entry.getKey();
+        maxSize = entry.getValue().size();
+      }
+    }
+    return splitTag;
+  }
+
+  /**
+   * Merge the results of the sub-queries of a metric. The datapoints are merged by timestamp, the
+   * ones of a same timestamp in the order of the sub-queries, and the values of the tags are
+   * gathered.
+   */
+  public static MetricValueResult merge(String name, List<MetricValueResult> parts) {
+    MetricValueResult merged = new MetricValueResult(name);
+    int totalSize = 0;
+    for (MetricValueResult part : parts) {
+      if (part.getDatapoints().isEmpty()) {
+        continue;
+      }
+      if (totalSize == 0) {
+        merged.setGroupBy(part.getGroupBy());
+      }
+      totalSize += part.getDatapoints().size();
+      for (Map.Entry<String, List<String>> tag : part.getTags().entrySet()) {
+        List<String> values = merged.getTags().get(tag.getKey());
+        if (values == null) {
+          merged.setTag(tag.getKey(), new LinkedList<>(tag.getValue()));
+        } else {
+          Set<String> union = new LinkedHashSet<>(values);
+          union.addAll(tag.getValue());
+          merged.setTag(tag.getKey(), new LinkedList<>(union));
+        }
+      }
+    }
+
+    DataPointBuffer points = new DataPointBuffer(totalSize);
+    if (isOrdered(parts)) {
+      // e.g. the results of consecutive time ranges
+      for (MetricValueResult part : parts) {
+        points.addAll(part.getDatapoints());
+      }
+      merged.setValues(points);
+      return merged;
+    }
+    int[] positions = new int[parts.size()];
+    for (int n = 0; n < totalSize; n++) {
+      int next = -1;
+      long nextTimestamp = Long.MAX_VALUE;
+      for (int i = 0; i < positions.length; i++) {
+        DataPointBuffer partPoints = parts.get(i).getDatapoints();
+        if (positions[i] < partPoints.size()
+            && (next < 0 || partPoints.getTimestamp(positions[i]) < nextTimestamp)) {
+          next = i;
+          nextTimestamp = partPoints.getTimestamp(positions[i]);
+        }
+      }
+      points.add(parts.get(next).getDatapoints(), positions[next]++);
+    }
+    merged.setValues(points);
+    return merged;
+  }
+
+  private static boolean isOrdered(List<MetricValueResult> parts) {
+    long lastTimestamp = Long.MIN_VALUE;
+    for (MetricValueResult part : parts) {
+      DataPointBuffer points = part.getDatapoints();
+      if (points.isEmpty()) {
+        continue;
+      }
+      if (points.getTimestamp(0) < lastTimestamp) {
+        return false;
+      }
+      lastTimestamp = points.getTimestamp(points.size() - 1);
+    }
+    return true;
+  }
+
+}
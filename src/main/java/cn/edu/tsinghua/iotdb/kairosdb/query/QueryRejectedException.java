@@ -0,0 +1,13 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+/**
+ * Thrown when a query is not admitted because the query workers are saturated, see
+ * {@link QueryScheduler}.
+ */
+public class QueryRejectedException extends QueryException {
+
+  public QueryRejectedException(String message) {
+    super(message);
+  }
+
+}
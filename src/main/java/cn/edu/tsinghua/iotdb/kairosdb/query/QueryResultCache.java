@@ -0,0 +1,369 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the raw datapoints of the queried metrics, so that a query which is repeated or whose
+ * time range slides forward, e.g. a dashboard refreshing the last hours, reads from IoTDB only the
+ * datapoints after the cached ones. An entry is keyed by the name and the tags of a metric, so the
+ * queries of the same series with other aggregators share it. It holds the datapoints of the
+ * settled part of the time range of the query which stored it, i.e. before QUERY_CACHE_SETTLE ms
+ * before the query: the later datapoints may still be written and are always read again.
+ *
+ * <p>The entries expire QUERY_CACHE_TTL ms after their oldest datapoints were read, and the least
+ * recently used ones are evicted beyond QUERY_CACHE_MAX_BYTES. A write of datapoints older than
+ * the settled end of the entries of their series invalidates them, see
+ * {@link #invalidate(String, Map, long)}.
+ *
+ * <p>The cache is disabled by default: the writes of another IKR do not invalidate it, so it should
+ * only be enabled with a single IKR.
+ */
+public class QueryResultCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryResultCache.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  // The estimated size of a datapoint in a DataPointBuffer: its timestamp, value and kind
+  private static final int POINT_BYTES = 17;
+  private static final int ENTRY_BYTES = 256;
+
+  // In access order, the eldest entry is the least recently used one
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // The number of late writes and deletions of each metric, a result read before one of them is
+  // not stored
+  private final Map<String, Long> generations = new HashMap<>();
+  private long bytes = 0;
+  private long hitCount = 0;
+  private long partialHitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+  private long invalidationCount = 0;
+
+  QueryResultCache() {
+  }
+
+  public static QueryResultCache getInstance() {
+    return QueryResultCacheHolder.INSTANCE;
+  }
+
+  public static boolean isEnabled() {
+    return config.QUERY_CACHE_MAX_BYTES > 0;
+  }
+
+  /**
+   * Look up the cached datapoints of a metric from startTime.
+   *
+   * @param endTime The end of the time range of the query, included
+   * @return The lookup, to store the result of the query with once it is read
+   */
+  public Lookup lookup(QueryMetric metric, long startTime, long endTime) {
+    Lookup lookup = new Lookup(metric, startTime, endTime);
+    Entry entry;
+    synchronized (this) {
+      lookup.generation = generations.getOrDefault(lookup.name, 0L);
+      entry = entries.get(lookup.key);
+      if (entry != null && lookup.queryTime - entry.readTime > config.QUERY_CACHE_TTL) {
+        remove(lookup.key);
+        entry = null;
+      }
+      if (entry == null || startTime < entry.startTime || startTime >= entry.endTime) {
+        missCount++;
+        return lookup;
+      }
+      if (endTime < entry.endTime) {
+        hitCount++;
+      } else {
+        partialHitCount++;
+      }
+    }
+    // the datapoints of an entry are not changed once it is stored
+    DataPointBuffer points = entry.values.getDatapoints();
+    int from = indexOf(points, startTime);
+    int to = endTime < entry.endTime ? indexOf(points, endTime + 1) : points.size();
+    MetricValueResult values = new MetricValueResult(lookup.name);
+    DataPointBuffer slice = new DataPointBuffer(to - from);
+    for (int i = from; i < to; i++) {
+      slice.add(points, i);
+    }
+    values.setValues(slice);
+    values.setGroupBy(new LinkedList<>(entry.values.getGroupBy()));
+    for (Map.Entry<String, List<String>> tag : entry.values.getTags().entrySet()) {
+      values.setTag(tag.getKey(), new LinkedList<>(tag.getValue()));
+    }
+    lookup.values = values;
+    lookup.resumeTime = entry.endTime;
+    lookup.readTime = entry.readTime;
+    return lookup;
+  }
+
+  /**
+   * Store the datapoints of the settled part of the time range of a query. They are not stored if
+   * the metric has been written before its settled end or deleted since the lookup.
+   *
+   * @param values The datapoints of the whole time range of the lookup, in time order
+   */
+  public void put(Lookup lookup, MetricValueResult values) {
+    if (lookup.resumeTime > lookup.endTime) {
+      // nothing new was read
+      return;
+    }
+    long settledEnd = Math.min(lookup.endTime + 1, lookup.queryTime - config.QUERY_CACHE_SETTLE);
+    if (settledEnd <= lookup.startTime) {
+      return;
+    }
+    DataPointBuffer points = values.getDatapoints();
+    int to = indexOf(points, settledEnd);
+    DataPointBuffer settled = new DataPointBuffer(to);
+    long entryBytes = ENTRY_BYTES + (long) to * POINT_BYTES;
+    for (int i = 0; i < to; i++) {
+      settled.add(points, i);
+      if (points.getType(i) == Types.VARCHAR) {
+        entryBytes += 2L * points.getText(i).length();
+      }
+    }
+    if (entryBytes > config.QUERY_CACHE_MAX_BYTES) {
+      return;
+    }
+    MetricValueResult entryValues = new MetricValueResult(lookup.name);
+    entryValues.setValues(settled);
+    entryValues.setGroupBy(new LinkedList<>(values.getGroupBy()));
+    for (Map.Entry<String, List<String>> tag : values.getTags().entrySet()) {
+      entryValues.setTag(tag.getKey(), new LinkedList<>(tag.getValue()));
+    }
+    Entry entry = new Entry(lookup, entryValues, settledEnd, entryBytes);
+    synchronized (this) {
+      if (generations.getOrDefault(lookup.name, 0L) != lookup.generation) {
+        return;
+      }
+      remove(lookup.key);
+      entries.put(lookup.key, entry);
+      bytes += entryBytes;
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (bytes > config.QUERY_CACHE_MAX_BYTES && eldest.hasNext()) {
+        bytes -= eldest.next().bytes;
+        eldest.remove();
+        evictionCount++;
+      }
+    }
+  }
+
+  /**
+   * Invalidate the entries of a series which has been written. A datapoint written within
+   * QUERY_CACHE_SETTLE ms of its timestamp is after the settled end of every entry, so only the late
+   * writes, e.g. a backfill, invalidate entries.
+   *
+   * @param tags The tags of the series
+   * @param timestamp The timestamp of the oldest datapoint written
+   */
+  public void invalidate(String name, Map<String, String> tags, long timestamp) {
+    if (!isEnabled()
+        || timestamp >= System.currentTimeMillis() - config.QUERY_CACHE_SETTLE) {
+      return;
+    }
+    synchronized (this) {
+      generations.merge(name, 1L, Long::sum);
+      List<String> invalidKeys = new ArrayList<>();
+      for (Entry entry : entries.values()) {
+        if (entry.name.equals(name) && timestamp < entry.endTime && entry.matches(tags)) {
+          invalidKeys.add(entry.key);
+        }
+      }
+      for (String key : invalidKeys) {
+        remove(key);
+        invalidationCount++;
+      }
+    }
+  }
+
+  /**
+   * Invalidate all the entries of a metric whose datapoints have been deleted.
+   */
+  public void invalidateMetric(String name) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (this) {
+      generations.merge(name, 1L, Long::sum);
+      List<String> invalidKeys = new ArrayList<>();
+      for (Entry entry : entries.values()) {
+        if (entry.name.equals(name)) {
+          invalidKeys.add(entry.key);
+        }
+      }
+      for (String key : invalidKeys) {
+        remove(key);
+        invalidationCount++;
+      }
+    }
+    LOGGER.debug("Cached results of {} invalidated", name);
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bytes -= entry.bytes;
+    }
+  }
+
+  /**
+   * @return The index of the first datapoint at or after timestamp
+   */
+  private static int indexOf(DataPointBuffer points, long timestamp) {
+    int low = 0;
+    int high = points.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (points.getTimestamp(middle) < timestamp) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return The name and the tags of the metric, the tags and their values being sorted
+   */
+  private static String createKey(QueryMetric metric) {
+    Map<String, TreeSet<String>> tags = new TreeMap<>();
+    if (metric.getTags() != null) {
+      for (Map.Entry<String, List<String>> tag : metric.getTags().entrySet()) {
+        tags.put(tag.getKey(),
+            tag.getValue() == null ? new TreeSet<>() : new TreeSet<>(tag.getValue()));
+      }
+    }
+    return metric.getName() + "\u0000" + tags;
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getPartialHitCount() {
+    return partialHitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getInvalidationCount() {
+    return invalidationCount;
+  }
+
+  /**
+   * The lookup of a metric by a query: the cached datapoints from the start of the query, if any,
+   * and the state of the cache the result of the query is stored against.
+   */
+  public static class Lookup {
+
+    private final String key;
+    private final String name;
+    private final Map<String, List<String>> tags;
+    private final long startTime;
+    private final long endTime;
+    private final long queryTime = System.currentTimeMillis();
+    private long generation;
+    private MetricValueResult values;
+    // The time the datapoints are read from, after the cached ones
+    private long resumeTime;
+    // The time the oldest cached datapoints were read
+    private long readTime = queryTime;
+
+    private Lookup(QueryMetric metric, long startTime, long endTime) {
+      this.key = createKey(metric);
+      this.name = metric.getName();
+      this.tags = metric.getTags() == null ? new HashMap<>() : metric.getTags();
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.resumeTime = startTime;
+    }
+
+    /**
+     * @return The cached datapoints in [start time, resume time), or null if none is cached
+     */
+    public MetricValueResult getValues() {
+      return values;
+    }
+
+    /**
+     * @return The start of the time range still to be read, after the end of the query if the
+     * cached datapoints cover all of it
+     */
+    public long getResumeTime() {
+      return resumeTime;
+    }
+  }
+
+  private static class Entry {
+
+    private final String key;
+    private final String name;
+    private final Map<String, List<String>> tags;
+    private final long startTime;
+    // The settled end of the query, excluded
+    private final long endTime;
+    private final long readTime;
+    private final MetricValueResult values;
+    private final long bytes;
+
+    private Entry(Lookup lookup, MetricValueResult values, long endTime, long bytes) {
+      this.key = lookup.key;
+      this.name = lookup.name;
+      this.tags = lookup.tags;
+      this.startTime = lookup.startTime;
+      this.endTime = endTime;
+      this.readTime = lookup.readTime;
+      this.values = values;
+      this.bytes = bytes;
+    }
+
+    /**
+     * @return true if a series with these tags is selected by the tags of the entry
+     */
+    private boolean matches(Map<String, String> seriesTags) {
+      for (Map.Entry<String, List<String>> tag : tags.entrySet()) {
+        if (tag.getValue() == null || tag.getValue().isEmpty()) {
+          continue;
+        }
+        if (!tag.getValue().contains(seriesTags.get(tag.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class QueryResultCacheHolder {
+
+    private static final QueryResultCache INSTANCE = new QueryResultCache();
+  }
+
+}
@@ -0,0 +1,279 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the sub-queries of the queries on MAX_POOL_SIZE workers.
+ *
+ * <p>A query is admitted with the number of datapoints it is estimated to read, the queries
+ * admitted at once being bounded by their number (QUERY_QUEUE_SIZE) and their total estimated
+ * datapoints (QUERY_QUEUE_POINTS). A query which does not fit is rejected so that the caller can
+ * answer 503 instead of queueing it without limit, except a roll-up query, which has no client to
+ * retry it and waits until it fits.
+ *
+ * <p>At most QUERY_MAX_CONCURRENCY sub-queries of a query are handed to the workers at once, the
+ * others wait in the query, so that a query split into many sub-queries does not queue them all
+ * ahead of the other queries. The workers take the small queries, estimated to read at most
+ * SMALL_QUERY_POINTS datapoints, first, then the bulk queries and at last the roll-up queries, each
+ * kind in the order the queries were admitted.
+ */
+public class QueryScheduler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryScheduler.class);
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  // The roll-up queries waiting to be admitted check again at least this often, in ms
+  private static final long ADMISSION_WAIT = 1000;
+
+  /**
+   * The kinds of query, in the order the workers take them.
+   */
+  public enum Priority {
+    INTERACTIVE, BULK, ROLLUP
+  }
+
+  private final ThreadPoolExecutor workerPool;
+  private final AtomicLong pendingPoints = new AtomicLong(0);
+  private final AtomicInteger pendingQueries = new AtomicInteger(0);
+  private final AtomicLong sequence = new AtomicLong(0);
+  private final AtomicLong acceptedCount = new AtomicLong(0);
+  private final AtomicLong rejectedCount = new AtomicLong(0);
+  // Notified when a query is released, for the roll-up queries waiting to be admitted
+  private final Object admission = new Object();
+
+  private QueryScheduler() {
+    this(config.MAX_POOL_SIZE);
+  }
+
+  QueryScheduler(int threadNum) {
+    AtomicInteger threadId = new AtomicInteger(0);
+    // the queue is unbounded so the pool never grows beyond its core size, which is then the max
+    workerPool = new ThreadPoolExecutor(threadNum, threadNum,
+        300L, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "query-worker-" + threadId.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static QueryScheduler getInstance() {
+    return QuerySchedulerHolder.INSTANCE;
+  }
+
+  /**
+   * Admit a query.
+   *
+   * @param estimatedPoints The number of datapoints the query is estimated to read
+   * @return The ticket the sub-queries of the query are submitted with, to be released when the
+   * query ends
+   * @throws QueryRejectedException if the scheduler is saturated
+   */
+  public Ticket admit(long estimatedPoints) throws QueryRejectedException {
+    if (!reserve(estimatedPoints)) {
+      rejectedCount.incrementAndGet();
+      throw new QueryRejectedException("Too many pending queries, retry later.");
+    }
+    acceptedCount.incrementAndGet();
+    Priority priority = estimatedPoints <= config.SMALL_QUERY_POINTS ? Priority.INTERACTIVE
+        : Priority.BULK;
+    return new Ticket(priority, estimatedPoints, sequence.getAndIncrement());
+  }
+
+  /**
+   * Admit a roll-up query, waiting for the queries pending before it to be released if the
+   * scheduler is saturated.
+   *
+   * @param estimatedPoints The number of datapoints the query is estimated to read
+   * @return The ticket the sub-queries of the query are submitted with, to be released when the
+   * query ends
+   * @throws InterruptedException if interrupted while waiting, e.g. on shutdown
+   */
+  public Ticket admitRollup(long estimatedPoints) throws InterruptedException {
+    synchronized (admission) {
+      while (!reserve(estimatedPoints)) {
+        admission.wait(ADMISSION_WAIT);
+      }
+    }
+    acceptedCount.incrementAndGet();
+    return new Ticket(Priority.ROLLUP, estimatedPoints, sequence.getAndIncrement());
+  }
+
+  /**
+   * A query is always admitted when nothing is pending, so that a query larger than the whole
+   * budget is not rejected forever.
+   */
+  private boolean reserve(long points) {
+    while (true) {
+      int queries = pendingQueries.get();
+      long current = pendingPoints.get();
+      if (queries > 0 && (queries >= config.QUERY_QUEUE_SIZE
+          || current + points > config.QUERY_QUEUE_POINTS)) {
+        return false;
+      }
+      if (pendingQueries.compareAndSet(queries, queries + 1)) {
+        pendingPoints.addAndGet(points);
+        return true;
+      }
+    }
+  }
+
+  public int getQueueDepth() {
+    return workerPool.getQueue().size();
+  }
+
+  public int getActiveCount() {
+    return workerPool.getActiveCount();
+  }
+
+  public int getPendingQueries() {
+    return pendingQueries.get();
+  }
+
+  public long getPendingPoints() {
+    return pendingPoints.get();
+  }
+
+  public long getAcceptedCount() {
+    return acceptedCount.get();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * An admitted query, which holds its sub-queries beyond QUERY_MAX_CONCURRENCY.
+   */
+  public class Ticket {
+
+    private final Priority priority;
+    private final long estimatedPoints;
+    private final long order;
+    private final Queue<ScheduledTask<?>> waiting = new ArrayDeque<>();
+    private int running = 0;
+    private long taskOrder = 0;
+    private boolean released = false;
+
+    private Ticket(Priority priority, long estimatedPoints, long order) {
+      this.priority = priority;
+      this.estimatedPoints = estimatedPoints;
+      this.order = order;
+    }
+
+    public Priority getPriority() {
+      return priority;
+    }
+
+    public <T> Future<T> submit(Callable<T> callable) {
+      ScheduledTask<T> task;
+      synchronized (this) {
+        task = new ScheduledTask<>(this, taskOrder++, callable);
+        if (running >= Math.max(config.QUERY_MAX_CONCURRENCY, 1)) {
+          waiting.add(task);
+          return task;
+        }
+        running++;
+      }
+      dispatch(task);
+      return task;
+    }
+
+    private void onTaskEnd() {
+      ScheduledTask<?> next;
+      synchronized (this) {
+        next = waiting.poll();
+        if (next == null) {
+          running--;
+        }
+      }
+      if (next != null) {
+        dispatch(next);
+      }
+    }
+
+    /**
+     * Give the budget of the query back, once it has ended or been cancelled.
+     */
+    public void release() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      pendingPoints.addAndGet(-estimatedPoints);
+      pendingQueries.decrementAndGet();
+      synchronized (admission) {
+        admission.notifyAll();
+      }
+    }
+  }
+
+  private void dispatch(ScheduledTask<?> task) {
+    try {
+      workerPool.execute(task);
+    } catch (RejectedExecutionException e) {
+      LOGGER.error("Sub-query rejected because {}", e.getMessage());
+      task.cancel(false);
+      task.ticket.onTaskEnd();
+    }
+  }
+
+  /**
+   * A sub-query, ordered in the queue of the workers by the priority and the admission of its
+   * query, then by its submission.
+   */
+  private static class ScheduledTask<T> extends FutureTask<T> implements
+      Comparable<ScheduledTask<?>> {
+
+    private final Ticket ticket;
+    private final long order;
+
+    private ScheduledTask(Ticket ticket, long order, Callable<T> callable) {
+      super(callable);
+      this.ticket = ticket;
+      this.order = order;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        // a cancelled sub-query ends here too, without running
+        ticket.onTaskEnd();
+      }
+    }
+
+    @Override
+    public int compareTo(ScheduledTask<?> other) {
+      int result = ticket.priority.compareTo(other.ticket.priority);
+      if (result == 0) {
+        result = Long.compare(ticket.order, other.ticket.order);
+      }
+      if (result == 0) {
+        result = Long.compare(order, other.order);
+      }
+      return result;
+    }
+  }
+
+  private static class QuerySchedulerHolder {
+
+    private static final QueryScheduler INSTANCE = new QueryScheduler();
+  }
+
+}
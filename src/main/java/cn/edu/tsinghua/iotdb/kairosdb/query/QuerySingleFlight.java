@@ -0,0 +1,204 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the identical queries which arrive while one of them is running only once, e.g. the queries
+ * of a dashboard viewed by many users: the first query runs, the others wait for its result and
+ * share it. The queries are identical if their JSON is, once normalized by
+ * {@link #createKey(String)}. A relative time range is resolved by the running query, so the
+ * queries waiting for it get the datapoints up to the time it started.
+ *
+ * <p>Each waiting query keeps its own deadline. A query only waits for a running query which
+ * would not reach its deadline before it, otherwise it runs on its own. The running query always
+ * hands its result or its failure to the waiting queries, which get the same result or a
+ * failure of the same kind.
+ */
+public class QuerySingleFlight {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QuerySingleFlight.class);
+
+  /**
+   * A query whose result can be shared.
+   */
+  public interface Execution {
+
+    String execute() throws QueryTimeoutException, QueryRejectedException;
+  }
+
+  private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+  private final AtomicLong executedCount = new AtomicLong(0);
+  private final AtomicLong sharedCount = new AtomicLong(0);
+
+  QuerySingleFlight() {
+  }
+
+  public static QuerySingleFlight getInstance() {
+    return QuerySingleFlightHolder.INSTANCE;
+  }
+
+  /**
+   * Run a query, or wait for the identical query which is running and share its result.
+   *
+   * @param key The normalized query, see {@link #createKey(String)}
+   * @param context The context of the query, whose deadline bounds the wait
+   * @throws QueryTimeoutException if the query or the query it waits for exceeds its deadline
+   * @throws QueryRejectedException if the query or the query it waits for is not admitted
+   */
+  public String execute(String key, QueryContext context, Execution execution)
+      throws QueryTimeoutException, QueryRejectedException {
+    Flight flight = new Flight(context.getDeadline());
+    Flight running = flights.putIfAbsent(key, flight);
+    if (running != null) {
+      if (running.deadline >= context.getDeadline()) {
+        sharedCount.incrementAndGet();
+        return running.await(context);
+      }
+      // the running query may end on its deadline before this one
+      executedCount.incrementAndGet();
+      return execution.execute();
+    }
+    executedCount.incrementAndGet();
+    try {
+      String result = execution.execute();
+      flight.result.complete(result);
+      return result;
+    } catch (QueryTimeoutException | QueryRejectedException | RuntimeException e) {
+      flight.result.completeExceptionally(e);
+      throw e;
+    } finally {
+      // e.g. an Error, the waiting queries must not wait until their deadline
+      flight.result.completeExceptionally(new IllegalStateException("The query failed"));
+      flights.remove(key, flight);
+    }
+  }
+
+  /**
+   * Normalize the JSON of a query: the members of the objects are sorted by name, and the members
+   * which do not change its result, i.e. query_timeout and cache_time, are left out.
+   *
+   * @return The normalized query, or null if the JSON is invalid
+   */
+  public static String createKey(String json) {
+    JsonElement query;
+    try {
+      query = new JsonParser().parse(json);
+    } catch (JsonParseException e) {
+      LOGGER.debug("Can not normalize the query {}", json, e);
+      return null;
+    }
+    if (query.isJsonObject()) {
+      query.getAsJsonObject().remove("query_timeout");
+      query.getAsJsonObject().remove("cache_time");
+    }
+    StringBuilder key = new StringBuilder(json.length());
+    appendNormalized(query, key);
+    return key.toString();
+  }
+
+  private static void appendNormalized(JsonElement element, StringBuilder key) {
+    if (element.isJsonObject()) {
+      Map<String, JsonElement> members = new TreeMap<>();
+      for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+        members.put(member.getKey(), member.getValue());
+      }
+      key.append('{');
+      boolean first = true;
+      for (Map.Entry<String, JsonElement> member : members.entrySet()) {
+        if (!first) {
+          key.append(',');
+        }
+        first = false;
+        key.append(new JsonPrimitive(member.getKey())).append(':');
+        appendNormalized(member.getValue(), key);
+      }
+      key.append('}');
+    } else if (element.isJsonArray()) {
+      JsonArray array = element.getAsJsonArray();
+      key.append('[');
+      for (int i = 0; i < array.size(); i++) {
+        if (i > 0) {
+          key.append(',');
+        }
+        appendNormalized(array.get(i), key);
+      }
+      key.append(']');
+    } else {
+      key.append(element.toString());
+    }
+  }
+
+  public int getInFlightCount() {
+    return flights.size();
+  }
+
+  /**
+   * @return The number of queries which have been run
+   */
+  public long getExecutedCount() {
+    return executedCount.get();
+  }
+
+  /**
+   * @return The number of queries which have shared the result of a running query
+   */
+  public long getSharedCount() {
+    return sharedCount.get();
+  }
+
+  /**
+   * A running query and the result it hands to the queries waiting for it.
+   */
+  private static class Flight {
+
+    // Long.MAX_VALUE if the query has no deadline
+    private final long deadline;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+
+    private Flight(long deadline) {
+      this.deadline = deadline;
+    }
+
+    private String await(QueryContext context)
+        throws QueryTimeoutException, QueryRejectedException {
+      try {
+        return result.get(context.getRemainingMillis(), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        throw new QueryTimeoutException("The query exceeded its deadline");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new QueryTimeoutException("Interrupted while waiting for an identical query");
+      } catch (ExecutionException e) {
+        // a new exception, thrown in the thread of this query
+        Throwable cause = e.getCause();
+        if (cause instanceof QueryTimeoutException) {
+          throw new QueryTimeoutException(cause.getMessage());
+        }
+        if (cause instanceof QueryRejectedException) {
+          throw new QueryRejectedException(cause.getMessage());
+        }
+        throw new IllegalStateException("The identical query failed", cause);
+      }
+    }
+  }
+
+  private static class QuerySingleFlightHolder {
+
+    private static final QuerySingleFlight INSTANCE = new QuerySingleFlight();
+  }
+
+}
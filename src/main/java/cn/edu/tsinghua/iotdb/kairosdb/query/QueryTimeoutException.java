@@ -0,0 +1,12 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+/**
+ * Thrown when a query exceeds its deadline, see {@link QueryContext}.
+ */
+public class QueryTimeoutException extends QueryException {
+
+  public QueryTimeoutException(String message) {
+    super(message);
+  }
+
+}
@@ -3,46 +3,57 @@ package cn.edu.tsinghua.iotdb.kairosdb.query;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
 import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBConnectionPool;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.IoTDBUtil;
 import cn.edu.tsinghua.iotdb.kairosdb.dao.MetricsManager;
 import cn.edu.tsinghua.iotdb.kairosdb.http.rest.json.TimeUnitDeserializer;
 import cn.edu.tsinghua.iotdb.kairosdb.profile.Measurement;
 import cn.edu.tsinghua.iotdb.kairosdb.profile.Measurement.Profile;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.Downsampler;
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregator;
-import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorAlignable;
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorAvg;
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorDeserializer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorPipeline;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorPushdown;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorRanged;
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorType;
 import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBy;
 import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByDeserializer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBySerializer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByType;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.DeleteSqlBuilder;
 import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.QuerySqlBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class QueryWorker extends Thread {
+public class QueryWorker {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(QueryWorker.class);
   private static final Config config = ConfigDescriptor.getInstance().getConfig();
-  private CountDownLatch queryLatch;
-  private Map<String, StringBuilder> queryMetricStr;
+  private static final Type GROUP_BY_LIST_TYPE = new TypeToken<List<GroupBy>>() {
+  }.getType();
+  private static final Type TAGS_TYPE = new TypeToken<Map<String, List<String>>>() {
+  }.getType();
   private QueryMetric metric;
   private Map<String, Integer> tag2pos;
   private Map<Integer, String> pos2tag;
@@ -51,118 +62,385 @@ public class QueryWorker extends Thread {
   private Long endTime;
   private MetricResult metricResult;
   private int metricCount;
+  // The index in IoTDB_LIST of the IoTDB instance which is queried
+  private int replica = 0;
+  // The number of datapoints the sub-queries of the metric can still read, null if the worker reads
+  // at most POINT_EDGE / metricCount datapoints
+  private AtomicLong pointBudget;
+  // The part of the datapoints of the metric a sub-query downsamples to once the budget is spent
+  private double pointShare = 1;
+  private QueryContext context = new QueryContext(0);
+  // Whether the last read got all the datapoints of the query, none being dropped or downsampled
+  private volatile boolean complete = false;
 
-  public QueryWorker(int metricCount, CountDownLatch queryLatch,
-      Map<String, StringBuilder> queryMetricStr,
-      QueryMetric metric, MetricResult metricResult,
-      Long startTime, Long endTime) {
-    this.metricResult = metricResult;
-    this.queryLatch = queryLatch;
-    this.queryMetricStr = queryMetricStr;
+  /**
+   * A worker reading one metric, see {@link #query()} and {@link #streamTo}.
+   */
+  public QueryWorker(int metricCount, QueryMetric metric, Long startTime, Long endTime) {
     this.metric = metric;
     this.startTime = startTime;
     this.metricCount = metricCount;
-    if(endTime - startTime > config.TIME_EDGE) {
-      this.endTime = startTime + config.TIME_EDGE;
+    this.endTime = endTime;
+  }
+
+  /**
+   * Query the metric and apply its aggregators.
+   *
+   * @return The result of the metric, with one empty MetricValueResult if there is no data
+   */
+  public MetricResult query() throws QueryException {
+    if(metricResult == null) {
+      metricResult = new MetricResult();
+    }
+    if (getMetricMapping(metric)) {
+      if (QueryGrouper.isGrouped(metric)) {
+        return queryGroups();
+      }
+      MetricValueResult metricValueResult = new MetricValueResult(metric.getName());
+      String sql = buildSqlStatement(metric, pos2tag, tag2pos.size(), startTime, endTime);
+      QueryAggregatorPushdown pushdown = null;
+      if (config.ENABLE_AGGREGATION_PUSHDOWN) {
+        pushdown = QueryAggregatorPushdown.plan(metric.getAggregators(), startTime, endTime);
+      }
+      if (pushdown != null && getPushdownResult(pushdown, metricValueResult)) {
+        setTags(metricValueResult);
+        if (metricResult.getSampleSize() == 0) {
+          metricResult = new MetricResult();
+          metricResult.addResult(new MetricValueResult(metric.getName()));
+          metricResult.getResults().get(0).setGroupBy(null);
+        } else {
+          metricResult.addResult(metricValueResult);
+          metricResult = doAggregations(pushdown.getRemainingAggregators(), metricResult);
+        }
+      } else if (isGroupByQuery()) {
+        long value = config.GROUP_BY_UNIT;
+        try {
+          QueryAggregatorAvg queryAggregatorAvg = (QueryAggregatorAvg) metric.getAggregators()
+              .get(0);
+          value = queryAggregatorAvg.getSampling().toMillisecond();
+        } catch (Exception e) {
+          LOGGER.warn("Can't convert queryAggregatorAvg", e);
+        }
+        sql = sql.replace(metric.getName(), config.AGG_FUNCTION + "(" + metric.getName() + ")");
+        sql = sql.substring(0, sql.indexOf("where"));
+        String sqlBuilder = sql + " group by ("
+            + value
+            + "ms, ["
+            + startTime
+            + ", "
+            + endTime
+            + "])";
+        metricResult.setSampleSize(getValueResult(sqlBuilder, metricValueResult));
+        setTags(metricValueResult);
+        if (metricResult.getSampleSize() == 0) {
+          metricResult = new MetricResult();
+          metricResult.addResult(new MetricValueResult(metric.getName()));
+          metricResult.getResults().get(0).setGroupBy(null);
+        } else {
+          metricResult.addResult(metricValueResult);
+        }
+      } else {
+        metricResult.setSampleSize(getValueResult(sql, metricValueResult));
+
+        setTags(metricValueResult);
+        if (metricResult.getSampleSize() == 0) {
+          metricResult = new MetricResult();
+          metricResult.addResult(new MetricValueResult(metric.getName()));
+          metricResult.getResults().get(0).setGroupBy(null);
+        } else {
+          metricResult.addResult(metricValueResult);
+          metricResult = doAggregations(metric.getAggregators(), metricResult);
+        }
+      }
     } else {
-      this.endTime = endTime;
+      metricResult = new MetricResult();
+      metricResult.addResult(new MetricValueResult(metric.getName()));
+      metricResult.getResults().get(0).setGroupBy(null);
     }
+    return metricResult;
   }
 
-  @Override
-  public void run() {
-    try {
-      boolean useJson = false;
-      if(metricResult == null) {
-        useJson = true;
-        metricResult = new MetricResult();
+  /**
+   * Query the datapoints of each series of the metric, group them by the group_by of the metric
+   * and aggregate each group, see {@link QueryGrouper}.
+   *
+   * @return The aggregated groups, or one empty MetricValueResult if there is no data
+   */
+  private MetricResult queryGroups() throws QueryException {
+    String sql = buildSqlStatement(metric, pos2tag, tag2pos.size(), startTime, endTime);
+    List<MetricValueResult> series = getSeriesResults(sql);
+    long sampleSize = 0;
+    for (MetricValueResult oneSeries : series) {
+      sampleSize += oneSeries.getDatapoints().size();
+    }
+    if (sampleSize > 0) {
+      setAggregatorRange(metric.getAggregators());
+      metricResult = QueryGrouper.aggregate(
+          QueryGrouper.group(metric.getName(), series, metric.getGroupBy(), startTime),
+          metric.getAggregators());
+      metricResult.setSampleSize(sampleSize);
+    }
+    if (sampleSize == 0 || metricResult.getResults().isEmpty()) {
+      metricResult = new MetricResult();
+      metricResult.setSampleSize(sampleSize);
+      metricResult.addResult(new MetricValueResult(metric.getName()));
+      metricResult.getResults().get(0).setGroupBy(null);
+    }
+    return metricResult;
+  }
+
+  /**
+   * @return true if the metric is queried as an IoTDB Group-By query with AGG_FUNCTION, i.e. its
+   * only aggregator is avg or its time range exceeds MAX_RANGE
+   */
+  private boolean isGroupByQuery() {
+    return metric.getAggregators().size() == 1 && metric.getAggregators().get(0).getType()
+        .equals(QueryAggregatorType.AVG) || endTime - startTime > config.MAX_RANGE;
+  }
+
+  /**
+   * @return true if the raw datapoints of the metric are read, so that they can be read by several
+   * sub-queries, see {@link #queryDatapoints()} and {@link #aggregate(MetricValueResult)}
+   */
+  public boolean readsDatapoints() {
+    // the groups need the series of the datapoints, which the merge of the sub-queries loses
+    if (QueryGrouper.isGrouped(metric)) {
+      return false;
+    }
+    if (config.ENABLE_AGGREGATION_PUSHDOWN
+        && QueryAggregatorPushdown.plan(metric.getAggregators(), startTime, endTime) != null) {
+      return false;
+    }
+    return !isGroupByQuery();
+  }
+
+  /**
+   * Query the raw datapoints of the metric, without applying its aggregators.
+   *
+   * @return The datapoints and the tags of the metric, without datapoint if there is no data
+   */
+  public MetricValueResult queryDatapoints() {
+    MetricValueResult metricValueResult = new MetricValueResult(metric.getName());
+    if (getMetricMapping(metric)) {
+      String sql = buildSqlStatement(metric, pos2tag, tag2pos.size(), startTime, endTime);
+      getValueResult(sql, metricValueResult);
+      setTags(metricValueResult);
+    }
+    return metricValueResult;
+  }
+
+  /**
+   * Apply the aggregators of the metric to its datapoints, e.g. the merged datapoints of its
+   * sub-queries.
+   */
+  public MetricResult aggregate(MetricValueResult metricValueResult) throws QueryException {
+    metricResult = new MetricResult();
+    DataPointBuffer points = metricValueResult.getDatapoints();
+    if (points.isEmpty()) {
+      metricResult.addResult(new MetricValueResult(metric.getName()));
+      metricResult.getResults().get(0).setGroupBy(null);
+    } else {
+      metricResult.setSampleSize((long) points.size());
+      // the sub-queries which spent the budget first may keep more than the limit
+      int maxCount = config.POINT_EDGE / metricCount;
+      if (points.size() > maxCount) {
+        Downsampler downsampler = createDownsampler(points, maxCount);
+        if (downsampler != null) {
+          downsampler.finish(points);
+        }
       }
-      if (getMetricMapping(metric)) {
-        MetricValueResult metricValueResult = new MetricValueResult(metric.getName());
-        long interval = endTime - startTime;
-        String sql = buildSqlStatement(metric, pos2tag, tag2pos.size(), startTime, endTime);
-        if (metric.getAggregators().size() == 1 && metric.getAggregators().get(0).getType().equals(
-            QueryAggregatorType.AVG) || interval > config.MAX_RANGE) {
-          long value = config.GROUP_BY_UNIT;
-          try {
-            QueryAggregatorAvg queryAggregatorAvg = (QueryAggregatorAvg) metric.getAggregators()
-                .get(0);
-            value = queryAggregatorAvg.getSampling().toMillisecond();
-          } catch (Exception e) {
-            LOGGER.warn("Can't convert queryAggregatorAvg", e);
-          }
-          sql = sql.replace(metric.getName(), config.AGG_FUNCTION + "(" + metric.getName() + ")");
-          sql = sql.substring(0, sql.indexOf("where"));
-          String sqlBuilder = sql + " group by ("
-              + value
-              + "ms, ["
-              + startTime
-              + ", "
-              + endTime
-              + "])";
-          metricResult.setSampleSize(getValueResult(sqlBuilder, metricValueResult));
-          setTags(metricValueResult);
-          if (metricResult.getSampleSize() == 0) {
-            metricResult = new MetricResult();
-            metricResult.addResult(new MetricValueResult(metric.getName()));
-            metricResult.getResults().get(0).setGroupBy(null);
-          } else {
-            metricResult.addResult(metricValueResult);
-          }
+      metricResult.addResult(metricValueResult);
+      metricResult = doAggregations(metric.getAggregators(), metricResult);
+    }
+    return metricResult;
+  }
+
+  /**
+   * Register the IoTDB statements of the worker in the context of its query, which may cancel
+   * them.
+   */
+  public void setContext(QueryContext context) {
+    this.context = context;
+  }
+
+  public void setReplica(int replica) {
+    this.replica = replica;
+  }
+
+  /**
+   * Share the POINT_EDGE limit with the other sub-queries of the metric.
+   *
+   * @param pointShare The part of the limit the sub-query keeps if its datapoints are downsampled
+   */
+  public void setPointBudget(AtomicLong pointBudget, double pointShare) {
+    this.pointBudget = pointBudget;
+    this.pointShare = pointShare;
+  }
+
+  /**
+   * @return true if the datapoints read by {@link #queryDatapoints()} are all the datapoints of the
+   * query, i.e. the read succeeded and none was dropped or downsampled
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  static Gson createGson() {
+    return new GsonBuilder()
+        .registerTypeAdapter(QueryMetric.class, new QueryMetric())
+        .registerTypeAdapter(GroupBy.class, new GroupByDeserializer())
+        .registerTypeAdapter(GroupBy.class, new GroupBySerializer())
+        .registerTypeAdapter(QueryAggregator.class, new QueryAggregatorDeserializer())
+        .registerTypeAdapter(
+            cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit.class, new TimeUnitDeserializer())
+        .registerTypeAdapter(QueryDataPoint.class, new QueryDataPoint())
+        .create();
+  }
+
+  /**
+   * @return true if the datapoints of the metric are returned as they are read, i.e. there is no
+   * aggregator and no Group-By query, so that they can be written without being held
+   */
+  public boolean isStreamable() {
+    return metric.getAggregators().isEmpty() && endTime - startTime <= config.MAX_RANGE
+        && !QueryGrouper.isGrouped(metric);
+  }
+
+  /**
+   * Write the result of a streamable metric, each datapoint being written as soon as it is read
+   * from the ResultSet. The sample size, the group_by and the tags are only known at the end, so
+   * they are written after the values. Once some values have been written, an error only ends the
+   * values early, as the response has already been partly sent.
+   */
+  public void streamTo(JsonWriter writer, Gson gson) throws IOException {
+    writer.beginObject();
+    writer.name("results").beginArray().beginObject();
+    writer.name("name").value(metric.getName());
+    writer.name("values").beginArray();
+    long sampleSize = 0;
+    MetricValueResult metricValueResult = new MetricValueResult(metric.getName());
+    if (getMetricMapping(metric)) {
+      String sql = buildSqlStatement(metric, pos2tag, tag2pos.size(), startTime, endTime);
+      Connection connection = getConnection();
+      StreamedRows rows = new StreamedRows();
+      try {
+        streamValues(connection, sql, writer, rows, metricValueResult);
+      } catch (SQLException e) {
+        if (rows.sampleSize > 0) {
+          LOGGER.error("{} Execute failed SQL: {}, {} datapoints already sent",
+              Thread.currentThread().getName(), sql, rows.sampleSize, e);
+        } else if (context.isCancelled()) {
+          LOGGER.warn("{} Query cancelled, SQL: {}", Thread.currentThread().getName(), sql);
         } else {
-          metricResult.setSampleSize(getValueResult(sql, metricValueResult));
+          LOGGER.error("{} Execute failed SQL: {}", Thread.currentThread().getName(), sql, e);
+          connection = reconnect(connection, e);
+          if (connection != null) {
+            try {
+              streamValues(connection, sql, writer, rows, metricValueResult);
+            } catch (SQLException ex) {
+              LOGGER.error("{} Retry SQL failed: {}", Thread.currentThread().getName(), sql, ex);
+            }
+          }
+        }
+      }
+      sampleSize = rows.sampleSize;
+      if (sampleSize > 0) {
+        setTags(metricValueResult);
+      }
+    }
+    writer.endArray();
+    if (sampleSize > 0) {
+      writer.name("group_by");
+      gson.toJson(metricValueResult.getGroupBy(), GROUP_BY_LIST_TYPE, writer);
+    }
+    writer.name("tags");
+    gson.toJson(sampleSize > 0 ? metricValueResult.getTags() : new HashMap<>(), TAGS_TYPE, writer);
+    writer.endObject().endArray();
+    writer.name("sample_size").value(sampleSize);
+    writer.endObject();
+  }
 
-          setTags(metricValueResult);
-          if (metricResult.getSampleSize() == 0) {
-            metricResult = new MetricResult();
-            metricResult.addResult(new MetricValueResult(metric.getName()));
-            metricResult.getResults().get(0).setGroupBy(null);
-          } else {
-            metricResult.addResult(metricValueResult);
-            metricResult = doAggregations(metric, metricResult);
+  private void streamValues(Connection connection, String sql, JsonWriter writer,
+      StreamedRows rows, MetricValueResult metricValueResult) throws SQLException, IOException {
+    long start = 0;
+    if (config.ENABLE_PROFILER) {
+      start = System.nanoTime();
+    }
+    try (Statement statement = createStatement(connection)) {
+      LOGGER.debug("{} Send query SQL: {}", Thread.currentThread().getName(), sql);
+      boolean isFirstNext = true;
+      statement.execute(sql);
+      ResultSet rs = statement.getResultSet();
+      ResultSetMetaData metaData = rs.getMetaData();
+      ResultSetDecoder decoder = new ResultSetDecoder(rs);
+      int maxCount = config.POINT_EDGE / metricCount;
+      DataPointBuffer row = new DataPointBuffer(metaData.getColumnCount());
+      while (rs.next()) {
+        if (config.ENABLE_PROFILER && isFirstNext) {
+          Measurement.getInstance().add(Profile.FIRST_NEXT, System.nanoTime() - start);
+          isFirstNext = false;
+        }
+        rows.sampleSize += decoder.decodeRow(row);
+        for (int i = 0; i < row.size(); i++) {
+          writer.beginArray().value(row.getTimestamp(i));
+          switch (row.getType(i)) {
+            case Types.INTEGER:
+              writer.value(row.getLongValue(i));
+              break;
+            case Types.DOUBLE:
+              writer.value(row.getDoubleValue(i));
+              break;
+            default:
+              writer.value(row.getText(i));
           }
+          writer.endArray();
+        }
+        row.clear();
+        if(rows.sampleSize > maxCount || context.isCancelled()) {
+          break;
         }
-      } else {
-        metricResult = new MetricResult();
-        metricResult.addResult(new MetricValueResult(metric.getName()));
-        metricResult.getResults().get(0).setGroupBy(null);
       }
-      if(useJson) {
-        Gson gson = new GsonBuilder()
-            .registerTypeAdapter(QueryMetric.class, new QueryMetric())
-            .registerTypeAdapter(GroupBy.class, new GroupByDeserializer())
-            .registerTypeAdapter(GroupBy.class, new GroupBySerializer())
-            .registerTypeAdapter(QueryAggregator.class, new QueryAggregatorDeserializer())
-            .registerTypeAdapter(
-                cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit.class, new TimeUnitDeserializer())
-            .registerTypeAdapter(QueryDataPoint.class, new QueryDataPoint())
-            .create();
-        queryMetricStr.put(metric.getName(), new StringBuilder(gson.toJson(metricResult)));
+      if (config.ENABLE_PROFILER) {
+        Measurement.getInstance().add(Profile.IOTDB_QUERY, System.nanoTime() - start);
       }
-    } catch (Exception e) {
-      LOGGER.error("{} execute query failed because", Thread.currentThread().getName(), e);
-    } finally {
-      queryLatch.countDown();
-      LOGGER.debug("{} Query Worker finished", Thread.currentThread().getName());
+      getTagValueFromPaths(metaData, decoder.getColumnsWithValues());
+      addBasicGroupByToResult(metaData, metricValueResult);
     }
   }
 
-  private MetricResult doAggregations(QueryMetric metric, MetricResult result)
+  private static class StreamedRows {
+
+    private long sampleSize = 0;
+  }
+
+  private MetricResult doAggregations(List<QueryAggregator> aggregators, MetricResult result)
       throws QueryException {
+    setAggregatorRange(aggregators);
+    return QueryAggregatorPipeline.run(aggregators, result);
+  }
 
-    for (QueryAggregator aggregator : metric.getAggregators()) {
-      if (aggregator instanceof QueryAggregatorAlignable) {
-        ((QueryAggregatorAlignable) aggregator).setStartTimestamp(startTime);
-        ((QueryAggregatorAlignable) aggregator).setEndTimestamp(endTime);
+  private void setAggregatorRange(List<QueryAggregator> aggregators) {
+    for (QueryAggregator aggregator : aggregators) {
+      if (aggregator instanceof QueryAggregatorRanged) {
+        ((QueryAggregatorRanged) aggregator).setStartTimestamp(startTime);
+        ((QueryAggregatorRanged) aggregator).setEndTimestamp(endTime);
       }
-      result = aggregator.doAggregate(result);
     }
+  }
 
-    return result;
+  private Statement createStatement(Connection connection) throws SQLException {
+    Statement statement = connection.createStatement();
+    context.register(statement);
+    return statement;
   }
 
   private String buildSqlStatement(QueryMetric metric, Map<Integer, String> pos2tag, int maxPath,
       long startTime, long endTime) {
+    return createSqlBuilder(metric, pos2tag, maxPath).generateSql(startTime, endTime);
+  }
+
+  private QuerySqlBuilder createSqlBuilder(QueryMetric metric, Map<Integer, String> pos2tag,
+      int maxPath) {
     QuerySqlBuilder sqlBuilder = new QuerySqlBuilder(metric.getName());
     for (int i = 0; i < maxPath; i++) {
       String tmpKey = pos2tag.getOrDefault(i, null);
@@ -172,7 +450,7 @@ public class QueryWorker extends Thread {
         sqlBuilder.append(metric.getTags().get(tmpKey));
       }
     }
-    return sqlBuilder.generateSql(startTime, endTime);
+    return sqlBuilder;
   }
 
   private void setTags(MetricValueResult metricValueResult) {
@@ -188,7 +466,7 @@ public class QueryWorker extends Thread {
   }
 
   private boolean getMetricMapping(QueryMetric metric) {
-    tag2pos = MetricsManager.getTagOrder(metric.getName());
+    tag2pos = getTagOrder(metric.getName());
     pos2tag = new HashMap<>();
 
     if (tag2pos == null) {
@@ -206,6 +484,46 @@ public class QueryWorker extends Thread {
     return true;
   }
 
+  /**
+   * Query the result of the pushed down aggregator and set the sample size.
+   *
+   * @return false if IoTDB failed to compute it, the raw datapoints should then be queried
+   */
+  private boolean getPushdownResult(QueryAggregatorPushdown pushdown,
+      MetricValueResult metricValueResult) {
+    String sql = pushdown.buildSql(createSqlBuilder(metric, pos2tag, tag2pos.size()), startTime,
+        endTime);
+    long start = 0;
+    if (config.ENABLE_PROFILER) {
+      start = System.nanoTime();
+    }
+    Connection connection = getConnection();
+    try (Statement statement = createStatement(connection)) {
+      LOGGER.debug("{} Send query SQL: {}", Thread.currentThread().getName(), sql);
+      statement.execute(sql);
+      ResultSet rs = statement.getResultSet();
+      ResultSetMetaData metaData = rs.getMetaData();
+      boolean[] paths = new boolean[metaData.getColumnCount() - 1];
+      metricResult.setSampleSize(pushdown.read(rs, metricValueResult, paths));
+      if (config.ENABLE_PROFILER) {
+        Measurement.getInstance().add(Profile.IOTDB_QUERY, System.nanoTime() - start);
+      }
+      getTagValueFromPaths(metaData, paths);
+      addBasicGroupByToResult(metaData, metricValueResult);
+      return true;
+    } catch (SQLException e) {
+      metricValueResult.getDatapoints().clear();
+      if (context.isCancelled()) {
+        LOGGER.warn("{} Query cancelled, SQL: {}", Thread.currentThread().getName(), sql);
+        metricResult.setSampleSize(0L);
+        return true;
+      }
+      LOGGER.warn("{} Can not push {} down, query the datapoints instead: {}",
+          Thread.currentThread().getName(), pushdown.getAggregator().getType(), sql, e);
+      return false;
+    }
+  }
+
   private long getValueResult(String sql, MetricValueResult metricValueResult) {
     long sampleSize = 0L;
     if (sql == null || metricValueResult == null) {
@@ -217,116 +535,254 @@ public class QueryWorker extends Thread {
       start = System.nanoTime();
     }
 
-    Connection connection = IoTDBConnectionPool.getInstance().getConnections().get(0);
-    try (Statement statement = connection.createStatement()) {
+    Connection connection = getConnection();
+    try (Statement statement = createStatement(connection)) {
+      LOGGER.debug("{} Send query SQL: {}", Thread.currentThread().getName(), sql);
+      return readValues(statement, sql, metricValueResult, start);
+    } catch (SQLException e) {
+      if (context.isCancelled()) {
+        LOGGER.warn("{} Query cancelled, SQL: {}", Thread.currentThread().getName(), sql);
+        return sampleSize;
+      }
+      LOGGER.error("{} Execute failed SQL: {}", Thread.currentThread().getName(), sql, e);
+      metricValueResult.getDatapoints().clear();
+      connection = reconnect(connection, e);
+      if (connection == null) {
+        return sampleSize;
+      }
+      try (Statement statement = createStatement(connection)) {
+        LOGGER.info("{} Reconnect and retry SQL: {}", Thread.currentThread().getName(), sql);
+        return readValues(statement, sql, metricValueResult, start);
+      } catch (SQLException ex) {
+        metricValueResult.getDatapoints().clear();
+        LOGGER.error("{} Retry SQL failed: {}", Thread.currentThread().getName(), sql, ex);
+      }
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Renew the connection of the worker if the statement failed because the connection is broken.
+   *
+   * @return The new connection to retry the statement on, or null if the statement should not be
+   * retried
+   */
+  private Connection reconnect(Connection connection, SQLException e) {
+    if (context.isCancelled() || !IoTDBUtil.isConnectionFailure(connection, e)) {
+      return null;
+    }
+    try {
+      return renewConnection(connection);
+    } catch (SQLException ex) {
+      LOGGER.error("{} Reconnect to replica {} failed", Thread.currentThread().getName(), replica,
+          ex);
+      return null;
+    }
+  }
+
+  Connection getConnection() {
+    return IoTDBConnectionPool.getInstance().getConnections().get(replica);
+  }
+
+  Connection renewConnection(Connection connection) throws SQLException {
+    return IoTDBConnectionPool.getInstance().renewConnection(replica, connection);
+  }
+
+  Map<String, Integer> getTagOrder(String metricName) {
+    return MetricsManager.getTagOrder(metricName);
+  }
+
+  /**
+   * Read the datapoints of the query into the result. Once the datapoints reach the limit of the
+   * worker, the datapoints read and the following ones are downsampled with DOWNSAMPLE_METHOD to
+   * the limit, or the reading stops if downsampling is off or the values are not numbers.
+   *
+   * @return The number of datapoints read
+   */
+  private long readValues(Statement statement, String sql, MetricValueResult metricValueResult,
+      long start) throws SQLException {
+    boolean isFirstNext = true;
+    complete = false;
+    statement.execute(sql);
+    ResultSet rs = statement.getResultSet();
+    ResultSetMetaData metaData = rs.getMetaData();
+    ResultSetDecoder decoder = new ResultSetDecoder(rs);
+    DataPointBuffer points = metricValueResult.getDatapoints();
+    int maxCount = config.POINT_EDGE / metricCount;
+    long sampleSize = 0;
+    // The datapoints taken from the budget, given back if the read fails and is retried
+    long spent = 0;
+    Downsampler downsampler = null;
+    DataPointBuffer row = null;
+    boolean dropped = false;
+    try {
+      while (rs.next()) {
+        if (config.ENABLE_PROFILER && isFirstNext) {
+          Measurement.getInstance().add(Profile.FIRST_NEXT, System.nanoTime() - start);
+          isFirstNext = false;
+        }
+        if (downsampler != null) {
+          sampleSize += decoder.decodeRow(row);
+          for (int i = 0; i < row.size(); i++) {
+            downsampler.add(row, i);
+          }
+          row.clear();
+        } else {
+          int count = decoder.decodeRow(points);
+          sampleSize += count;
+          boolean overLimit;
+          if (pointBudget == null) {
+            overLimit = sampleSize > maxCount;
+          } else {
+            // a row of tombstones only takes nothing from the budget
+            overLimit = count > 0 && pointBudget.addAndGet(-count) < 0;
+            spent += count;
+          }
+          if (overLimit && !points.isEmpty()) {
+            // a sub-query keeps its share of the datapoints of the metric
+            downsampler = createDownsampler(points,
+                pointBudget == null ? maxCount : (int) (maxCount * pointShare));
+            if (downsampler == null) {
+              LOGGER.warn("{} Datapoints of {} beyond {} are dropped",
+                  Thread.currentThread().getName(), metric.getName(), points.size());
+              dropped = true;
+              break;
+            }
+            row = new DataPointBuffer(metaData.getColumnCount());
+          }
+        }
+        if (context.isCancelled()) {
+          break;
+        }
+      }
+    } catch (SQLException e) {
+      if (pointBudget != null) {
+        pointBudget.addAndGet(spent);
+      }
+      throw e;
+    }
+    complete = downsampler == null && !dropped && !context.isCancelled();
+    if (downsampler != null) {
+      downsampler.finish(points);
+      LOGGER.info("{} {} datapoints of {} downsampled to {}", Thread.currentThread().getName(),
+          sampleSize, metric.getName(), points.size());
+    }
+    if (config.ENABLE_PROFILER) {
+      Measurement.getInstance().add(Profile.IOTDB_QUERY, System.nanoTime() - start);
+    }
+    getTagValueFromPaths(metaData, decoder.getColumnsWithValues());
+    addBasicGroupByToResult(metaData, metricValueResult);
+    return sampleSize;
+  }
+
+  /**
+   * Move the datapoints into a downsampler of DOWNSAMPLE_METHOD over the time range of the worker.
+   *
+   * @return The downsampler, or null if downsampling is off or the values are not numbers, the
+   * datapoints are then left as they are
+   */
+  private Downsampler createDownsampler(DataPointBuffer points, int maxCount) {
+    Downsampler.Method method;
+    try {
+      method = Downsampler.Method.fromString(config.DOWNSAMPLE_METHOD);
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown DOWNSAMPLE_METHOD {}", config.DOWNSAMPLE_METHOD);
+      method = null;
+    }
+    if (method == null || points.getType(0) == Types.VARCHAR) {
+      return null;
+    }
+    Downsampler downsampler = new Downsampler(method, startTime, endTime, maxCount);
+    for (int i = 0; i < points.size(); i++) {
+      downsampler.add(points, i);
+    }
+    points.clear();
+    return downsampler;
+  }
+
+  /**
+   * Query the datapoints of the metric, keeping the datapoints of each series apart.
+   *
+   * @return The datapoints and the tags of each series which has datapoints
+   */
+  private List<MetricValueResult> getSeriesResults(String sql) {
+    long start = 0;
+    if (config.ENABLE_PROFILER) {
+      start = System.nanoTime();
+    }
+    Connection connection = getConnection();
+    try {
+      return readSeries(connection, sql, start);
+    } catch (SQLException e) {
+      if (context.isCancelled()) {
+        LOGGER.warn("{} Query cancelled, SQL: {}", Thread.currentThread().getName(), sql);
+        return new ArrayList<>();
+      }
+      LOGGER.error("{} Execute failed SQL: {}", Thread.currentThread().getName(), sql, e);
+      connection = reconnect(connection, e);
+      if (connection == null) {
+        return new ArrayList<>();
+      }
+      try {
+        return readSeries(connection, sql, start);
+      } catch (SQLException ex) {
+        LOGGER.error("{} Retry SQL failed: {}", Thread.currentThread().getName(), sql, ex);
+      }
+    }
+    return new ArrayList<>();
+  }
+
+  private List<MetricValueResult> readSeries(Connection connection, String sql, long start)
+      throws SQLException {
+    try (Statement statement = createStatement(connection)) {
       LOGGER.debug("{} Send query SQL: {}", Thread.currentThread().getName(), sql);
       boolean isFirstNext = true;
       statement.execute(sql);
       ResultSet rs = statement.getResultSet();
       ResultSetMetaData metaData = rs.getMetaData();
-      int columnCount = metaData.getColumnCount();
+      ResultSetDecoder decoder = new ResultSetDecoder(rs);
+      DataPointBuffer[] columns = new DataPointBuffer[metaData.getColumnCount() - 1];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = new DataPointBuffer();
+      }
       int maxCount = config.POINT_EDGE / metricCount;
-      boolean[] paths = new boolean[columnCount - 1];
+      long sampleSize = 0;
       while (rs.next()) {
         if (config.ENABLE_PROFILER && isFirstNext) {
           Measurement.getInstance().add(Profile.FIRST_NEXT, System.nanoTime() - start);
           isFirstNext = false;
         }
-        long timestamp = rs.getLong(1);
-        for (int i = 2; i <= columnCount; i++) {
-          String value = rs.getString(i);
-          if (value == null || value.equals(DeleteSqlBuilder.NULL_STR) || value
-              .equals("2.147483646E9")) {
-            continue;
-          }
-          sampleSize++;
-          paths[i - 2] = true;
-          QueryDataPoint dataPoint = null;
-          switch (findType(value)) {
-            case Types.INTEGER:
-              int intValue = rs.getInt(i);
-              dataPoint = new QueryDataPoint(timestamp, intValue);
-              break;
-            case Types.DOUBLE:
-              double doubleValue = rs.getDouble(i);
-              dataPoint = new QueryDataPoint(timestamp, doubleValue);
-              break;
-            case Types.VARCHAR:
-              dataPoint = new QueryDataPoint(timestamp, value);
-              break;
-            default:
-              LOGGER.error("QueryExecutor.execute: invalid type");
-          }
-          metricValueResult.addDataPoint(dataPoint);
-        }
-        if(sampleSize > maxCount) {
+        sampleSize += decoder.decodeRow(columns);
+        if (sampleSize > maxCount || context.isCancelled()) {
           break;
         }
       }
       if (config.ENABLE_PROFILER) {
         Measurement.getInstance().add(Profile.IOTDB_QUERY, System.nanoTime() - start);
       }
-      getTagValueFromPaths(metaData, paths);
-      addBasicGroupByToResult(metaData, metricValueResult);
-    } catch (SQLException e) {
-      LOGGER.error("{} Execute failed SQL: {}", Thread.currentThread().getName(), sql, e);
-      IoTDBConnectionPool.getInstance().createConnections();
-      connection = IoTDBConnectionPool.getInstance().getConnections().get(0);
-      try (Statement statement = connection.createStatement()) {
-        LOGGER.info("{} Recreate connections and retry SQL: {}", Thread.currentThread().getName(), sql, e);
-        boolean isFirstNext = true;
-        statement.execute(sql);
-        ResultSet rs = statement.getResultSet();
-        ResultSetMetaData metaData = rs.getMetaData();
-        int columnCount = metaData.getColumnCount();
-        int maxCount = config.POINT_EDGE / metricCount;
-        boolean[] paths = new boolean[columnCount - 1];
-        while (rs.next()) {
-          if (config.ENABLE_PROFILER && isFirstNext) {
-            Measurement.getInstance().add(Profile.FIRST_NEXT, System.nanoTime() - start);
-            isFirstNext = false;
-          }
-          long timestamp = rs.getLong(1);
-          for (int i = 2; i <= columnCount; i++) {
-            String value = rs.getString(i);
-            if (value == null || value.equals(DeleteSqlBuilder.NULL_STR) || value
-                .equals("2.147483646E9")) {
-              continue;
-            }
-            sampleSize++;
-            paths[i - 2] = true;
-            QueryDataPoint dataPoint = null;
-            switch (findType(value)) {
-              case Types.INTEGER:
-                int intValue = rs.getInt(i);
-                dataPoint = new QueryDataPoint(timestamp, intValue);
-                break;
-              case Types.DOUBLE:
-                double doubleValue = rs.getDouble(i);
-                dataPoint = new QueryDataPoint(timestamp, doubleValue);
-                break;
-              case Types.VARCHAR:
-                dataPoint = new QueryDataPoint(timestamp, value);
-                break;
-              default:
-                LOGGER.error("QueryExecutor.execute: invalid type");
-            }
-            metricValueResult.addDataPoint(dataPoint);
-          }
-          if(sampleSize > maxCount) {
-            break;
-          }
+      Map<Integer, String> tagOfPosition = new HashMap<>();
+      for (Map.Entry<String, Integer> entry : tag2pos.entrySet()) {
+        tagOfPosition.put(entry.getValue(), entry.getKey());
+      }
+      List<MetricValueResult> series = new ArrayList<>();
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i].isEmpty()) {
+          continue;
         }
-        if (config.ENABLE_PROFILER) {
-          Measurement.getInstance().add(Profile.IOTDB_QUERY, System.nanoTime() - start);
+        MetricValueResult oneSeries = new MetricValueResult(metric.getName());
+        oneSeries.setValues(columns[i]);
+        // same layout of the path as in getTagValueFromPaths
+        String[] paths = metaData.getColumnName(i + 2).split("\\.");
+        for (int j = 2; j < paths.length - 1; j++) {
+          String tag = tagOfPosition.get(j - 2);
+          if (tag != null) {
+            oneSeries.addTag(tag, paths[j]);
+          }
         }
-        getTagValueFromPaths(metaData, paths);
-        addBasicGroupByToResult(metaData, metricValueResult);
-      } catch (SQLException ex) {
-        LOGGER.error("{} Retry SQL failed: {}", Thread.currentThread().getName(), sql, e);
+        series.add(oneSeries);
       }
+      return series;
     }
-    return sampleSize;
   }
 
   private void getTagValueFromPaths(ResultSetMetaData metaData, boolean[] hasPaths)
@@ -352,27 +808,6 @@ public class QueryWorker extends Thread {
     }
   }
 
-  private int findType(String string) {
-    if (isNumeric(string)) {
-      return Types.INTEGER;
-    } else {
-      if (string.contains(".")) {
-        return Types.DOUBLE;
-      } else {
-        return Types.VARCHAR;
-      }
-    }
-  }
-
-  private boolean isNumeric(String string) {
-    for (int i = 0; i < string.length(); i++) {
-      if (!Character.isDigit(string.charAt(i))) {
-        return false;
-      }
-    }
-    return true;
-  }
-
   private void addBasicGroupByToResult(
       ResultSetMetaData metaData, MetricValueResult metricValueResult) throws SQLException {
     int type = metaData.getColumnType(2);
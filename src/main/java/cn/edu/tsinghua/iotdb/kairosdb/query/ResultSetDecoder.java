@@ -0,0 +1,181 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.DeleteSqlBuilder;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Decodes the rows of a query ResultSet, whose first column is the timestamp, into datapoints. The
+ * reader of each column is chosen once from its type in ResultSetMetaData: integer columns are
+ * parsed as long, floating point columns as double and text columns are kept as they are. The
+ * deleted values, overwritten with DeleteSqlBuilder.NULL_STR, are recognized by value.
+ *
+ * <p>The IoTDB driver gives every field as a String and its typed getters parse that String, so a
+ * single getString() per cell followed by the parse of the column type is the cheapest way to read
+ * it. The typed getters would also fail on the null fields of an aligned row.
+ */
+public class ResultSetDecoder {
+
+  private static final long DELETED_VALUE = Long.parseLong(DeleteSqlBuilder.NULL_STR);
+
+  private final ResultSet rs;
+  private final int columnCount;
+  private final ColumnReader[] readers;
+  // Whether a value has been read in each column, the timestamp column excluded
+  private final boolean[] hasValues;
+
+  public ResultSetDecoder(ResultSet rs) throws SQLException {
+    this.rs = rs;
+    ResultSetMetaData metaData = rs.getMetaData();
+    columnCount = metaData.getColumnCount();
+    readers = new ColumnReader[columnCount + 1];
+    for (int i = 2; i <= columnCount; i++) {
+      readers[i] = readerOf(metaData.getColumnType(i));
+    }
+    hasValues = new boolean[Math.max(columnCount - 1, 0)];
+  }
+
+  private static ColumnReader readerOf(int type) {
+    switch (type) {
+      case Types.BIGINT:
+      case Types.INTEGER:
+        return ResultSetDecoder::readLong;
+      case Types.DOUBLE:
+      case Types.FLOAT:
+        return ResultSetDecoder::readDouble;
+      case Types.VARCHAR:
+      case Types.BOOLEAN:
+        return ResultSetDecoder::readText;
+      default:
+        return ResultSetDecoder::readAnyType;
+    }
+  }
+
+  /**
+   * Decode the values of the current row.
+   *
+   * @param points The buffer the values are added to
+   * @return The number of values added, the null and deleted ones are skipped
+   */
+  public int decodeRow(DataPointBuffer points) throws SQLException {
+    return decodeRow(points, null);
+  }
+
+  /**
+   * Decode the values of the current row, each one into the buffer of its column, so that the
+   * datapoints of each series are kept apart.
+   *
+   * @param columns The buffers of the columns, the timestamp column excluded
+   * @return The number of values added, the null and deleted ones are skipped
+   */
+  public int decodeRow(DataPointBuffer[] columns) throws SQLException {
+    return decodeRow(null, columns);
+  }
+
+  private int decodeRow(DataPointBuffer points, DataPointBuffer[] columns) throws SQLException {
+    long timestamp = rs.getLong(1);
+    int count = 0;
+    for (int i = 2; i <= columnCount; i++) {
+      String value = rs.getString(i);
+      if (value == null) {
+        continue;
+      }
+      if (readers[i].read(timestamp, value, columns == null ? points : columns[i - 2])) {
+        hasValues[i - 2] = true;
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public boolean[] getColumnsWithValues() {
+    return hasValues;
+  }
+
+  private static boolean readLong(long timestamp, String value, DataPointBuffer points) {
+    long longValue;
+    try {
+      longValue = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      // e.g. an aggregation of an integer column
+      return readAnyType(timestamp, value, points);
+    }
+    if (longValue == DELETED_VALUE) {
+      return false;
+    }
+    points.add(timestamp, longValue);
+    return true;
+  }
+
+  private static boolean readDouble(long timestamp, String value, DataPointBuffer points) {
+    double doubleValue;
+    try {
+      doubleValue = Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return readAnyType(timestamp, value, points);
+    }
+    if (doubleValue == DELETED_VALUE) {
+      return false;
+    }
+    points.add(timestamp, doubleValue);
+    return true;
+  }
+
+  private static boolean readText(long timestamp, String value, DataPointBuffer points) {
+    if (value.equals(DeleteSqlBuilder.NULL_STR)) {
+      return false;
+    }
+    points.add(timestamp, value);
+    return true;
+  }
+
+  /**
+   * Infer the type from the value, for the columns of an unknown type.
+   */
+  private static boolean readAnyType(long timestamp, String value, DataPointBuffer points) {
+    if (value.equals(DeleteSqlBuilder.NULL_STR) || value.equals("2.147483646E9")) {
+      return false;
+    }
+    if (isNumeric(value)) {
+      try {
+        points.add(timestamp, Long.parseLong(value));
+        return true;
+      } catch (NumberFormatException e) {
+        // too long for a long, keep it as text
+      }
+    } else if (value.contains(".")) {
+      try {
+        points.add(timestamp, Double.parseDouble(value));
+        return true;
+      } catch (NumberFormatException e) {
+        // not a number, keep it as text
+      }
+    }
+    points.add(timestamp, value);
+    return true;
+  }
+
+  private static boolean isNumeric(String string) {
+    if (string.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < string.length(); i++) {
+      if (!Character.isDigit(string.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private interface ColumnReader {
+
+    /**
+     * @return true if a datapoint has been added
+     */
+    boolean read(long timestamp, String value, DataPointBuffer points);
+  }
+
+}
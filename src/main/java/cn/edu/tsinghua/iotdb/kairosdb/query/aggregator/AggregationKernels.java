@@ -0,0 +1,132 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+/**
+ * The reductions of the sampling aggregators over a slice [from, to) of the values of a
+ * DataPointBuffer whose values are all doubles, read in place as the bits of the doubles, see
+ * RangeCursor#aggregateSlice. The loops are kept free of calls and branches on the values, so that
+ * the JIT can unroll them; the sums are spread over four independent accumulators so that their
+ * adds are not chained one after the other.
+ */
+final class AggregationKernels {
+
+  private AggregationKernels() {
+  }
+
+  static double sum(long[] bits, int from, int to) {
+    double sum0 = 0;
+    double sum1 = 0;
+    double sum2 = 0;
+    double sum3 = 0;
+    int i = from;
+    for (; i + 3 < to; i += 4) {
+      sum0 += Double.longBitsToDouble(bits[i]);
+      sum1 += Double.longBitsToDouble(bits[i + 1]);
+      sum2 += Double.longBitsToDouble(bits[i + 2]);
+      sum3 += Double.longBitsToDouble(bits[i + 3]);
+    }
+    for (; i < to; i++) {
+      sum0 += Double.longBitsToDouble(bits[i]);
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  static double mean(long[] bits, int from, int to) {
+    return sum(bits, from, to) / (to - from);
+  }
+
+  /**
+   * The mean and the sum of the squared deviations from it, in one pass as Welford does, which
+   * does not lose precision as the difference between the sum of the squares and the square of
+   * the sum does. Each of the four accumulators takes every fourth value, they are merged as Chan
+   * et al. do before the remaining values are added.
+   *
+   * @param moments Set to {mean, sum of the squared deviations}
+   */
+  static void moments(long[] bits, int from, int to, double[] moments) {
+    double mean0 = 0;
+    double mean1 = 0;
+    double mean2 = 0;
+    double mean3 = 0;
+    double m20 = 0;
+    double m21 = 0;
+    double m22 = 0;
+    double m23 = 0;
+    // The number of values of each accumulator
+    int n = 0;
+    int i = from;
+    for (; i + 3 < to; i += 4) {
+      n++;
+      double value0 = Double.longBitsToDouble(bits[i]);
+      double value1 = Double.longBitsToDouble(bits[i + 1]);
+      double value2 = Double.longBitsToDouble(bits[i + 2]);
+      double value3 = Double.longBitsToDouble(bits[i + 3]);
+      double delta0 = value0 - mean0;
+      double delta1 = value1 - mean1;
+      double delta2 = value2 - mean2;
+      double delta3 = value3 - mean3;
+      mean0 += delta0 / n;
+      mean1 += delta1 / n;
+      mean2 += delta2 / n;
+      mean3 += delta3 / n;
+      m20 += delta0 * (value0 - mean0);
+      m21 += delta1 * (value1 - mean1);
+      m22 += delta2 * (value2 - mean2);
+      m23 += delta3 * (value3 - mean3);
+    }
+    // Merge accumulators of equal counts: the mean is their average, and the sum of the squared
+    // deviations grows by the squared difference of their means times half their count
+    double delta01 = mean1 - mean0;
+    double delta23 = mean3 - mean2;
+    double mean01 = (mean0 + mean1) / 2;
+    double mean23 = (mean2 + mean3) / 2;
+    double m201 = m20 + m21 + delta01 * delta01 * n / 2;
+    double m223 = m22 + m23 + delta23 * delta23 * n / 2;
+    double delta = mean23 - mean01;
+    double mean = (mean01 + mean23) / 2;
+    double m2 = m201 + m223 + delta * delta * n;
+    long count = 4L * n;
+    for (; i < to; i++) {
+      double value = Double.longBitsToDouble(bits[i]);
+      count++;
+      delta = value - mean;
+      mean += delta / count;
+      m2 += delta * (value - mean);
+    }
+    moments[0] = mean;
+    moments[1] = m2;
+  }
+
+  /**
+   * @return The index of the first smallest value, a NaN being never smaller, as
+   * PointCursor#compareTo(PointCursor)
+   */
+  static int indexOfMin(long[] bits, int from, int to) {
+    int index = from;
+    double min = Double.longBitsToDouble(bits[from]);
+    for (int i = from + 1; i < to; i++) {
+      double value = Double.longBitsToDouble(bits[i]);
+      if (value < min) {
+        min = value;
+        index = i;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return The index of the first largest value, a NaN being never larger
+   */
+  static int indexOfMax(long[] bits, int from, int to) {
+    int index = from;
+    double max = Double.longBitsToDouble(bits[from]);
+    for (int i = from + 1; i < to; i++) {
+      double value = Double.longBitsToDouble(bits[i]);
+      if (value > max) {
+        max = value;
+        index = i;
+      }
+    }
+    return index;
+  }
+
+}
@@ -0,0 +1,276 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reduces a stream of numeric datapoints, in time order, to at most maxPoints datapoints which
+ * keep the shape of the series when drawn. The time range is cut into buckets of the same length
+ * and the datapoints are kept by bucket:
+ *
+ * <ul>
+ * <li>LTTB (Largest-Triangle-Three-Buckets): the first and the last datapoints, and in each
+ * bucket the datapoint forming the largest triangle with the datapoint kept in the previous
+ * bucket and the average of the next bucket. Only the datapoints of two buckets are held.</li>
+ * <li>MIN_MAX: the first, the last, the smallest and the largest datapoints of each bucket, i.e.
+ * what a chart draws for each pixel column. Only four datapoints are held.</li>
+ * </ul>
+ *
+ * <p>The datapoints without a numeric value are skipped.
+ */
+public class Downsampler {
+
+  public enum Method {
+    LTTB, MIN_MAX;
+
+    /**
+     * @return The method, or null if downsampling is off, i.e. "none"
+     * @throws IllegalArgumentException if there is no such method
+     */
+    public static Method fromString(String method) {
+      for (Method value : values()) {
+        if (value.toString().equalsIgnoreCase(method)) {
+          return value;
+        }
+      }
+      if ("none".equalsIgnoreCase(method)) {
+        return null;
+      }
+      throw new IllegalArgumentException("No downsampling method " + method);
+    }
+  }
+
+  private final Method method;
+  private final long startTime;
+  private final long bucketLength;
+  private final long bucketCount;
+  private final DataPointBuffer output = new DataPointBuffer();
+  private long inputCount = 0;
+
+  // The bucket of the datapoints being read, -1 before the first one
+  private long bucket = -1;
+
+  // LTTB: the datapoint kept in the last selected bucket, the datapoints of the previous bucket,
+  // waiting for the average of the current one, and the datapoints of the current bucket
+  private final Point selected = new Point();
+  private boolean hasSelected = false;
+  private DataPointBuffer previous = new DataPointBuffer();
+  private DataPointBuffer current = new DataPointBuffer();
+  private double currentTimeSum;
+  private double currentValueSum;
+
+  // MIN_MAX: the first, last, smallest and largest datapoints of the current bucket
+  private final Point first = new Point();
+  private final Point last = new Point();
+  private final Point min = new Point();
+  private final Point max = new Point();
+  private final Point[] bucketPoints = {first, min, max, last};
+
+  // The datapoint added from a cursor
+  private final DataPointBuffer single = new DataPointBuffer(1);
+
+  /**
+   * @param startTime The start of the time range of the datapoints
+   * @param endTime The end of the time range of the datapoints, included
+   * @param maxPoints The max number of datapoints kept, at least 4
+   */
+  public Downsampler(Method method, long startTime, long endTime, int maxPoints) {
+    this.method = method;
+    this.startTime = startTime;
+    maxPoints = Math.max(maxPoints, 4);
+    // LTTB keeps the first and the last datapoints apart from one datapoint by bucket
+    bucketCount = method == Method.LTTB ? maxPoints - 2 : maxPoints / 4;
+    long range = Math.max(endTime - startTime + 1, 1);
+    bucketLength = Math.max((range + bucketCount - 1) / bucketCount, 1);
+  }
+
+  public void add(DataPointBuffer points, int index) {
+    int type = points.getType(index);
+    if (type != Types.INTEGER && type != Types.DOUBLE) {
+      return;
+    }
+    inputCount++;
+    long timestamp = points.getTimestamp(index);
+    // the datapoints out of the time range are in the first or the last bucket
+    long pointBucket = Math.min(Math.max(timestamp - startTime, 0) / bucketLength,
+        bucketCount - 1);
+    if (method == Method.LTTB) {
+      addLttb(points, index, timestamp, pointBucket);
+    } else {
+      addMinMax(points, index, pointBucket);
+    }
+  }
+
+  void add(PointCursor point) {
+    if (point.type != Types.INTEGER && point.type != Types.DOUBLE) {
+      return;
+    }
+    single.clear();
+    point.addTo(single);
+    add(single, 0);
+  }
+
+  /**
+   * @return The number of numeric datapoints added
+   */
+  public long getInputCount() {
+    return inputCount;
+  }
+
+  /**
+   * End the stream and append the kept datapoints, in time order, to points.
+   */
+  public void finish(DataPointBuffer points) {
+    if (method == Method.LTTB) {
+      finishLttb();
+    } else if (bucket >= 0) {
+      flushMinMax();
+    }
+    bucket = -1;
+    for (int i = 0; i < output.size(); i++) {
+      points.add(output, i);
+    }
+    output.clear();
+  }
+
+  private void addLttb(DataPointBuffer points, int index, long timestamp, long pointBucket) {
+    if (!hasSelected) {
+      // the first datapoint is always kept
+      selected.load(points, index);
+      selected.addTo(output);
+      hasSelected = true;
+      bucket = pointBucket;
+      return;
+    }
+    if (pointBucket != bucket) {
+      if (!current.isEmpty()) {
+        // the average of the current bucket is known, select the datapoint of the previous one
+        selectLttb(currentTimeSum / current.size(), currentValueSum / current.size());
+        DataPointBuffer swap = previous;
+        previous = current;
+        current = swap;
+        current.clear();
+      }
+      currentTimeSum = 0;
+      currentValueSum = 0;
+      bucket = pointBucket;
+    }
+    current.add(points, index);
+    currentTimeSum += timestamp;
+    currentValueSum += points.getAsDouble(index);
+  }
+
+  private void finishLttb() {
+    if (current.isEmpty()) {
+      return;
+    }
+    // the last datapoint is always kept, the others of the last bucket make a bucket before it
+    int lastIndex = current.size() - 1;
+    double lastTime = current.getTimestamp(lastIndex);
+    double lastValue = current.getAsDouble(lastIndex);
+    if (lastIndex > 0) {
+      selectLttb((currentTimeSum - lastTime) / lastIndex, (currentValueSum - lastValue) / lastIndex);
+    } else {
+      selectLttb(lastTime, lastValue);
+    }
+    DataPointBuffer swap = previous;
+    previous = current;
+    current = swap;
+    current.add(previous, lastIndex);
+    previous.remove(lastIndex);
+    selectLttb(lastTime, lastValue);
+    output.add(current, 0);
+    current.clear();
+    hasSelected = false;
+  }
+
+  /**
+   * Keep the datapoint of the previous bucket forming the largest triangle with the selected
+   * datapoint and (nextTime, nextValue).
+   */
+  private void selectLttb(double nextTime, double nextValue) {
+    if (previous.isEmpty()) {
+      return;
+    }
+    double selectedTime = selected.timestamp;
+    double selectedValue = selected.getAsDouble();
+    int best = 0;
+    double bestArea = -1;
+    for (int i = 0; i < previous.size(); i++) {
+      // twice the area of the triangle, the factor does not change the largest one
+      double area = Math.abs((selectedTime - nextTime) * (previous.getAsDouble(i) - selectedValue)
+          - (selectedTime - previous.getTimestamp(i)) * (nextValue - selectedValue));
+      if (area > bestArea) {
+        bestArea = area;
+        best = i;
+      }
+    }
+    selected.load(previous, best);
+    selected.addTo(output);
+    previous.clear();
+  }
+
+  private void addMinMax(DataPointBuffer points, int index, long pointBucket) {
+    if (pointBucket != bucket) {
+      if (bucket >= 0) {
+        flushMinMax();
+      }
+      bucket = pointBucket;
+      first.load(points, index);
+      min.load(points, index);
+      max.load(points, index);
+    } else {
+      double value = points.getAsDouble(index);
+      if (value < min.getAsDouble()) {
+        min.load(points, index);
+      }
+      if (value > max.getAsDouble()) {
+        max.load(points, index);
+      }
+    }
+    last.load(points, index);
+  }
+
+  /**
+   * Keep the first, smallest, largest and last datapoints of the bucket, in the order they were
+   * added and once each.
+   */
+  private void flushMinMax() {
+    Arrays.sort(bucketPoints, Comparator.comparingLong(point -> point.order));
+    long lastOrder = -1;
+    for (Point point : bucketPoints) {
+      if (point.order != lastOrder) {
+        point.addTo(output);
+        lastOrder = point.order;
+      }
+    }
+  }
+
+  /**
+   * A datapoint held by the downsampler.
+   */
+  private class Point extends PointCursor {
+
+    // The number of datapoints added before this one
+    private long order;
+
+    private void load(DataPointBuffer points, int index) {
+      order = inputCount;
+      timestamp = points.getTimestamp(index);
+      type = points.getType(index);
+      if (type == Types.INTEGER) {
+        longValue = points.getLongValue(index);
+      } else {
+        doubleValue = points.getDoubleValue(index);
+      }
+    }
+
+    @Override
+    boolean next() {
+      return false;
+    }
+  }
+
+}
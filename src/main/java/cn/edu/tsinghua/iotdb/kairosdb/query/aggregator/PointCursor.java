@@ -0,0 +1,147 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
+import java.sql.Types;
+
+/**
+ * A pull-based stream of datapoints, whose current datapoint is held by the fields of the cursor.
+ * The aggregators of a query are fused into a chain of cursors, see QueryAggregatorPipeline.
+ */
+abstract class PointCursor {
+
+  long timestamp;
+  // Types.INTEGER, Types.DOUBLE, Types.VARCHAR or 0 if the datapoint has no value
+  int type;
+  long longValue;
+  double doubleValue;
+  String text;
+
+  /**
+   * Move to the next datapoint.
+   *
+   * @return false if there is no more datapoint, and so on for the next calls
+   */
+  abstract boolean next() throws QueryException;
+
+  static PointCursor of(DataPointBuffer points) {
+    return new BufferCursor(points);
+  }
+
+  void set(long timestamp, long value) {
+    this.timestamp = timestamp;
+    this.type = Types.INTEGER;
+    this.longValue = value;
+  }
+
+  void set(long timestamp, double value) {
+    this.timestamp = timestamp;
+    this.type = Types.DOUBLE;
+    this.doubleValue = value;
+  }
+
+  void set(PointCursor point) {
+    this.timestamp = point.timestamp;
+    this.type = point.type;
+    this.longValue = point.longValue;
+    this.doubleValue = point.doubleValue;
+    this.text = point.text;
+  }
+
+  /**
+   * Same as QueryDataPoint#getAsDouble()
+   */
+  double getAsDouble() {
+    switch (type) {
+      case Types.INTEGER:
+        return longValue;
+      case Types.DOUBLE:
+        return doubleValue;
+      default:
+        throw new IllegalArgumentException(
+            "Among QueryDataPoint.getAsDouble(), type must be int or double");
+    }
+  }
+
+  /**
+   * Compare two datapoints by value, as QueryDataPoint#compareTo(QueryDataPoint)
+   */
+  int compareTo(PointCursor other) {
+    if (type != other.type) {
+      throw new IllegalArgumentException("When comparing QueryDataPoint, both types must be same.");
+    }
+    switch (type) {
+      case Types.INTEGER:
+        return Long.compare(longValue, other.longValue);
+      case Types.DOUBLE:
+        double tDouble = doubleValue - other.doubleValue;
+        if (tDouble > 0) {
+          return 1;
+        } else if (tDouble < 0) {
+          return -1;
+        } else {
+          return 0;
+        }
+      case Types.VARCHAR:
+        return text.compareTo(other.text);
+      default:
+        return 0;
+    }
+  }
+
+  void addTo(DataPointBuffer points) {
+    switch (type) {
+      case Types.INTEGER:
+        points.add(timestamp, longValue);
+        break;
+      case Types.DOUBLE:
+        points.add(timestamp, doubleValue);
+        break;
+      case Types.VARCHAR:
+        points.add(timestamp, text);
+        break;
+      default:
+        points.add(new QueryDataPoint(timestamp));
+        break;
+    }
+  }
+
+  /**
+   * The cursor over the datapoints of a buffer, which a RangeCursor may also read by slices.
+   */
+  static class BufferCursor extends PointCursor {
+
+    final DataPointBuffer points;
+    int index = 0;
+
+    private BufferCursor(DataPointBuffer points) {
+      this.points = points;
+    }
+
+    @Override
+    boolean next() {
+      if (index >= points.size()) {
+        return false;
+      }
+      timestamp = points.getTimestamp(index);
+      type = points.getType(index);
+      switch (type) {
+        case Types.INTEGER:
+          longValue = points.getLongValue(index);
+          break;
+        case Types.DOUBLE:
+          doubleValue = points.getDoubleValue(index);
+          break;
+        case Types.VARCHAR:
+          text = points.getText(index);
+          break;
+        default:
+          break;
+      }
+      index++;
+      return true;
+    }
+  }
+
+}
@@ -2,13 +2,13 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
 import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.List;
+import java.util.Collections;
 
 public class QueryAggregatorCount extends QueryAggregator
-    implements QueryAggregatorSampling, QueryAggregatorAlignable {
+    implements QueryAggregatorSampling, QueryAggregatorAlignable, QueryAggregatorFusable {
 
   private Duration sampling;
 
@@ -23,24 +23,51 @@ public class QueryAggregatorCount extends QueryAggregator
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    return useMethodAggregate(this, result);
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
   }
 
   @Override
-  public MetricValueResult aggregate(MetricValueResult valueResult) {
-    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+  public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) {
     long step = getSampling().toMillisecond();
-
-    List<List<QueryDataPoint>> splitPoints =
-        valueResult.splitDataPoint(getStartTimestamp(), step, getAlign());
-
-    for (List<QueryDataPoint> points : splitPoints) {
-      long timestamp = computeTimestampByAlign(this, points.get(0).getTimestamp(), step);
-      newValueResult.addDataPoint(new QueryDataPoint(timestamp, points.size()));
-    }
-
-    return newValueResult;
+    return new RangeCursor(input, getStartTimestamp(), step, getAlign()) {
+
+      private long rangeTimestamp;
+      private int count;
+
+      @Override
+      void beginRange(PointCursor first) {
+        rangeTimestamp = computeTimestampByAlign(QueryAggregatorCount.this, first.timestamp, step);
+        count = 1;
+      }
+
+      @Override
+      void accumulate(PointCursor point) {
+        count++;
+      }
+
+      @Override
+      boolean isSliceable() {
+        return true;
+      }
+
+      @Override
+      boolean aggregateSlice(DataPointBuffer points, long[] doubleBits, int from, int to) {
+        set(computeTimestampByAlign(QueryAggregatorCount.this, points.getTimestamp(from), step),
+            (long) (to - from));
+        return true;
+      }
+
+      @Override
+      boolean endRange() {
+        set(rangeTimestamp, (long) count);
+        return true;
+      }
+    };
   }
 
   @Override
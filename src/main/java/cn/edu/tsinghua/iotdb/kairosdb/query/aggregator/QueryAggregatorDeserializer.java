@@ -166,6 +166,18 @@ public class QueryAggregatorDeserializer implements JsonDeserializer<QueryAggreg
           filterAggregator.setThreshold(thresholdEle.getAsDouble());
           aggregator = filterAggregator;
           break;
+        case LTTB:
+        case MIN_MAX:
+          QueryAggregatorDownsample downsampleAggregator =
+              new QueryAggregatorDownsample(queryAggregatorType);
+          JsonElement maxPointsEle = jsonElement.getAsJsonObject().get("max_points");
+          if (maxPointsEle == null) {
+            throw new JsonParseException(
+                String.format("Among aggregator %s, [max_points] must be specified", name));
+          }
+          downsampleAggregator.setMaxPoints(maxPointsEle.getAsInt());
+          aggregator = downsampleAggregator;
+          break;
         default:
           LOGGER.error("QueryAggregatorDeserializer.deserialize: unexpected aggregator type");
           throw new JsonParseException("unexpected aggregator type");
@@ -2,14 +2,14 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
 import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.List;
+import java.util.Collections;
 
 
 public class QueryAggregatorDev extends QueryAggregator
-    implements QueryAggregatorSampling, QueryAggregatorAlignable {
+    implements QueryAggregatorSampling, QueryAggregatorAlignable, QueryAggregatorFusable {
 
   private Duration sampling;
 
@@ -30,59 +30,79 @@ public class QueryAggregatorDev extends QueryAggregator
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    return useMethodAggregate(this, result);
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
   }
 
   @Override
   public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
-    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) {
     long step = getSampling().toMillisecond();
+    return new RangeCursor(input, getStartTimestamp(), step, getAlign()) {
+
+      private long rangeTimestamp;
+      // The mean and the sum of the squared deviations of the range, updated as Welford does
+      private final double[] moments = new double[2];
+      private int count;
+
+      @Override
+      void beginRange(PointCursor first) {
+        rangeTimestamp = computeTimestampByAlign(QueryAggregatorDev.this, first.timestamp, step);
+        moments[0] = 0;
+        moments[1] = 0;
+        count = 0;
+        accumulate(first);
+      }
 
-    List<List<QueryDataPoint>> splitPoints =
-        valueResult.splitDataPoint(getStartTimestamp(), step, getAlign());
-
-    for (List<QueryDataPoint> points : splitPoints) {
-      long tmpTimestamp = computeTimestampByAlign(this, points.get(0).getTimestamp(), step);
-
-      double[] result = computeStandardDeviation(points);
-
-      QueryDataPoint point;
-
-      switch (getReturnType()) {
-        case VALUE_TYPE:
-          point = new QueryDataPoint(tmpTimestamp, result[0]);
-          break;
-        case POS_SD_TYPE:
-          point = new QueryDataPoint(tmpTimestamp, result[1] + result[0]);
-          break;
-        case NEG_SD_TYPE:
-          point = new QueryDataPoint(tmpTimestamp, result[1] - result[0]);
-          break;
-        default:
-          throw new QueryException("Among dev aggregator, return_type must be specified.");
+      @Override
+      void accumulate(PointCursor point) {
+        double value = point.getAsDouble();
+        count++;
+        double delta = value - moments[0];
+        moments[0] += delta / count;
+        moments[1] += delta * (value - moments[0]);
       }
 
-      newValueResult.addDataPoint(point);
+      @Override
+      boolean endRange() throws QueryException {
+        return setResult(rangeTimestamp);
+      }
 
-    }
+      @Override
+      boolean isSliceable() {
+        return true;
+      }
 
-    return newValueResult;
-  }
+      @Override
+      boolean aggregateSlice(DataPointBuffer points, long[] doubleBits, int from, int to)
+          throws QueryException {
+        AggregationKernels.moments(doubleBits, from, to, moments);
+        return setResult(
+            computeTimestampByAlign(QueryAggregatorDev.this, points.getTimestamp(from), step));
+      }
 
-  private double[] computeStandardDeviation(List<QueryDataPoint> points) {
-    int size = points.size();
-    double sum = 0;
-    for (QueryDataPoint point : points) {
-      sum += point.getAsDouble();
-    }
-    double avg = sum / size;
-    sum = 0;
-    for (QueryDataPoint point : points) {
-      double value = point.getAsDouble();
-      sum += (value - avg) * (value - avg);
-    }
-    return new double[]{Math.sqrt(sum), avg};
+      private boolean setResult(long timestamp) throws QueryException {
+        double deviation = Math.sqrt(moments[1]);
+        double avg = moments[0];
+        switch (getReturnType()) {
+          case VALUE_TYPE:
+            set(timestamp, deviation);
+            break;
+          case POS_SD_TYPE:
+            set(timestamp, avg + deviation);
+            break;
+          case NEG_SD_TYPE:
+            set(timestamp, avg - deviation);
+            break;
+          default:
+            throw new QueryException("Among dev aggregator, return_type must be specified.");
+        }
+        return true;
+      }
+    };
   }
 
   boolean setReturnTypeFromString(String returnType) {
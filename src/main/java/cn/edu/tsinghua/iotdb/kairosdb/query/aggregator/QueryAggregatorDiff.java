@@ -1,48 +1,45 @@
 package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
 
-public class QueryAggregatorDiff extends QueryAggregator {
+public class QueryAggregatorDiff extends QueryAggregator implements QueryAggregatorFusable {
 
   QueryAggregatorDiff() {
     super(QueryAggregatorType.DIFF);
   }
 
   @Override
-  public MetricResult doAggregate(MetricResult result) {
-
-    List<MetricValueResult> valueResults = result.getResults();
-
-    for (MetricValueResult valueResult : valueResults) {
-
-      List<QueryDataPoint> points = valueResult.getDatapoints();
-
-      if (valueResult.isTextType() || points.isEmpty()) {
-        continue;
-      }
-
-      List<QueryDataPoint> newPoints = new LinkedList<>();
-
-      QueryDataPoint tmpPoint = points.get(0);
-      points.remove(tmpPoint);
-
-      for (QueryDataPoint point : points) {
-        newPoints.add(new QueryDataPoint(point.getTimestamp(),
-            point.getAsDouble() - tmpPoint.getAsDouble()));
+  public MetricResult doAggregate(MetricResult result) throws QueryException {
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
+  }
 
-        tmpPoint = point;
+  @Override
+  public PointCursor fuse(PointCursor input) {
+    return new PointCursor() {
+
+      private boolean started = false;
+      private double preValue;
+
+      @Override
+      boolean next() throws QueryException {
+        if (!started) {
+          if (!input.next()) {
+            return false;
+          }
+          started = true;
+          preValue = input.getAsDouble();
+        }
+        if (!input.next()) {
+          return false;
+        }
+        double value = input.getAsDouble();
+        set(input.timestamp, value - preValue);
+        preValue = value;
+        return true;
       }
-
-
-      valueResult.setValues(newPoints);
-
-    }
-
-    return result;
+    };
   }
 
 }
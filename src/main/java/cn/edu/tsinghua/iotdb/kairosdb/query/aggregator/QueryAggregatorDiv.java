@@ -2,10 +2,10 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import java.util.List;
+import java.sql.Types;
+import java.util.Collections;
 
-public class QueryAggregatorDiv extends QueryAggregator {
+public class QueryAggregatorDiv extends QueryAggregator implements QueryAggregatorFusable {
 
   private double divisor;
 
@@ -15,24 +15,35 @@ public class QueryAggregatorDiv extends QueryAggregator {
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) throws QueryException {
     if (getDivisor() == 0) {
       throw new QueryException("Among div aggregator, divisor can't be zero");
     }
-
-    List<MetricValueResult> valueResults = result.getResults();
-
-    for (MetricValueResult valueResult : valueResults) {
-
-      if (valueResult.isTextType()) {
-        continue;
+    return new PointCursor() {
+      @Override
+      boolean next() throws QueryException {
+        if (!input.next()) {
+          return false;
+        }
+        set(input);
+        // Same as QueryDataPoint#dividedBy(double)
+        switch (type) {
+          case Types.INTEGER:
+            longValue = longValue / (long) getDivisor();
+            break;
+          case Types.DOUBLE:
+            doubleValue = doubleValue / getDivisor();
+            break;
+          default:
+            break;
+        }
+        return true;
       }
-
-      valueResult.getDatapoints().forEach(point -> point.dividedBy(getDivisor()));
-
-    }
-
-    return result;
+    };
   }
 
   private double getDivisor() {
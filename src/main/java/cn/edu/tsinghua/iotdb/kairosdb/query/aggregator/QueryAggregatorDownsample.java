@@ -0,0 +1,98 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.Collections;
+
+/**
+ * The lttb and min_max aggregators, which keep at most max_points datapoints of each result to
+ * draw it, see Downsampler.
+ */
+public class QueryAggregatorDownsample extends QueryAggregator implements
+    QueryAggregatorRanged, QueryAggregatorFusable {
+
+  private final Downsampler.Method method;
+
+  private int maxPoints;
+
+  private long startTimestamp;
+  private long endTimestamp;
+
+  QueryAggregatorDownsample(QueryAggregatorType type) {
+    super(type);
+    method = type == QueryAggregatorType.LTTB ? Downsampler.Method.LTTB
+        : Downsampler.Method.MIN_MAX;
+  }
+
+  @Override
+  public MetricResult doAggregate(MetricResult result) throws QueryException {
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
+  }
+
+  public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
+
+  @Override
+  public PointCursor fuse(PointCursor input) throws QueryException {
+    if (getMaxPoints() < 4) {
+      throw new QueryException(String.format(
+          "Among %s aggregator, max_points must be at least 4.", getType().toString().toLowerCase()));
+    }
+    Downsampler downsampler = new Downsampler(method, getStartTimestamp(), getEndTimestamp(),
+        getMaxPoints());
+    return new PointCursor() {
+
+      // The kept datapoints, once the input has been read
+      private PointCursor output;
+
+      @Override
+      boolean next() throws QueryException {
+        if (output == null) {
+          while (input.next()) {
+            downsampler.add(input);
+          }
+          DataPointBuffer points = new DataPointBuffer();
+          downsampler.finish(points);
+          output = PointCursor.of(points);
+        }
+        if (!output.next()) {
+          return false;
+        }
+        set(output);
+        return true;
+      }
+    };
+  }
+
+  void setMaxPoints(int maxPoints) {
+    this.maxPoints = maxPoints;
+  }
+
+  private int getMaxPoints() {
+    return maxPoints;
+  }
+
+  @Override
+  public void setStartTimestamp(long startTimestamp) {
+    this.startTimestamp = startTimestamp;
+  }
+
+  @Override
+  public long getStartTimestamp() {
+    return startTimestamp;
+  }
+
+  @Override
+  public void setEndTimestamp(long endTimestamp) {
+    this.endTimestamp = endTimestamp;
+  }
+
+  @Override
+  public long getEndTimestamp() {
+    return endTimestamp;
+  }
+
+}
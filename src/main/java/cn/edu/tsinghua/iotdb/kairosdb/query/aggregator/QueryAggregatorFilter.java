@@ -1,15 +1,12 @@
 package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
-import static cn.edu.tsinghua.iotdb.kairosdb.util.Preconditions.checkNotNullOrEmpty;
-
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+
+import static cn.edu.tsinghua.iotdb.kairosdb.util.Preconditions.checkNotNullOrEmpty;
 
-public class QueryAggregatorFilter extends QueryAggregator {
+public class QueryAggregatorFilter extends QueryAggregator implements QueryAggregatorFusable {
 
   private FilterOperandType operandType;
   private double threshold;
@@ -20,53 +17,41 @@ public class QueryAggregatorFilter extends QueryAggregator {
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    List<MetricValueResult> valueResults = result.getResults();
-
-    for (MetricValueResult valueResult : valueResults) {
-
-      if (valueResult.isTextType()) {
-        continue;
-      }
-
-      List<QueryDataPoint> list = new LinkedList<>();
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
+  }
 
-      for (QueryDataPoint point : valueResult.getDatapoints()) {
-        switch (operandType) {
-          case GT:
-            if (point.getAsDouble() > threshold) {
-              list.add(point);
-            }
-            break;
-          case GTE:
-            if (point.getAsDouble() >= threshold) {
-              list.add(point);
-            }
-            break;
-          case LT:
-            if (point.getAsDouble() < threshold) {
-              list.add(point);
-            }
-            break;
-          case LTE:
-            if (point.getAsDouble() <= threshold) {
-              list.add(point);
-            }
-            break;
-          case EQUAL:
-            if (point.getAsDouble() == threshold) {
-              list.add(point);
-            }
-            break;
-          default:
-            throw new QueryException("Among filter aggregator, "
-                + "threshold must be one of [gt, gte, lt, lte, equal]");
+  @Override
+  public PointCursor fuse(PointCursor input) {
+    return new PointCursor() {
+      @Override
+      boolean next() throws QueryException {
+        while (input.next()) {
+          if (accept(input.getAsDouble())) {
+            set(input);
+            return true;
+          }
         }
+        return false;
       }
+    };
+  }
 
-      valueResult.setValues(list);
+  private boolean accept(double value) throws QueryException {
+    switch (operandType) {
+      case GT:
+        return value > threshold;
+      case GTE:
+        return value >= threshold;
+      case LT:
+        return value < threshold;
+      case LTE:
+        return value <= threshold;
+      case EQUAL:
+        return value == threshold;
+      default:
+        throw new QueryException("Among filter aggregator, "
+            + "threshold must be one of [gt, gte, lt, lte, equal]");
     }
-
-    return result;
   }
 
   public void setOperandType(String typeStr) {
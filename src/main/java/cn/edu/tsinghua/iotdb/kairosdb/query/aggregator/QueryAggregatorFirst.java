@@ -4,11 +4,10 @@ import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.List;
+import java.util.Collections;
 
 public class QueryAggregatorFirst extends QueryAggregator
-    implements QueryAggregatorSampling, QueryAggregatorAlignable {
+    implements QueryAggregatorSampling, QueryAggregatorAlignable, QueryAggregatorFusable {
 
   private Duration sampling;
 
@@ -18,27 +17,39 @@ public class QueryAggregatorFirst extends QueryAggregator
   private long endTimestamp;
 
   QueryAggregatorFirst() {
-    super(QueryAggregatorType.AVG);
+    super(QueryAggregatorType.FIRST);
   }
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    return useMethodAggregate(this, result);
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
   }
 
   @Override
-  public MetricValueResult aggregate(MetricValueResult valueResult) {
-    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+  public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) {
     long step = getSampling().toMillisecond();
-
-    List<List<QueryDataPoint>> splitPoints = valueResult.splitDataPoint(getStartTimestamp(), step);
-
-    for (List<QueryDataPoint> points : splitPoints) {
-      newValueResult.addDataPoint(points.get(0));
-    }
-
-    return newValueResult;
+    return new RangeCursor(input, getStartTimestamp(), step, null) {
+
+      @Override
+      void beginRange(PointCursor first) {
+        set(first);
+      }
+
+      @Override
+      void accumulate(PointCursor point) {
+        // the first datapoint is kept
+      }
+
+      @Override
+      boolean endRange() {
+        return true;
+      }
+    };
   }
 
   @Override
@@ -0,0 +1,12 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+
+interface QueryAggregatorFusable {
+
+  /**
+   * @return A cursor pulling the datapoints of input and giving the aggregated datapoints
+   */
+  PointCursor fuse(PointCursor input) throws QueryException;
+
+}
@@ -2,13 +2,13 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
 import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.List;
+import java.util.Collections;
 
 public class QueryAggregatorMax extends QueryAggregator
-    implements QueryAggregatorSampling, QueryAggregatorAlignable {
+    implements QueryAggregatorSampling, QueryAggregatorAlignable, QueryAggregatorFusable {
 
   private Duration sampling;
 
@@ -23,35 +23,48 @@ public class QueryAggregatorMax extends QueryAggregator
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    return useMethodAggregate(this, result);
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
   }
 
   @Override
-  public MetricValueResult aggregate(MetricValueResult valueResult) {
-    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+  public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) {
     long step = getSampling().toMillisecond();
+    return new RangeCursor(input, getStartTimestamp(), step, null) {
 
-    List<List<QueryDataPoint>> splitPoints = valueResult.splitDataPoint(getStartTimestamp(), step);
-
-    for (List<QueryDataPoint> points : splitPoints) {
+      @Override
+      void beginRange(PointCursor first) {
+        set(first);
+      }
 
-      QueryDataPoint tPoint = null;
-      for (QueryDataPoint point : points) {
-        if (tPoint == null) {
-          tPoint = point;
-          continue;
-        }
-        if (point.compareTo(tPoint) > 0) {
-          tPoint = point;
+      @Override
+      void accumulate(PointCursor point) {
+        if (point.compareTo(this) > 0) {
+          set(point);
         }
       }
 
-      newValueResult.addDataPoint(tPoint);
+      @Override
+      boolean isSliceable() {
+        return true;
+      }
 
-    }
+      @Override
+      boolean aggregateSlice(DataPointBuffer points, long[] doubleBits, int from, int to) {
+        int index = AggregationKernels.indexOfMax(doubleBits, from, to);
+        set(points.getTimestamp(index), points.getDoubleValue(index));
+        return true;
+      }
 
-    return newValueResult;
+      @Override
+      boolean endRange() {
+        return true;
+      }
+    };
   }
 
   @Override
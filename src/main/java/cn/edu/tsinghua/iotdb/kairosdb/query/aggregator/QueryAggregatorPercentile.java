@@ -1,17 +1,25 @@
 package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
 import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
 import cn.edu.tsinghua.iotdb.kairosdb.util.DoubleUtil;
 import java.sql.Types;
-import java.util.Comparator;
-import java.util.List;
-
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * The percentile of each sampling interval. The values of an interval are sorted when there are at
+ * most PERCENTILE_EXACT_SIZE of them, beyond that they are streamed into a t-digest of
+ * PERCENTILE_COMPRESSION centroids and the percentile is estimated, without keeping the values.
+ */
 public class QueryAggregatorPercentile extends QueryAggregator implements QueryAggregatorSampling,
-    QueryAggregatorAlignable {
+    QueryAggregatorAlignable, QueryAggregatorFusable {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
 
   private Duration sampling;
 
@@ -26,57 +34,100 @@ public class QueryAggregatorPercentile extends QueryAggregator implements QueryA
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    return useMethodAggregate(this, result);
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
   }
 
   @Override
   public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
-    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) throws QueryException {
     if (getPercentile() <= 0 || getPercentile() > 1) {
       throw new QueryException("Among percentile aggregator, percentile must be in (0,1].");
     }
-
     long step = getSampling().toMillisecond();
-
-    List<List<QueryDataPoint>> splitPoints = valueResult.splitDataPoint(getStartTimestamp(), step);
-
-    for (List<QueryDataPoint> points : splitPoints) {
-
-      if (points.isEmpty() || points.get(0).getType() == Types.VARCHAR) {
-        continue;
+    int exactSize = Math.max(config.PERCENTILE_EXACT_SIZE, 1);
+    return new RangeCursor(input, getStartTimestamp(), step, null) {
+
+      private long rangeTimestamp;
+      private boolean isText;
+      private double[] values = new double[16];
+      private int size;
+      // The digest of the current range once it holds more than exactSize values, else null
+      private TDigest digest;
+
+      @Override
+      void beginRange(PointCursor first) {
+        rangeTimestamp = first.timestamp;
+        isText = first.type == Types.VARCHAR;
+        size = 0;
+        digest = null;
+        accumulate(first);
       }
 
-      long timestamp = points.get(0).getTimestamp();
-
-      points.sort(Comparator.comparingDouble(QueryDataPoint::getAsDouble));
-
-      double value = points.get(0).getAsDouble();
-      if (percentile == 1.0) {
-        value = points.get(points.size() - 1).getAsDouble();
-      } else if (points.size() > 2) {
-
-        double pos = DoubleUtil
-            .sub(DoubleUtil.mul(DoubleUtil.add(points.size(), 1.0), percentile), 1.0);
-
-        int floor = (int) pos;
+      @Override
+      void accumulate(PointCursor point) {
+        if (isText) {
+          return;
+        }
+        if (digest != null) {
+          digest.add(point.getAsDouble());
+          return;
+        }
+        if (size == exactSize) {
+          digest = new TDigest(config.PERCENTILE_COMPRESSION);
+          for (int i = 0; i < size; i++) {
+            digest.add(values[i]);
+          }
+          digest.add(point.getAsDouble());
+          return;
+        }
+        if (size == values.length) {
+          values = Arrays.copyOf(values, Math.min(size * 2, exactSize));
+        }
+        values[size++] = point.getAsDouble();
+      }
 
-        double preValue = points.get(floor).getAsDouble();
-        if (floor < points.size() - 1) {
-          value =
-              DoubleUtil.add(preValue, DoubleUtil
-                  .mul(DoubleUtil.sub(points.get(floor + 1).getAsDouble(), preValue),
-                      DoubleUtil.sub(pos, floor)));
+      @Override
+      boolean endRange() {
+        if (isText) {
+          return false;
+        }
+        if (digest != null) {
+          set(rangeTimestamp, digest.quantile(percentile));
         } else {
-          value = preValue;
+          set(rangeTimestamp, computePercentile(values, size));
         }
+        return true;
       }
+    };
+  }
 
-      newValueResult.addDataPoint(new QueryDataPoint(timestamp, value));
-
+  /**
+   * @param values The values of a range, sorted in place
+   */
+  private double computePercentile(double[] values, int size) {
+    Arrays.sort(values, 0, size);
+    double value = values[0];
+    if (percentile == 1.0) {
+      value = values[size - 1];
+    } else if (size > 2) {
+      double pos = DoubleUtil
+          .sub(DoubleUtil.mul(DoubleUtil.add(size, 1.0), percentile), 1.0);
+      int floor = (int) pos;
+      double preValue = values[floor];
+      if (floor < size - 1) {
+        value =
+            DoubleUtil.add(preValue, DoubleUtil
+                .mul(DoubleUtil.sub(values[floor + 1], preValue),
+                    DoubleUtil.sub(pos, floor)));
+      } else {
+        value = preValue;
+      }
     }
-
-    return newValueResult;
+    return value;
   }
 
   @Override
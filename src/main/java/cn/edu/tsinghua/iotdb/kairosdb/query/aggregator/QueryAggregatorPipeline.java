@@ -0,0 +1,86 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs a chain of aggregators in one pass over the datapoints of each MetricValueResult. The
+ * aggregators are fused into a chain of cursors, each one pulling the datapoints of the previous
+ * one, so that only the final datapoints are stored. An aggregator which can't be fused, e.g.
+ * save_as, still runs on the whole MetricResult, between the fused parts of the chain.
+ */
+public class QueryAggregatorPipeline {
+
+  private QueryAggregatorPipeline() {
+  }
+
+  public static MetricResult run(List<QueryAggregator> aggregators, MetricResult result)
+      throws QueryException {
+    int from = 0;
+    while (from < aggregators.size()) {
+      int to = from;
+      while (to < aggregators.size() && aggregators.get(to) instanceof QueryAggregatorFusable) {
+        to++;
+      }
+      if (to > from) {
+        result = runFused(aggregators.subList(from, to), result);
+      }
+      if (to < aggregators.size()) {
+        result = aggregators.get(to).doAggregate(result);
+      }
+      from = to + 1;
+    }
+    return result;
+  }
+
+  private static MetricResult runFused(List<QueryAggregator> aggregators, MetricResult result)
+      throws QueryException {
+    List<MetricValueResult> newValueResults = new LinkedList<>();
+    for (MetricValueResult valueResult : result.getResults()) {
+      // The sampling aggregators drop the text results, the others leave them as they are
+      boolean isText = valueResult.isTextType();
+      boolean isDropped = false;
+      PointCursor cursor = PointCursor.of(valueResult.getDatapoints());
+      for (QueryAggregator aggregator : aggregators) {
+        if (isText && aggregator instanceof QueryAggregatorAlignable) {
+          isDropped = true;
+          break;
+        }
+        // fuse() also checks the parameters of the aggregator
+        PointCursor fused = ((QueryAggregatorFusable) aggregator).fuse(cursor);
+        if (!isText) {
+          cursor = fused;
+        }
+      }
+      if (isDropped) {
+        continue;
+      }
+      if (!isText) {
+        valueResult.setValues(drain(cursor));
+      }
+      newValueResults.add(valueResult);
+    }
+    result.setResults(newValueResults);
+    return result;
+  }
+
+  static MetricValueResult aggregate(QueryAggregatorFusable aggregator,
+      MetricValueResult valueResult) throws QueryException {
+    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+    newValueResult.setValues(drain(aggregator.fuse(PointCursor.of(valueResult.getDatapoints()))));
+    return newValueResult;
+  }
+
+  private static DataPointBuffer drain(PointCursor cursor) throws QueryException {
+    DataPointBuffer points = new DataPointBuffer();
+    while (cursor.next()) {
+      cursor.addTo(points);
+    }
+    return points;
+  }
+
+}
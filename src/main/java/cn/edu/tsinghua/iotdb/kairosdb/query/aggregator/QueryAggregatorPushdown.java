@@ -0,0 +1,257 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.QuerySqlBuilder;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the first aggregator of a metric in IoTDB with a Group-By query, so that only one
+ * value per sampling interval and series is transferred instead of the raw datapoints. The
+ * aggregators after it are run in-process on its result.
+ *
+ * <p>max, min, sum, count, first and last can be pushed down when they have a sampling. The
+ * intervals start at the query start time, as in {@link MetricValueResult#split(long, long)}, and
+ * the values of the series of the metric are merged per interval. IoTDB doesn't give the timestamp
+ * of the max and min values, so their datapoints have the start of the interval as timestamp.
+ *
+ * <p>The deleted datapoints, overwritten with DeleteSqlBuilder.NULL_STR, are aggregated by IoTDB
+ * like the others. They can't be filtered out by the query: IoTDB applies a value filter on the
+ * paths of several series to all of them at once, which would drop the intervals where the series
+ * don't have datapoints at the same timestamps. The pushdown is thus off unless
+ * ENABLE_AGGREGATION_PUSHDOWN is set.
+ */
+public class QueryAggregatorPushdown {
+
+  private static final String MIN_TIME = "min_time";
+  private static final String MAX_TIME = "max_time";
+  // The number of raw datapoints of each interval, which is the sample size of the query
+  private static final String COUNT = "count";
+
+  private final QueryAggregator aggregator;
+  private final List<QueryAggregator> remainingAggregators;
+  private final String valueFunction;
+  // The function giving the timestamp of the merged datapoint, null if there is none
+  private final String timeFunction;
+  private final long step;
+
+  private QueryAggregatorPushdown(List<QueryAggregator> aggregators, String valueFunction,
+      String timeFunction, long step) {
+    this.aggregator = aggregators.get(0);
+    this.remainingAggregators = new ArrayList<>(aggregators.subList(1, aggregators.size()));
+    this.valueFunction = valueFunction;
+    this.timeFunction = timeFunction;
+    this.step = step;
+  }
+
+  /**
+   * @return The pushdown of the first aggregator, or null if IoTDB can't compute it
+   */
+  public static QueryAggregatorPushdown plan(List<QueryAggregator> aggregators, long startTime,
+      long endTime) {
+    if (aggregators == null || aggregators.isEmpty()) {
+      return null;
+    }
+    QueryAggregator first = aggregators.get(0);
+    if (!(first instanceof QueryAggregatorSampling) || !(first
+        instanceof QueryAggregatorAlignable)) {
+      return null;
+    }
+    if (((QueryAggregatorSampling) first).getSampling() == null) {
+      return null;
+    }
+    long step = ((QueryAggregatorSampling) first).getSampling().toMillisecond();
+    if (step <= 0) {
+      return null;
+    }
+    QueryAggregatorAlignable alignable = (QueryAggregatorAlignable) first;
+    boolean alignedOnData = alignable.getAlign() == QueryAggregatorAlign.ALIGN_SAMPLING;
+    QueryAggregatorPushdown pushdown;
+    if (first instanceof QueryAggregatorMax) {
+      pushdown = new QueryAggregatorPushdown(aggregators, "max_value", null, step);
+    } else if (first instanceof QueryAggregatorMin) {
+      pushdown = new QueryAggregatorPushdown(aggregators, "min_value", null, step);
+    } else if (first instanceof QueryAggregatorFirst) {
+      pushdown = new QueryAggregatorPushdown(aggregators, "first_value", MIN_TIME, step);
+    } else if (first instanceof QueryAggregatorLast) {
+      pushdown = new QueryAggregatorPushdown(aggregators, "last_value", MAX_TIME, step);
+    } else if (first instanceof QueryAggregatorSum && !alignedOnData) {
+      // The intervals of sum and count start at the first datapoint with align_sampling
+      pushdown = new QueryAggregatorPushdown(aggregators, "sum", MIN_TIME, step);
+    } else if (first instanceof QueryAggregatorCount && !alignedOnData) {
+      pushdown = new QueryAggregatorPushdown(aggregators, COUNT, MIN_TIME, step);
+    } else {
+      return null;
+    }
+    alignable.setStartTimestamp(startTime);
+    alignable.setEndTimestamp(endTime);
+    return pushdown;
+  }
+
+  public QueryAggregator getAggregator() {
+    return aggregator;
+  }
+
+  /**
+   * @return The aggregators which must be run in-process on the result of the pushdown
+   */
+  public List<QueryAggregator> getRemainingAggregators() {
+    return remainingAggregators;
+  }
+
+  public String buildSql(QuerySqlBuilder sqlBuilder, long startTime, long endTime) {
+    List<String> functions = new ArrayList<>();
+    functions.add(valueFunction);
+    if (timeFunction != null) {
+      functions.add(timeFunction);
+    }
+    if (!valueFunction.equals(COUNT)) {
+      functions.add(COUNT);
+    }
+    return sqlBuilder.generateGroupBySql(functions, step, startTime, endTime);
+  }
+
+  /**
+   * Merge the values of the series of each interval into one datapoint.
+   *
+   * @param columnsWithValues Set to true for the columns which have a value, the timestamp column
+   * excluded
+   * @return The number of raw datapoints aggregated
+   * @throws SQLException if the values are not numbers, e.g. the first value of a text metric,
+   * which the in-process aggregators ignore
+   */
+  public long read(ResultSet rs, MetricValueResult valueResult, boolean[] columnsWithValues)
+      throws SQLException {
+    ResultSetMetaData metaData = rs.getMetaData();
+    int columnCount = metaData.getColumnCount();
+    // For each series, the column of its aggregated value, of its timestamp and of its count
+    List<String> series = new ArrayList<>();
+    int[] valueColumns = new int[columnCount];
+    int[] timeColumns = new int[columnCount];
+    int[] countColumns = new int[columnCount];
+    boolean[] integerColumns = new boolean[columnCount + 1];
+    for (int i = 2; i <= columnCount; i++) {
+      String name = metaData.getColumnName(i);
+      int index = name.indexOf('(');
+      String function = name.substring(0, index);
+      String path = name.substring(index + 1, name.length() - 1);
+      int seriesIndex = series.indexOf(path);
+      if (seriesIndex < 0) {
+        seriesIndex = series.size();
+        series.add(path);
+      }
+      if (function.equalsIgnoreCase(valueFunction)) {
+        int type = metaData.getColumnType(i);
+        if (type == Types.VARCHAR) {
+          throw new SQLException("Can not push " + valueFunction + " down on text series " + path);
+        }
+        valueColumns[seriesIndex] = i;
+        integerColumns[i] = type == Types.INTEGER || type == Types.BIGINT;
+        if (function.equalsIgnoreCase(COUNT)) {
+          countColumns[seriesIndex] = i;
+        }
+      } else if (function.equalsIgnoreCase(COUNT)) {
+        countColumns[seriesIndex] = i;
+      } else {
+        timeColumns[seriesIndex] = i;
+      }
+    }
+
+    long sampleSize = 0;
+    int seriesCount = series.size();
+    while (rs.next()) {
+      long intervalTimestamp = rs.getLong(1);
+      boolean found = false;
+      long timestamp = intervalTimestamp;
+      boolean isInteger = true;
+      long longValue = 0;
+      double doubleValue = 0;
+      for (int k = 0; k < seriesCount; k++) {
+        String count = countColumns[k] == 0 ? null : rs.getString(countColumns[k]);
+        if (count != null) {
+          sampleSize += parseLong(count);
+        }
+        String value = rs.getString(valueColumns[k]);
+        String time = timeFunction == null ? null : rs.getString(timeColumns[k]);
+        if (value == null || (timeFunction != null && time == null)) {
+          // no datapoint of the series in the interval
+          continue;
+        }
+        columnsWithValues[valueColumns[k] - 2] = true;
+        boolean isIntegerValue = integerColumns[valueColumns[k]];
+        long seriesLong = isIntegerValue ? parseLong(value) : 0;
+        double seriesDouble = isIntegerValue ? seriesLong : parseDouble(value);
+        long seriesTime = time == null ? intervalTimestamp : parseLong(time);
+        boolean replace;
+        switch (valueFunction) {
+          case "max_value":
+            replace = !found || seriesDouble > (isInteger ? longValue : doubleValue);
+            break;
+          case "min_value":
+            replace = !found || seriesDouble < (isInteger ? longValue : doubleValue);
+            break;
+          case "first_value":
+            replace = !found || seriesTime < timestamp;
+            break;
+          case "last_value":
+            replace = !found || seriesTime > timestamp;
+            break;
+          default:
+            // sum and count add the values of the series
+            if (found) {
+              if (isInteger && isIntegerValue) {
+                longValue += seriesLong;
+              } else {
+                doubleValue = (isInteger ? longValue : doubleValue) + seriesDouble;
+                isInteger = false;
+              }
+              timestamp = Math.min(timestamp, seriesTime);
+            }
+            replace = !found;
+            break;
+        }
+        if (replace) {
+          isInteger = isIntegerValue;
+          longValue = seriesLong;
+          doubleValue = seriesDouble;
+          timestamp = seriesTime;
+        }
+        found = true;
+      }
+      if (!found) {
+        continue;
+      }
+      if (valueFunction.equals("sum") || valueFunction.equals(COUNT)) {
+        timestamp = QueryAggregator.computeTimestampByAlign(
+            (QueryAggregatorAlignable) aggregator, timestamp, step);
+      }
+      if (isInteger) {
+        valueResult.addDataPoint(timestamp, longValue);
+      } else {
+        valueResult.addDataPoint(timestamp, doubleValue);
+      }
+    }
+    return sampleSize;
+  }
+
+  private static long parseLong(String value) throws SQLException {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new SQLException("Invalid integer " + value, e);
+    }
+  }
+
+  private static double parseDouble(String value) throws SQLException {
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new SQLException("Invalid number " + value, e);
+    }
+  }
+
+}
@@ -0,0 +1,15 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+/**
+ * An aggregator which needs the time range of the query, e.g. to align its samples or to split
+ * the range into buckets.
+ */
+public interface QueryAggregatorRanged {
+
+  void setStartTimestamp(long startTimestamp);
+  long getStartTimestamp();
+
+  void setEndTimestamp(long endTimestamp);
+  long getEndTimestamp();
+
+}
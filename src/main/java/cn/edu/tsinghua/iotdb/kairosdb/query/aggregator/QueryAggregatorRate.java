@@ -1,13 +1,11 @@
 package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
 import cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
 
-public class QueryAggregatorRate extends QueryAggregator {
+public class QueryAggregatorRate extends QueryAggregator implements QueryAggregatorFusable {
 
   /**
    * example:
@@ -27,42 +25,40 @@ public class QueryAggregatorRate extends QueryAggregator {
   }
 
   @Override
-  public MetricResult doAggregate(MetricResult result) {
-    List<MetricValueResult> valueResults = result.getResults();
-
-    for (MetricValueResult valueResult : valueResults) {
-
-      List<QueryDataPoint> newPoints = new LinkedList<>();
-
-      List<QueryDataPoint> points = valueResult.getDatapoints();
-
-      if (valueResult.isTextType() || points.isEmpty()) {
-        continue;
-      }
-
-      QueryDataPoint tmpPoint = points.get(0);
-      points.remove(tmpPoint);
-
-      for (QueryDataPoint point : points) {
-        long preTimestamp = tmpPoint.getTimestamp();
-        long postTimestamp = point.getTimestamp();
+  public MetricResult doAggregate(MetricResult result) throws QueryException {
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) {
+    return new PointCursor() {
+
+      private boolean started = false;
+      private long preTimestamp;
+      private double preValue;
+
+      @Override
+      boolean next() throws QueryException {
+        if (!started) {
+          if (!input.next()) {
+            return false;
+          }
+          started = true;
+          preTimestamp = input.timestamp;
+          preValue = input.getAsDouble();
+        }
+        if (!input.next()) {
+          return false;
+        }
+        long postTimestamp = input.timestamp;
+        double value = input.getAsDouble();
         double rate = TimeUnit.getUnitTime(unit) / (double) (postTimestamp - preTimestamp);
-
-        newPoints.add(new QueryDataPoint(postTimestamp,
-            (point.getAsDouble()) * rate - tmpPoint.getAsDouble()));
-
-        tmpPoint = point;
+        set(postTimestamp, value * rate - preValue);
+        preTimestamp = postTimestamp;
+        preValue = value;
+        return true;
       }
-
-
-      valueResult.setValues(newPoints);
-
-    }
-
-    result.setResults(valueResults);
-
-    return result;
+    };
   }
 
   public void setUnit(String unitStr) {
@@ -2,13 +2,14 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
 
 import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
 import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
 import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
-import cn.edu.tsinghua.iotdb.kairosdb.query.result.QueryDataPoint;
-import java.util.List;
+import java.sql.Types;
+import java.util.Collections;
 
 public class QueryAggregatorSum extends QueryAggregator
-    implements QueryAggregatorSampling, QueryAggregatorAlignable {
+    implements QueryAggregatorSampling, QueryAggregatorAlignable, QueryAggregatorFusable {
 
   private Duration sampling;
 
@@ -23,54 +24,71 @@ public class QueryAggregatorSum extends QueryAggregator
 
   @Override
   public MetricResult doAggregate(MetricResult result) throws QueryException {
-    return useMethodAggregate(this, result);
+    return QueryAggregatorPipeline.run(Collections.singletonList(this), result);
   }
 
   @Override
   public MetricValueResult aggregate(MetricValueResult valueResult) throws QueryException {
-    MetricValueResult newValueResult = new MetricValueResult(valueResult.getName());
+    return QueryAggregatorPipeline.aggregate(this, valueResult);
+  }
 
+  @Override
+  public PointCursor fuse(PointCursor input) {
     long step = getSampling().toMillisecond();
+    return new RangeCursor(input, getStartTimestamp(), step, getAlign()) {
+
+      private long rangeTimestamp;
+      private long tmpLong;
+      private int intCounter;
+      private double tmpDouble;
+      private int doubleCounter;
+
+      @Override
+      void beginRange(PointCursor first) {
+        rangeTimestamp = computeTimestampByAlign(QueryAggregatorSum.this, first.timestamp, step);
+        tmpLong = 0;
+        intCounter = 0;
+        tmpDouble = 0.0;
+        doubleCounter = 0;
+        accumulate(first);
+      }
 
-    List<List<QueryDataPoint>> splitPoints =
-        valueResult.splitDataPoint(getStartTimestamp(), step, getAlign());
-
-    for (List<QueryDataPoint> points : splitPoints) {
-
-      long tmpTimestamp = 0L;
-      boolean isTimestampGotten = false;
-
-      int tmpInt = 0;
-      int intCounter = 0;
-
-      double tmpDouble = 0.0;
-      int doubleCounter = 0;
-
-      for (QueryDataPoint point : points) {
-        if (!isTimestampGotten) {
-          isTimestampGotten = true;
-          tmpTimestamp = computeTimestampByAlign(this, point.getTimestamp(), step);
-        }
-        if (point.isInteger()) {
-          tmpInt += point.getIntValue();
+      @Override
+      void accumulate(PointCursor point) {
+        if (point.type == Types.INTEGER) {
+          tmpLong += point.longValue;
           intCounter++;
         } else {
-          tmpDouble += point.getDoubleValue();
+          tmpDouble += point.doubleValue;
           doubleCounter++;
         }
       }
-      if (intCounter > 0) {
-        newValueResult.addDataPoint(new QueryDataPoint(tmpTimestamp, tmpInt));
-      } else if (doubleCounter > 0) {
-        newValueResult.addDataPoint(new QueryDataPoint(tmpTimestamp, tmpDouble));
-      } else {
-        throw new QueryException(
-            "Among sum aggregator, there is an error in QueryAggregatorSum.aggregate");
+
+      @Override
+      boolean isSliceable() {
+        return true;
       }
 
-    }
+      @Override
+      boolean aggregateSlice(DataPointBuffer points, long[] doubleBits, int from, int to) {
+        set(computeTimestampByAlign(QueryAggregatorSum.this, points.getTimestamp(from), step),
+            AggregationKernels.sum(doubleBits, from, to));
+        return true;
+      }
 
-    return newValueResult;
+      @Override
+      boolean endRange() throws QueryException {
+        if (intCounter > 0) {
+          set(rangeTimestamp, tmpLong);
+        } else if (doubleCounter > 0) {
+          set(rangeTimestamp, tmpDouble);
+        } else {
+          throw new QueryException(
+              "Among sum aggregator, there is an error in QueryAggregatorSum.aggregate");
+        }
+        return true;
+      }
+    };
   }
 
   @Override
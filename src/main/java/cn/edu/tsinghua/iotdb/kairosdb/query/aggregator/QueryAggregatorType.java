@@ -18,7 +18,9 @@ public enum QueryAggregatorType {
   RATE,
   SAMPLER,
   SAVE_AS,
-  FILTER;
+  FILTER,
+  LTTB,
+  MIN_MAX;
 
   public static QueryAggregatorType fromString(String typeStr) {
     checkNotNullOrEmpty(typeStr);
@@ -0,0 +1,164 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.PointCursor.BufferCursor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+
+/**
+ * Reduces the datapoints of each sampling interval of its input to one datapoint. The intervals
+ * are the ranges of MetricValueResult#split(long, long, QueryAggregatorAlign): step ms long from
+ * startTimestamp, or from the first datapoint with ALIGN_SAMPLING, the datapoints before it being
+ * skipped. The datapoints are pulled once, without splitting them into lists.
+ *
+ * <p>When the input is a buffer whose values are all doubles and the aggregator can reduce a slice
+ * of them, the ranges are found on the timestamps and each one is reduced in place by
+ * aggregateSlice, see AggregationKernels, instead of pulling its datapoints one by one.
+ */
+abstract class RangeCursor extends PointCursor {
+
+  private final PointCursor input;
+  private final long step;
+  private final boolean isAlignedOnFirst;
+  private long startTimestamp;
+  private long endOfRange;
+  private boolean started = false;
+  // Whether the input holds the first datapoint of the next range
+  private boolean pending = false;
+  private boolean done = false;
+  // The input and its values when the ranges are reduced by slices, else null
+  private BufferCursor source;
+  private long[] doubleBits;
+
+  RangeCursor(PointCursor input, long startTimestamp, long step, QueryAggregatorAlign align) {
+    this.input = input;
+    this.startTimestamp = startTimestamp;
+    this.step = step;
+    this.isAlignedOnFirst = align == QueryAggregatorAlign.ALIGN_SAMPLING;
+    if (isSliceable() && input instanceof BufferCursor) {
+      source = (BufferCursor) input;
+      doubleBits = source.points.getDoubleBits();
+    }
+  }
+
+  /**
+   * Start a range with its first datapoint.
+   */
+  abstract void beginRange(PointCursor first) throws QueryException;
+
+  abstract void accumulate(PointCursor point) throws QueryException;
+
+  /**
+   * Set the datapoint of the range as the current datapoint.
+   *
+   * @return false if the range gives no datapoint
+   */
+  abstract boolean endRange() throws QueryException;
+
+  /**
+   * @return true if the aggregator overrides aggregateSlice
+   */
+  boolean isSliceable() {
+    return false;
+  }
+
+  /**
+   * Set the datapoint of the range [from, to) of the datapoints of a buffer, whose values are all
+   * doubles, as the current datapoint.
+   *
+   * @param doubleBits The values of the buffer, see DataPointBuffer#getDoubleBits()
+   * @return false if the range gives no datapoint
+   */
+  boolean aggregateSlice(DataPointBuffer points, long[] doubleBits, int from, int to)
+      throws QueryException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  final boolean next() throws QueryException {
+    if (doubleBits != null) {
+      return nextSlice();
+    }
+    while (startRange()) {
+      beginRange(input);
+      while (nextInRange()) {
+        accumulate(input);
+      }
+      if (endRange()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean nextSlice() throws QueryException {
+    DataPointBuffer points = source.points;
+    int size = points.size();
+    while (source.index < size) {
+      long timestamp = points.getTimestamp(source.index);
+      if (!started) {
+        if (isAlignedOnFirst) {
+          startTimestamp = timestamp;
+        }
+        endOfRange = startTimestamp + step;
+        started = true;
+      }
+      if (timestamp < startTimestamp) {
+        source.index++;
+        continue;
+      }
+      if (timestamp >= endOfRange) {
+        endOfRange += ((timestamp - endOfRange) / step + 1) * step;
+      }
+      int from = source.index;
+      int to = from + 1;
+      while (to < size && points.getTimestamp(to) < endOfRange) {
+        to++;
+      }
+      source.index = to;
+      if (aggregateSlice(points, doubleBits, from, to)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean startRange() throws QueryException {
+    while (true) {
+      if (!pending) {
+        if (done || !input.next()) {
+          done = true;
+          return false;
+        }
+      }
+      pending = false;
+      if (!started) {
+        if (isAlignedOnFirst) {
+          startTimestamp = input.timestamp;
+        }
+        endOfRange = startTimestamp + step;
+        started = true;
+      }
+      long timestamp = input.timestamp;
+      if (timestamp < startTimestamp) {
+        continue;
+      }
+      if (timestamp >= endOfRange) {
+        endOfRange += ((timestamp - endOfRange) / step + 1) * step;
+      }
+      return true;
+    }
+  }
+
+  private boolean nextInRange() throws QueryException {
+    if (!input.next()) {
+      done = true;
+      return false;
+    }
+    if (input.timestamp < startTimestamp || input.timestamp >= endOfRange) {
+      pending = true;
+      return false;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,176 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import java.util.Arrays;
+
+/**
+ * A merging t-digest, which estimates the percentiles of a stream of values in one pass with
+ * about compression centroids. The centroids are kept small near the extreme percentiles, so the
+ * error on the rank of a percentile is about 1/compression around the median and far less near 0
+ * and 1. Two digests can be merged, for example the digests of the parallel chunks of a range.
+ */
+class TDigest {
+
+  private final double compression;
+  // The centroids, sorted by mean
+  private double[] means;
+  private double[] weights;
+  private int centroidCount = 0;
+  // The values added since the last compression, sorted and merged with the centroids at once
+  private final double[] buffer;
+  private int bufferSize = 0;
+  // The centroids and the values being merged, kept between the compressions
+  private double[] mergedMeans = new double[0];
+  private double[] mergedWeights = new double[0];
+  private double totalWeight = 0;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * @param compression The number of centroids the digest is compressed to, at least 10
+   */
+  TDigest(double compression) {
+    this.compression = Math.max(compression, 10);
+    int capacity = (int) Math.ceil(this.compression) * 2 + 10;
+    means = new double[capacity];
+    weights = new double[capacity];
+    buffer = new double[capacity * 32];
+  }
+
+  void add(double value) {
+    if (bufferSize == buffer.length) {
+      compress();
+    }
+    buffer[bufferSize++] = value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Add the values of another digest to this one, the other digest is left unchanged.
+   */
+  void merge(TDigest other) {
+    other.compress();
+    compress();
+    if (other.centroidCount == 0) {
+      return;
+    }
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    combine(other.means, other.weights, other.centroidCount);
+  }
+
+  long size() {
+    return (long) (totalWeight + bufferSize);
+  }
+
+  /**
+   * @param q The percentile, in [0,1]
+   * @return The estimated value at the percentile, NaN if the digest is empty
+   */
+  double quantile(double q) {
+    compress();
+    if (centroidCount == 0) {
+      return Double.NaN;
+    }
+    if (centroidCount == 1 || q <= 0) {
+      return q <= 0 ? min : means[0];
+    }
+    if (q >= 1) {
+      return max;
+    }
+    double index = q * totalWeight;
+    // between the minimum and the center of the first centroid
+    double half = weights[0] / 2;
+    if (index < half) {
+      return min + (means[0] - min) * (index / half);
+    }
+    double cumulative = half;
+    for (int i = 0; i < centroidCount - 1; i++) {
+      double gap = (weights[i] + weights[i + 1]) / 2;
+      if (cumulative + gap > index) {
+        double t = (index - cumulative) / gap;
+        return means[i] + (means[i + 1] - means[i]) * t;
+      }
+      cumulative += gap;
+    }
+    // between the center of the last centroid and the maximum
+    int last = centroidCount - 1;
+    half = weights[last] / 2;
+    return means[last] + (max - means[last]) * Math.min((index - cumulative) / half, 1);
+  }
+
+  private void compress() {
+    if (bufferSize == 0) {
+      return;
+    }
+    Arrays.sort(buffer, 0, bufferSize);
+    combine(buffer, null, bufferSize);
+    bufferSize = 0;
+  }
+
+  /**
+   * Merge sorted values, of weight 1 if their weights are null, with the centroids, then rebuild the
+   * centroids by combining neighbours as long as the scale function allows it.
+   */
+  private void combine(double[] inMeans, double[] inWeights, int inCount) {
+    int count = centroidCount + inCount;
+    if (mergedMeans.length < count) {
+      mergedMeans = new double[count];
+      mergedWeights = new double[count];
+    }
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < count; k++) {
+      if (j >= inCount || (i < centroidCount && means[i] <= inMeans[j])) {
+        mergedMeans[k] = means[i];
+        mergedWeights[k] = weights[i++];
+      } else {
+        mergedMeans[k] = inMeans[j];
+        mergedWeights[k] = inWeights == null ? 1 : inWeights[j];
+        j++;
+      }
+    }
+    double total = totalWeight;
+    for (j = 0; j < inCount; j++) {
+      total += inWeights == null ? 1 : inWeights[j];
+    }
+
+    int size = 0;
+    double before = 0;
+    double limit = total * integratedQuantile(integratedLocation(0) + 1);
+    means[0] = mergedMeans[0];
+    weights[0] = mergedWeights[0];
+    for (int k = 1; k < count; k++) {
+      double projected = before + weights[size] + mergedWeights[k];
+      if (projected <= limit) {
+        weights[size] += mergedWeights[k];
+        means[size] += (mergedMeans[k] - means[size]) * mergedWeights[k] / weights[size];
+      } else {
+        before += weights[size];
+        limit = total * integratedQuantile(integratedLocation(before / total) + 1);
+        size++;
+        if (size == means.length) {
+          means = Arrays.copyOf(means, size * 2);
+          weights = Arrays.copyOf(weights, size * 2);
+        }
+        means[size] = mergedMeans[k];
+        weights[size] = mergedWeights[k];
+      }
+    }
+    centroidCount = size + 1;
+    totalWeight = total;
+  }
+
+  /**
+   * The k1 scale function of t-digest, which maps a percentile to the index of its centroid.
+   */
+  private double integratedLocation(double q) {
+    return compression * (Math.asin(2 * Math.min(Math.max(q, 0), 1) - 1) + Math.PI / 2)
+        / Math.PI;
+  }
+
+  private double integratedQuantile(double k) {
+    return (Math.sin(Math.min(k, compression) * Math.PI / compression - Math.PI / 2) + 1) / 2;
+  }
+
+}
@@ -1,5 +1,6 @@
 package cn.edu.tsinghua.iotdb.kairosdb.query.group_by;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -7,6 +8,9 @@ public class GroupByBin extends GroupBy {
 
   private List<String> bins;
 
+  // The bin number of a result, null in the query
+  private Integer binNumber;
+
   public GroupByBin() {
     super(GroupByKind.BIN);
     bins = new LinkedList<>();
@@ -20,4 +24,28 @@ public class GroupByBin extends GroupBy {
     bins.add(bin);
   }
 
+  /**
+   * @return The bounds of the bins, in ascending order
+   */
+  public double[] getBinValues() {
+    double[] values = new double[bins.size()];
+    int i = 0;
+    for (String bin : bins) {
+      values[i++] = Double.parseDouble(bin);
+    }
+    Arrays.sort(values);
+    return values;
+  }
+
+  public Integer getBinNumber() {
+    return binNumber;
+  }
+
+  public GroupByBin withBinNumber(int binNumber) {
+    GroupByBin result = new GroupByBin();
+    result.bins = bins;
+    result.binNumber = binNumber;
+    return result;
+  }
+
 }
@@ -12,6 +12,10 @@ public enum GroupByKind {
 
   public static GroupByKind fromString(String typeStr) {
     checkNotNullOrEmpty(typeStr);
+    // KairosDB names the grouping by tags "tag"
+    if (typeStr.equalsIgnoreCase("tag")) {
+      return TAGS;
+    }
     for (GroupByKind type : values()) {
       if (type.toString().equalsIgnoreCase(typeStr)) {
         return type;
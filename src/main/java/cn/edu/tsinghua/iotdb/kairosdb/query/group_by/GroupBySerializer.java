@@ -10,21 +10,55 @@ public class GroupBySerializer implements JsonSerializer<GroupBy> {
 
   @Override
   public JsonElement serialize(GroupBy groupBy, Type type, JsonSerializationContext context) {
+    JsonObject obj = new JsonObject();
     switch (groupBy.getKind()) {
       case TYPE:
         GroupByType groupByType = (GroupByType) groupBy;
-        JsonObject obj = new JsonObject();
         obj.addProperty("name", "type");
         obj.addProperty("type", groupByType.getType());
         return obj;
       case BIN:
-        break;
+        GroupByBin groupByBin = (GroupByBin) groupBy;
+        obj.addProperty("name", "bin");
+        obj.add("bins", context.serialize(groupByBin.getBins()));
+        if (groupByBin.getBinNumber() != null) {
+          JsonObject group = new JsonObject();
+          group.addProperty("bin_number", groupByBin.getBinNumber());
+          obj.add("group", group);
+        }
+        return obj;
       case TAGS:
-        break;
+        GroupByTags groupByTags = (GroupByTags) groupBy;
+        obj.addProperty("name", "tag");
+        obj.add("tags", context.serialize(groupByTags.getTags()));
+        if (groupByTags.getGroup() != null) {
+          obj.add("group", context.serialize(groupByTags.getGroup()));
+        }
+        return obj;
       case TIME:
-        break;
+        GroupByTime groupByTime = (GroupByTime) groupBy;
+        obj.addProperty("name", "time");
+        JsonObject rangeSize = new JsonObject();
+        rangeSize.addProperty("value", groupByTime.getRangeSize().getValue());
+        rangeSize.addProperty("unit", groupByTime.getRangeSize().getUnit().toString());
+        obj.add("range_size", rangeSize);
+        obj.addProperty("group_count", groupByTime.getGroupCount());
+        if (groupByTime.getGroupNumber() != null) {
+          JsonObject group = new JsonObject();
+          group.addProperty("group_number", groupByTime.getGroupNumber());
+          obj.add("group", group);
+        }
+        return obj;
       case VALUE:
-        break;
+        GroupByValue groupByValue = (GroupByValue) groupBy;
+        obj.addProperty("name", "value");
+        obj.addProperty("range_size", groupByValue.getRangeSize());
+        if (groupByValue.getGroupNumber() != null) {
+          JsonObject group = new JsonObject();
+          group.addProperty("group_number", groupByValue.getGroupNumber());
+          obj.add("group", group);
+        }
+        return obj;
       default:
         break;
     }
@@ -2,11 +2,15 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.group_by;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class GroupByTags extends GroupBy {
 
   private List<String> tags;
 
+  // The values of the tags of a group of a result, null in the query
+  private Map<String, String> group;
+
   public GroupByTags() {
     super(GroupByKind.TAGS);
     tags = new LinkedList<>();
@@ -19,4 +23,15 @@ public class GroupByTags extends GroupBy {
   public void addTag(String tag) {
     tags.add(tag);
   }
+
+  public Map<String, String> getGroup() {
+    return group;
+  }
+
+  public GroupByTags withGroup(Map<String, String> group) {
+    GroupByTags result = new GroupByTags();
+    result.tags = tags;
+    result.group = group;
+    return result;
+  }
 }
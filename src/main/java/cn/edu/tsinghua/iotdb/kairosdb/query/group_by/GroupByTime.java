@@ -9,6 +9,9 @@ public class GroupByTime extends GroupBy {
 
   private Duration rangeSize;
 
+  // The group number of a result, null in the query
+  private Integer groupNumber;
+
   public GroupByTime() {
     super(GroupByKind.TIME);
   }
@@ -36,4 +39,16 @@ public class GroupByTime extends GroupBy {
   public void setRangeSize(int value, String unit) {
     this.rangeSize = new Duration(value, TimeUnit.from(unit));
   }
+
+  public Integer getGroupNumber() {
+    return groupNumber;
+  }
+
+  public GroupByTime withGroupNumber(int groupNumber) {
+    GroupByTime result = new GroupByTime();
+    result.groupCount = groupCount;
+    result.rangeSize = rangeSize;
+    result.groupNumber = groupNumber;
+    return result;
+  }
 }
@@ -4,6 +4,9 @@ public class GroupByValue extends GroupBy {
 
   private long rangeSize;
 
+  // The group number of a result, null in the query
+  private Integer groupNumber;
+
   public GroupByValue() {
     super(GroupByKind.VALUE);
   }
@@ -16,4 +19,15 @@ public class GroupByValue extends GroupBy {
     this.rangeSize = rangeSize;
   }
 
+  public Integer getGroupNumber() {
+    return groupNumber;
+  }
+
+  public GroupByValue withGroupNumber(int groupNumber) {
+    GroupByValue result = new GroupByValue();
+    result.rangeSize = rangeSize;
+    result.groupNumber = groupNumber;
+    return result;
+  }
+
 }
@@ -0,0 +1,467 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.result;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The datapoints of a MetricValueResult, stored by column: the timestamps in a long[], the values
+ * in a long[] holding either the integer value, the bits of the double value or the index of the
+ * text in a dictionary, and the type of each value in a byte[]. A datapoint takes 17 bytes
+ * instead of a QueryDataPoint object with its boxed fields.
+ *
+ * <p>The buffer is also a List of QueryDataPoint, each one being built on access. The aggregators
+ * and serializers read the columns directly through the indexed getters instead.
+ */
+public class DataPointBuffer extends AbstractList<QueryDataPoint> implements RandomAccess {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final byte KIND_NONE = 0;
+  private static final byte KIND_INT = 1;
+  private static final byte KIND_DOUBLE = 2;
+  private static final byte KIND_TEXT = 3;
+
+  private long[] timestamps;
+  private long[] values;
+  private byte[] kinds;
+  private int size;
+
+  // The texts are deduplicated, values holds their index in texts
+  private List<String> texts;
+  private Map<String, Integer> textIndexes;
+
+  public DataPointBuffer() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public DataPointBuffer(int capacity) {
+    capacity = Math.max(capacity, 1);
+    timestamps = new long[capacity];
+    values = new long[capacity];
+    kinds = new byte[capacity];
+  }
+
+  public DataPointBuffer(Collection<? extends QueryDataPoint> points) {
+    this(points.size());
+    addAll(points);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > timestamps.length) {
+      int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+      timestamps = Arrays.copyOf(timestamps, newCapacity);
+      values = Arrays.copyOf(values, newCapacity);
+      kinds = Arrays.copyOf(kinds, newCapacity);
+    }
+  }
+
+  private void append(long timestamp, long value, byte kind) {
+    ensureCapacity(size + 1);
+    timestamps[size] = timestamp;
+    values[size] = value;
+    kinds[size] = kind;
+    size++;
+  }
+
+  public void add(long timestamp, int value) {
+    append(timestamp, value, KIND_INT);
+  }
+
+  /**
+   * Add an integer datapoint whose value may exceed the int range, e.g. read from an INT64 column.
+   */
+  public void add(long timestamp, long value) {
+    append(timestamp, value, KIND_INT);
+  }
+
+  public void add(long timestamp, double value) {
+    append(timestamp, Double.doubleToRawLongBits(value), KIND_DOUBLE);
+  }
+
+  public void add(long timestamp, String value) {
+    append(timestamp, textIndex(value), KIND_TEXT);
+  }
+
+  /**
+   * Append the index-th datapoint of another buffer.
+   */
+  public void add(DataPointBuffer other, int index) {
+    if (other.kinds[index] == KIND_TEXT) {
+      add(other.timestamps[index], other.getText(index));
+    } else {
+      append(other.timestamps[index], other.values[index], other.kinds[index]);
+    }
+  }
+
+  private int textIndex(String text) {
+    if (texts == null) {
+      texts = new ArrayList<>();
+      textIndexes = new HashMap<>();
+    }
+    Integer index = textIndexes.get(text);
+    if (index == null) {
+      index = texts.size();
+      texts.add(text);
+      textIndexes.put(text, index);
+    }
+    return index;
+  }
+
+  @Override
+  public boolean add(QueryDataPoint point) {
+    if (point == null) {
+      return false;
+    }
+    add(size, point);
+    return true;
+  }
+
+  @Override
+  public void add(int index, QueryDataPoint point) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+    ensureCapacity(size + 1);
+    if (index < size) {
+      System.arraycopy(timestamps, index, timestamps, index + 1, size - index);
+      System.arraycopy(values, index, values, index + 1, size - index);
+      System.arraycopy(kinds, index, kinds, index + 1, size - index);
+    }
+    size++;
+    put(index, point);
+    modCount++;
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends QueryDataPoint> points) {
+    if (!(points instanceof DataPointBuffer)) {
+      return super.addAll(points);
+    }
+    DataPointBuffer other = (DataPointBuffer) points;
+    ensureCapacity(size + other.size);
+    for (int i = 0; i < other.size; i++) {
+      add(other, i);
+    }
+    modCount++;
+    return other.size > 0;
+  }
+
+  private void put(int index, QueryDataPoint point) {
+    timestamps[index] = point.getTimestamp() == null ? 0L : point.getTimestamp();
+    switch (point.getType()) {
+      case Types.INTEGER:
+        values[index] = point.getIntValue();
+        kinds[index] = KIND_INT;
+        break;
+      case Types.DOUBLE:
+        values[index] = Double.doubleToRawLongBits(point.getDoubleValue());
+        kinds[index] = KIND_DOUBLE;
+        break;
+      case Types.VARCHAR:
+        values[index] = textIndex(point.getAsString());
+        kinds[index] = KIND_TEXT;
+        break;
+      default:
+        values[index] = 0;
+        kinds[index] = KIND_NONE;
+    }
+  }
+
+  @Override
+  public QueryDataPoint get(int index) {
+    checkIndex(index);
+    switch (kinds[index]) {
+      case KIND_INT:
+        long value = values[index];
+        if (value != (int) value) {
+          // QueryDataPoint only holds int values
+          return new QueryDataPoint(timestamps[index], (double) value);
+        }
+        return new QueryDataPoint(timestamps[index], (int) value);
+      case KIND_DOUBLE:
+        return new QueryDataPoint(timestamps[index], Double.longBitsToDouble(values[index]));
+      case KIND_TEXT:
+        return new QueryDataPoint(timestamps[index], texts.get((int) values[index]));
+      default:
+        return new QueryDataPoint(timestamps[index]);
+    }
+  }
+
+  @Override
+  public QueryDataPoint set(int index, QueryDataPoint point) {
+    QueryDataPoint previous = get(index);
+    put(index, point);
+    return previous;
+  }
+
+  @Override
+  public QueryDataPoint remove(int index) {
+    QueryDataPoint previous = get(index);
+    int moved = size - index - 1;
+    if (moved > 0) {
+      System.arraycopy(timestamps, index + 1, timestamps, index, moved);
+      System.arraycopy(values, index + 1, values, index, moved);
+      System.arraycopy(kinds, index + 1, kinds, index, moved);
+    }
+    size--;
+    modCount++;
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    size = 0;
+    texts = null;
+    textIndexes = null;
+    modCount++;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  public long getTimestamp(int index) {
+    checkIndex(index);
+    return timestamps[index];
+  }
+
+  /**
+   * @return The type of the value as QueryDataPoint#getType(), i.e. Types.INTEGER, Types.DOUBLE,
+   * Types.VARCHAR or 0 if there is no value
+   */
+  public int getType(int index) {
+    checkIndex(index);
+    switch (kinds[index]) {
+      case KIND_INT:
+        return Types.INTEGER;
+      case KIND_DOUBLE:
+        return Types.DOUBLE;
+      case KIND_TEXT:
+        return Types.VARCHAR;
+      default:
+        return 0;
+    }
+  }
+
+  public boolean isInteger(int index) {
+    checkIndex(index);
+    return kinds[index] == KIND_INT;
+  }
+
+  public int getIntValue(int index) {
+    checkIndex(index);
+    return (int) values[index];
+  }
+
+  public long getLongValue(int index) {
+    checkIndex(index);
+    return values[index];
+  }
+
+  public double getDoubleValue(int index) {
+    checkIndex(index);
+    return Double.longBitsToDouble(values[index]);
+  }
+
+  public String getText(int index) {
+    checkIndex(index);
+    return kinds[index] == KIND_TEXT ? texts.get((int) values[index]) : null;
+  }
+
+  /**
+   * Same as QueryDataPoint#getAsDouble()
+   */
+  public double getAsDouble(int index) {
+    checkIndex(index);
+    switch (kinds[index]) {
+      case KIND_INT:
+        return values[index];
+      case KIND_DOUBLE:
+        return Double.longBitsToDouble(values[index]);
+      default:
+        throw new IllegalArgumentException(
+            "Among QueryDataPoint.getAsDouble(), type must be int or double");
+    }
+  }
+
+  /**
+   * @return The column of the values, holding the bits of the doubles, if all the values are
+   * doubles, else null. The array is the buffer's own, to be read up to size() and not modified.
+   */
+  public long[] getDoubleBits() {
+    for (int i = 0; i < size; i++) {
+      if (kinds[i] != KIND_DOUBLE) {
+        return null;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Same as QueryDataPoint#getAsString()
+   */
+  public String getAsString(int index) {
+    checkIndex(index);
+    switch (kinds[index]) {
+      case KIND_INT:
+        return String.valueOf(values[index]);
+      case KIND_DOUBLE:
+        return String.valueOf(Double.longBitsToDouble(values[index]));
+      case KIND_TEXT:
+        return texts.get((int) values[index]);
+      default:
+        throw new IllegalArgumentException(
+            "Among QueryDataPoint.getAsDouble(), type must be int or double");
+    }
+  }
+
+  /**
+   * Same as QueryDataPoint#dividedBy(double)
+   */
+  public void divideBy(int index, double divisor) {
+    checkIndex(index);
+    switch (kinds[index]) {
+      case KIND_INT:
+        values[index] = values[index] / (long) divisor;
+        break;
+      case KIND_DOUBLE:
+        values[index] = Double.doubleToRawLongBits(Double.longBitsToDouble(values[index]) / divisor);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Split the datapoints into the intervals [startTimestamp + k * step, startTimestamp + (k + 1) *
+   * step), skipping the empty ones and the datapoints before startTimestamp. The datapoints are
+   * expected in time order.
+   *
+   * @return The index ranges of the non-empty intervals, range k being [ranges[2k],
+   * ranges[2k + 1])
+   */
+  public int[] split(long startTimestamp, long step) {
+    int[] ranges = new int[16];
+    int rangeCount = 0;
+    int from = -1;
+    long curTimestamp = startTimestamp + step;
+    for (int i = 0; i < size; i++) {
+      long timestamp = timestamps[i];
+      if (timestamp < startTimestamp || timestamp >= curTimestamp) {
+        if (from >= 0) {
+          if (rangeCount + 2 > ranges.length) {
+            ranges = Arrays.copyOf(ranges, ranges.length * 2);
+          }
+          ranges[rangeCount++] = from;
+          ranges[rangeCount++] = i;
+          from = -1;
+        }
+        if (timestamp < startTimestamp) {
+          continue;
+        }
+        curTimestamp += ((timestamp - curTimestamp) / step + 1) * step;
+      }
+      if (from < 0) {
+        from = i;
+      }
+    }
+    if (from >= 0) {
+      if (rangeCount + 2 > ranges.length) {
+        ranges = Arrays.copyOf(ranges, ranges.length + 2);
+      }
+      ranges[rangeCount++] = from;
+      ranges[rangeCount++] = size;
+    }
+    return Arrays.copyOf(ranges, rangeCount);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+  }
+
+  private String outOfBoundsMessage(int index) {
+    return "Index: " + index + ", Size: " + size;
+  }
+
+  /**
+   * Writes the datapoints as QueryDataPoint does, an array of [timestamp, value].
+   */
+  public static class Adapter extends TypeAdapter<DataPointBuffer> {
+
+    @Override
+    public void write(JsonWriter out, DataPointBuffer buffer) throws IOException {
+      if (buffer == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginArray();
+      for (int i = 0; i < buffer.size; i++) {
+        out.beginArray();
+        out.value(buffer.timestamps[i]);
+        switch (buffer.kinds[i]) {
+          case KIND_INT:
+            out.value(buffer.values[i]);
+            break;
+          case KIND_DOUBLE:
+            out.value(Double.longBitsToDouble(buffer.values[i]));
+            break;
+          case KIND_TEXT:
+            out.value(buffer.texts.get((int) buffer.values[i]));
+            break;
+          default:
+            break;
+        }
+        out.endArray();
+      }
+      out.endArray();
+    }
+
+    @Override
+    public DataPointBuffer read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      DataPointBuffer buffer = new DataPointBuffer();
+      in.beginArray();
+      while (in.hasNext()) {
+        in.beginArray();
+        long timestamp = in.nextLong();
+        if (!in.hasNext()) {
+          buffer.append(timestamp, 0, KIND_NONE);
+        } else if (in.peek() == JsonToken.STRING) {
+          buffer.add(timestamp, in.nextString());
+        } else if (in.peek() == JsonToken.NUMBER) {
+          String number = in.nextString();
+          if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            buffer.add(timestamp, Long.parseLong(number));
+          } else {
+            buffer.add(timestamp, Double.parseDouble(number));
+          }
+        } else {
+          throw new JsonParseException("Invalid datapoint value " + in.peek());
+        }
+        in.endArray();
+      }
+      in.endArray();
+      return buffer;
+    }
+  }
+
+}
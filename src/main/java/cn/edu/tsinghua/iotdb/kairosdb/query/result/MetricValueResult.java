@@ -2,8 +2,10 @@ package cn.edu.tsinghua.iotdb.kairosdb.query.result;
 
 import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorAlign;
 import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBy;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -21,49 +23,44 @@ public class MetricValueResult {
   private Map<String, List<String>> tags;
 
   @SerializedName("values")
-  private List<QueryDataPoint> values;
+  @JsonAdapter(DataPointBuffer.Adapter.class)
+  private DataPointBuffer values;
 
   public MetricValueResult(String name) {
     this.name = name;
     groupBy = new LinkedList<>();
     tags = new HashMap<>();
-    values = new LinkedList<>();
+    values = new DataPointBuffer();
   }
 
   public List<List<QueryDataPoint>> splitDataPoint(
       long startTimestamp, long step, QueryAggregatorAlign align) {
-    if (align == QueryAggregatorAlign.ALIGN_SAMPLING) {
-      return splitDataPoint(getDatapoints().get(0).getTimestamp(), step);
-    }
-    return splitDataPoint(startTimestamp, step);
+    return toViews(split(startTimestamp, step, align));
   }
 
   public List<List<QueryDataPoint>> splitDataPoint(long startTimestamp, long step) {
-    List<List<QueryDataPoint>> result = new LinkedList<>();
-
-    List<QueryDataPoint> tmpList = new LinkedList<>();
-
-    Long curTimestamp = startTimestamp + step;
-
-    for (QueryDataPoint point : values) {
-      if (point.getTimestamp() < startTimestamp) {
-        continue;
-      }
-      if (point.getTimestamp() < curTimestamp) {
-        tmpList.add(point);
-      } else {
-        if (!tmpList.isEmpty()) {
-          result.add(tmpList);
-          tmpList = new LinkedList<>();
-        }
-        curTimestamp += ((point.getTimestamp() - curTimestamp) / step + 1) * step;
-        tmpList.add(point);
-      }
-    }
-    if (!tmpList.isEmpty()) {
-      result.add(tmpList);
+    return toViews(split(startTimestamp, step));
+  }
+
+  /**
+   * @return The index ranges of the intervals, see {@link DataPointBuffer#split(long, long)}
+   */
+  public int[] split(long startTimestamp, long step, QueryAggregatorAlign align) {
+    if (align == QueryAggregatorAlign.ALIGN_SAMPLING) {
+      return split(values.getTimestamp(0), step);
     }
+    return split(startTimestamp, step);
+  }
 
+  public int[] split(long startTimestamp, long step) {
+    return values.split(startTimestamp, step);
+  }
+
+  private List<List<QueryDataPoint>> toViews(int[] ranges) {
+    List<List<QueryDataPoint>> result = new ArrayList<>(ranges.length / 2);
+    for (int i = 0; i < ranges.length; i += 2) {
+      result.add(values.subList(ranges[i], ranges[i + 1]));
+    }
     return result;
   }
 
@@ -120,19 +117,39 @@ public class MetricValueResult {
     values.add(point);
   }
 
-  public List<QueryDataPoint> getDatapoints() {
+  public void addDataPoint(long timestamp, int value) {
+    values.add(timestamp, value);
+  }
+
+  public void addDataPoint(long timestamp, long value) {
+    values.add(timestamp, value);
+  }
+
+  public void addDataPoint(long timestamp, double value) {
+    values.add(timestamp, value);
+  }
+
+  public void addDataPoint(long timestamp, String value) {
+    values.add(timestamp, value);
+  }
+
+  public DataPointBuffer getDatapoints() {
     return values;
   }
 
   public void setValues(List<QueryDataPoint> values) {
-    this.values = values;
+    if (values instanceof DataPointBuffer) {
+      this.values = (DataPointBuffer) values;
+    } else {
+      this.values = new DataPointBuffer(values);
+    }
   }
 
   public boolean isTextType() {
-    if (getDatapoints().isEmpty()) {
+    if (values.isEmpty()) {
       return false;
     }
-    return getDatapoints().get(0).getType() == Types.VARCHAR;
+    return values.getType(0) == Types.VARCHAR;
   }
 
 }
@@ -51,10 +51,29 @@ public class QuerySqlBuilder {
     return String.format("%s where time>=%s and time<=%s", toString(), startTime, endTime);
   }
 
+  /**
+   * Generate a Group-By query computing the aggregation functions of the metric in each interval
+   * of step ms from startTime.
+   */
+  public String generateGroupBySql(List<String> functions, long step, long startTime,
+      long endTime) {
+    StringBuilder selected = new StringBuilder();
+    for (String function : functions) {
+      selected.append(function).append("(").append(metricName).append("),");
+    }
+    selected.deleteCharAt(selected.length() - 1);
+    return String.format("%s group by (%sms, %s, [%s, %s])", toString(selected.toString()), step,
+        startTime, startTime, endTime);
+  }
+
   @Override
   public String toString() {
+    return toString(metricName);
+  }
+
+  private String toString(String selected) {
     StringBuilder builder = new StringBuilder();
-    builder.append(String.format(SQL_PREFIX, metricName));
+    builder.append(String.format(SQL_PREFIX, selected));
     for (StringBuilder tmpBuilder : list) {
       builder.append(tmpBuilder);
       builder.append(",");
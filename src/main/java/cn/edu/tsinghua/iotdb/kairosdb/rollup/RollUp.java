@@ -64,7 +64,8 @@ public class RollUp implements Runnable {
       Query query = rollUpQuery.getQuery();
       query.setStartAbsolute(currTime - interval.toMillisecond());
       query.setEndAbsolute(currTime);
-      QueryExecutor executor = new QueryExecutor(query);
+      // a roll-up query has no deadline, its interval may be longer than QUERY_TIMEOUT
+      QueryExecutor executor = new QueryExecutor(query, 0);
       try {
         QueryResult queryResult = executor.execute();
         for (MetricResult metricResult : queryResult.getQueries()) {
@@ -32,7 +32,7 @@ public class MetricsManagerTestCase {
 
     try {
       initDB();
-      DataPointsParser dpp = new DataPointsParser(null, null);
+      DataPointsParser dpp = new DataPointsParser(null);
       dpp.addDataPoint(name, ImmutableSortedMap.copyOf(tags), DataType.STRING, timestamp, value);
     } catch (Exception e) {
       LOGGER.error(String.format("%s: %s", e.getClass().getName(), e.getMessage()));
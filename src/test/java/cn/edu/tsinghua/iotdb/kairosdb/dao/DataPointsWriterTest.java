@@ -0,0 +1,104 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataPointsWriterTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private int batchSize;
+  // The calls of the statement, e.g. "executeBatch [a, b]"
+  private final List<String> calls = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    batchSize = config.INSERT_BATCH_SIZE;
+  }
+
+  @After
+  public void tearDown() {
+    config.INSERT_BATCH_SIZE = batchSize;
+  }
+
+  private Connection recordingConnection() {
+    List<String> batch = new ArrayList<>();
+    Statement statement = (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[]{Statement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "execute":
+              calls.add("execute " + args[0]);
+              return false;
+            case "addBatch":
+              batch.add((String) args[0]);
+              return null;
+            case "executeBatch":
+              calls.add("executeBatch " + batch);
+              int[] counts = new int[batch.size()];
+              batch.clear();
+              return counts;
+            case "close":
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[]{Connection.class}, (proxy, method, args) -> {
+          if ("createStatement".equals(method.getName())) {
+            return statement;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  @Test
+  public void buildOneInsertPerRow() {
+    Map<String, TreeMap<Long, Map<String, String>>> deviceRows = new TreeMap<>();
+    Map<String, String> row = new LinkedHashMap<>();
+    row.put("s0", "1.5");
+    row.put("s1", "'text'");
+    deviceRows.computeIfAbsent("root.group_1.d2", k -> new TreeMap<>()).put(20L, row);
+    deviceRows.get("root.group_1.d2").put(5L, Collections.singletonMap("s0", "2"));
+    deviceRows.computeIfAbsent("root.group_0.d1", k -> new TreeMap<>())
+        .put(10L, Collections.singletonMap("s0", "3"));
+
+    // grouped by device, each device in time order
+    assertEquals(Arrays.asList(
+        "insert into root.group_0.d1(timestamp,s0) values(10,3)",
+        "insert into root.group_1.d2(timestamp,s0) values(5,2)",
+        "insert into root.group_1.d2(timestamp,s0,s1) values(20,1.5,'text')"),
+        DataPointsWriter.buildInsertSqlList(deviceRows, 3));
+  }
+
+  @Test
+  public void sendInBatchesOfInsertBatchSize() throws Exception {
+    config.INSERT_BATCH_SIZE = 2;
+    DataPointsWriter.execute(recordingConnection(), Arrays.asList("a", "b", "c", "d", "e"));
+    assertEquals(Arrays.asList("executeBatch [a, b]", "executeBatch [c, d]", "executeBatch [e]"),
+        calls);
+  }
+
+  @Test
+  public void sendOneByOneWithoutBatches() throws Exception {
+    config.INSERT_BATCH_SIZE = 1;
+    DataPointsWriter.execute(recordingConnection(), Arrays.asList("a", "b"));
+    assertEquals(Arrays.asList("execute a", "execute b"), calls);
+  }
+
+}
@@ -0,0 +1,117 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import javax.ws.rs.core.HttpHeaders;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IngestionSchedulerTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private long queueBytes;
+  private long requestBytes;
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Before
+  public void setUp() {
+    queueBytes = config.INGESTION_QUEUE_BYTES;
+    requestBytes = config.INGESTION_REQUEST_BYTES;
+    config.INGESTION_QUEUE_BYTES = 1000;
+    config.INGESTION_REQUEST_BYTES = 300;
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    config.INGESTION_QUEUE_BYTES = queueBytes;
+    config.INGESTION_REQUEST_BYTES = requestBytes;
+  }
+
+  static HttpHeaders contentLength(long length) {
+    return (HttpHeaders) Proxy.newProxyInstance(IngestionSchedulerTest.class.getClassLoader(),
+        new Class[]{HttpHeaders.class}, (proxy, method, args) ->
+            "getRequestHeader".equals(method.getName()) && "Content-Length".equals(args[0])
+                ? Collections.singletonList(String.valueOf(length)) : null);
+  }
+
+  /**
+   * @return A worker which runs until the test ends
+   */
+  private IngestionWorker blockingWorker() {
+    return new IngestionWorker(null, null, null) {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  private static void awaitPendingBytes(IngestionScheduler scheduler, long bytes)
+      throws InterruptedException {
+    for (int i = 0; i < 1000 && scheduler.getPendingBytes() != bytes; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(bytes, scheduler.getPendingBytes());
+  }
+
+  @Test
+  public void boundThePendingBytes() throws Exception {
+    IngestionScheduler scheduler = new IngestionScheduler(1);
+    assertTrue(scheduler.submit(blockingWorker(), contentLength(600)));
+    // without Content-Length a request counts for INGESTION_REQUEST_BYTES
+    assertTrue(scheduler.submit(blockingWorker(), null));
+    assertEquals(900, scheduler.getPendingBytes());
+    assertFalse(scheduler.submit(blockingWorker(), contentLength(200)));
+    assertTrue(scheduler.submit(blockingWorker(), contentLength(100)));
+    assertEquals(3, scheduler.getPendingRequests());
+    assertEquals(3, scheduler.getAcceptedCount());
+    assertEquals(1, scheduler.getRejectedCount());
+
+    release.countDown();
+    awaitPendingBytes(scheduler, 0);
+    assertTrue(scheduler.submit(blockingWorker(), contentLength(200)));
+  }
+
+  @Test
+  public void acceptALargeRequestWhenIdle() throws Exception {
+    IngestionScheduler scheduler = new IngestionScheduler(1);
+    assertTrue(scheduler.submit(blockingWorker(), contentLength(5000)));
+    assertFalse(scheduler.submit(blockingWorker(), contentLength(1)));
+  }
+
+  @Test
+  public void releaseTheBytesOfAFailedRequest() throws Exception {
+    IngestionScheduler scheduler = new IngestionScheduler(1);
+    CountDownLatch failing = new CountDownLatch(1);
+    assertTrue(scheduler.submit(new IngestionWorker(null, null, null) {
+      @Override
+      public void run() {
+        try {
+          failing.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new IllegalStateException("worker failed");
+      }
+    }, contentLength(800)));
+    assertFalse(scheduler.submit(blockingWorker(), contentLength(300)));
+
+    failing.countDown();
+    awaitPendingBytes(scheduler, 0);
+    assertEquals(0, scheduler.getPendingRequests());
+    assertTrue(scheduler.submit(blockingWorker(), contentLength(300)));
+  }
+
+}
@@ -0,0 +1,144 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+public class KnownSeriesCacheTest {
+
+  @Test
+  public void addAndContains() {
+    KnownSeriesCache cache = new KnownSeriesCache(1000000);
+    assertFalse(cache.contains("root.group_0.d1.s1"));
+    assertTrue(cache.add("root.group_0.d1.s1"));
+    assertTrue(cache.contains("root.group_0.d1.s1"));
+    assertFalse(cache.contains("root.group_0.d1.s2"));
+    assertEquals(1, cache.size());
+
+    // adding a known series again does not change the size
+    assertTrue(cache.add("root.group_0.d1.s1"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void growBeyondInitialCapacity() {
+    KnownSeriesCache cache = new KnownSeriesCache(1000000);
+    for (int i = 0; i < 200000; i++) {
+      assertTrue(cache.add("root.group_" + i % 50 + ".d" + i + ".s0"));
+    }
+    assertEquals(200000, cache.size());
+    for (int i = 0; i < 200000; i++) {
+      assertTrue(cache.contains("root.group_" + i % 50 + ".d" + i + ".s0"));
+    }
+    assertFalse(cache.contains("root.group_0.d200000.s0"));
+  }
+
+  @Test
+  public void rejectWhenFull() {
+    // every stripe keeps at least 1024 series, so the smallest cache holds 64 * 1024
+    KnownSeriesCache cache = new KnownSeriesCache(0);
+    int i = 0;
+    while (cache.add("root.group_0.d" + i + ".s0")) {
+      i++;
+      assertTrue(i <= 64 * 1024);
+    }
+    String rejected = "root.group_0.d" + i + ".s0";
+    assertFalse(cache.contains(rejected));
+    assertEquals(i, cache.size());
+
+    // series remembered before the stripe was full are still known
+    for (int j = 0; j < i; j++) {
+      assertTrue(cache.contains("root.group_0.d" + j + ".s0"));
+    }
+  }
+
+  @Test
+  public void clear() {
+    KnownSeriesCache cache = new KnownSeriesCache(1000000);
+    for (int i = 0; i < 5000; i++) {
+      cache.add("root.group_0.d" + i + ".s0");
+    }
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertFalse(cache.contains("root.group_0.d0.s0"));
+    assertTrue(cache.add("root.group_0.d0.s0"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void removeKeepsTheOtherSeriesReachable() {
+    KnownSeriesCache cache = new KnownSeriesCache(1000000);
+    for (int i = 0; i < 100000; i++) {
+      cache.add("root.group_0.d" + i + ".s0");
+    }
+    // removing every third series shifts back the rest of the clusters
+    for (int i = 0; i < 100000; i += 3) {
+      assertTrue(cache.remove("root.group_0.d" + i + ".s0"));
+    }
+    assertFalse(cache.remove("root.group_0.d0.s0"));
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i % 3 != 0, cache.contains("root.group_0.d" + i + ".s0"));
+    }
+    assertEquals(100000 - 33334, cache.size());
+  }
+
+  @Test
+  public void removeTheSeriesOfAPattern() throws Exception {
+    KnownSeriesCache cache = new KnownSeriesCache(1000000);
+    cache.add("root.group_0.d1.m1");
+    cache.add("root.group_3.d2.m1");
+    cache.add("root.group_0.d1.m2");
+    List<String> executed = new ArrayList<>();
+    Statement statement = showTimeSeries(executed,
+        Arrays.asList("root.group_0.d1.m1", "root.group_3.d2.m1", "root.group_5.d9.m1"));
+
+    assertEquals(2, cache.remove(statement, "root.*.*.m1"));
+    assertEquals(Arrays.asList("SHOW TIMESERIES root.*.*.m1"), executed);
+    assertFalse(cache.contains("root.group_0.d1.m1"));
+    assertFalse(cache.contains("root.group_3.d2.m1"));
+    // the series of the other metrics stay known
+    assertTrue(cache.contains("root.group_0.d1.m2"));
+    assertEquals(1, cache.size());
+  }
+
+  /**
+   * @return A statement whose result set lists the given series
+   */
+  private static Statement showTimeSeries(List<String> executed, List<String> series) {
+    Iterator<String> rows = series.iterator();
+    String[] current = new String[1];
+    ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(
+        KnownSeriesCacheTest.class.getClassLoader(), new Class[]{ResultSet.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "next":
+              current[0] = rows.hasNext() ? rows.next() : null;
+              return current[0] != null;
+            case "getString":
+              return current[0];
+            default:
+              return null;
+          }
+        });
+    return (Statement) Proxy.newProxyInstance(KnownSeriesCacheTest.class.getClassLoader(),
+        new Class[]{Statement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "execute":
+              executed.add((String) args[0]);
+              return true;
+            case "getResultSet":
+              return resultSet;
+            default:
+              return null;
+          }
+        });
+  }
+
+}
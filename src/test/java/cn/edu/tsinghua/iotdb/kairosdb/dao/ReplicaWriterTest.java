@@ -0,0 +1,114 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.dao.ReplicaWriter.AckPolicy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ReplicaWriterTest {
+
+  private static final List<Connection> CONNECTIONS = Collections.nCopies(3, null);
+
+  @Test
+  public void quorumDoesNotWaitForTheLaggingReplica() throws Exception {
+    ReplicaWriter writer = new ReplicaWriter(3, 3, 10);
+    CountDownLatch lagging = new CountDownLatch(1);
+    CountDownLatch written = new CountDownLatch(1);
+    writer.write(CONNECTIONS, (conn, replica) -> {
+      if (replica == 2) {
+        await(lagging);
+        written.countDown();
+      }
+    }, AckPolicy.QUORUM);
+    // the lagging replica keeps on writing in the background
+    assertEquals(1, written.getCount());
+    lagging.countDown();
+    assertTrue(written.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void toleratedFailures() throws Exception {
+    ReplicaWriter writer = new ReplicaWriter(3, 3, 10);
+    writer.write(CONNECTIONS, (conn, replica) -> {
+      if (replica == 0) {
+        throw new SQLException("replica 0 failed");
+      }
+    }, AckPolicy.QUORUM);
+
+    try {
+      writer.write(CONNECTIONS, (conn, replica) -> {
+        if (replica == 0) {
+          throw new SQLException("replica 0 failed");
+        }
+      }, AckPolicy.ALL);
+      fail();
+    } catch (SQLException e) {
+      assertEquals("replica 0 failed", e.getMessage());
+    }
+
+    try {
+      writer.write(CONNECTIONS, (conn, replica) -> {
+        if (replica != 2) {
+          throw new SQLException("replica " + replica + " failed");
+        }
+      }, AckPolicy.QUORUM);
+      fail();
+    } catch (SQLException e) {
+      assertTrue(e.getMessage().endsWith("failed"));
+    }
+  }
+
+  @Test
+  public void fullQueueIsOffloaded() throws Exception {
+    // one thread and one queued write per replica
+    ReplicaWriter writer = new ReplicaWriter(3, 3, 1);
+    CountDownLatch lagging = new CountDownLatch(1);
+    Set<Integer> offloaded = ConcurrentHashMap.newKeySet();
+    try {
+      for (int i = 0; i < 2; i++) {
+        writer.write(CONNECTIONS, (conn, replica) -> {
+          if (replica == 0) {
+            await(lagging);
+          }
+        }, AckPolicy.ONE, replica -> offloaded.add(replica));
+      }
+      assertTrue(offloaded.isEmpty());
+      // only the second write of replica 0 stays queued
+      while (writer.getQueueDepth() > 1) {
+        Thread.sleep(1);
+      }
+
+      // the write of replica 0 is neither running nor queued, and counts as acknowledged
+      writer.write(CONNECTIONS, (conn, replica) -> {
+      }, AckPolicy.ALL, replica -> offloaded.add(replica));
+      assertEquals(Collections.singleton(0), offloaded);
+
+      try {
+        writer.write(CONNECTIONS, (conn, replica) -> {
+        }, AckPolicy.ALL);
+        fail();
+      } catch (SQLException e) {
+        assertEquals("Write queue of replica 0 is full", e.getMessage());
+      }
+    } finally {
+      lagging.countDown();
+    }
+  }
+
+  private static void await(CountDownLatch latch) throws SQLException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new SQLException(e);
+    }
+  }
+
+}
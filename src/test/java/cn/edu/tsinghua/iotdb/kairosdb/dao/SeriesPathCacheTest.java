@@ -0,0 +1,92 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.dao.SeriesPathCache.SeriesPath;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class SeriesPathCacheTest {
+
+  /**
+   * Resolves the device of a series from its tag values, without IoTDB, and counts the series
+   * resolved.
+   */
+  private static class CountingCache extends SeriesPathCache {
+
+    private int resolved = 0;
+
+    CountingCache(int maxSize) {
+      super(maxSize);
+    }
+
+    @Override
+    SeriesPath resolve(String name, SortedMap<String, String> tags) {
+      resolved++;
+      StringBuilder devicePath = new StringBuilder();
+      for (String value : tags.values()) {
+        devicePath.append('.').append(value);
+      }
+      return new SeriesPath(devicePath.toString(), "group_0", name);
+    }
+  }
+
+  private static SortedMap<String, String> tags(String... keysAndValues) {
+    SortedMap<String, String> tags = new TreeMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      tags.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return tags;
+  }
+
+  @Test
+  public void resolveEachSeriesOnce() {
+    CountingCache cache = new CountingCache(1000);
+    SeriesPath path = cache.get("m", tags("host", "a", "dc", "x"));
+    assertEquals("root.group_0.x.a", path.getDevice());
+    assertEquals("root.group_0.x.a.m", path.getSeries());
+
+    // an equal tag set built in another order
+    assertSame(path, cache.get("m", tags("dc", "x", "host", "a")));
+    assertEquals(1, cache.resolved);
+
+    cache.get("m", tags("host", "b", "dc", "x"));
+    cache.get("n", tags("host", "a", "dc", "x"));
+    // a tag key equal to the value of another tag is not the same series
+    cache.get("m", tags("host", "dc", "x", "a"));
+    cache.get("m", tags("host", "a"));
+    assertEquals(5, cache.resolved);
+    assertEquals(5, cache.size());
+  }
+
+  @Test
+  public void invalidateOnlyTheSeriesOfAMetric() {
+    CountingCache cache = new CountingCache(1000);
+    for (int i = 0; i < 100; i++) {
+      cache.get("m", tags("host", "h" + i));
+      cache.get("n", tags("host", "h" + i));
+    }
+    cache.invalidate("m");
+    assertEquals(100, cache.size());
+    cache.get("n", tags("host", "h0"));
+    assertEquals(200, cache.resolved);
+    cache.get("m", tags("host", "h0"));
+    assertEquals(201, cache.resolved);
+  }
+
+  @Test
+  public void evictBeyondTheMaxSize() {
+    CountingCache cache = new CountingCache(160);
+    for (int i = 0; i < 1000; i++) {
+      cache.get("m", tags("host", "h" + i));
+    }
+    // each of the 16 stripes keeps its 10 most recently used series
+    assertTrue(cache.size() <= 160);
+    cache.get("m", tags("host", "h999"));
+    assertEquals(1000, cache.resolved);
+    cache.get("m", tags("host", "h0"));
+    assertEquals(1001, cache.resolved);
+  }
+
+}
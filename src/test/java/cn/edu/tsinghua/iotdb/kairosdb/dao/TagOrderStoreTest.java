@@ -0,0 +1,201 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TagOrderStoreTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("tag_order").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void assignPositions() {
+    RecordingStore store = new RecordingStore(dir);
+    HashMap<Integer, String> mapping = store.getMapping("m", tags("host", "dc"));
+    assertEquals(2, mapping.size());
+    assertEquals(new HashSet<>(mapping.values()), new HashSet<>(tags("host", "dc").keySet()));
+
+    // known tags keep their position, a new tag gets the next one
+    HashMap<Integer, String> next = store.getMapping("m", tags("host", "dc", "rack"));
+    for (Map.Entry<Integer, String> entry : mapping.entrySet()) {
+      assertEquals(entry.getValue(), next.get(entry.getKey()));
+    }
+    assertEquals("rack", next.get(2));
+    assertEquals(3, store.getTagOrder("m").size());
+    assertEquals(3, store.getPendingPersistCount());
+  }
+
+  @Test
+  public void concurrentFirstTimeTags() throws Exception {
+    RecordingStore store = new RecordingStore(dir);
+    int threadNum = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threadNum);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threadNum; t++) {
+      int thread = t;
+      futures.add(pool.submit(() -> {
+        start.await();
+        for (int i = 0; i < 50; i++) {
+          store.getMapping("m", tags("tag" + (i + thread) % 50));
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    pool.shutdown();
+
+    Map<String, Integer> tagOrder = store.getTagOrder("m");
+    assertEquals(50, tagOrder.size());
+    assertEquals(50, new HashSet<>(tagOrder.values()).size());
+    assertEquals(50, store.getPendingPersistCount());
+  }
+
+  @Test
+  public void retryWritesTheSameRows() throws SQLException {
+    RecordingStore store = new RecordingStore(dir);
+    store.setNextIndex(10);
+    store.getMapping("m", tags("host", "dc"));
+    store.failures = 1;
+    try {
+      store.persistBatch();
+      fail();
+    } catch (SQLException e) {
+      // retried by the persister
+    }
+    store.persistBatch();
+    assertEquals(2, store.written.size());
+    assertEquals(store.written.get(0), store.written.get(1));
+    assertEquals(rows(10, 11), timestamps(store.written.get(1)));
+    assertEquals(0, store.getPendingPersistCount());
+  }
+
+  @Test
+  public void recoverReplaysTheLoggedRows() throws SQLException {
+    RecordingStore store = new RecordingStore(dir);
+    store.setNextIndex(5);
+    HashMap<Integer, String> mapping = store.getMapping("m", tags("host", "dc"));
+
+    // restart before the positions are written to IoTDB
+    RecordingStore restarted = new RecordingStore(dir);
+    restarted.setNextIndex(3);
+    restarted.recover();
+    restarted.recover();
+    assertEquals(2, restarted.getPendingPersistCount());
+    assertEquals(mapping, restarted.getMapping("m", tags("host", "dc")));
+    restarted.persistBatch();
+    assertEquals(1, restarted.written.size());
+    assertEquals(rows(5, 6), timestamps(restarted.written.get(0)));
+
+    // the new positions do not reuse the rows of the log
+    restarted.getMapping("m", tags("rack"));
+    restarted.persistBatch();
+    assertEquals(rows(7), timestamps(restarted.written.get(1)));
+
+    // once written, the log is empty
+    RecordingStore again = new RecordingStore(dir);
+    again.recover();
+    assertEquals(0, again.getPendingPersistCount());
+    assertNull(again.getTagOrder("m"));
+  }
+
+  @Test
+  public void removePurgesTheQueueAndTheLog() throws SQLException {
+    RecordingStore store = new RecordingStore(dir);
+    store.getMapping("deleted", tags("host"));
+    store.getMapping("kept", tags("host"));
+    store.remove("deleted");
+    assertNull(store.getTagOrder("deleted"));
+    assertEquals(1, store.getPendingPersistCount());
+
+    RecordingStore restarted = new RecordingStore(dir);
+    restarted.recover();
+    assertNull(restarted.getTagOrder("deleted"));
+    assertNotNull(restarted.getTagOrder("kept"));
+
+    store.persistBatch();
+    assertEquals(1, store.written.get(0).size());
+    assertTrue(store.written.get(0).get(0).contains("\"kept\""));
+  }
+
+  private static Map<String, String> tags(String... keys) {
+    Map<String, String> tags = new HashMap<>();
+    for (String key : keys) {
+      tags.put(key, key + "_value");
+    }
+    return tags;
+  }
+
+  private static Set<Long> rows(long... timestamps) {
+    Set<Long> rows = new HashSet<>();
+    for (long timestamp : timestamps) {
+      rows.add(timestamp);
+    }
+    return rows;
+  }
+
+  private static Set<Long> timestamps(List<String> sqlList) {
+    Set<Long> timestamps = new HashSet<>();
+    for (String sql : sqlList) {
+      String values = sql.substring(sql.indexOf("values(") + "values(".length());
+      timestamps.add(Long.parseLong(values.substring(0, values.indexOf(','))));
+    }
+    return timestamps;
+  }
+
+  private static class RecordingStore extends TagOrderStore {
+
+    private final List<List<String>> written = new ArrayList<>();
+    private int failures = 0;
+
+    RecordingStore(File dir) {
+      super(dir);
+    }
+
+    @Override
+    void write(List<String> sqlList) throws SQLException {
+      written.add(Collections.unmodifiableList(new ArrayList<>(sqlList)));
+      if (failures > 0) {
+        failures--;
+        throw new SQLException("replica 1 is unreachable");
+      }
+    }
+  }
+
+}
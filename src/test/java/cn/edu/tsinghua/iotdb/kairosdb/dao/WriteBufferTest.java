@@ -0,0 +1,175 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBufferTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private int maxRows;
+
+  @Before
+  public void setUp() {
+    maxRows = config.WRITE_BUFFER_MAX_ROWS;
+    config.WRITE_BUFFER_MAX_ROWS = 4;
+  }
+
+  @After
+  public void tearDown() {
+    config.WRITE_BUFFER_MAX_ROWS = maxRows;
+  }
+
+  @Test
+  public void coalesceTheRowsOfARequest() throws Exception {
+    RecordingBuffer buffer = new RecordingBuffer();
+    CompletableFuture<Void> first = buffer.append(rows("root.group_0.d1", 1L, "s1", "1"));
+    CompletableFuture<Void> second = buffer.append(rows("root.group_0.d1", 1L, "s2", "2"));
+    buffer.append(rows("root.group_0.d2", 1L, "s1", "3"));
+    // the rows of the same device and timestamp are merged
+    assertEquals(2, buffer.getBufferedRows());
+    assertSame(first, second);
+
+    buffer.flush();
+    assertNull(first.get(10, TimeUnit.SECONDS));
+    assertEquals(1, buffer.written.size());
+    Map<String, TreeMap<Long, Map<String, String>>> written = buffer.written.get(0);
+    Map<String, String> row = new HashMap<>();
+    row.put("s1", "1");
+    row.put("s2", "2");
+    assertEquals(row, written.get("root.group_0.d1").get(1L));
+    assertEquals(Collections.singletonMap("s1", "3"), written.get("root.group_0.d2").get(1L));
+    assertEquals(0, buffer.getBufferedRows());
+    assertEquals(2, buffer.getFlushedRows());
+  }
+
+  @Test
+  public void blockAtTwiceTheMaxRows() throws Exception {
+    RecordingBuffer buffer = new RecordingBuffer();
+    CountDownLatch flushing = new CountDownLatch(1);
+    CountDownLatch slowWrite = new CountDownLatch(1);
+    buffer.beforeWrite = () -> {
+      flushing.countDown();
+      slowWrite.await();
+    };
+    // the max rows request a flush, which is held in the write
+    CompletableFuture<Void> first = buffer.append(timestamps(0, 4));
+    assertTrue(flushing.await(10, TimeUnit.SECONDS));
+    CompletableFuture<Void> second = buffer.append(timestamps(4, 12));
+    assertEquals(8, buffer.getBufferedRows());
+
+    CompletableFuture<Void> third = new CompletableFuture<>();
+    Thread appender = new Thread(() -> {
+      try {
+        buffer.append(timestamps(12, 13));
+        third.complete(null);
+      } catch (InterruptedException e) {
+        third.completeExceptionally(e);
+      }
+    });
+    appender.start();
+    Thread.sleep(100);
+    assertFalse(third.isDone());
+
+    slowWrite.countDown();
+    third.get(10, TimeUnit.SECONDS);
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+    appender.join();
+  }
+
+  @Test
+  public void failedFlushFailsItsRequests() throws Exception {
+    RecordingBuffer buffer = new RecordingBuffer();
+    buffer.beforeWrite = () -> {
+      throw new SQLException("replica 0 failed");
+    };
+    CompletableFuture<Void> future = buffer.append(rows("root.group_0.d1", 1L, "s1", "1"));
+    buffer.flush();
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      // the request sends its rows itself
+      assertEquals("replica 0 failed", e.getCause().getMessage());
+    }
+    assertEquals(1, buffer.getFailedFlushCount());
+    assertEquals(0, buffer.getBufferedRows());
+
+    // the next requests are flushed again
+    buffer.beforeWrite = null;
+    future = buffer.append(rows("root.group_0.d1", 2L, "s1", "2"));
+    buffer.flush();
+    assertNull(future.get(10, TimeUnit.SECONDS));
+    assertEquals(1, buffer.getFlushCount());
+  }
+
+  private static Map<String, TreeMap<Long, Map<String, String>>> rows(String device,
+      long timestamp, String measurement, String value) {
+    Map<String, TreeMap<Long, Map<String, String>>> rows = new TreeMap<>();
+    rows.computeIfAbsent(device, k -> new TreeMap<>())
+        .put(timestamp, Collections.singletonMap(measurement, value));
+    return rows;
+  }
+
+  private static Map<String, TreeMap<Long, Map<String, String>>> timestamps(long from, long to) {
+    Map<String, TreeMap<Long, Map<String, String>>> rows = new TreeMap<>();
+    for (long t = from; t < to; t++) {
+      rows.computeIfAbsent("root.group_0.d1", k -> new TreeMap<>())
+          .put(t, Collections.singletonMap("s1", String.valueOf(t)));
+    }
+    return rows;
+  }
+
+  private interface WriteHook {
+
+    void run() throws Exception;
+  }
+
+  /**
+   * Records the flushed rows instead of writing them to IoTDB, flushes only on request.
+   */
+  private static class RecordingBuffer extends WriteBuffer {
+
+    private final List<Map<String, TreeMap<Long, Map<String, String>>>> written =
+        Collections.synchronizedList(new ArrayList<>());
+    private volatile WriteHook beforeWrite;
+
+    RecordingBuffer() {
+      super(0);
+    }
+
+    @Override
+    void write(Map<String, TreeMap<Long, Map<String, String>>> flushRows, int flushRowCount)
+        throws SQLException {
+      WriteHook hook = beforeWrite;
+      if (hook != null) {
+        try {
+          hook.run();
+        } catch (SQLException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new SQLException(e);
+        }
+      }
+      written.add(flushRows);
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package cn.edu.tsinghua.iotdb.kairosdb.dao;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteSpoolTest {
+
+  // A record of one statement takes 72 bytes, so a segment holds 3 of them
+  private static final int SEGMENT_SIZE = 256;
+
+  private final Config config = ConfigDescriptor.getInstance().getConfig();
+  private int replayBatch;
+  private int maxSegments;
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    replayBatch = config.SPOOL_REPLAY_BATCH;
+    maxSegments = config.SPOOL_MAX_SEGMENTS;
+    config.SPOOL_REPLAY_BATCH = 3;
+    config.SPOOL_MAX_SEGMENTS = 64;
+    dir = Files.createTempDirectory("spool").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    config.SPOOL_REPLAY_BATCH = replayBatch;
+    config.SPOOL_MAX_SEGMENTS = maxSegments;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void segmentRollover() {
+    RecordingSpool spool = new RecordingSpool(dir, 2);
+    List<String> expected0 = new ArrayList<>();
+    List<String> expected1 = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      String sql = sql(i);
+      assertTrue(spool.append(i % 2, Collections.singletonList(sql)));
+      (i % 2 == 0 ? expected0 : expected1).add(sql);
+    }
+    // A write larger than a segment is split into records of consecutive segments
+    List<String> batch = new ArrayList<>();
+    for (int i = 20; i < 30; i++) {
+      batch.add(sql(i));
+    }
+    assertTrue(spool.append(0, batch));
+    expected0.addAll(batch);
+    assertTrue((int) spool.getMetrics().get("segments") > 1);
+    assertTrue(spool.hasPending(0));
+    assertTrue(spool.hasPending(1));
+
+    assertEquals(expected0.size(), spool.replay(0));
+    assertEquals(expected0, spool.executed.get(0));
+    assertFalse(spool.hasPending(0));
+    assertTrue(spool.hasPending(1));
+
+    assertEquals(expected1.size(), spool.replay(1));
+    assertEquals(expected1, spool.executed.get(1));
+    assertFalse(spool.hasPending(1));
+
+    // Every segment is consumed, only the last one is kept for reuse
+    spool.deleteConsumedSegments();
+    assertEquals(1, spool.getMetrics().get("segments"));
+    assertEquals(0L, spool.getMetrics().get("size_bytes"));
+    assertEquals(1, dir.listFiles((d, name) -> name.endsWith(".seg")).length);
+  }
+
+  @Test
+  public void replayPerReplicaCursor() {
+    RecordingSpool spool = new RecordingSpool(dir, 2);
+    List<String> expected0 = new ArrayList<>();
+    List<String> expected1 = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      String sql = sql(i);
+      assertTrue(spool.append(i % 2, Collections.singletonList(sql)));
+      (i % 2 == 0 ? expected0 : expected1).add(sql);
+    }
+    int segments = (int) spool.getMetrics().get("segments");
+
+    // Replica 1 is still unreachable, its cursor does not move
+    spool.unreachable = 1;
+    assertEquals(expected0.size(), spool.replay(0));
+    assertEquals(0, spool.replay(1));
+    assertFalse(spool.hasPending(0));
+    assertTrue(spool.hasPending(1));
+    spool.deleteConsumedSegments();
+    assertEquals(segments, spool.getMetrics().get("segments"));
+
+    // After a restart, only the records of replica 1 are replayed
+    RecordingSpool reopened = new RecordingSpool(dir, 2);
+    assertFalse(reopened.hasPending(0));
+    assertTrue(reopened.hasPending(1));
+    assertEquals(0, reopened.replay(0));
+    assertTrue(reopened.executed.get(0).isEmpty());
+    assertEquals(expected1.size(), reopened.replay(1));
+    assertEquals(expected1, reopened.executed.get(1));
+    assertFalse(reopened.hasPending(1));
+  }
+
+  @Test
+  public void rejectWhenFull() {
+    config.SPOOL_MAX_SEGMENTS = 2;
+    RecordingSpool spool = new RecordingSpool(dir, 1);
+    int appended = 0;
+    while (spool.append(0, Collections.singletonList(sql(appended)))) {
+      appended++;
+      assertTrue(appended <= 6);
+    }
+    assertEquals(6, appended);
+    assertEquals(1L, spool.getMetrics().get("rejected_statements"));
+
+    // The spool accepts writes again once it has been replayed
+    assertEquals(6, spool.replay(0));
+    spool.deleteConsumedSegments();
+    assertTrue(spool.append(0, Collections.singletonList(sql(appended))));
+    assertTrue(spool.hasPending(0));
+  }
+
+  @Test
+  public void replicaLostDuringReplay() {
+    FakeReplica replica = new FakeReplica();
+    WriteSpool spool = new WriteSpool(dir, SEGMENT_SIZE, 1) {
+      @Override
+      Connection connection(int replicaIndex) {
+        return replica.connection();
+      }
+    };
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      expected.add(sql(i));
+    }
+    assertTrue(spool.append(0, expected));
+
+    // The batch fails, then the replica goes away while the statements are executed one by one
+    replica.rejected.add(sql(2));
+    replica.availableStatements = 1;
+    assertEquals(0, spool.replay(0));
+    assertTrue(spool.hasPending(0));
+    assertEquals(0L, spool.getMetrics().get("dropped_statements"));
+
+    // Once it is back, only the statement it rejects is dropped
+    replica.availableStatements = Integer.MAX_VALUE;
+    replica.executed.clear();
+    assertEquals(3, spool.replay(0));
+    assertFalse(spool.hasPending(0));
+    assertEquals(expected.subList(0, 2), replica.executed);
+    assertEquals(1L, spool.getMetrics().get("dropped_statements"));
+  }
+
+  private static String sql(int i) {
+    return String.format("insert into root.group_0.d0(timestamp,s0) values(%04d,1)", i);
+  }
+
+  /**
+   * An IoTDB replica which rejects some statements and drops the connection after a number of
+   * statements.
+   */
+  private static class FakeReplica {
+
+    private final Set<String> rejected = new HashSet<>();
+    private final List<String> executed = new ArrayList<>();
+    private int availableStatements = Integer.MAX_VALUE;
+
+    Connection connection() {
+      return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "createStatement":
+                return statement();
+              case "isClosed":
+                return availableStatements <= 0;
+              default:
+                return null;
+            }
+          });
+    }
+
+    private Statement statement() {
+      List<String> batch = new ArrayList<>();
+      return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class[]{Statement.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "addBatch":
+                batch.add((String) args[0]);
+                return null;
+              case "clearBatch":
+                batch.clear();
+                return null;
+              case "executeBatch":
+                for (String sql : batch) {
+                  if (rejected.contains(sql)) {
+                    throw new SQLException("rejected " + sql);
+                  }
+                }
+                for (String sql : batch) {
+                  execute(sql);
+                }
+                return new int[batch.size()];
+              case "execute":
+                if (!args[0].toString().startsWith("SHOW")) {
+                  execute((String) args[0]);
+                }
+                return true;
+              default:
+                return null;
+            }
+          });
+    }
+
+    private void execute(String sql) throws SQLException {
+      if (availableStatements <= 0) {
+        throw new SQLException("Connection refused", "08001");
+      }
+      availableStatements--;
+      if (rejected.contains(sql)) {
+        throw new SQLException("rejected " + sql);
+      }
+      executed.add(sql);
+    }
+  }
+
+  private static class RecordingSpool extends WriteSpool {
+
+    private final List<List<String>> executed = new ArrayList<>();
+    private int unreachable = -1;
+
+    RecordingSpool(File dir, int replicaNum) {
+      super(dir, SEGMENT_SIZE, replicaNum);
+      for (int i = 0; i < replicaNum; i++) {
+        executed.add(new ArrayList<>());
+      }
+    }
+
+    @Override
+    boolean execute(int replica, List<String> sqlList) {
+      if (replica == unreachable) {
+        return false;
+      }
+      executed.get(replica).addAll(sqlList);
+      return true;
+    }
+  }
+
+}
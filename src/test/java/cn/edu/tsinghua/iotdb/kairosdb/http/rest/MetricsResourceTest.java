@@ -0,0 +1,114 @@
+package cn.edu.tsinghua.iotdb.kairosdb.http.rest;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.IngestionScheduler;
+import cn.edu.tsinghua.iotdb.kairosdb.dao.IngestionWorker;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsResourceTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  // The headers given to each worker created
+  private final List<HttpHeaders> workerHeaders = new ArrayList<>();
+
+  @After
+  public void tearDown() throws InterruptedException {
+    release.countDown();
+    IngestionScheduler scheduler = IngestionScheduler.getInstance();
+    for (int i = 0; i < 1000 && scheduler.getPendingRequests() > 0; i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static HttpHeaders contentLength(long length) {
+    return (HttpHeaders) Proxy.newProxyInstance(MetricsResourceTest.class.getClassLoader(),
+        new Class[]{HttpHeaders.class}, (proxy, method, args) ->
+            "getRequestHeader".equals(method.getName()) && "Content-Length".equals(args[0])
+                ? Collections.singletonList(String.valueOf(length)) : null);
+  }
+
+  private static AsyncResponse recordTo(List<Object> responses) {
+    return (AsyncResponse) Proxy.newProxyInstance(MetricsResourceTest.class.getClassLoader(),
+        new Class[]{AsyncResponse.class}, (proxy, method, args) -> {
+          if ("resume".equals(method.getName())) {
+            responses.add(args[0]);
+            return true;
+          }
+          return false;
+        });
+  }
+
+  /**
+   * Its workers run until the test ends, instead of writing the datapoints.
+   */
+  private MetricsResource createResource() {
+    return new MetricsResource() {
+      @Override
+      IngestionWorker createWorker(AsyncResponse asyncResponse, HttpHeaders httpheaders,
+          InputStream stream) {
+        workerHeaders.add(httpheaders);
+        return new IngestionWorker(asyncResponse, httpheaders, stream) {
+          @Override
+          public void run() {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        };
+      }
+    };
+  }
+
+  @Test
+  public void rejectWithRetryAfterWhenSaturated() {
+    MetricsResource resource = createResource();
+    List<Object> responses = new ArrayList<>();
+    resource.add(contentLength(config.INGESTION_QUEUE_BYTES), new ByteArrayInputStream(new byte[0]),
+        recordTo(responses));
+    assertTrue(responses.isEmpty());
+
+    resource.add(contentLength(10), new ByteArrayInputStream(new byte[0]), recordTo(responses));
+    assertEquals(1, responses.size());
+    Response response = (Response) responses.get(0);
+    assertEquals(503, response.getStatus());
+    assertEquals(String.valueOf(config.INGESTION_RETRY_AFTER),
+        response.getHeaderString("Retry-After"));
+  }
+
+  @Test
+  public void sizeAGzipRequestByItsHeaders() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write("[]".getBytes(StandardCharsets.UTF_8));
+    }
+    List<Object> responses = new ArrayList<>();
+    createResource().addGzip(contentLength(123), new ByteArrayInputStream(bytes.toByteArray()),
+        recordTo(responses));
+    assertTrue(responses.isEmpty());
+    assertEquals(123, IngestionScheduler.getInstance().getPendingBytes());
+    // the stream is already decompressed
+    assertEquals(Collections.singletonList(null), workerHeaders);
+  }
+
+}
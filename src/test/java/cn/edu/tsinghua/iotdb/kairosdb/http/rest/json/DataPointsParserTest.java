@@ -0,0 +1,98 @@
+package cn.edu.tsinghua.iotdb.kairosdb.http.rest.json;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.dao.SeriesPathCache.SeriesPath;
+import com.google.gson.JsonSyntaxException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class DataPointsParserTest {
+
+  /**
+   * @return A parser which resolves the device of a series from its tag values, without IoTDB
+   */
+  private static DataPointsParser createParser(String json) {
+    return new DataPointsParser(new StringReader(json), Collections.emptyList()) {
+      @Override
+      SeriesPath resolveSeriesPath(String name, SortedMap<String, String> tags) {
+        StringBuilder devicePath = new StringBuilder();
+        for (String value : tags.values()) {
+          devicePath.append('.').append(value);
+        }
+        return new SeriesPath(devicePath.toString(), "group_0", name);
+      }
+    };
+  }
+
+  private static Map<String, String> row(String name, String value) {
+    Map<String, String> row = new HashMap<>();
+    row.put(name, value);
+    return row;
+  }
+
+  @Test
+  public void decodeTheDatapointsOfEachMetric() throws Exception {
+    DataPointsParser parser = createParser("[{\"name\":\"m\",\"tags\":{\"host\":\"a\"},"
+        + "\"datapoints\":[[1,2],[2,\"3.5\"],[3,\"text\"],[4,true,\"string\"],[5.0,6]]},"
+        + "{\"name\":\"n\",\"timestamp\":1,\"value\":7.25,\"tags\":{\"host\":\"a\"},"
+        + "\"ignored\":{\"a\":[1]}},"
+        + "{\"name\":\"o\",\"time\":2,\"value\":\"x\",\"tags\":{\"host\":\"a\"}}]");
+    ValidationErrors errors = parser.decode();
+    assertFalse(errors.getErrors().toString(), errors.hasErrors());
+
+    TreeMap<Long, Map<String, String>> rows = parser.groupRowsByDevice().get("root.group_0.a");
+    Map<String, String> first = row("m", "2");
+    first.put("n", "7.25");
+    assertEquals(first, rows.get(1L));
+    Map<String, String> second = row("m", "3.5");
+    second.put("o", "\"x\"");
+    assertEquals(second, rows.get(2L));
+    assertEquals(row("m", "\"text\""), rows.get(3L));
+    assertEquals(row("m", "\"true\""), rows.get(4L));
+    assertEquals(row("m", "6"), rows.get(5L));
+    assertEquals(5, rows.size());
+  }
+
+  @Test
+  public void reportTheInvalidDatapoints() throws Exception {
+    DataPointsParser parser = createParser("[{\"name\":\"m\",\"tags\":{\"host\":\"a\"},"
+        + "\"datapoints\":[[1],[2,null],[3,[]],[4,{\"a\":1}],[5,\"\"],[6,1]]},"
+        + "{\"tags\":{\"host\":\"a\"},\"datapoints\":[[1,1]]},"
+        + "{\"name\":\"n\",\"datapoints\":[[1,1]]}]");
+    ValidationErrors errors = parser.decode();
+    // as in KairosDB, only the valid datapoints advance the index in the messages
+    assertEquals(Arrays.asList(
+        "metric[0](name=m).datapoints[0].value cannot be null or empty.",
+        "metric[0](name=m).datapoints[0].value may not be empty.",
+        "metric[0](name=m).datapoints[0].value may not be an empty array.",
+        "metric[0](name=m) value is an invalid type",
+        "metric[0](name=m).datapoints[0].value may not be empty.",
+        "metric[1].name may not be null.",
+        "metric[2](name=n).tags count may not be null."), errors.getErrors());
+    // the valid datapoints of a metric are kept
+    assertEquals(Collections.singletonMap(6L, row("m", "1")),
+        parser.groupRowsByDevice().get("root.group_0.a"));
+  }
+
+  @Test
+  public void reportTruncatedInput() throws Exception {
+    assertEquals("Invalid json. No content due to end of input.",
+        createParser("[").decode().getFirstError());
+    assertEquals(Collections.singletonList("Invalid start of json."),
+        createParser("\"m\"").decode().getErrors());
+    try {
+      createParser("{\"name\":\"m\",\"datapoints\":[[1,").decode();
+      fail();
+    } catch (JsonSyntaxException e) {
+      assertEquals("Invalid JSON", e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,145 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fake connections to IoTDB for the tests of the query workers: each query SQL is answered with a
+ * ResultSet given by the test, and the SQL sent are recorded.
+ */
+class FakeIoTDB {
+
+  /**
+   * The answer of IoTDB to a query SQL.
+   */
+  interface Answer {
+
+    ResultSet answer(String sql) throws SQLException;
+  }
+
+  private final Answer answer;
+  private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+  private final List<Statement> cancelled = Collections.synchronizedList(new ArrayList<>());
+
+  FakeIoTDB(Answer answer) {
+    this.answer = answer;
+  }
+
+  List<String> getExecuted() {
+    return executed;
+  }
+
+  List<Statement> getCancelled() {
+    return cancelled;
+  }
+
+  Connection connect() {
+    boolean[] closed = {false};
+    return (Connection) Proxy.newProxyInstance(FakeIoTDB.class.getClassLoader(),
+        new Class[]{Connection.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "createStatement":
+              return createStatement();
+            case "isClosed":
+              return closed[0];
+            case "close":
+              closed[0] = true;
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private Statement createStatement() {
+    ResultSet[] resultSet = {null};
+    boolean[] closed = {false};
+    return (Statement) Proxy.newProxyInstance(FakeIoTDB.class.getClassLoader(),
+        new Class[]{Statement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "execute":
+              executed.add((String) args[0]);
+              resultSet[0] = answer.answer((String) args[0]);
+              return true;
+            case "getResultSet":
+              return resultSet[0];
+            case "cancel":
+              cancelled.add((Statement) proxy);
+              return null;
+            case "isClosed":
+              return closed[0];
+            case "close":
+              closed[0] = true;
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * @param columns The names of the columns, the first one being the timestamp
+   * @param types The java.sql.Types of the columns, the timestamp column excluded
+   * @param rows The rows, a Long timestamp followed by the String values, null for no value
+   */
+  static ResultSet resultSet(List<String> columns, int[] types, Object[]... rows) {
+    ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+        FakeIoTDB.class.getClassLoader(), new Class[]{ResultSetMetaData.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getColumnCount":
+              return columns.size();
+            case "getColumnName":
+              return columns.get((Integer) args[0] - 1);
+            case "getColumnType":
+              return types[(Integer) args[0] - 2];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    int[] row = {-1};
+    return (ResultSet) Proxy.newProxyInstance(FakeIoTDB.class.getClassLoader(),
+        new Class[]{ResultSet.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getMetaData":
+              return metaData;
+            case "next":
+              return ++row[0] < rows.length;
+            case "getLong":
+              return (Long) rows[row[0]][(Integer) args[0] - 1];
+            case "getString":
+              return (String) rows[row[0]][(Integer) args[0] - 1];
+            case "getInt":
+              return Integer.parseInt((String) rows[row[0]][(Integer) args[0] - 1]);
+            case "getDouble":
+              return Double.parseDouble((String) rows[row[0]][(Integer) args[0] - 1]);
+            case "close":
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * @return The ResultSet, whose connection breaks once count rows have been read
+   */
+  static ResultSet breakAfter(ResultSet resultSet, int count) {
+    int[] row = {0};
+    return (ResultSet) Proxy.newProxyInstance(FakeIoTDB.class.getClassLoader(),
+        new Class[]{ResultSet.class}, (proxy, method, args) -> {
+          if ("next".equals(method.getName()) && row[0]++ == count) {
+            throw new SQLException("Connection has been closed");
+          }
+          return method.invoke(resultSet, args);
+        });
+  }
+
+}
@@ -0,0 +1,61 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+
+public class QueryContextTest {
+
+  @Test
+  public void cancelTheRegisteredStatementsAndSubQueries() throws Exception {
+    FakeIoTDB iotdb = new FakeIoTDB(sql -> null);
+    QueryContext context = new QueryContext(0);
+    Statement statement = iotdb.connect().createStatement();
+    CompletableFuture<Void> subQuery = new CompletableFuture<>();
+    context.register(statement);
+    context.register(subQuery);
+    assertFalse(context.isCancelled());
+    assertEquals(Long.MAX_VALUE, context.getRemainingMillis());
+
+    context.cancel();
+    assertTrue(context.isCancelled());
+    assertEquals(1, iotdb.getCancelled().size());
+    assertTrue(statement.isClosed());
+    assertTrue(subQuery.isCancelled());
+
+    // the statements registered afterwards are aborted at once
+    Statement late = iotdb.connect().createStatement();
+    context.register(late);
+    assertTrue(late.isClosed());
+    assertEquals(2, iotdb.getCancelled().size());
+  }
+
+  @Test
+  public void cancelOnTheDeadline() throws Exception {
+    QueryContext context = new QueryContext(50);
+    assertFalse(context.isCancelled());
+    assertTrue(context.getRemainingMillis() <= 50);
+
+    CompletableFuture<Void> subQuery = new CompletableFuture<>();
+    context.register(subQuery);
+    try {
+      context.get(subQuery);
+      fail();
+    } catch (QueryTimeoutException e) {
+      assertEquals("The query exceeded its deadline", e.getMessage());
+    }
+    assertTrue(context.isCancelled());
+    assertTrue(subQuery.isCancelled());
+    assertEquals(0, context.getRemainingMillis());
+  }
+
+  @Test
+  public void getTheResultBeforeTheDeadline() throws Exception {
+    QueryContext context = new QueryContext(10000);
+    assertEquals("done", context.get(CompletableFuture.completedFuture("done")));
+    assertFalse(context.isCancelled());
+  }
+
+}
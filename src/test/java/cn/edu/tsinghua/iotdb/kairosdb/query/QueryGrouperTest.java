@@ -0,0 +1,174 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
+import cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregator;
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.QueryAggregatorType;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupBy;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByBin;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByTags;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByTime;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByType;
+import cn.edu.tsinghua.iotdb.kairosdb.query.group_by.GroupByValue;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class QueryGrouperTest {
+
+  private static MetricValueResult series(String host, String dc, long... timestamps) {
+    MetricValueResult series = new MetricValueResult("m");
+    series.addTag("host", host);
+    series.addTag("dc", dc);
+    for (long timestamp : timestamps) {
+      series.addDataPoint(timestamp, (double) timestamp);
+    }
+    return series;
+  }
+
+  private static GroupByTags groupByHost() {
+    GroupByTags groupByTags = new GroupByTags();
+    groupByTags.addTag("host");
+    return groupByTags;
+  }
+
+  private static long[] timestamps(DataPointBuffer points) {
+    long[] timestamps = new long[points.size()];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = points.getTimestamp(i);
+    }
+    return timestamps;
+  }
+
+  @Test
+  public void isGroupedByAnythingButType() {
+    QueryMetric metric = new QueryMetric();
+    assertFalse(QueryGrouper.isGrouped(metric));
+    metric.setGroupBy(Collections.singletonList(GroupByType.getNumberTypeInstance()));
+    assertFalse(QueryGrouper.isGrouped(metric));
+    metric.setGroupBy(Arrays.asList(GroupByType.getNumberTypeInstance(), groupByHost()));
+    assertTrue(QueryGrouper.isGrouped(metric));
+  }
+
+  @Test
+  public void mergeTheSeriesOfATagGroupByTimestamp() throws QueryException {
+    List<MetricValueResult> groups = QueryGrouper.group("m", Arrays.asList(
+        series("a", "x", 1, 4), series("b", "x", 2), series("a", "y", 2, 3)),
+        Collections.singletonList(groupByHost()), 0);
+
+    assertEquals(2, groups.size());
+    MetricValueResult a = groups.get(0);
+    assertTrue(Arrays.equals(new long[]{1, 2, 3, 4}, timestamps(a.getDatapoints())));
+    assertEquals(Arrays.asList("x", "y"), a.getTags().get("dc"));
+    List<GroupBy> groupBy = a.getGroupBy();
+    assertEquals(2, groupBy.size());
+    assertEquals(Collections.singletonMap("host", "a"), ((GroupByTags) groupBy.get(0)).getGroup());
+    assertEquals("number", ((GroupByType) groupBy.get(1)).getType());
+    assertEquals(Collections.singletonMap("host", "b"),
+        ((GroupByTags) groups.get(1).getGroupBy().get(0)).getGroup());
+  }
+
+  @Test
+  public void groupByTimeValueAndBin() throws QueryException {
+    // the time groups of 10 ms wrap around after 2 groups
+    GroupByTime groupByTime = new GroupByTime();
+    groupByTime.setRangeSize(new Duration(10, TimeUnit.MILLISECONDS));
+    groupByTime.setGroupCount(2);
+    List<MetricValueResult> groups = QueryGrouper.group("m",
+        Collections.singletonList(series("a", "x", 100, 105, 112, 121)),
+        Collections.singletonList(groupByTime), 100);
+    assertEquals(2, groups.size());
+    assertEquals(Integer.valueOf(0), ((GroupByTime) groups.get(0).getGroupBy().get(0))
+        .getGroupNumber());
+    assertTrue(Arrays.equals(new long[]{100, 105, 121}, timestamps(groups.get(0).getDatapoints())));
+    assertTrue(Arrays.equals(new long[]{112}, timestamps(groups.get(1).getDatapoints())));
+
+    GroupByValue groupByValue = new GroupByValue();
+    groupByValue.setRangeSize(10);
+    groups = QueryGrouper.group("m", Collections.singletonList(series("a", "x", 1, 9, 15)),
+        Collections.singletonList(groupByValue), 0);
+    assertEquals(2, groups.size());
+    assertEquals(Integer.valueOf(1), ((GroupByValue) groups.get(1).getGroupBy().get(0))
+        .getGroupNumber());
+    assertTrue(Arrays.equals(new long[]{15}, timestamps(groups.get(1).getDatapoints())));
+
+    GroupByBin groupByBin = new GroupByBin();
+    groupByBin.addBin("2");
+    groupByBin.addBin("10");
+    groups = QueryGrouper.group("m", Collections.singletonList(series("a", "x", 1, 9, 15)),
+        Collections.singletonList(groupByBin), 0);
+    assertEquals(3, groups.size());
+    assertEquals(Integer.valueOf(2), ((GroupByBin) groups.get(2).getGroupBy().get(0))
+        .getBinNumber());
+  }
+
+  @Test
+  public void keepTheTextDatapointsApart() throws QueryException {
+    MetricValueResult series = series("a", "x", 1);
+    series.addDataPoint(2, "on");
+    List<MetricValueResult> groups = QueryGrouper.group("m", Collections.singletonList(series),
+        Collections.singletonList(groupByHost()), 0);
+    assertEquals(2, groups.size());
+    assertFalse(groups.get(0).isTextType());
+    assertTrue(groups.get(1).isTextType());
+    assertEquals("text", ((GroupByType) groups.get(1).getGroupBy().get(1)).getType());
+
+    GroupByValue groupByValue = new GroupByValue();
+    groupByValue.setRangeSize(10);
+    try {
+      QueryGrouper.group("m", Collections.singletonList(series),
+          Collections.singletonList(groupByValue), 0);
+      fail();
+    } catch (QueryException e) {
+      assertEquals("Among grouping by value, the datapoints must be numbers, not text",
+          e.getMessage());
+    }
+  }
+
+  @Test
+  public void aggregateEachGroupInOrder() throws QueryException {
+    List<MetricValueResult> groups = QueryGrouper.group("m", Arrays.asList(
+        series("a", "x", 1, 2), series("b", "x", 3), series("a", "y", 4)),
+        Collections.singletonList(groupByHost()), 0);
+    // sums all the datapoints of a group
+    QueryAggregator sum = new QueryAggregator(QueryAggregatorType.SUM) {
+      @Override
+      public MetricResult doAggregate(MetricResult result) {
+        for (MetricValueResult group : result.getResults()) {
+          DataPointBuffer points = group.getDatapoints();
+          double total = 0;
+          for (int i = 0; i < points.size(); i++) {
+            total += points.getAsDouble(i);
+          }
+          DataPointBuffer sumPoints = new DataPointBuffer();
+          sumPoints.add(points.getTimestamp(0), total);
+          group.setValues(sumPoints);
+        }
+        return result;
+      }
+    };
+    MetricResult result = QueryGrouper.aggregate(groups,
+        Collections.<QueryAggregator>singletonList(sum));
+
+    assertEquals(2, result.getResults().size());
+    Map<String, Double> sums = new LinkedHashMap<>();
+    for (MetricValueResult group : result.getResults()) {
+      assertEquals(1, group.getDatapoints().size());
+      sums.put(((GroupByTags) group.getGroupBy().get(0)).getGroup().get("host"),
+          group.getDatapoints().getAsDouble(0));
+    }
+    Map<String, Double> expected = new LinkedHashMap<>();
+    expected.put("a", 7.0);
+    expected.put("b", 3.0);
+    assertEquals(expected, sums);
+  }
+
+}
@@ -0,0 +1,172 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryPlannerTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private int timeEdge;
+  private int maxTimeChunks;
+
+  @Before
+  public void setUp() {
+    timeEdge = config.TIME_EDGE;
+    maxTimeChunks = config.MAX_TIME_CHUNKS;
+    config.TIME_EDGE = 1000;
+    config.MAX_TIME_CHUNKS = 8;
+  }
+
+  @After
+  public void tearDown() {
+    config.TIME_EDGE = timeEdge;
+    config.MAX_TIME_CHUNKS = maxTimeChunks;
+  }
+
+  /**
+   * Check the ranges are consecutive, cover [startTime, endTime] and are at most maxRanges.
+   */
+  private static void assertCovers(List<long[]> ranges, long startTime, long endTime,
+      int maxRanges) {
+    assertTrue(ranges.size() <= maxRanges);
+    assertEquals(startTime, ranges.get(0)[0]);
+    assertEquals(endTime, ranges.get(ranges.size() - 1)[1]);
+    for (int i = 0; i < ranges.size(); i++) {
+      assertTrue(ranges.get(i)[0] <= ranges.get(i)[1]);
+      if (i > 0) {
+        assertEquals(ranges.get(i - 1)[1] + 1, ranges.get(i)[0]);
+      }
+    }
+  }
+
+  @Test
+  public void keepShortTimeRange() {
+    List<long[]> ranges = QueryPlanner.splitTimeRange(5000, 6000);
+    assertEquals(1, ranges.size());
+    assertArrayEquals(new long[]{5000, 6000}, ranges.get(0));
+  }
+
+  @Test
+  public void splitByTimeEdge() {
+    List<long[]> ranges = QueryPlanner.splitTimeRange(0, 3500);
+    assertEquals(4, ranges.size());
+    assertArrayEquals(new long[]{0, 999}, ranges.get(0));
+    assertArrayEquals(new long[]{3000, 3500}, ranges.get(3));
+    assertCovers(ranges, 0, 3500, 4);
+  }
+
+  @Test
+  public void splitIntoAtMostMaxTimeChunks() {
+    List<long[]> ranges = QueryPlanner.splitTimeRange(-123, 1000000);
+    assertCovers(ranges, -123, 1000000, config.MAX_TIME_CHUNKS);
+    // all the chunks but the last one have the same length
+    long length = ranges.get(0)[1] - ranges.get(0)[0];
+    for (int i = 1; i < ranges.size() - 1; i++) {
+      assertEquals(length, ranges.get(i)[1] - ranges.get(i)[0]);
+    }
+  }
+
+  @Test
+  public void keepTimeRangeWithOneChunk() {
+    config.MAX_TIME_CHUNKS = 1;
+    List<long[]> ranges = QueryPlanner.splitTimeRange(0, 1000000);
+    assertEquals(1, ranges.size());
+    assertArrayEquals(new long[]{0, 1000000}, ranges.get(0));
+  }
+
+  @Test
+  public void splitOnTagWithMostValues() {
+    QueryMetric metric = new QueryMetric();
+    metric.setName("m");
+    Map<String, List<String>> tags = new HashMap<>();
+    tags.put("host", Arrays.asList("h1", "h2", "h3", "h4", "h5"));
+    tags.put("dc", Arrays.asList("dc1", "dc2"));
+    metric.setTags(tags);
+
+    List<QueryMetric> subMetrics = QueryPlanner.split(metric, 2);
+    assertEquals(2, subMetrics.size());
+    List<String> hosts = new ArrayList<>();
+    for (QueryMetric subMetric : subMetrics) {
+      assertEquals("m", subMetric.getName());
+      assertEquals(tags.get("dc"), subMetric.getTags().get("dc"));
+      hosts.addAll(subMetric.getTags().get("host"));
+    }
+    assertEquals(tags.get("host"), hosts);
+    // the metric is left unchanged
+    assertEquals(5, metric.getTags().get("host").size());
+
+    assertEquals(5, QueryPlanner.split(metric, 10).size());
+    assertSame(metric, QueryPlanner.split(metric, 1).get(0));
+  }
+
+  @Test
+  public void keepMetricWithSingleValueTags() {
+    QueryMetric metric = new QueryMetric();
+    metric.setName("m");
+    metric.setTags(Collections.singletonMap("host", Collections.singletonList("h1")));
+    List<QueryMetric> subMetrics = QueryPlanner.split(metric, 4);
+    assertEquals(1, subMetrics.size());
+    assertSame(metric, subMetrics.get(0));
+  }
+
+  private static MetricValueResult createPart(String host, long... timestamps) {
+    MetricValueResult part = new MetricValueResult("m");
+    part.addTag("host", host);
+    for (long timestamp : timestamps) {
+      part.addDataPoint(timestamp, (double) timestamp);
+    }
+    return part;
+  }
+
+  private static long[] timestamps(MetricValueResult result) {
+    DataPointBuffer points = result.getDatapoints();
+    long[] timestamps = new long[points.size()];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = points.getTimestamp(i);
+    }
+    return timestamps;
+  }
+
+  @Test
+  public void mergeConsecutiveTimeRanges() {
+    MetricValueResult merged = QueryPlanner.merge("m", Arrays.asList(
+        createPart("h1", 1, 2, 3), createPart("h1"), createPart("h1", 3, 7)));
+    assertArrayEquals(new long[]{1, 2, 3, 3, 7}, timestamps(merged));
+    assertEquals(Collections.singletonList("h1"), merged.getTags().get("host"));
+  }
+
+  @Test
+  public void mergeInterleavedParts() {
+    MetricValueResult merged = QueryPlanner.merge("m", Arrays.asList(
+        createPart("h1", 1, 4, 9), createPart("h2", 2, 4, 5, 10), createPart("h3", 0)));
+    assertArrayEquals(new long[]{0, 1, 2, 4, 4, 5, 9, 10}, timestamps(merged));
+    // the datapoints of a same timestamp are in the order of the parts
+    assertEquals(4.0, merged.getDatapoints().getAsDouble(3), 0);
+    assertEquals(new HashSet<>(Arrays.asList("h1", "h2", "h3")),
+        new HashSet<>(merged.getTags().get("host")));
+  }
+
+  @Test
+  public void mergeEmptyParts() {
+    MetricValueResult merged = QueryPlanner.merge("m",
+        Arrays.asList(createPart("h1"), createPart("h2")));
+    assertEquals("m", merged.getName());
+    assertTrue(merged.getDatapoints().isEmpty());
+    assertTrue(merged.getTags().isEmpty());
+  }
+}
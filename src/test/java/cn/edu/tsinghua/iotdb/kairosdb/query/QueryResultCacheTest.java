@@ -0,0 +1,170 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryResultCache.Lookup;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+  // An entry of 4 settled datapoints
+  private static final long ENTRY_BYTES = 256 + 4 * 17;
+
+  private long maxBytes;
+  private long ttl;
+  private long settle;
+  private long now;
+
+  @Before
+  public void setUp() {
+    maxBytes = config.QUERY_CACHE_MAX_BYTES;
+    ttl = config.QUERY_CACHE_TTL;
+    settle = config.QUERY_CACHE_SETTLE;
+    config.QUERY_CACHE_MAX_BYTES = 1000000;
+    config.QUERY_CACHE_TTL = 300000;
+    config.QUERY_CACHE_SETTLE = 60000;
+    now = System.currentTimeMillis();
+  }
+
+  @After
+  public void tearDown() {
+    config.QUERY_CACHE_MAX_BYTES = maxBytes;
+    config.QUERY_CACHE_TTL = ttl;
+    config.QUERY_CACHE_SETTLE = settle;
+  }
+
+  private static QueryMetric metric(String name, String... hosts) {
+    QueryMetric metric = new QueryMetric();
+    metric.setName(name);
+    Map<String, List<String>> tags = new HashMap<>();
+    tags.put("host", Arrays.asList(hosts));
+    metric.setTags(tags);
+    return metric;
+  }
+
+  /**
+   * @return A datapoint every 10 s from 95 s to 5 s before the test, the first 4 being settled
+   */
+  private MetricValueResult values(String name) {
+    MetricValueResult values = new MetricValueResult(name);
+    for (long t = now - 95000; t < now; t += 10000) {
+      values.addDataPoint(t, (double) (now - t));
+    }
+    return values;
+  }
+
+  private void store(QueryResultCache cache, String name) {
+    QueryMetric metric = metric(name, "a");
+    cache.put(cache.lookup(metric, now - 95000, now), values(name));
+  }
+
+  @Test
+  public void storeTheSettledDatapoints() {
+    QueryResultCache cache = new QueryResultCache();
+    QueryMetric metric = metric("m", "b", "a");
+    Lookup lookup = cache.lookup(metric, now - 95000, now);
+    assertNull(lookup.getValues());
+    assertEquals(now - 95000, lookup.getResumeTime());
+    cache.put(lookup, values("m"));
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(ENTRY_BYTES, cache.getBytes());
+
+    // the order of the tag values does not matter
+    lookup = cache.lookup(metric("m", "a", "b"), now - 95000, now);
+    DataPointBuffer points = lookup.getValues().getDatapoints();
+    assertEquals(4, points.size());
+    assertEquals(now - 95000, points.getTimestamp(0));
+    assertEquals(now - 65000, points.getTimestamp(3));
+    // the datapoints from the settled end are read again
+    assertTrue(lookup.getResumeTime() >= now - 60000);
+    assertTrue(lookup.getResumeTime() <= System.currentTimeMillis() - 60000);
+    assertEquals(1, cache.getPartialHitCount());
+
+    lookup = cache.lookup(metric, now - 90000, now - 70000);
+    points = lookup.getValues().getDatapoints();
+    assertEquals(2, points.size());
+    assertEquals(now - 85000, points.getTimestamp(0));
+    assertEquals(now - 75000, points.getTimestamp(1));
+    assertEquals(1, cache.getHitCount());
+
+    // the entry does not cover a query starting before it
+    lookup = cache.lookup(metric, now - 200000, now);
+    assertNull(lookup.getValues());
+    assertEquals(now - 200000, lookup.getResumeTime());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void doNotStoreAResultReadBeforeALateWrite() {
+    QueryResultCache cache = new QueryResultCache();
+    QueryMetric metric = metric("m", "a");
+    Lookup lookup = cache.lookup(metric, now - 95000, now);
+    // a backfill while the query reads
+    cache.invalidate("m", Collections.singletonMap("host", "a"), now - 80000);
+    cache.put(lookup, values("m"));
+    assertEquals(0, cache.getEntryCount());
+
+    store(cache, "m");
+    assertEquals(1, cache.getEntryCount());
+    // a write within the settle time keeps the entry
+    cache.invalidate("m", Collections.singletonMap("host", "a"), System.currentTimeMillis());
+    cache.invalidate("m", Collections.singletonMap("host", "b"), now - 80000);
+    assertEquals(1, cache.getEntryCount());
+    cache.invalidate("m", Collections.singletonMap("host", "a"), now - 80000);
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getBytes());
+    assertEquals(1, cache.getInvalidationCount());
+
+    lookup = cache.lookup(metric, now - 95000, now);
+    cache.invalidateMetric("m");
+    cache.put(lookup, values("m"));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void expireAfterTheTtl() throws Exception {
+    config.QUERY_CACHE_TTL = 0;
+    QueryResultCache cache = new QueryResultCache();
+    store(cache, "m");
+    assertEquals(1, cache.getEntryCount());
+    Thread.sleep(10);
+    assertNull(cache.lookup(metric("m", "a"), now - 95000, now).getValues());
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void evictTheLeastRecentlyUsedBeyondMaxBytes() {
+    config.QUERY_CACHE_MAX_BYTES = 2 * ENTRY_BYTES + 10;
+    QueryResultCache cache = new QueryResultCache();
+    store(cache, "a");
+    store(cache, "b");
+    assertEquals(2 * ENTRY_BYTES, cache.getBytes());
+    assertNotNull(cache.lookup(metric("a", "a"), now - 95000, now).getValues());
+
+    store(cache, "c");
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(2 * ENTRY_BYTES, cache.getBytes());
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.lookup(metric("b", "a"), now - 95000, now).getValues());
+    assertNotNull(cache.lookup(metric("a", "a"), now - 95000, now).getValues());
+
+    // an entry larger than the cache is not stored
+    config.QUERY_CACHE_MAX_BYTES = ENTRY_BYTES - 1;
+    store(cache, "d");
+    assertNull(cache.lookup(metric("d", "a"), now - 95000, now).getValues());
+  }
+
+}
@@ -0,0 +1,175 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.conf.Config;
+import cn.edu.tsinghua.iotdb.kairosdb.conf.ConfigDescriptor;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryScheduler.Priority;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryScheduler.Ticket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuerySchedulerTest {
+
+  private static final Config config = ConfigDescriptor.getInstance().getConfig();
+
+  private int queueSize;
+  private long queuePoints;
+  private int maxConcurrency;
+  private long smallQueryPoints;
+
+  @Before
+  public void setUp() {
+    queueSize = config.QUERY_QUEUE_SIZE;
+    queuePoints = config.QUERY_QUEUE_POINTS;
+    maxConcurrency = config.QUERY_MAX_CONCURRENCY;
+    smallQueryPoints = config.SMALL_QUERY_POINTS;
+    config.QUERY_QUEUE_SIZE = 2;
+    config.QUERY_QUEUE_POINTS = 1000;
+    config.QUERY_MAX_CONCURRENCY = 8;
+    config.SMALL_QUERY_POINTS = 100;
+  }
+
+  @After
+  public void tearDown() {
+    config.QUERY_QUEUE_SIZE = queueSize;
+    config.QUERY_QUEUE_POINTS = queuePoints;
+    config.QUERY_MAX_CONCURRENCY = maxConcurrency;
+    config.SMALL_QUERY_POINTS = smallQueryPoints;
+  }
+
+  private static void assertRejected(QueryScheduler scheduler, long estimatedPoints) {
+    try {
+      scheduler.admit(estimatedPoints);
+      fail();
+    } catch (QueryRejectedException e) {
+      // the caller answers 503
+    }
+  }
+
+  @Test
+  public void admitWithinTheBudget() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler(1);
+    // a query larger than the whole budget is admitted when nothing is pending
+    scheduler.admit(5000).release();
+
+    Ticket bulk = scheduler.admit(600);
+    assertEquals(Priority.BULK, bulk.getPriority());
+    assertRejected(scheduler, 500);
+    Ticket small = scheduler.admit(50);
+    assertEquals(Priority.INTERACTIVE, small.getPriority());
+    // the number of queries is bounded too
+    assertRejected(scheduler, 1);
+    assertEquals(2, scheduler.getPendingQueries());
+    assertEquals(650, scheduler.getPendingPoints());
+    assertEquals(3, scheduler.getAcceptedCount());
+    assertEquals(2, scheduler.getRejectedCount());
+
+    bulk.release();
+    // a second release gives nothing back
+    bulk.release();
+    assertEquals(1, scheduler.getPendingQueries());
+    assertEquals(50, scheduler.getPendingPoints());
+    scheduler.admit(900).release();
+  }
+
+  @Test
+  public void admitRollupWaitsForABudget() throws Exception {
+    config.QUERY_QUEUE_SIZE = 1;
+    QueryScheduler scheduler = new QueryScheduler(1);
+    Ticket pending = scheduler.admit(10);
+    CompletableFuture<Ticket> rollup = new CompletableFuture<>();
+    Thread admitter = new Thread(() -> {
+      try {
+        rollup.complete(scheduler.admitRollup(10));
+      } catch (InterruptedException e) {
+        rollup.completeExceptionally(e);
+      }
+    });
+    admitter.start();
+    Thread.sleep(100);
+    assertFalse(rollup.isDone());
+
+    pending.release();
+    assertEquals(Priority.ROLLUP, rollup.get(10, TimeUnit.SECONDS).getPriority());
+    assertEquals(1, scheduler.getPendingQueries());
+    assertEquals(0, scheduler.getRejectedCount());
+    admitter.join();
+  }
+
+  @Test
+  public void takeTheSmallQueriesFirst() throws Exception {
+    config.QUERY_QUEUE_SIZE = 10;
+    config.QUERY_QUEUE_POINTS = Long.MAX_VALUE / 2;
+    QueryScheduler scheduler = new QueryScheduler(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    scheduler.admit(1).submit(() -> {
+      blocked.countDown();
+      release.await();
+      return null;
+    });
+    assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    List<Future<?>> futures = new ArrayList<>();
+    Ticket rollup = scheduler.admitRollup(1000);
+    Ticket bulk = scheduler.admit(1000);
+    Ticket small = scheduler.admit(10);
+    futures.add(rollup.submit(() -> order.add("rollup")));
+    futures.add(bulk.submit(() -> order.add("bulk 1")));
+    futures.add(bulk.submit(() -> order.add("bulk 2")));
+    futures.add(small.submit(() -> order.add("small")));
+    assertEquals(4, scheduler.getQueueDepth());
+
+    release.countDown();
+    for (Future<?> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    assertEquals(Arrays.asList("small", "bulk 1", "bulk 2", "rollup"), order);
+  }
+
+  @Test
+  public void holdTheSubQueriesBeyondMaxConcurrency() throws Exception {
+    config.QUERY_MAX_CONCURRENCY = 1;
+    QueryScheduler scheduler = new QueryScheduler(2);
+    Ticket ticket = scheduler.admit(10);
+    AtomicInteger running = new AtomicInteger(0);
+    AtomicInteger maxRunning = new AtomicInteger(0);
+    CountDownLatch release = new CountDownLatch(1);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      int subQuery = i;
+      futures.add(ticket.submit(() -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        release.await();
+        running.decrementAndGet();
+        return subQuery;
+      }));
+    }
+    // the waiting sub-queries stay in the query, out of the queue of the workers
+    for (int i = 0; i < 1000 && scheduler.getActiveCount() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, scheduler.getActiveCount());
+    assertEquals(0, scheduler.getQueueDepth());
+
+    // each ending sub-query hands its slot to the next one
+    release.countDown();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i, (int) futures.get(i).get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(1, maxRunning.get());
+  }
+
+}
@@ -0,0 +1,171 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QuerySingleFlight.Execution;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class QuerySingleFlightTest {
+
+  private static final String KEY = "{}";
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  /**
+   * @return The result of the query, run in its own thread
+   */
+  private static CompletableFuture<String> executeAsync(QuerySingleFlight singleFlight,
+      QueryContext context, Execution execution) {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    new Thread(() -> {
+      try {
+        result.complete(singleFlight.execute(KEY, context, execution));
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    }).start();
+    return result;
+  }
+
+  /**
+   * @return A query which runs until released, then gives result
+   */
+  private Execution blocking(String result) {
+    return () -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return result;
+    };
+  }
+
+  private static void awaitInFlight(QuerySingleFlight singleFlight) throws InterruptedException {
+    for (int i = 0; i < 1000 && singleFlight.getInFlightCount() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, singleFlight.getInFlightCount());
+  }
+
+  private static void awaitShared(QuerySingleFlight singleFlight, long count)
+      throws InterruptedException {
+    for (int i = 0; i < 1000 && singleFlight.getSharedCount() < count; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, singleFlight.getSharedCount());
+  }
+
+  @Test
+  public void createKeyNormalizesTheQuery() {
+    String key = QuerySingleFlight.createKey("{\"start_relative\":{\"value\":1,\"unit\":\"hours\"},"
+        + "\"metrics\":[{\"tags\":{\"host\":[\"a\"],\"dc\":[\"x\"]},\"name\":\"m\"}],"
+        + "\"query_timeout\":1000,\"cache_time\":0}");
+    assertEquals("{\"metrics\":[{\"name\":\"m\",\"tags\":{\"dc\":[\"x\"],\"host\":[\"a\"]}}],"
+        + "\"start_relative\":{\"unit\":\"hours\",\"value\":1}}", key);
+    assertEquals(key, QuerySingleFlight.createKey("{ \"metrics\": [{\"name\": \"m\", \"tags\": "
+        + "{\"dc\": [\"x\"], \"host\": [\"a\"]}}], \"start_relative\": {\"unit\": \"hours\", "
+        + "\"value\": 1}}"));
+    // the order of the arrays is kept
+    assertFalse(QuerySingleFlight.createKey("{\"metrics\":[{\"name\":\"a\"},{\"name\":\"b\"}]}")
+        .equals(QuerySingleFlight.createKey("{\"metrics\":[{\"name\":\"b\"},{\"name\":\"a\"}]}")));
+    assertNull(QuerySingleFlight.createKey("{\"metrics\":"));
+  }
+
+  @Test
+  public void shareTheResultOfTheRunningQuery() throws Exception {
+    QuerySingleFlight singleFlight = new QuerySingleFlight();
+    CompletableFuture<String> leader = executeAsync(singleFlight, new QueryContext(0),
+        blocking("leader"));
+    awaitInFlight(singleFlight);
+    CompletableFuture<String> waiter = executeAsync(singleFlight, new QueryContext(10000),
+        () -> "waiter");
+    awaitShared(singleFlight, 1);
+
+    release.countDown();
+    assertEquals("leader", leader.get(10, TimeUnit.SECONDS));
+    assertEquals("leader", waiter.get(10, TimeUnit.SECONDS));
+    assertEquals(1, singleFlight.getExecutedCount());
+    assertEquals(0, singleFlight.getInFlightCount());
+  }
+
+  @Test
+  public void doNotWaitForAQueryWithAnEarlierDeadline() throws Exception {
+    QuerySingleFlight singleFlight = new QuerySingleFlight();
+    CompletableFuture<String> leader = executeAsync(singleFlight, new QueryContext(10000),
+        blocking("leader"));
+    awaitInFlight(singleFlight);
+    assertEquals("own", singleFlight.execute(KEY, new QueryContext(0), () -> "own"));
+    assertEquals(2, singleFlight.getExecutedCount());
+    assertEquals(0, singleFlight.getSharedCount());
+
+    release.countDown();
+    assertEquals("leader", leader.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void waitUntilItsOwnDeadline() throws Exception {
+    QuerySingleFlight singleFlight = new QuerySingleFlight();
+    CompletableFuture<String> leader = executeAsync(singleFlight, new QueryContext(0),
+        blocking("leader"));
+    awaitInFlight(singleFlight);
+    try {
+      singleFlight.execute(KEY, new QueryContext(100), () -> "waiter");
+      fail();
+    } catch (QueryTimeoutException e) {
+      assertEquals("The query exceeded its deadline", e.getMessage());
+    }
+    release.countDown();
+    assertEquals("leader", leader.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void handTheFailureToTheWaitingQueries() throws Exception {
+    QuerySingleFlight singleFlight = new QuerySingleFlight();
+    CompletableFuture<String> leader = executeAsync(singleFlight, new QueryContext(0), () -> {
+      blocking("leader").execute();
+      throw new QueryRejectedException("Too many pending queries, retry later.");
+    });
+    awaitInFlight(singleFlight);
+    CompletableFuture<String> waiter = executeAsync(singleFlight, new QueryContext(0),
+        () -> "waiter");
+    awaitShared(singleFlight, 1);
+
+    release.countDown();
+    assertFailedWith(QueryRejectedException.class, leader);
+    assertFailedWith(QueryRejectedException.class, waiter);
+    assertEquals(0, singleFlight.getInFlightCount());
+
+    // any other failure of the running query fails the waiting ones too
+    CountDownLatch failing = new CountDownLatch(1);
+    leader = executeAsync(singleFlight, new QueryContext(0), () -> {
+      try {
+        failing.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      throw new IllegalArgumentException("bad query");
+    });
+    awaitInFlight(singleFlight);
+    waiter = executeAsync(singleFlight, new QueryContext(0), () -> "waiter");
+    awaitShared(singleFlight, 2);
+    failing.countDown();
+    assertFailedWith(IllegalArgumentException.class, leader);
+    assertFailedWith(IllegalStateException.class, waiter);
+  }
+
+  private static void assertFailedWith(Class<? extends Throwable> type,
+      CompletableFuture<String> result) throws Exception {
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals(type, e.getCause().getClass());
+    }
+  }
+
+}
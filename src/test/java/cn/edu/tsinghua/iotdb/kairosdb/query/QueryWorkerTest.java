@@ -0,0 +1,174 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class QueryWorkerTest {
+
+  private static final Map<String, Integer> TAG_ORDER = new HashMap<>();
+
+  static {
+    TAG_ORDER.put("host", 0);
+    TAG_ORDER.put("dc", 1);
+  }
+
+  /**
+   * @return A worker of metric m in [0, 10], reading from the fake IoTDB
+   */
+  static QueryWorker createWorker(FakeIoTDB iotdb) {
+    return createWorker(iotdb, null);
+  }
+
+  /**
+   * @param renewed The fake IoTDB a renewed connection reads from, null if it can't be renewed
+   */
+  static QueryWorker createWorker(FakeIoTDB iotdb, FakeIoTDB renewed) {
+    QueryMetric metric = new QueryMetric();
+    metric.setName("m");
+    metric.setTags(new HashMap<>());
+    metric.setAggregators(new ArrayList<>());
+    metric.setGroupBy(new ArrayList<>());
+    Connection connection = iotdb.connect();
+    return new QueryWorker(1, metric, 0L, 10L) {
+      @Override
+      Connection getConnection() {
+        return connection;
+      }
+
+      @Override
+      Connection renewConnection(Connection connection) throws SQLException {
+        if (renewed == null) {
+          throw new SQLException("Can not reconnect");
+        }
+        return renewed.connect();
+      }
+
+      @Override
+      Map<String, Integer> getTagOrder(String metricName) {
+        return TAG_ORDER;
+      }
+    };
+  }
+
+  private static ResultSet twoSeries() {
+    return FakeIoTDB.resultSet(Arrays.asList("Time", "root.group_0.a.x.m", "root.group_0.b.x.m"),
+        new int[]{Types.DOUBLE, Types.DOUBLE},
+        new Object[]{1L, "1.5", null},
+        new Object[]{2L, "2.5", "3.5"});
+  }
+
+  private static JsonElement stream(QueryWorker worker) throws IOException {
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      worker.streamTo(writer, QueryWorker.createGson());
+    }
+    return new JsonParser().parse(json.toString());
+  }
+
+  @Test
+  public void streamTheDatapointsAsTheyAreRead() throws Exception {
+    FakeIoTDB iotdb = new FakeIoTDB(sql -> twoSeries());
+    QueryWorker worker = createWorker(iotdb);
+    assertTrue(worker.isStreamable());
+    assertEquals(new JsonParser().parse("{\"results\":[{\"name\":\"m\","
+        + "\"values\":[[1,1.5],[2,2.5],[2,3.5]],"
+        + "\"group_by\":[{\"name\":\"type\",\"type\":\"number\"}],"
+        + "\"tags\":{\"host\":[\"a\",\"b\"],\"dc\":[\"x\"]}}],\"sample_size\":3}"),
+        stream(worker));
+    assertEquals(1, iotdb.getExecuted().size());
+
+    // the same result as the buffered query
+    MetricResult buffered = createWorker(new FakeIoTDB(sql -> twoSeries())).query();
+    assertEquals(3, (long) buffered.getSampleSize());
+    assertEquals(stream(createWorker(new FakeIoTDB(sql -> twoSeries())))
+            .getAsJsonObject().get("results").getAsJsonArray().get(0),
+        new JsonParser().parse(QueryWorker.createGson().toJson(buffered.getResults().get(0))));
+  }
+
+  @Test
+  public void endTheValuesOnAnErrorOnceSent() throws Exception {
+    FakeIoTDB iotdb = new FakeIoTDB(sql -> FakeIoTDB.breakAfter(twoSeries(), 1));
+    JsonObject result = stream(createWorker(iotdb, iotdb)).getAsJsonObject();
+    // the datapoint already sent is not sent again
+    assertEquals(1, result.get("sample_size").getAsLong());
+    assertEquals(new JsonParser().parse("[[1,1.5]]"),
+        result.get("results").getAsJsonArray().get(0).getAsJsonObject().get("values"));
+    assertEquals(1, iotdb.getExecuted().size());
+
+    // nothing was sent, the query is retried on a renewed connection
+    iotdb = new FakeIoTDB(sql -> FakeIoTDB.breakAfter(twoSeries(), 0));
+    result = stream(createWorker(iotdb, new FakeIoTDB(sql -> twoSeries()))).getAsJsonObject();
+    assertEquals(3, result.get("sample_size").getAsLong());
+  }
+
+  @Test
+  public void retryOnceOnARenewedConnection() {
+    // the datapoint read before the connection broke is given back to the budget
+    FakeIoTDB broken = new FakeIoTDB(sql -> FakeIoTDB.breakAfter(twoSeries(), 1));
+    FakeIoTDB renewed = new FakeIoTDB(sql -> twoSeries());
+    QueryWorker worker = createWorker(broken, renewed);
+    AtomicLong budget = new AtomicLong(100);
+    worker.setPointBudget(budget, 0.5);
+    assertEquals(3, worker.queryDatapoints().getDatapoints().size());
+    assertTrue(worker.isComplete());
+    assertEquals(97, budget.get());
+    assertEquals(1, broken.getExecuted().size());
+    assertEquals(1, renewed.getExecuted().size());
+
+    renewed = new FakeIoTDB(sql -> FakeIoTDB.breakAfter(twoSeries(), 1));
+    worker = createWorker(broken, renewed);
+    budget = new AtomicLong(100);
+    worker.setPointBudget(budget, 0.5);
+    assertTrue(worker.queryDatapoints().getDatapoints().isEmpty());
+    assertFalse(worker.isComplete());
+    assertEquals(100, budget.get());
+    assertEquals(1, renewed.getExecuted().size());
+  }
+
+  @Test
+  public void doNotRetryARejectedStatement() {
+    FakeIoTDB iotdb = new FakeIoTDB(sql -> {
+      throw new SQLException("Statement format is not right");
+    });
+    FakeIoTDB renewed = new FakeIoTDB(sql -> twoSeries());
+    QueryWorker worker = createWorker(iotdb, renewed);
+    assertTrue(worker.queryDatapoints().getDatapoints().isEmpty());
+    assertEquals(1, iotdb.getExecuted().size());
+    assertTrue(renewed.getExecuted().isEmpty());
+  }
+
+  @Test
+  public void abortTheStatementOfACancelledQuery() {
+    QueryContext context = new QueryContext(0);
+    // the query is cancelled while IoTDB scans, which then fails the statement
+    FakeIoTDB iotdb = new FakeIoTDB(sql -> {
+      context.cancel();
+      throw new SQLException("Connection has been closed");
+    });
+    FakeIoTDB renewed = new FakeIoTDB(sql -> twoSeries());
+    QueryWorker worker = createWorker(iotdb, renewed);
+    worker.setContext(context);
+    assertTrue(worker.queryDatapoints().getDatapoints().isEmpty());
+    assertFalse(worker.isComplete());
+    assertEquals(1, iotdb.getCancelled().size());
+    assertTrue(renewed.getExecuted().isEmpty());
+  }
+
+}
@@ -0,0 +1,71 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ResultSetDecoderTest {
+
+  @Test
+  public void decodeEachColumnByItsType() throws Exception {
+    ResultSet rs = FakeIoTDB.resultSet(
+        Arrays.asList("Time", "root.g.a.l", "root.g.a.d", "root.g.a.t", "root.g.a.u"),
+        new int[]{Types.BIGINT, Types.DOUBLE, Types.VARCHAR, Types.OTHER},
+        new Object[]{1L, "12", "1.5", "12", "7"},
+        new Object[]{2L, "3.25", "2", "text", "0.5"},
+        new Object[]{3L, null, null, null, "text"});
+    ResultSetDecoder decoder = new ResultSetDecoder(rs);
+    DataPointBuffer points = new DataPointBuffer();
+
+    assertTrue(rs.next());
+    assertEquals(4, decoder.decodeRow(points));
+    assertEquals(Types.INTEGER, points.getType(0));
+    assertEquals(12, points.getLongValue(0));
+    assertEquals(Types.DOUBLE, points.getType(1));
+    assertEquals(1.5, points.getDoubleValue(1), 0);
+    // a text column keeps a value which looks like a number as text
+    assertEquals(Types.VARCHAR, points.getType(2));
+    assertEquals("12", points.getText(2));
+    // the type of a column of unknown type is inferred from each value
+    assertEquals(Types.INTEGER, points.getType(3));
+
+    assertTrue(rs.next());
+    assertEquals(4, decoder.decodeRow(points));
+    // e.g. the average of an integer column
+    assertEquals(Types.DOUBLE, points.getType(4));
+    assertEquals(3.25, points.getDoubleValue(4), 0);
+    assertEquals(Types.DOUBLE, points.getType(5));
+    assertEquals(2, points.getDoubleValue(5), 0);
+    assertEquals(Types.DOUBLE, points.getType(7));
+
+    // the null fields of an aligned row are skipped
+    assertTrue(rs.next());
+    assertEquals(1, decoder.decodeRow(points));
+    assertEquals(Types.VARCHAR, points.getType(8));
+    assertEquals(3, points.getTimestamp(8));
+    assertTrue(Arrays.equals(new boolean[]{true, true, true, true},
+        decoder.getColumnsWithValues()));
+  }
+
+  @Test
+  public void skipTheDeletedValues() throws Exception {
+    ResultSet rs = FakeIoTDB.resultSet(
+        Arrays.asList("Time", "root.g.a.l", "root.g.a.d", "root.g.a.t", "root.g.b.l"),
+        new int[]{Types.BIGINT, Types.DOUBLE, Types.VARCHAR, Types.BIGINT},
+        new Object[]{1L, "2147483646", "2.147483646E9", "2147483646", "5"});
+    ResultSetDecoder decoder = new ResultSetDecoder(rs);
+    DataPointBuffer[] columns = {new DataPointBuffer(), new DataPointBuffer(),
+        new DataPointBuffer(), new DataPointBuffer()};
+    assertTrue(rs.next());
+    assertEquals(1, decoder.decodeRow(columns));
+    assertEquals(0, columns[0].size() + columns[1].size() + columns[2].size());
+    assertEquals(5, columns[3].getLongValue(0));
+    assertTrue(Arrays.equals(new boolean[]{false, false, false, true},
+        decoder.getColumnsWithValues()));
+  }
+
+}
@@ -0,0 +1,58 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+
+/**
+ * Times the sampling aggregators over a buffer of doubles, reduced by the kernels and point by
+ * point, e.g. java -cp ... AggregationKernelsBenchmark 1000000 20. Each aggregator is warmed up
+ * before it is timed, the best round is printed in ns per datapoint.
+ */
+public class AggregationKernelsBenchmark {
+
+  private static final QueryAggregatorType[] TYPES = {QueryAggregatorType.SUM,
+      QueryAggregatorType.AVG, QueryAggregatorType.DEV, QueryAggregatorType.MIN,
+      QueryAggregatorType.MAX, QueryAggregatorType.COUNT};
+
+  // Keeps the results alive, a static field is never optimized away
+  private static double blackhole;
+
+  private static long time(QueryAggregatorFusable aggregator, DataPointBuffer points,
+      boolean kernels) throws QueryException {
+    long start = System.nanoTime();
+    PointCursor cursor = aggregator.fuse(kernels ? PointCursor.of(points)
+        : AggregationKernelsTest.pointByPoint(points));
+    while (cursor.next()) {
+      blackhole += cursor.getAsDouble();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static double bestNanosPerPoint(QueryAggregatorType type, DataPointBuffer points,
+      boolean kernels, int rounds) throws QueryException {
+    QueryAggregatorFusable aggregator =
+        (QueryAggregatorFusable) AggregationKernelsTest.createAggregator(type);
+    for (int i = 0; i < rounds; i++) {
+      time(aggregator, points, kernels);
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < rounds; i++) {
+      best = Math.min(best, time(aggregator, points, kernels));
+    }
+    return (double) best / points.size();
+  }
+
+  public static void main(String[] args) throws QueryException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    DataPointBuffer points = AggregationKernelsTest.createPoints(count, 0, 1);
+    System.out.printf("%-6s %12s %12s%n", "type", "per point", "kernels");
+    for (QueryAggregatorType type : TYPES) {
+      double perPoint = bestNanosPerPoint(type, points, false, rounds);
+      double kernels = bestNanosPerPoint(type, points, true, rounds);
+      System.out.printf("%-6s %9.2f ns %9.2f ns%n", type.toString().toLowerCase(), perPoint,
+          kernels);
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
+import cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit;
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The ranges of a buffer of doubles are reduced by the kernels, the other inputs point by point:
+ * both must give the same datapoints.
+ */
+public class AggregationKernelsTest {
+
+  private static final long START = 1000;
+  private static final int STEP = 100;
+
+  /**
+   * @return count datapoints from START, with random gaps, some ranges being empty
+   */
+  static DataPointBuffer createPoints(int count, double offset, long seed) {
+    Random random = new Random(seed);
+    DataPointBuffer points = new DataPointBuffer(count);
+    long timestamp = START;
+    for (int i = 0; i < count; i++) {
+      points.add(timestamp, offset + random.nextGaussian() * 100);
+      timestamp += 1 + (random.nextInt(50) == 0 ? 500 : random.nextInt(20));
+    }
+    return points;
+  }
+
+  /**
+   * @return The cursor of the points, which is not a buffer and so is read point by point
+   */
+  static PointCursor pointByPoint(DataPointBuffer points) {
+    PointCursor input = PointCursor.of(points);
+    return new PointCursor() {
+      @Override
+      boolean next() throws QueryException {
+        if (!input.next()) {
+          return false;
+        }
+        set(input);
+        return true;
+      }
+    };
+  }
+
+  static DataPointBuffer drain(PointCursor cursor) throws QueryException {
+    DataPointBuffer points = new DataPointBuffer();
+    while (cursor.next()) {
+      points.add(cursor.timestamp, cursor.getAsDouble());
+    }
+    return points;
+  }
+
+  static QueryAggregator createAggregator(QueryAggregatorType type) {
+    QueryAggregator aggregator;
+    switch (type) {
+      case SUM:
+        aggregator = new QueryAggregatorSum();
+        break;
+      case AVG:
+        aggregator = new QueryAggregatorAvg();
+        break;
+      case MIN:
+        aggregator = new QueryAggregatorMin();
+        break;
+      case MAX:
+        aggregator = new QueryAggregatorMax();
+        break;
+      case COUNT:
+        aggregator = new QueryAggregatorCount();
+        break;
+      default:
+        QueryAggregatorDev dev = new QueryAggregatorDev();
+        dev.setReturnTypeFromString("value");
+        aggregator = dev;
+    }
+    ((QueryAggregatorSampling) aggregator).setSampling(new Duration(STEP, TimeUnit.MILLISECONDS));
+    ((QueryAggregatorAlignable) aggregator).setAlign(QueryAggregatorAlign.ALIGN_SAMPLING);
+    ((QueryAggregatorAlignable) aggregator).setStartTimestamp(START);
+    return aggregator;
+  }
+
+  private static void assertSameRanges(QueryAggregatorType type, DataPointBuffer points,
+      double relativeDelta) throws QueryException {
+    QueryAggregatorFusable aggregator = (QueryAggregatorFusable) createAggregator(type);
+    DataPointBuffer kernels = drain(aggregator.fuse(PointCursor.of(points)));
+    DataPointBuffer perPoint = drain(aggregator.fuse(pointByPoint(points)));
+    assertEquals(perPoint.size(), kernels.size());
+    assertTrue(kernels.size() > 1);
+    for (int i = 0; i < perPoint.size(); i++) {
+      assertEquals(perPoint.getTimestamp(i), kernels.getTimestamp(i));
+      double expected = perPoint.getAsDouble(i);
+      assertEquals(expected, kernels.getAsDouble(i), Math.abs(expected) * relativeDelta);
+    }
+  }
+
+  @Test
+  public void kernelsEqualPerPointAggregators() throws QueryException {
+    DataPointBuffer points = createPoints(10000, 0, 1);
+    assertSameRanges(QueryAggregatorType.MIN, points, 0);
+    assertSameRanges(QueryAggregatorType.MAX, points, 0);
+    assertSameRanges(QueryAggregatorType.COUNT, points, 0);
+    // the four accumulators add the values in another order
+    assertSameRanges(QueryAggregatorType.SUM, points, 1e-12);
+    assertSameRanges(QueryAggregatorType.AVG, points, 1e-12);
+    assertSameRanges(QueryAggregatorType.DEV, points, 1e-9);
+  }
+
+  @Test
+  public void devKeepsPrecisionFarFromZero() throws QueryException {
+    // the squares of the values are 1e18 larger than the squared deviations
+    assertSameRanges(QueryAggregatorType.DEV, createPoints(10000, 1e9, 2), 1e-6);
+
+    long[] bits = new long[11];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = Double.doubleToLongBits(1e9 + i);
+    }
+    double[] moments = new double[2];
+    AggregationKernels.moments(bits, 0, bits.length, moments);
+    assertEquals(1e9 + 5, moments[0], 0);
+    assertEquals(110, moments[1], 1e-6);
+  }
+
+  @Test
+  public void momentsOfShortSlices() {
+    long[] bits = new long[7];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = Double.doubleToLongBits(i * i);
+    }
+    double[] moments = new double[2];
+    for (int to = 1; to <= bits.length; to++) {
+      double sum = 0;
+      for (int i = 0; i < to; i++) {
+        sum += i * i;
+      }
+      double mean = sum / to;
+      double m2 = 0;
+      for (int i = 0; i < to; i++) {
+        m2 += (i * i - mean) * (i * i - mean);
+      }
+      AggregationKernels.moments(bits, 0, to, moments);
+      assertEquals(mean, moments[0], 1e-12);
+      assertEquals(m2, moments[1], 1e-9);
+    }
+  }
+
+}
@@ -0,0 +1,199 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.aggregator.Downsampler.Method;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.Random;
+import org.junit.Test;
+
+public class DownsamplerTest {
+
+  private static DataPointBuffer downsample(Method method, DataPointBuffer points, long startTime,
+      long endTime, int maxPoints) {
+    Downsampler downsampler = new Downsampler(method, startTime, endTime, maxPoints);
+    for (int i = 0; i < points.size(); i++) {
+      downsampler.add(points, i);
+    }
+    DataPointBuffer output = new DataPointBuffer();
+    downsampler.finish(output);
+    return output;
+  }
+
+  /**
+   * @return count datapoints from startTime, with random gaps and values
+   */
+  private static DataPointBuffer createPoints(long startTime, int count, long seed) {
+    Random random = new Random(seed);
+    DataPointBuffer points = new DataPointBuffer(count);
+    long timestamp = startTime;
+    for (int i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        points.add(timestamp, random.nextGaussian() * 100);
+      } else {
+        points.add(timestamp, (long) random.nextInt(1000));
+      }
+      timestamp += 1 + random.nextInt(20);
+    }
+    return points;
+  }
+
+  private static void assertInTimeOrder(DataPointBuffer points) {
+    for (int i = 1; i < points.size(); i++) {
+      assertTrue(points.getTimestamp(i) > points.getTimestamp(i - 1));
+    }
+  }
+
+  private static void assertBoundsKept(DataPointBuffer input, DataPointBuffer output) {
+    int last = input.size() - 1;
+    assertEquals(input.getTimestamp(0), output.getTimestamp(0));
+    assertEquals(input.getAsDouble(0), output.getAsDouble(0), 0);
+    assertEquals(input.getTimestamp(last), output.getTimestamp(output.size() - 1));
+    assertEquals(input.getAsDouble(last), output.getAsDouble(output.size() - 1), 0);
+  }
+
+  @Test
+  public void neverExceedMaxPoints() {
+    DataPointBuffer points = createPoints(1000, 20000, 1);
+    long endTime = points.getTimestamp(points.size() - 1);
+    for (Method method : Method.values()) {
+      for (int maxPoints : new int[]{4, 5, 7, 100, 1000, 19999}) {
+        DataPointBuffer output = downsample(method, points, 1000, endTime, maxPoints);
+        assertTrue(method + " " + maxPoints + ": " + output.size(), output.size() <= maxPoints);
+        assertTrue(output.size() >= Math.min(maxPoints / 2, 4));
+        assertInTimeOrder(output);
+      }
+    }
+  }
+
+  @Test
+  public void keepFirstAndLastPoints() {
+    DataPointBuffer points = createPoints(0, 5000, 2);
+    long endTime = points.getTimestamp(points.size() - 1);
+    for (Method method : Method.values()) {
+      assertBoundsKept(points, downsample(method, points, 0, endTime, 50));
+    }
+  }
+
+  @Test
+  public void keepAllPointsUnderMaxPoints() {
+    DataPointBuffer points = new DataPointBuffer();
+    for (int i = 0; i < 10; i++) {
+      points.add(i * 1000L, (double) i);
+    }
+    for (Method method : Method.values()) {
+      DataPointBuffer output = downsample(method, points, 0, 9999, 100);
+      assertEquals(points.size(), output.size());
+      for (int i = 0; i < points.size(); i++) {
+        assertEquals(points.getTimestamp(i), output.getTimestamp(i));
+      }
+    }
+  }
+
+  @Test
+  public void singlePoint() {
+    DataPointBuffer points = new DataPointBuffer();
+    points.add(500L, 3.5);
+    for (Method method : Method.values()) {
+      DataPointBuffer output = downsample(method, points, 0, 1000, 10);
+      assertEquals(1, output.size());
+      assertEquals(500L, output.getTimestamp(0));
+      assertEquals(3.5, output.getDoubleValue(0), 0);
+    }
+  }
+
+  @Test
+  public void noPoint() {
+    for (Method method : Method.values()) {
+      assertEquals(0, downsample(method, new DataPointBuffer(), 0, 1000, 10).size());
+    }
+  }
+
+  @Test
+  public void pointsOutsideTheRange() {
+    // the range covers the middle of the datapoints only
+    DataPointBuffer points = createPoints(0, 10000, 3);
+    long endTime = points.getTimestamp(points.size() - 1);
+    for (Method method : Method.values()) {
+      DataPointBuffer output = downsample(method, points, endTime / 4, endTime / 2, 40);
+      assertTrue(method + ": " + output.size(), output.size() <= 40);
+      assertInTimeOrder(output);
+      assertBoundsKept(points, output);
+    }
+  }
+
+  @Test
+  public void keepSpikes() {
+    DataPointBuffer points = new DataPointBuffer();
+    for (int i = 0; i < 10000; i++) {
+      points.add(i, i == 6543 ? 1000.0 : Math.sin(i / 100.0));
+    }
+    for (Method method : Method.values()) {
+      DataPointBuffer output = downsample(method, points, 0, 9999, 100);
+      boolean spikeKept = false;
+      for (int i = 0; i < output.size(); i++) {
+        spikeKept |= output.getTimestamp(i) == 6543 && output.getAsDouble(i) == 1000.0;
+      }
+      assertTrue(method.toString(), spikeKept);
+    }
+  }
+
+  @Test
+  public void skipTextPoints() {
+    DataPointBuffer points = new DataPointBuffer();
+    points.add(0L, "a");
+    points.add(1L, 1.0);
+    points.add(2L, "b");
+    points.add(3L, 3L);
+    Downsampler downsampler = new Downsampler(Method.LTTB, 0, 3, 10);
+    for (int i = 0; i < points.size(); i++) {
+      downsampler.add(points, i);
+    }
+    DataPointBuffer output = new DataPointBuffer();
+    downsampler.finish(output);
+    assertEquals(2, downsampler.getInputCount());
+    assertEquals(2, output.size());
+    assertEquals(1L, output.getTimestamp(0));
+    assertEquals(3L, output.getTimestamp(1));
+  }
+
+  @Test
+  public void methodFromString() {
+    assertEquals(Method.LTTB, Method.fromString("lttb"));
+    assertEquals(Method.MIN_MAX, Method.fromString("MIN_MAX"));
+    assertNull(Method.fromString("none"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownMethod() {
+    Method.fromString("average");
+  }
+
+  @Test
+  public void aggregatorKeepsTextResults() throws Exception {
+    QueryAggregatorDownsample aggregator = new QueryAggregatorDownsample(QueryAggregatorType.LTTB);
+    aggregator.setMaxPoints(4);
+    aggregator.setStartTimestamp(0);
+    aggregator.setEndTimestamp(1000);
+    MetricResult result = new MetricResult();
+    MetricValueResult numbers = new MetricValueResult("numbers");
+    for (int i = 0; i < 100; i++) {
+      numbers.addDataPoint(i * 10, (double) (i % 7));
+    }
+    MetricValueResult texts = new MetricValueResult("texts");
+    for (int i = 0; i < 10; i++) {
+      texts.addDataPoint(i * 100, "t" + i);
+    }
+    result.addResult(numbers);
+    result.addResult(texts);
+
+    // the downsampling is not a sampling aggregator, which would drop the texts
+    result = aggregator.doAggregate(result);
+    assertEquals(2, result.getResults().size());
+    assertEquals(4, result.getResults().get(0).getDatapoints().size());
+    assertEquals(10, result.getResults().get(1).getDatapoints().size());
+  }
+
+}
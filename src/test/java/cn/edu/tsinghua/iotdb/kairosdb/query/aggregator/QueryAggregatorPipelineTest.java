@@ -0,0 +1,117 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.query.QueryException;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import java.util.ArrayList;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class QueryAggregatorPipelineTest {
+
+  private static MetricResult result(DataPointBuffer... buffers) {
+    MetricResult result = new MetricResult();
+    for (DataPointBuffer buffer : buffers) {
+      MetricValueResult valueResult = new MetricValueResult("m");
+      DataPointBuffer points = new DataPointBuffer(buffer.size());
+      for (int i = 0; i < buffer.size(); i++) {
+        points.add(buffer, i);
+      }
+      valueResult.setValues(points);
+      result.addResult(valueResult);
+    }
+    return result;
+  }
+
+  private static List<QueryAggregator> createChain() {
+    QueryAggregatorFilter filter = new QueryAggregatorFilter();
+    filter.setOperandType("lt");
+    filter.setThreshold(-50);
+    QueryAggregatorDiv div = new QueryAggregatorDiv();
+    div.setDivisor(2);
+    return Arrays.asList(filter, div, AggregationKernelsTest.createAggregator(
+        QueryAggregatorType.SUM), AggregationKernelsTest.createAggregator(QueryAggregatorType.MAX));
+  }
+
+  private static void assertSamePoints(DataPointBuffer expected, DataPointBuffer actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+      assertEquals(expected.getType(i), actual.getType(i));
+      if (expected.getType(i) == Types.VARCHAR) {
+        assertEquals(expected.getText(i), actual.getText(i));
+      } else {
+        // the fused sum adds the values in another order
+        double value = expected.getAsDouble(i);
+        assertEquals(value, actual.getAsDouble(i), Math.abs(value) * 1e-12);
+      }
+    }
+  }
+
+  @Test
+  public void fusedChainEqualsEachAggregatorInTurn() throws QueryException {
+    DataPointBuffer points = AggregationKernelsTest.createPoints(10000, 0, 3);
+    MetricResult fused = QueryAggregatorPipeline.run(createChain(), result(points));
+
+    MetricResult stepByStep = result(points);
+    for (QueryAggregator aggregator : createChain()) {
+      stepByStep = aggregator.doAggregate(stepByStep);
+    }
+    DataPointBuffer expected = stepByStep.getResults().get(0).getDatapoints();
+    assertTrue(expected.size() > 1);
+    assertSamePoints(expected, fused.getResults().get(0).getDatapoints());
+  }
+
+  @Test
+  public void runANonFusableAggregatorBetweenTheFusedParts() throws QueryException {
+    List<DataPointBuffer> seen = new ArrayList<>();
+    QueryAggregator recorder = new QueryAggregator(QueryAggregatorType.SAVE_AS) {
+      @Override
+      public MetricResult doAggregate(MetricResult result) {
+        seen.add(result.getResults().get(0).getDatapoints());
+        return result;
+      }
+    };
+    List<QueryAggregator> chain = new ArrayList<>(createChain());
+    chain.add(2, recorder);
+    DataPointBuffer points = AggregationKernelsTest.createPoints(1000, 0, 4);
+    MetricResult result = QueryAggregatorPipeline.run(chain, result(points));
+
+    // the filter and the div ran before it, the sum and the max after it
+    MetricResult expected = result(points);
+    for (QueryAggregator aggregator : createChain().subList(0, 2)) {
+      expected = aggregator.doAggregate(expected);
+    }
+    assertEquals(1, seen.size());
+    assertSamePoints(expected.getResults().get(0).getDatapoints(), seen.get(0));
+    for (QueryAggregator aggregator : createChain().subList(2, 4)) {
+      expected = aggregator.doAggregate(expected);
+    }
+    assertSamePoints(expected.getResults().get(0).getDatapoints(),
+        result.getResults().get(0).getDatapoints());
+  }
+
+  @Test
+  public void samplingDropsTheTextResults() throws QueryException {
+    DataPointBuffer text = new DataPointBuffer();
+    text.add(1000, "a");
+    text.add(1001, "b");
+    DataPointBuffer numbers = AggregationKernelsTest.createPoints(100, 0, 5);
+
+    // the filter and the div leave the text as it is
+    MetricResult result = QueryAggregatorPipeline.run(createChain().subList(0, 2),
+        result(text, numbers));
+    assertEquals(2, result.getResults().size());
+    assertSamePoints(text, result.getResults().get(0).getDatapoints());
+
+    result = QueryAggregatorPipeline.run(createChain(), result(text, numbers));
+    assertEquals(1, result.getResults().size());
+    assertFalse(result.getResults().get(0).isTextType());
+  }
+
+}
@@ -0,0 +1,133 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import static org.junit.Assert.*;
+
+import cn.edu.tsinghua.iotdb.kairosdb.datastore.Duration;
+import cn.edu.tsinghua.iotdb.kairosdb.datastore.TimeUnit;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.DataPointBuffer;
+import cn.edu.tsinghua.iotdb.kairosdb.query.result.MetricValueResult;
+import cn.edu.tsinghua.iotdb.kairosdb.query.sql_builder.QuerySqlBuilder;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class QueryAggregatorPushdownTest {
+
+  private static QueryAggregator sampling(QueryAggregator aggregator, QueryAggregatorAlign align) {
+    ((QueryAggregatorSampling) aggregator).setSampling(new Duration(100, TimeUnit.MILLISECONDS));
+    ((QueryAggregatorAlignable) aggregator).setAlign(align);
+    return aggregator;
+  }
+
+  private static QueryAggregatorPushdown plan(QueryAggregator aggregator) {
+    return QueryAggregatorPushdown.plan(Collections.singletonList(aggregator), 0, 1000);
+  }
+
+  @Test
+  public void planTheAggregatorsIoTDBComputes() {
+    assertNotNull(plan(sampling(new QueryAggregatorMax(), QueryAggregatorAlign.ALIGN_SAMPLING)));
+    assertNotNull(plan(sampling(new QueryAggregatorSum(), QueryAggregatorAlign.NO_ALIGN)));
+    // the intervals of IoTDB start at the query start, not at the first datapoint
+    assertNull(plan(sampling(new QueryAggregatorSum(), QueryAggregatorAlign.ALIGN_SAMPLING)));
+    assertNull(plan(sampling(new QueryAggregatorAvg(), QueryAggregatorAlign.NO_ALIGN)));
+    assertNull(plan(new QueryAggregatorMax()));
+  }
+
+  @Test
+  public void selectTheCountOfTheRawDatapoints() {
+    String sql = plan(sampling(new QueryAggregatorMax(), QueryAggregatorAlign.NO_ALIGN))
+        .buildSql(new QuerySqlBuilder("m"), 0, 1000);
+    assertTrue(sql, sql.startsWith("SELECT max_value(m),count(m) FROM root.*"));
+    sql = plan(sampling(new QueryAggregatorCount(), QueryAggregatorAlign.NO_ALIGN))
+        .buildSql(new QuerySqlBuilder("m"), 0, 1000);
+    assertTrue(sql, sql.startsWith("SELECT count(m),min_time(m) FROM root.*"));
+  }
+
+  @Test
+  public void sampleSizeOfMaxIsTheRawDatapointCount() throws Exception {
+    QueryAggregatorPushdown pushdown = plan(
+        sampling(new QueryAggregatorMax(), QueryAggregatorAlign.NO_ALIGN));
+    List<String> columns = Arrays.asList("Time", "max_value(root.g.d1.m)",
+        "max_value(root.g.d2.m)", "count(root.g.d1.m)", "count(root.g.d2.m)");
+    ResultSet rs = resultSet(columns, Types.DOUBLE,
+        new Object[]{0L, "5.0", "7.0", "10", "3"},
+        new Object[]{100L, "2.0", null, "4", "0"});
+    MetricValueResult valueResult = new MetricValueResult("m");
+    boolean[] columnsWithValues = new boolean[4];
+
+    assertEquals(17, pushdown.read(rs, valueResult, columnsWithValues));
+    DataPointBuffer points = valueResult.getDatapoints();
+    assertEquals(2, points.size());
+    assertEquals(0, points.getTimestamp(0));
+    assertEquals(7.0, points.getAsDouble(0), 0);
+    assertEquals(100, points.getTimestamp(1));
+    assertEquals(2.0, points.getAsDouble(1), 0);
+    assertTrue(Arrays.equals(new boolean[]{true, true, false, false}, columnsWithValues));
+  }
+
+  @Test
+  public void sampleSizeOfSumAndCount() throws Exception {
+    QueryAggregatorPushdown sum = plan(
+        sampling(new QueryAggregatorSum(), QueryAggregatorAlign.NO_ALIGN));
+    ResultSet rs = resultSet(
+        Arrays.asList("Time", "sum(root.g.d1.m)", "min_time(root.g.d1.m)", "count(root.g.d1.m)"),
+        Types.DOUBLE, new Object[]{0L, "6.5", "3", "4"});
+    MetricValueResult valueResult = new MetricValueResult("m");
+    assertEquals(4, sum.read(rs, valueResult, new boolean[3]));
+    assertEquals(3, valueResult.getDatapoints().getTimestamp(0));
+    assertEquals(6.5, valueResult.getDatapoints().getAsDouble(0), 0);
+
+    // the count is both the value and the sample size
+    QueryAggregatorPushdown count = plan(
+        sampling(new QueryAggregatorCount(), QueryAggregatorAlign.NO_ALIGN));
+    rs = resultSet(Arrays.asList("Time", "count(root.g.d1.m)", "min_time(root.g.d1.m)"),
+        Types.BIGINT, new Object[]{0L, "4", "2"});
+    valueResult = new MetricValueResult("m");
+    assertEquals(4, count.read(rs, valueResult, new boolean[2]));
+    assertEquals(4, valueResult.getDatapoints().getAsDouble(0), 0);
+  }
+
+  /**
+   * @param valueType The type of the columns of the pushed down function, the others are BIGINT
+   */
+  private static ResultSet resultSet(List<String> columns, int valueType, Object[]... rows) {
+    String valueFunction = columns.get(1).substring(0, columns.get(1).indexOf('('));
+    ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+        QueryAggregatorPushdownTest.class.getClassLoader(), new Class[]{ResultSetMetaData.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getColumnCount":
+              return columns.size();
+            case "getColumnName":
+              return columns.get((Integer) args[0] - 1);
+            case "getColumnType":
+              return columns.get((Integer) args[0] - 1).startsWith(valueFunction + "(") ? valueType
+                  : Types.BIGINT;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    int[] row = {-1};
+    return (ResultSet) Proxy.newProxyInstance(QueryAggregatorPushdownTest.class.getClassLoader(),
+        new Class[]{ResultSet.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getMetaData":
+              return metaData;
+            case "next":
+              return ++row[0] < rows.length;
+            case "getLong":
+              return (Long) rows[row[0]][(Integer) args[0] - 1];
+            case "getString":
+              return (String) rows[row[0]][(Integer) args[0] - 1];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
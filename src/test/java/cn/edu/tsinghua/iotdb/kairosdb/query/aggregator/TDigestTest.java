@@ -0,0 +1,115 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.aggregator;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class TDigestTest {
+
+  private static final int SIZE = 100000;
+  private static final double COMPRESSION = 100;
+
+  /**
+   * @return A digest of the values from to to - 1, added in random order
+   */
+  private static TDigest createDigest(int from, int to, long seed) {
+    int[] values = new int[to - from];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = from + i;
+    }
+    Random random = new Random(seed);
+    for (int i = values.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int value = values[i];
+      values[i] = values[j];
+      values[j] = value;
+    }
+    TDigest digest = new TDigest(COMPRESSION);
+    for (int value : values) {
+      digest.add(value);
+    }
+    return digest;
+  }
+
+  @Test
+  public void emptyDigest() {
+    TDigest digest = new TDigest(COMPRESSION);
+    assertEquals(0, digest.size());
+    assertTrue(Double.isNaN(digest.quantile(0.5)));
+  }
+
+  @Test
+  public void singleValue() {
+    TDigest digest = new TDigest(COMPRESSION);
+    digest.add(42);
+    assertEquals(1, digest.size());
+    assertEquals(42, digest.quantile(0), 0);
+    assertEquals(42, digest.quantile(0.5), 0);
+    assertEquals(42, digest.quantile(1), 0);
+  }
+
+  @Test
+  public void extremesAreExact() {
+    TDigest digest = createDigest(0, SIZE, 1);
+    assertEquals(SIZE, digest.size());
+    assertEquals(0, digest.quantile(0), 0);
+    assertEquals(SIZE - 1, digest.quantile(1), 0);
+  }
+
+  @Test
+  public void medianWithinRankError() {
+    TDigest digest = createDigest(0, SIZE, 2);
+    // about 1/compression of the values around the median
+    assertEquals(SIZE / 2.0, digest.quantile(0.5), SIZE / COMPRESSION);
+  }
+
+  @Test
+  public void tailsMoreAccurateThanMedian() {
+    TDigest digest = createDigest(0, SIZE, 3);
+    assertEquals(SIZE * 0.001, digest.quantile(0.001), SIZE / COMPRESSION / 10);
+    assertEquals(SIZE * 0.999, digest.quantile(0.999), SIZE / COMPRESSION / 10);
+    assertEquals(SIZE * 0.99, digest.quantile(0.99), SIZE / COMPRESSION / 5);
+  }
+
+  @Test
+  public void quantilesAreMonotonic() {
+    TDigest digest = createDigest(0, SIZE, 4);
+    double previous = digest.quantile(0);
+    for (int i = 1; i <= 1000; i++) {
+      double value = digest.quantile(i / 1000.0);
+      assertTrue(value >= previous);
+      previous = value;
+    }
+  }
+
+  @Test
+  public void mergeDigests() {
+    TDigest low = createDigest(0, SIZE / 2, 5);
+    TDigest high = createDigest(SIZE / 2, SIZE, 6);
+    low.merge(high);
+    assertEquals(SIZE, low.size());
+    assertEquals(0, low.quantile(0), 0);
+    assertEquals(SIZE - 1, low.quantile(1), 0);
+    assertEquals(SIZE / 2.0, low.quantile(0.5), SIZE / COMPRESSION);
+    assertEquals(SIZE * 0.25, low.quantile(0.25), SIZE / COMPRESSION);
+    // the other digest is left unchanged
+    assertEquals(SIZE / 2, high.size());
+    assertEquals(SIZE / 2, high.quantile(0), 0);
+    assertEquals(SIZE * 0.75, high.quantile(0.5), SIZE / COMPRESSION);
+  }
+
+  @Test
+  public void mergeEmptyDigest() {
+    TDigest digest = createDigest(0, 1000, 7);
+    digest.merge(new TDigest(COMPRESSION));
+    assertEquals(1000, digest.size());
+    assertEquals(999, digest.quantile(1), 0);
+
+    TDigest empty = new TDigest(COMPRESSION);
+    empty.merge(digest);
+    assertEquals(1000, empty.size());
+    assertEquals(0, empty.quantile(0), 0);
+    assertEquals(999, empty.quantile(1), 0);
+  }
+}
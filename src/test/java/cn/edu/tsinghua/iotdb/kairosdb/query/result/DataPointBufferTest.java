@@ -0,0 +1,178 @@
+package cn.edu.tsinghua.iotdb.kairosdb.query.result;
+
+import static org.junit.Assert.*;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.sql.Types;
+import org.junit.Test;
+
+public class DataPointBufferTest {
+
+  @Test
+  public void growBeyondInitialCapacity() {
+    DataPointBuffer buffer = new DataPointBuffer(1);
+    for (int i = 0; i < 1000; i++) {
+      if (i % 3 == 0) {
+        buffer.add(i, (long) i);
+      } else if (i % 3 == 1) {
+        buffer.add(i, i + 0.5);
+      } else {
+        buffer.add(i, "v" + i % 7);
+      }
+    }
+    assertEquals(1000, buffer.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, buffer.getTimestamp(i));
+      if (i % 3 == 0) {
+        assertEquals(Types.INTEGER, buffer.getType(i));
+        assertEquals(i, buffer.getLongValue(i));
+      } else if (i % 3 == 1) {
+        assertEquals(Types.DOUBLE, buffer.getType(i));
+        assertEquals(i + 0.5, buffer.getDoubleValue(i), 0);
+      } else {
+        assertEquals(Types.VARCHAR, buffer.getType(i));
+        assertEquals("v" + i % 7, buffer.getText(i));
+      }
+    }
+  }
+
+  @Test
+  public void keepLongValues() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, Long.MAX_VALUE);
+    assertTrue(buffer.isInteger(0));
+    assertEquals(Long.MAX_VALUE, buffer.getLongValue(0));
+    assertEquals(String.valueOf(Long.MAX_VALUE), buffer.getAsString(0));
+    // QueryDataPoint only holds int values, a larger one is built as a double
+    assertEquals(Types.DOUBLE, buffer.get(0).getType());
+  }
+
+  @Test
+  public void removeShiftsFollowingPoints() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 1);
+    buffer.add(2L, "two");
+    buffer.add(3L, 3.0);
+    buffer.add(4L, 4);
+
+    QueryDataPoint removed = buffer.remove(1);
+    assertEquals(Long.valueOf(2), removed.getTimestamp());
+    assertEquals("two", removed.getAsString());
+    assertEquals(3, buffer.size());
+    assertEquals(3L, buffer.getTimestamp(1));
+    assertEquals(3.0, buffer.getAsDouble(1), 0);
+
+    buffer.remove(buffer.size() - 1);
+    buffer.remove(0);
+    assertEquals(1, buffer.size());
+    assertEquals(3L, buffer.getTimestamp(0));
+    buffer.remove(0);
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void getTypeBeyondSize() {
+    DataPointBuffer buffer = new DataPointBuffer(16);
+    buffer.add(1L, 1);
+    // within the capacity but not the size
+    buffer.getType(1);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void getTypeNegativeIndex() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 1);
+    buffer.getType(-1);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void getTypeAfterRemove() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 1);
+    buffer.add(2L, 2);
+    buffer.remove(1);
+    buffer.getType(1);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void getTimestampAfterClear() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 1);
+    buffer.clear();
+    buffer.getTimestamp(0);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void removeBeyondSize() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 1);
+    buffer.remove(1);
+  }
+
+  @Test
+  public void insertQueryDataPoints() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(new QueryDataPoint(1L, 1));
+    buffer.add(new QueryDataPoint(3L, "three"));
+    buffer.add(1, new QueryDataPoint(2L, 2.5));
+    assertEquals(3, buffer.size());
+    assertEquals(2L, buffer.getTimestamp(1));
+    assertEquals(2.5, buffer.getDoubleValue(1), 0);
+    assertEquals("three", buffer.getText(2));
+    assertEquals(Types.INTEGER, buffer.getType(0));
+  }
+
+  @Test
+  public void copyPointsBetweenBuffers() {
+    DataPointBuffer source = new DataPointBuffer();
+    source.add(1L, "a");
+    source.add(2L, 2.0);
+    DataPointBuffer target = new DataPointBuffer();
+    target.add(0L, "b");
+    target.addAll(source);
+    assertEquals(3, target.size());
+    assertEquals("b", target.getText(0));
+    assertEquals("a", target.getText(1));
+    assertEquals(2.0, target.getDoubleValue(2), 0);
+  }
+
+  @Test
+  public void doubleBitsOnlyForAllDoubles() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 1.5);
+    buffer.add(2L, 2.5);
+    long[] bits = buffer.getDoubleBits();
+    assertNotNull(bits);
+    assertEquals(2.5, Double.longBitsToDouble(bits[1]), 0);
+    buffer.add(3L, 3);
+    assertNull(buffer.getDoubleBits());
+  }
+
+  @Test
+  public void splitIntoIntervals() {
+    DataPointBuffer buffer = new DataPointBuffer();
+    for (long timestamp : new long[]{5, 10, 11, 19, 35, 41}) {
+      buffer.add(timestamp, 1);
+    }
+    // [10, 20) holds 10, 11, 19; [20, 30) is empty; [30, 40) holds 35; [40, 50) holds 41
+    assertArrayEquals(new int[]{1, 4, 4, 5, 5, 6}, buffer.split(10, 10));
+  }
+
+  @Test
+  public void serializeAsQueryDataPoints() {
+    Gson gson = new GsonBuilder()
+        .registerTypeAdapter(DataPointBuffer.class, new DataPointBuffer.Adapter()).create();
+    DataPointBuffer buffer = new DataPointBuffer();
+    buffer.add(1L, 2);
+    buffer.add(2L, 2.5);
+    buffer.add(3L, "x");
+    String json = gson.toJson(buffer, DataPointBuffer.class);
+    assertEquals("[[1,2],[2,2.5],[3,\"x\"]]", json);
+    DataPointBuffer read = gson.fromJson(json, DataPointBuffer.class);
+    assertEquals(3, read.size());
+    assertEquals(Types.INTEGER, read.getType(0));
+    assertEquals(Types.DOUBLE, read.getType(1));
+    assertEquals("x", read.getText(2));
+  }
+}
@@ -1,5 +1,6 @@
 package iotdb.export.csv;
 
+import cn.edu.tsinghua.iotdb.kairosdb.router.StorageGroupRouter;
 import iotdb.export.csv.conf.CommandCli;
 import iotdb.export.csv.conf.Config;
 import iotdb.export.csv.conf.ConfigDescriptor;
@@ -24,10 +25,10 @@ public class ExportToCsvIoTDB {
 
   private static Config config;
   private static final Logger LOGGER = LoggerFactory.getLogger(ExportToCsvIoTDB.class);
-  private static final String STORAGE_GROUP_PREFIX = "group_";
   private static final String DIR_NAME = "%s_%s_%s";
   private static final String CSV_FILE_SUFFIX = ".csv";
   private static int storageGroupSize;
+  private static StorageGroupRouter storageGroupRouter;
   private static final String PATH_TEMPLATE = "root.%s%s.%s";
   private static Map<Long, Map<String, Object>> dataTable = new LinkedHashMap<>();
   private static String[] metrics;
@@ -58,6 +59,8 @@ public class ExportToCsvIoTDB {
     }
     config = ConfigDescriptor.getInstance().getConfig();
     storageGroupSize = config.STORAGE_GROUP_SIZE;
+    storageGroupRouter = new StorageGroupRouter(config.PROTOCAL_MACHINE, config.PROTOCAL_NUM,
+        storageGroupSize);
     trainNumber = config.MACHINE_ID;
     column = config.COLUMN;
     header = config.METRIC_LIST.split(",");
@@ -199,15 +202,7 @@ public class ExportToCsvIoTDB {
     if (path == null) {
       return "null";
     }
-    String device = path.split("\\.")[1];
-    for (int i = 0; i < config.PROTOCAL_NUM; i++) {
-      if (config.PROTOCAL_MACHINE.get(i).contains(device)) {
-        return String.format("%s%s", STORAGE_GROUP_PREFIX, i);
-      }
-    }
-    int hashCode = device.hashCode();
-//    LOGGER.warn("协议中不存在车辆{}", device);
-    return String.format("%s%s", STORAGE_GROUP_PREFIX, Math.abs(hashCode) % storageGroupSize);
+    return storageGroupRouter.getStorageGroupName(path);
   }
 
 }
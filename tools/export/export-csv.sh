@@ -6,6 +6,7 @@ fi
 
 #git pull
 #rm -rf lib
+#mvn -f ../../common/pom.xml clean install -Dmaven.test.skip=true
 #mvn clean package -Dmaven.test.skip=true
 cd $EXPORT_CSV_HOME/bin
 sh ./startup.sh -cf ../conf/config.properties
@@ -1,5 +1,6 @@
 package kairosdb.export.csv;
 
+import cn.edu.tsinghua.iotdb.kairosdb.router.StorageGroupRouter;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -20,11 +21,11 @@ public class ExportToCsv {
 
   private static Config config;
   private static final Logger LOGGER = LoggerFactory.getLogger(ExportToCsv.class);
-  private static final String STORAGE_GROUP_PREFIX = "group_";
   private static final String DIR_NAME = "root.%s";
 
   private static final String TSFILE_FILE_NAME = "%s-%s-%s.tsfile";
   private static int storageGroupSize;
+  private static StorageGroupRouter storageGroupRouter;
   private static List<String> trainList;
   private static long startTime;
   private static long endTime;
@@ -43,6 +44,8 @@ public class ExportToCsv {
     }
     config = ConfigDescriptor.getInstance().getConfig();
     storageGroupSize = config.STORAGE_GROUP_SIZE;
+    storageGroupRouter = new StorageGroupRouter(config.PROTOCAL_MACHINE, config.PROTOCAL_NUM,
+        storageGroupSize);
     trainList = config.MACHINE_ID_LIST;
     column = config.COLUMN;
     header = config.METRIC_LIST.split(",");
@@ -141,15 +144,10 @@ public class ExportToCsv {
     if (path == null) {
       return "null";
     }
-    String device = path.split("\\.")[1];
-    for (int i = 0; i < config.PROTOCAL_NUM; i++) {
-      if (config.PROTOCAL_MACHINE.get(i).contains(device)) {
-        return String.format("%s%s", STORAGE_GROUP_PREFIX, i);
-      }
+    if (!storageGroupRouter.isProtocolDevice(path)) {
+      LOGGER.warn("协议中不存在车辆{}", path);
     }
-    int hashCode = device.hashCode();
-    LOGGER.warn("协议中不存在车辆{}", device);
-    return String.format("%s%s", STORAGE_GROUP_PREFIX, Math.abs(hashCode) % storageGroupSize);
+    return storageGroupRouter.getStorageGroupName(path);
   }
 
 }